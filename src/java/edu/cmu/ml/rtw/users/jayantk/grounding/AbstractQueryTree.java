@@ -6,6 +6,7 @@ import ilog.concert.IloNumVar;
 import ilog.cplex.IloCplex;
 
 import java.util.Arrays;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -23,6 +24,16 @@ import com.jayantkrish.jklol.tensor.TensorBuilder;
 
 import edu.cmu.ml.rtw.users.jayantk.semparse.RelationType;
 
+/**
+ * Common implementation of query tree nodes. ILP inference draws solver
+ * instances from a shared pool and keeps all per-solve state in an
+ * {@link IlpContext}, so queries (including queries that share nodes)
+ * may be solved concurrently. {@link #dualDecomposition} and
+ * {@link #updateOutputLocalWeights} modify the node and must only be
+ * called on a copy owned by the calling thread.
+ *
+ * @author jayantk
+ */
 public abstract class AbstractQueryTree implements QueryTree {
   
   // Lock for creating new instances of the cplex class.
@@ -31,6 +42,18 @@ public abstract class AbstractQueryTree implements QueryTree {
     private static IloCplex[] theCplex = null;
     private static boolean[] cplexInUse = null;
     private static final int NUM_CPLEXES = 20;
+
+  private static final Metrics.Histogram ilpPoolWaitTimer = Metrics.timer("ilp.poolWait");
+  private static final Metrics.Histogram ilpAugmentTimer = Metrics.timer("ilp.augment");
+  private static final Metrics.Histogram ilpSolveTimer = Metrics.timer("ilp.solve");
+  private static final Metrics.Histogram ilpVariables = Metrics.histogram("ilp.variables");
+  private static final Metrics.Histogram ilpConstraints = Metrics.histogram("ilp.constraints");
+  private static final Metrics.Counter ilpFailures = Metrics.counter("ilp.failures");
+  private static final Metrics.Counter ilpBudgetExceeded = Metrics.counter("ilp.budgetExceeded");
+  private static final Metrics.Counter ilpIncumbents = Metrics.counter("ilp.incumbents");
+  private static final Metrics.Histogram ddTimer = Metrics.timer("dd.time");
+  private static final Metrics.Histogram ddIterations = Metrics.histogram("dd.iterations");
+  private static final Metrics.Counter ddUnconverged = Metrics.counter("dd.unconverged");
   
   // Lagrange multipliers + weights for the output variable.
   private ParallelFactors outputLocalWeights;
@@ -40,8 +63,6 @@ public abstract class AbstractQueryTree implements QueryTree {
   // database.
   private final RelationType relation;
   
-  // if non-null, contains the variable array for the current CPLEX ilp instance.
-  private IloNumVar[] vars; 
 
   private final boolean isHardConstraint;
 
@@ -164,6 +185,38 @@ public abstract class AbstractQueryTree implements QueryTree {
     return weight;
   }
   
+  /**
+   * Creates a copy of this node with {@code subtrees} as its children.
+   * The copy shares all of the state of this node, including its
+   * weights, and can be modified without affecting this node.
+   */
+  protected abstract AbstractQueryTree copyNode(List<QueryTree> subtrees);
+
+  @Override
+  public QueryTree copy() {
+    List<QueryTree> subtreeCopies = Lists.newArrayList();
+    for (QueryTree subtree : subtrees) {
+      subtreeCopies.add(subtree.copy());
+    }
+    return copyNode(subtreeCopies);
+  }
+
+  @Override
+  public QueryTree bindPredicates(Iterator<QueryTree> predicates) {
+    List<QueryTree> boundSubtrees = Lists.newArrayList();
+    for (QueryTree subtree : subtrees) {
+      boundSubtrees.add(subtree.bindPredicates(predicates));
+    }
+    return copyNode(boundSubtrees);
+  }
+
+  @Override
+  public QueryTree withObservation(Tensor outputWeightDelta) {
+    AbstractQueryTree observed = copyNode(subtrees);
+    observed.outputLocalWeights = outputLocalWeights.elementwiseAddition(outputWeightDelta);
+    return observed;
+  }
+
   @Override
   public QueryTree reparameterizeDualDecomposition(int maxIterations) {
     QueryTree copy = copy();
@@ -201,6 +254,8 @@ public abstract class AbstractQueryTree implements QueryTree {
       subtree.dualDecomposition(maxIterations);
     }
 
+    long startTime = ddTimer.start();
+
     int numDisagreements = 1;
     int i = 0;
     for (; i < maxIterations && numDisagreements > 0; i++) {
@@ -210,14 +265,27 @@ public abstract class AbstractQueryTree implements QueryTree {
       numDisagreements = subgradientUpdate(localAssignment, factorAssignment, 1.0 / Math.sqrt(i + 1));
       //System.out.println(i + ": " + numDisagreements + " disagreements");
     }
-    System.out.println(i + " iterations, " + numDisagreements + " disagreements");
+    ddTimer.stop(startTime);
+    ddIterations.record(i);
+    ExampleProfiler.recordDualDecomposition(i);
+    if (numDisagreements > 0) {
+      ddUnconverged.increment();
+    }
+    EventLog.debug("dd", "dualDecomposition", "iterations", i, "disagreements", numDisagreements);
   }
 
   @Override  
       public MultiTree<Tensor> ilpInference(boolean useLpRelaxation, boolean applyWeakSupervisionConstraints) {
+    return ilpInference(useLpRelaxation, applyWeakSupervisionConstraints, InferenceBudget.UNLIMITED);
+  }
+
+  @Override
+  public MultiTree<Tensor> ilpInference(boolean useLpRelaxation, boolean applyWeakSupervisionConstraints,
+      InferenceBudget budget) {
 
     int cplexIndex = -1;
     IloCplex cplex = null;
+    long waitStart = ilpPoolWaitTimer.start();
     try {
       synchronized (cplexCreationLock) {
         // Initialize the available CPLEX instances.
@@ -225,58 +293,102 @@ public abstract class AbstractQueryTree implements QueryTree {
           theCplex = new IloCplex[NUM_CPLEXES];
           cplexInUse = new boolean[NUM_CPLEXES];
           for (int i = 0 ; i < NUM_CPLEXES; i++) {
-            System.out.println("initializing cplex " + i);
+            EventLog.info("ilp", "initializeCplex", "index", i);
             theCplex[i] = new IloCplex();
             cplexInUse[i] = false;
           }
         }
 
-        // Grab an instance for this inference.
-        for (int i = 0; i < NUM_CPLEXES; i++) {
-          if (!cplexInUse[i]) {
-            System.out.println("cplex " + i);
-            System.out.println(theCplex[i]);
-            cplex = theCplex[i];
-            cplexInUse[i] = true;
-            cplexIndex = i;
-            break;
+        // Grab an instance for this inference, waiting for one to be
+        // released if more threads than instances are solving.
+        while (cplexIndex == -1) {
+          for (int i = 0; i < NUM_CPLEXES; i++) {
+            if (!cplexInUse[i]) {
+              EventLog.debug("ilp", "acquireCplex", "index", i, "cplex", theCplex[i]);
+              cplex = theCplex[i];
+              cplexInUse[i] = true;
+              cplexIndex = i;
+              break;
+            }
+          }
+          if (cplexIndex == -1) {
+            cplexCreationLock.wait();
           }
         }
       }
-      Preconditions.checkState(cplexIndex != -1, "Not enough CPLEX objects were allocated for all threads.");
+      ilpPoolWaitTimer.stop(waitStart);
     } catch (IloException e) {
 	// Fail if CPLEX cannot be instantiated -- no exceptions are expected.
 	throw new RuntimeException(e);
+    } catch (InterruptedException e) {
+	Thread.currentThread().interrupt();
+	throw new RuntimeException(e);
     }
 
     boolean success = false;
+    boolean budgetExceeded = false;
     MultiTree<Tensor> assignment = null;
+    int numVariables = 0, numConstraints = 0;
+    long solveNanos = 0;
     try {
 	// Redirect (and ignore) the cplex output 
 	cplex.setOut(new NullOutputStream());
 	IloLinearNumExpr objective = cplex.linearNumExpr(); 
 
-	this.augmentIlp(cplex, objective, useLpRelaxation, applyWeakSupervisionConstraints);
+	long augmentStart = ilpAugmentTimer.start();
+	IlpContext context = new IlpContext(cplex);
+	this.augmentIlp(context, objective, useLpRelaxation, applyWeakSupervisionConstraints);
 
 	cplex.addMaximize(objective);
+	ilpAugmentTimer.stop(augmentStart);
+	numVariables = cplex.getNcols();
+	numConstraints = cplex.getNrows();
+	ilpVariables.record(numVariables);
+	ilpConstraints.record(numConstraints);
 	// Not setting this parameter interacts poorly with equality constraints?!
 	// cplex.setParam(IloCplex.IntParam.AggInd, 0);
-	// cplex.setParam(IloCplex.DoubleParam.TiLim, 5);
+	// The pooled instances are shared, so every solve sets its own limits.
+	cplex.setParam(IloCplex.DoubleParam.TiLim, budget.getTimeLimitSeconds());
+	cplex.setParam(IloCplex.IntParam.NodeLim, budget.getNodeLimit());
+	cplex.setParam(IloCplex.DoubleParam.EpGap, budget.getRelativeGap());
+	long solveStart = ilpSolveTimer.start();
 	boolean status = cplex.solve();
-
-	assignment = decodeIlpSolution(cplex);
-	// System.out.println(assignment);
-	success = true;
+	solveNanos = ilpSolveTimer.stop(solveStart);
+
+	IloCplex.Status solveStatus = cplex.getStatus();
+	if (!status && solveStatus == IloCplex.Status.Unknown && budget.isLimited()) {
+	  // The budget ran out before any solution was found, so there
+	  // is nothing to decode.
+	  budgetExceeded = true;
+	  ilpBudgetExceeded.increment();
+	  ExampleProfiler.recordOutcome("ilpBudgetExceeded");
+	  EventLog.warn("ilp", "budgetExceeded", "budget", budget, "cplexStatus", cplex.getCplexStatus(),
+	      "variables", numVariables, "constraints", numConstraints, "nodes", cplex.getNnodes());
+	} else {
+	  if (status && solveStatus == IloCplex.Status.Feasible) {
+	    // The budget ran out, but the best solution found so far is usable.
+	    ilpIncumbents.increment();
+	    EventLog.warn("ilp", "returnedIncumbent", "budget", budget, "cplexStatus", cplex.getCplexStatus(),
+	        "variables", numVariables, "constraints", numConstraints, "nodes", cplex.getNnodes());
+	  }
+
+	  assignment = decodeIlpSolution(context);
+	  // System.out.println(assignment);
+	  success = true;
+	}
     } catch (IloException e) {
 	// Failure here means that inference could not find
 	// a solution. This is captured by success = false
-	System.out.println("Ilo exception: " + e);
+	ilpFailures.increment();
+	EventLog.warn("ilp", "iloException", "exception", e);
     }
+    ExampleProfiler.recordIlp(numVariables, numConstraints, solveNanos, success);
 
     try {
 	cplex.clearModel();
 	synchronized (cplexCreationLock) {
 	    cplexInUse[cplexIndex] = false;
+	    cplexCreationLock.notifyAll();
 	}
     } catch (IloException e) {
 	// Failure clearing the state of CPLEX.
@@ -285,14 +397,17 @@ public abstract class AbstractQueryTree implements QueryTree {
 
     if (success) {
 	return assignment;
+    } else if (budgetExceeded) {
+	throw new InferenceBudget.BudgetExceededError();
     } else {
 	throw new ZeroProbabilityError();
     }
   }
 
   @Override
-  public IloNumVar[] augmentIlp(IloCplex cplex, IloLinearNumExpr objective, boolean useLpRelaxation, boolean applyWeakSupervisionConstraints) throws IloException {
-      this.vars = augmentIlpHelper(cplex, objective, useLpRelaxation, applyWeakSupervisionConstraints);
+  public IloNumVar[] augmentIlp(IlpContext context, IloLinearNumExpr objective, boolean useLpRelaxation, boolean applyWeakSupervisionConstraints) throws IloException {
+    IloNumVar[] vars = augmentIlpHelper(context, objective, useLpRelaxation, applyWeakSupervisionConstraints);
+    context.setVariables(this, vars);
     return vars;
   }
 
@@ -340,16 +455,16 @@ public abstract class AbstractQueryTree implements QueryTree {
     return vars;
   }
 
-  protected abstract IloNumVar[] augmentIlpHelper(IloCplex cplex, IloLinearNumExpr objective, 
+  protected abstract IloNumVar[] augmentIlpHelper(IlpContext context, IloLinearNumExpr objective, 
 						  boolean useLpRelaxation, boolean applyWeakSupervisionConstraints) throws IloException;
 
   @Override
-  public MultiTree<Tensor> decodeIlpSolution(IloCplex cplex) throws IloException {
-    Tensor myValue = decodeIlpSolutionHelper(vars, cplex);
+  public MultiTree<Tensor> decodeIlpSolution(IlpContext context) throws IloException {
+    Tensor myValue = decodeIlpSolutionHelper(context.getVariables(this), context.getCplex());
 
     List<MultiTree<Tensor>> subtreeValues = Lists.newArrayList();
     for (QueryTree subtree : subtrees) {
-      subtreeValues.add(subtree.decodeIlpSolution(cplex));
+      subtreeValues.add(subtree.decodeIlpSolution(context));
     }
 
     return new MultiTree<Tensor>(myValue, subtreeValues);
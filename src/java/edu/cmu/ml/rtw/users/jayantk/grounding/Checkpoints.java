@@ -0,0 +1,70 @@
+package edu.cmu.ml.rtw.users.jayantk.grounding;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Reads and writes serialized checkpoints. Checkpoints are written to
+ * a temporary file in the same directory, then renamed over the old
+ * checkpoint, so a reader (or a restarted process) always sees either
+ * the old or the new checkpoint, never a partially written one.
+ *
+ * @author jayantk
+ */
+public class Checkpoints {
+
+  private static final String TEMP_SUFFIX = ".tmp";
+
+  /**
+   * Atomically replaces the contents of {@code filename} with the
+   * serialized {@code object}.
+   */
+  public static void writeAtomically(Serializable object, String filename) throws IOException {
+    File file = new File(filename).getAbsoluteFile();
+    File tempFile = new File(file.getPath() + TEMP_SUFFIX);
+
+    FileOutputStream fos = new FileOutputStream(tempFile);
+    try {
+      ObjectOutputStream out = new ObjectOutputStream(fos);
+      out.writeObject(object);
+      out.flush();
+      // Make sure the data is on disk before the rename makes it visible.
+      fos.getFD().sync();
+      out.close();
+    } finally {
+      fos.close();
+    }
+
+    try {
+      Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE,
+          StandardCopyOption.REPLACE_EXISTING);
+    } catch (AtomicMoveNotSupportedException e) {
+      Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+  }
+
+  /**
+   * Reads a checkpoint written by {@link #writeAtomically}, or returns
+   * {@code null} if {@code filename} does not exist.
+   */
+  public static <T> T read(String filename, Class<T> clazz) throws IOException, ClassNotFoundException {
+    File file = new File(filename);
+    if (!file.exists()) {
+      return null;
+    }
+    ObjectInputStream in = new ObjectInputStream(new FileInputStream(file));
+    try {
+      return clazz.cast(in.readObject());
+    } finally {
+      in.close();
+    }
+  }
+}
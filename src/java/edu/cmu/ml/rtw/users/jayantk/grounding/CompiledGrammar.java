@@ -0,0 +1,139 @@
+package edu.cmu.ml.rtw.users.jayantk.grounding;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.List;
+
+import joptsimple.OptionParser;
+import joptsimple.OptionSet;
+import joptsimple.OptionSpec;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Multiset;
+import com.jayantkrish.jklol.cfg.ParametricCfgFactor;
+import com.jayantkrish.jklol.cfg.ParseTree;
+import com.jayantkrish.jklol.models.ObjectVariable;
+import com.jayantkrish.jklol.models.VariableNumMap;
+import com.jayantkrish.jklol.util.IoUtils;
+
+import edu.cmu.ml.rtw.time.utils.IoUtil;
+import edu.cmu.ml.rtw.users.jayantk.semparse.Lexicon;
+import edu.cmu.ml.rtw.users.jayantk.semparse.LexiconCompiler;
+import edu.cmu.ml.rtw.users.jayantk.semparse.LexiconCompiler.LexiconStatistics;
+import edu.cmu.ml.rtw.users.jayantk.semparse.RelationType;
+import edu.cmu.ml.rtw.users.jayantk.semparse.SemanticParser;
+
+/**
+ * The CFG generated from a lexicon by {@link SemanticParser}, along
+ * with the predicates used in the lexicon. A compiled grammar can be
+ * written to disk once and then loaded by the trainers in place of
+ * a lexicon file, skipping lexicon parsing and CFG construction.
+ *
+ * The {@code main} method of this class is the lexicon compiler,
+ * which prunes a lexicon using {@link LexiconCompiler}, prints
+ * grammar size statistics and writes the compiled grammar.
+ *
+ * @author jayantk
+ */
+public class CompiledGrammar implements Serializable {
+  private static final long serialVersionUID = 1L;
+
+  public static final int DEFAULT_BEAM_SIZE = 1000;
+
+  private final ParametricCfgFactor parserFactor;
+  private final List<RelationType> predicates;
+
+  public CompiledGrammar(ParametricCfgFactor parserFactor, List<RelationType> predicates) {
+    this.parserFactor = Preconditions.checkNotNull(parserFactor);
+    this.predicates = Preconditions.checkNotNull(predicates);
+  }
+
+  /**
+   * Converts {@code lexicon} into a CFG whose input is variable 0 and
+   * whose output parse tree is variable 1.
+   *
+   * @param lexicon
+   * @param beamSize
+   * @return
+   */
+  public static CompiledGrammar fromLexicon(Lexicon<String> lexicon, int beamSize) {
+    SemanticParser parser = new SemanticParser(lexicon);
+    VariableNumMap parserInput = VariableNumMap.singleton(0, "parserInput", new ObjectVariable(List.class));
+    VariableNumMap parserOutput = VariableNumMap.singleton(1, "parserOutput", new ObjectVariable(ParseTree.class));
+    ParametricCfgFactor parserFactor = parser.toCfgFactor(parserInput, parserOutput, beamSize,
+        new GroundingModelUtilities.TreeValidityPredicate());
+
+    return new CompiledGrammar(parserFactor, Lists.newArrayList(lexicon.getPredicatesInGrammar()));
+  }
+
+  /**
+   * Reads a grammar from {@code compiledGrammarFilename} if it is
+   * non-null, and otherwise builds it from the lexicon in
+   * {@code lexiconFilename}.
+   */
+  public static CompiledGrammar fromLexiconOrCompiledFile(String lexiconFilename,
+      String compiledGrammarFilename) {
+    if (compiledGrammarFilename != null) {
+      return fromSerializedFile(compiledGrammarFilename);
+    }
+    Preconditions.checkArgument(lexiconFilename != null, "Provide either a lexicon or a compiled grammar.");
+    return fromLexicon(Lexicon.fromFile(IoUtil.LoadFile(lexiconFilename)), DEFAULT_BEAM_SIZE);
+  }
+
+  public ParametricCfgFactor getParserFactor() {
+    return parserFactor;
+  }
+
+  public List<RelationType> getPredicates() {
+    return predicates;
+  }
+
+  public static CompiledGrammar fromSerializedFile(String filename) {
+    System.out.println("Loading grammar:" + filename);
+    return IoUtils.readSerializedObject(filename, CompiledGrammar.class);
+  }
+
+  public static void toSerializedFile(String filename, CompiledGrammar grammar) {
+    IoUtils.serializeObjectToFile(grammar, filename);
+  }
+
+  public static void main(String[] args) {
+    OptionParser parser = new OptionParser();
+    OptionSpec<String> ccgLexicon = parser.accepts("lexicon").withRequiredArg().ofType(String.class).required();
+    OptionSpec<String> outputFilename = parser.accepts("output").withRequiredArg().ofType(String.class).required();
+    // Training data files (in the format read by GroundingModelUtilities.readTrainingData)
+    // used to count trigger sequence frequencies.
+    OptionSpec<String> corpus = parser.accepts("corpus").withRequiredArg().ofType(String.class).withValuesSeparatedBy(',');
+    OptionSpec<Integer> minFrequency = parser.accepts("minFrequency").withRequiredArg().ofType(Integer.class).defaultsTo(1);
+    OptionSpec<Integer> beamSize = parser.accepts("beamSize").withRequiredArg().ofType(Integer.class).defaultsTo(DEFAULT_BEAM_SIZE);
+    OptionSet options = parser.parse(args);
+
+    Lexicon<String> lexicon = Lexicon.fromFile(IoUtil.LoadFile(options.valueOf(ccgLexicon)));
+    System.out.println("INPUT LEXICON");
+    System.out.println(LexiconStatistics.fromLexicon(lexicon));
+
+    Multiset<List<String>> triggerCounts = null;
+    if (options.has(corpus)) {
+      List<List<String>> sentences = Lists.newArrayList();
+      for (String corpusFilename : options.valuesOf(corpus)) {
+        for (String line : IoUtil.LoadFile(corpusFilename)) {
+          if (line.trim().length() == 0 || line.startsWith("#") || line.startsWith("*")) {
+            continue;
+          }
+          String[] parts = line.split(";");
+          sentences.add(Arrays.asList(parts[0].toLowerCase().split("[ ,]")));
+        }
+      }
+      triggerCounts = LexiconCompiler.countTriggerSequences(lexicon, sentences);
+    }
+
+    Lexicon<String> compiledLexicon = LexiconCompiler.compile(lexicon, triggerCounts,
+        options.valueOf(minFrequency));
+    System.out.println("COMPILED LEXICON");
+    System.out.println(LexiconStatistics.fromLexicon(compiledLexicon));
+
+    CompiledGrammar grammar = fromLexicon(compiledLexicon, options.valueOf(beamSize));
+    toSerializedFile(options.valueOf(outputFilename), grammar);
+  }
+}
@@ -0,0 +1,140 @@
+package edu.cmu.ml.rtw.users.jayantk.grounding;
+
+import static ch.lambdaj.Lambda.extract;
+import static ch.lambdaj.Lambda.on;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+
+import joptsimple.OptionParser;
+import joptsimple.OptionSet;
+import joptsimple.OptionSpec;
+
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.jayantkrish.jklol.util.IndexedList;
+
+import edu.cmu.ml.rtw.users.jayantk.grounding.GroundingModel.GroundingPrediction;
+
+/**
+ * Checks that a single {@code GroundingModel} and its domains can be
+ * shared by concurrent inference. Every example is first predicted
+ * serially; then each example is predicted several times, in random
+ * order, from many threads at once. The check fails if any concurrent
+ * prediction differs from the serial prediction or throws an
+ * exception.
+ *
+ * @author jayantk
+ */
+public class ConcurrentInferenceCheck {
+
+  public static void main(String[] args) throws Exception {
+    OptionParser parser = new OptionParser();
+    OptionSpec<String> domainDir = parser.accepts("domainDir").withRequiredArg().ofType(String.class).required();
+    OptionSpec<String> modelFilename = parser.accepts("modelFilename").withRequiredArg().ofType(String.class).required();
+    OptionSpec<String> trainingFile = parser.accepts("trainingFile").withRequiredArg().ofType(String.class).defaultsTo("training.txt");
+    OptionSpec<String> goldKbFile = parser.accepts("goldKbFile").withRequiredArg().ofType(String.class);
+    OptionSpec<Integer> maxTrainingExamples = parser.accepts("maxTrainingExamples").withOptionalArg().ofType(Integer.class).defaultsTo(10000000);
+    OptionSpec<Integer> numThreads = parser.accepts("threads").withRequiredArg().ofType(Integer.class).defaultsTo(8);
+    OptionSpec<Integer> repetitions = parser.accepts("repetitions").withRequiredArg().ofType(Integer.class).defaultsTo(3);
+    OptionSpec<Void> implicitDeterminer = parser.accepts("implicitDeterminer");
+    parser.accepts("testOnTraining");
+    OptionSet options = parser.parse(args);
+
+    String goldKbFilename = options.has(goldKbFile) ? options.valueOf(goldKbFile) : null;
+    GroundingModel model = GroundingModel.fromSerializedFile(options.valueOf(modelFilename));
+    List<Domain> domains = Domain.readDomainsFromDirectory(options.valueOf(domainDir), options.valueOf(trainingFile),
+        goldKbFilename, options.valueOf(maxTrainingExamples), model, false, false, false);
+
+    List<GroundingExample> examples = Lists.newArrayList();
+    for (GroundingExample example : Iterables.concat(options.has("testOnTraining") ?
+        extract(domains, on(Domain.class).getTrainingExamples()) : extract(domains, on(Domain.class).getTestExamples()))) {
+      if (!example.hasObservedRelation() && !example.hasLogicalForm()) {
+        examples.add(example);
+      }
+    }
+
+    boolean passed = check(model, examples, domains, options.has(implicitDeterminer),
+        options.valueOf(numThreads), options.valueOf(repetitions));
+    System.exit(passed ? 0 : 1);
+  }
+
+  /**
+   * Returns {@code true} if predicting {@code examples} concurrently
+   * gives the same predictions as predicting them serially.
+   */
+  public static boolean check(GroundingModel model, List<GroundingExample> examples, List<Domain> domains,
+      boolean implicitDeterminer, int numThreads, int repetitions) {
+    IndexedList<String> domainNames = IndexedList.create(extract(domains, on(Domain.class).getName()));
+
+    List<Callable<String>> serialTasks = Lists.newArrayList();
+    for (GroundingExample example : examples) {
+      serialTasks.add(new PredictionTask(model, example, domains.get(domainNames.getIndex(example.getDomainName())),
+          implicitDeterminer));
+    }
+    List<String> expected = OrderedTaskRunner.run(serialTasks, 1);
+
+    List<Integer> order = Lists.newArrayList();
+    for (int i = 0; i < repetitions; i++) {
+      for (int j = 0; j < examples.size(); j++) {
+        order.add(j);
+      }
+    }
+    Collections.shuffle(order, new Random(0));
+    List<Callable<String>> concurrentTasks = Lists.newArrayList();
+    for (int index : order) {
+      concurrentTasks.add(serialTasks.get(index));
+    }
+    List<String> actual = OrderedTaskRunner.run(concurrentTasks, numThreads);
+
+    int numMismatches = 0;
+    for (int i = 0; i < order.size(); i++) {
+      String expectedPrediction = expected.get(order.get(i));
+      if (!expectedPrediction.equals(actual.get(i))) {
+        numMismatches++;
+        System.out.println("MISMATCH: " + examples.get(order.get(i)).getWords());
+        System.out.println("  serial: " + expectedPrediction);
+        System.out.println("  concurrent: " + actual.get(i));
+      }
+    }
+    System.out.println("CONCURRENT INFERENCE CHECK: " + order.size() + " predictions on " + numThreads
+        + " threads, " + numMismatches + " mismatches");
+    return numMismatches == 0;
+  }
+
+  /**
+   * Predicts the grounding of a single example, returning a summary of
+   * the prediction (or of the exception thrown while predicting).
+   */
+  private static class PredictionTask implements Callable<String> {
+    private final GroundingModel model;
+    private final GroundingExample example;
+    private final Domain domain;
+    private final boolean implicitDeterminer;
+
+    public PredictionTask(GroundingModel model, GroundingExample example, Domain domain,
+        boolean implicitDeterminer) {
+      this.model = model;
+      this.example = example;
+      this.domain = domain;
+      this.implicitDeterminer = implicitDeterminer;
+    }
+
+    @Override
+    public String call() {
+      try {
+        GroundingPrediction prediction = model.getPrediction(example.getWords(), example.getWordScores(),
+            domain, implicitDeterminer);
+        if (prediction == null) {
+          return "no prediction";
+        }
+        return prediction.getSemanticParse() + " " + prediction.getParseWeight() + " "
+            + prediction.getGroundingWeight() + " " + prediction.getAssignment().getValue();
+      } catch (RuntimeException e) {
+        return "exception: " + e;
+      }
+    }
+  }
+}
@@ -278,19 +278,15 @@ public class ConjunctionQueryTree extends AbstractQueryTree {
   }
 
   @Override
-  public QueryTree copy() {
-    List<QueryTree> subtreeCopies = Lists.newArrayList();
-    for (QueryTree subtree : getSubtrees()) {
-      subtreeCopies.add(subtree.copy());
-    }
-    
-    return new ConjunctionQueryTree(getOutputLocalWeights(), subtreeCopies, truthTableVariables, 
+  protected ConjunctionQueryTree copyNode(List<QueryTree> subtrees) {
+    return new ConjunctionQueryTree(getOutputLocalWeights(), subtrees, truthTableVariables, 
         constraintFactor, factorVars, factorRelabelings, outputVars, outputRelabeling);
   }
   
   @Override
-  protected IloNumVar[] augmentIlpHelper(IloCplex cplex, IloLinearNumExpr objective, 
+  protected IloNumVar[] augmentIlpHelper(IlpContext context, IloLinearNumExpr objective, 
 					 boolean useLpRelaxation, boolean applyWeakSupervisionConstraints) throws IloException {
+    IloCplex cplex = context.getCplex();
     IloNumVar[] myVars = addLocalWeightsToIlp(cplex, objective, useLpRelaxation);
     
     // Implement the AND constraint.
@@ -301,7 +297,7 @@ public class ConjunctionQueryTree extends AbstractQueryTree {
     for (int i = 0 ; i < subtrees.size(); i++) {
       QueryTree subtree = subtrees.get(i);
 
-      childVars.add(subtree.augmentIlp(cplex, objective, useLpRelaxation, applyWeakSupervisionConstraints));
+      childVars.add(subtree.augmentIlp(context, objective, useLpRelaxation, applyWeakSupervisionConstraints));
       childFactors.add(subtree.getOutputLocalWeights());
       inverseRelabelings.add(factorRelabelings.get(i).inverse());
     }
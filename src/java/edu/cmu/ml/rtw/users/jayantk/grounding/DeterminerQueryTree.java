@@ -28,8 +28,10 @@ public class DeterminerQueryTree extends AbstractQueryTree {
   }
 
   @Override
-  public QueryTree copy() {
-    return new DeterminerQueryTree(subtree.copy(), forceChildUnique);
+  protected DeterminerQueryTree copyNode(List<QueryTree> subtrees) {
+    // The weights of this node are the weights of the subtree, so
+    // they are taken from the new subtree.
+    return new DeterminerQueryTree(subtrees.get(0), forceChildUnique);
   }
 
   @Override
@@ -43,10 +45,11 @@ public class DeterminerQueryTree extends AbstractQueryTree {
   }
 
   @Override
-  protected IloNumVar[] augmentIlpHelper(IloCplex cplex, IloLinearNumExpr objective, boolean useLpRelaxation,
+  protected IloNumVar[] augmentIlpHelper(IlpContext context, IloLinearNumExpr objective, boolean useLpRelaxation,
 					 boolean applyWeakSupervisionConstraints) throws IloException {
+    IloCplex cplex = context.getCplex();
     IloNumVar[] myVars = addLocalWeightsToIlp(cplex, objective, useLpRelaxation);
-    IloNumVar[] childVars = subtree.augmentIlp(cplex, objective, useLpRelaxation, applyWeakSupervisionConstraints);
+    IloNumVar[] childVars = subtree.augmentIlp(context, objective, useLpRelaxation, applyWeakSupervisionConstraints);
 
     // Impose a subset constraint: the output of this node must be a subset of 
     // its input.
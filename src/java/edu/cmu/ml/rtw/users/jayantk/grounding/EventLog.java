@@ -0,0 +1,336 @@
+package edu.cmu.ml.rtw.users.jayantk.grounding;
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+
+/**
+ * A leveled event log for training and inference. Each event belongs
+ * to a subsystem (e.g., "ilp" or "parse") and is written as a single
+ * JSON object per line. Logging is off by default; when an event is
+ * not enabled, none of its values are converted to strings, so log
+ * statements are cheap to leave in inner loops. Enabled events are
+ * formatted by the calling thread (values may be mutable, such as
+ * parameter vectors) and written by a background thread.
+ * <p>
+ * The log is configured with system properties:
+ * <ul>
+ * <li>{@code eventlog.level} -- the minimum level of logged events,
+ * one of {@code DEBUG}, {@code INFO}, {@code WARN} or {@code OFF}
+ * (default).</li>
+ * <li>{@code eventlog.subsystems} -- a comma-separated list of
+ * subsystems to log, each optionally with its own level, e.g.,
+ * {@code ilp,params=INFO}. If omitted, all subsystems are logged at
+ * {@code eventlog.level}.</li>
+ * <li>{@code eventlog.file} -- the file to write events to. If
+ * omitted, events are written to {@code System.out}.</li>
+ * </ul>
+ * or programmatically with {@link #configure}.
+ *
+ * @author jayantk
+ */
+public class EventLog {
+
+  public static enum Level { DEBUG, INFO, WARN, OFF };
+
+  private static final int QUEUE_SIZE = 10000;
+
+  private static volatile Level defaultLevel = Level.OFF;
+  private static volatile Map<String, Level> subsystemLevels = null;
+
+  private static final Object sinkLock = new Object();
+  private static Writer sink = null;
+  private static Thread writerThread = null;
+  private static final BlockingQueue<String> queue = new ArrayBlockingQueue<String>(QUEUE_SIZE);
+
+  // Number of events put on the queue, and the number that have been
+  // written and flushed to the sink. Guarded by the queue's monitor.
+  private static long numEnqueued = 0;
+  private static long numFlushed = 0;
+  // Number of threads waiting in flush(). Guarded by the queue's monitor.
+  private static int numFlushWaiters = 0;
+
+  /**
+   * Writes to whatever {@code System.out} currently is.
+   */
+  private static final Writer STDOUT_WRITER = new Writer() {
+    @Override
+    public void write(char[] cbuf, int off, int len) {
+      PrintStream out = System.out;
+      out.print(new String(cbuf, off, len));
+    }
+
+    @Override
+    public void flush() {
+      System.out.flush();
+    }
+
+    @Override
+    public void close() {}
+  };
+
+  static {
+    String level = System.getProperty("eventlog.level");
+    String subsystems = System.getProperty("eventlog.subsystems");
+    if (level != null || subsystems != null) {
+      configure(level != null ? Level.valueOf(level.toUpperCase()) : Level.DEBUG,
+          subsystems, System.getProperty("eventlog.file"));
+    }
+  }
+
+  /**
+   * Enables logging for the given subsystems. {@code subsystems} is
+   * a comma-separated list formatted as described in the class
+   * comment, or {@code null} to enable all subsystems at
+   * {@code level}. If {@code filename} is null, events are written to
+   * {@code System.out}.
+   */
+  public static synchronized void configure(Level level, String subsystems, String filename) {
+    Preconditions.checkNotNull(level);
+    Map<String, Level> levels = null;
+    if (subsystems != null) {
+      levels = Maps.newHashMap();
+      for (String subsystem : subsystems.split(",")) {
+        subsystem = subsystem.trim();
+        if (subsystem.length() == 0) {
+          continue;
+        }
+        String[] parts = subsystem.split("=");
+        levels.put(parts[0], parts.length > 1 ? Level.valueOf(parts[1].toUpperCase()) : level);
+      }
+      levels = ImmutableMap.copyOf(levels);
+    }
+
+    flush();
+    synchronized (sinkLock) {
+      try {
+        if (sink != null && sink != STDOUT_WRITER) {
+          sink.close();
+        }
+        sink = (filename == null) ? STDOUT_WRITER : new BufferedWriter(
+            new OutputStreamWriter(new FileOutputStream(filename, true), Charsets.UTF_8));
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+    }
+
+    subsystemLevels = levels;
+    defaultLevel = level;
+    startWriterThread();
+  }
+
+  /**
+   * Returns {@code true} if events from {@code subsystem} at
+   * {@code level} are logged. Use this to guard any expensive work
+   * done only to compute logged values.
+   */
+  public static boolean isEnabled(String subsystem, Level level) {
+    if (defaultLevel == Level.OFF && subsystemLevels == null) {
+      return false;
+    }
+    Map<String, Level> levels = subsystemLevels;
+    Level threshold = defaultLevel;
+    if (levels != null) {
+      threshold = levels.get(subsystem);
+      if (threshold == null) {
+        return false;
+      }
+    }
+    return threshold != Level.OFF && level.compareTo(threshold) >= 0;
+  }
+
+  public static void debug(String subsystem, String event, Object... keysAndValues) {
+    log(subsystem, Level.DEBUG, event, keysAndValues);
+  }
+
+  public static void info(String subsystem, String event, Object... keysAndValues) {
+    log(subsystem, Level.INFO, event, keysAndValues);
+  }
+
+  public static void warn(String subsystem, String event, Object... keysAndValues) {
+    log(subsystem, Level.WARN, event, keysAndValues);
+  }
+
+  /**
+   * Logs {@code event} with the given key/value pairs. Values are
+   * only converted to strings if the event is enabled. Numbers and
+   * booleans are written as JSON literals, and everything else is
+   * written as a JSON string using {@code toString()}.
+   */
+  public static void log(String subsystem, Level level, String event, Object... keysAndValues) {
+    if (!isEnabled(subsystem, level)) {
+      return;
+    }
+    Preconditions.checkArgument(keysAndValues.length % 2 == 0);
+
+    StringBuilder sb = new StringBuilder();
+    sb.append("{\"time\":").append(System.currentTimeMillis());
+    sb.append(",\"level\":\"").append(level).append("\"");
+    sb.append(",\"subsystem\":").append(quote(subsystem));
+    sb.append(",\"thread\":").append(quote(Thread.currentThread().getName()));
+    sb.append(",\"event\":").append(quote(event));
+    for (int i = 0; i < keysAndValues.length; i += 2) {
+      sb.append(",").append(quote(String.valueOf(keysAndValues[i]))).append(":");
+      Object value = keysAndValues[i + 1];
+      if (value instanceof Number || value instanceof Boolean) {
+        sb.append(jsonLiteral(value));
+      } else {
+        sb.append(quote(String.valueOf(value)));
+      }
+    }
+    sb.append("}");
+
+    synchronized (queue) {
+      numEnqueued++;
+    }
+    try {
+      queue.put(sb.toString());
+    } catch (InterruptedException e) {
+      synchronized (queue) {
+        numEnqueued--;
+      }
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Blocks until all previously logged events have been written.
+   */
+  public static void flush() {
+    synchronized (queue) {
+      // Events taken off the queue may still be in the middle of being
+      // written, so wait on the count of flushed events rather than the
+      // queue being empty.
+      long target = numEnqueued;
+      numFlushWaiters++;
+      try {
+        while (numFlushed < target && writerThread != null && writerThread.isAlive()) {
+          queue.wait(100);
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      } finally {
+        numFlushWaiters--;
+      }
+    }
+  }
+
+  private static synchronized void startWriterThread() {
+    if (writerThread != null) {
+      return;
+    }
+    writerThread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        long numWritten = 0;
+        while (true) {
+          String line = null;
+          try {
+            line = queue.take();
+          } catch (InterruptedException e) {
+            return;
+          }
+          write(line);
+          numWritten++;
+
+          boolean hasWaiters;
+          synchronized (queue) {
+            hasWaiters = numFlushWaiters > 0;
+          }
+          if (queue.isEmpty() || hasWaiters) {
+            flushSink();
+            synchronized (queue) {
+              numFlushed = numWritten;
+              queue.notifyAll();
+            }
+          }
+        }
+      }
+    }, "event-log-writer");
+    writerThread.setDaemon(true);
+    writerThread.start();
+
+    Runtime.getRuntime().addShutdownHook(new Thread() {
+      @Override
+      public void run() {
+        // Stop the writer first, so that the remaining events are
+        // written in order by this thread alone.
+        writerThread.interrupt();
+        try {
+          writerThread.join(1000);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+
+        String line = null;
+        while ((line = queue.poll()) != null) {
+          write(line);
+        }
+        flushSink();
+      }
+    });
+  }
+
+  private static void write(String line) {
+    synchronized (sinkLock) {
+      try {
+        sink.write(line);
+        sink.write("\n");
+      } catch (IOException e) {
+        // Logging must never interrupt training.
+      }
+    }
+  }
+
+  private static void flushSink() {
+    synchronized (sinkLock) {
+      try {
+        sink.flush();
+      } catch (IOException e) {
+        // Logging must never interrupt training.
+      }
+    }
+  }
+
+  private static String jsonLiteral(Object value) {
+    if (value instanceof Double || value instanceof Float) {
+      double d = ((Number) value).doubleValue();
+      if (Double.isNaN(d) || Double.isInfinite(d)) {
+        return quote(String.valueOf(d));
+      }
+    }
+    return String.valueOf(value);
+  }
+
+  static String quote(String s) {
+    StringBuilder sb = new StringBuilder("\"");
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      switch (c) {
+      case '"': sb.append("\\\""); break;
+      case '\\': sb.append("\\\\"); break;
+      case '\n': sb.append("\\n"); break;
+      case '\r': sb.append("\\r"); break;
+      case '\t': sb.append("\\t"); break;
+      default:
+        if (c < 0x20) {
+          sb.append(String.format("\\u%04x", (int) c));
+        } else {
+          sb.append(c);
+        }
+      }
+    }
+    return sb.append("\"").toString();
+  }
+}
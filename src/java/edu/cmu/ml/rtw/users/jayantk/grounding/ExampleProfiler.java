@@ -0,0 +1,299 @@
+package edu.cmu.ml.rtw.users.jayantk.grounding;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Joiner;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Records the cost of training on each {@code GroundingExample}, to
+ * find the examples that make inference slow or fail. For each
+ * example, the profiler records the number of parses, the shape and
+ * size of the instantiated queries, the size of each ILP, the time
+ * spent solving, and the outcome of each visit. Use
+ * {@link #getReport} to rank the slowest and failing examples.
+ * <p>
+ * The trainer calls {@link #begin} and {@link #end} around each
+ * example. In between, inference code reports to the example being
+ * profiled on the current thread using the static {@code record}
+ * methods, which do nothing when no example is being profiled.
+ *
+ * @author jayantk
+ */
+public class ExampleProfiler {
+
+  private static final ThreadLocal<ExampleProfile> currentProfile = new ThreadLocal<ExampleProfile>();
+
+  private final Map<String, ExampleProfile> profiles = Maps.newLinkedHashMap();
+
+  /**
+   * Starts profiling a visit to {@code example} on the current thread.
+   */
+  public ExampleProfile begin(GroundingExample example) {
+    String key = example.getDomainName() + " " + example.getWords();
+    ExampleProfile profile = null;
+    synchronized (profiles) {
+      profile = profiles.get(key);
+      if (profile == null) {
+        profile = new ExampleProfile(key);
+        profiles.put(key, profile);
+      }
+    }
+    profile.beginVisit();
+    currentProfile.set(profile);
+    return profile;
+  }
+
+  /**
+   * Finishes profiling a visit started by {@link #begin}.
+   * {@code outcome} is overridden by any outcome reported with
+   * {@link #recordOutcome} during the visit.
+   */
+  public void end(ExampleProfile profile, long elapsedNanos, String outcome) {
+    currentProfile.remove();
+    profile.endVisit(elapsedNanos, outcome);
+  }
+
+  /**
+   * Gets the example being profiled on the current thread, or
+   * {@code null}. Pass this to {@link #setCurrent} to attribute work
+   * done by worker threads to the example.
+   */
+  public static ExampleProfile current() {
+    return currentProfile.get();
+  }
+
+  public static void setCurrent(ExampleProfile profile) {
+    if (profile == null) {
+      currentProfile.remove();
+    } else {
+      currentProfile.set(profile);
+    }
+  }
+
+  public static void recordParses(int numParses) {
+    ExampleProfile profile = currentProfile.get();
+    if (profile != null) {
+      profile.recordParses(numParses);
+    }
+  }
+
+  public static void recordQuery(QueryTree query) {
+    ExampleProfile profile = currentProfile.get();
+    if (profile != null) {
+      profile.recordQuery(getQueryShape(query), getQuerySize(query), getQueryDepth(query));
+    }
+  }
+
+  public static void recordIlp(int numVariables, int numConstraints, long solveNanos, boolean solved) {
+    ExampleProfile profile = currentProfile.get();
+    if (profile != null) {
+      profile.recordIlp(numVariables, numConstraints, solveNanos, solved);
+    }
+  }
+
+  public static void recordDualDecomposition(int iterations) {
+    ExampleProfile profile = currentProfile.get();
+    if (profile != null) {
+      profile.recordDualDecomposition(iterations);
+    }
+  }
+
+  /**
+   * Reports the outcome of the current visit, e.g., that no parse
+   * of the example is consistent with its observed grounding.
+   */
+  public static void recordOutcome(String outcome) {
+    ExampleProfile profile = currentProfile.get();
+    if (profile != null) {
+      profile.recordOutcome(outcome);
+    }
+  }
+
+  /**
+   * Gets a report listing the {@code numExamples} slowest examples,
+   * ranked by their slowest visit, followed by every example with a
+   * visit that did not succeed.
+   */
+  public String getReport(int numExamples) {
+    List<ExampleProfile> all = null;
+    synchronized (profiles) {
+      all = Lists.newArrayList(profiles.values());
+    }
+
+    List<ExampleProfile> slowest = Lists.newArrayList(all);
+    Collections.sort(slowest, new Comparator<ExampleProfile>() {
+      @Override
+      public int compare(ExampleProfile a, ExampleProfile b) {
+        return Long.compare(b.maxNanos, a.maxNanos);
+      }
+    });
+
+    List<ExampleProfile> failing = Lists.newArrayList();
+    for (ExampleProfile profile : all) {
+      if (profile.numFailedVisits > 0) {
+        failing.add(profile);
+      }
+    }
+    Collections.sort(failing, new Comparator<ExampleProfile>() {
+      @Override
+      public int compare(ExampleProfile a, ExampleProfile b) {
+        return Integer.compare(b.numFailedVisits, a.numFailedVisits);
+      }
+    });
+
+    StringBuilder sb = new StringBuilder();
+    sb.append("EXAMPLE PROFILE: " + all.size() + " examples\n");
+    sb.append("SLOWEST EXAMPLES:\n");
+    sb.append(ExampleProfile.HEADER + "\n");
+    for (int i = 0; i < Math.min(numExamples, slowest.size()); i++) {
+      sb.append((i + 1) + "\t" + slowest.get(i) + "\n");
+    }
+    sb.append("FAILING EXAMPLES: " + failing.size() + "\n");
+    sb.append(ExampleProfile.HEADER + "\n");
+    for (int i = 0; i < failing.size(); i++) {
+      sb.append((i + 1) + "\t" + failing.get(i) + "\n");
+    }
+    return sb.toString();
+  }
+
+  public void writeReport(String filename, int numExamples) {
+    try {
+      Writer out = new OutputStreamWriter(new FileOutputStream(filename), Charsets.UTF_8);
+      out.write(getReport(numExamples));
+      out.close();
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * Gets a compact description of the structure of {@code query},
+   * e.g., {@code Existential(Conjunction(Predicate,Predicate))}.
+   */
+  public static String getQueryShape(QueryTree query) {
+    String name = query.getClass().getSimpleName().replace("QueryTree", "");
+    List<QueryTree> subtrees = query.getSubtrees();
+    if (subtrees.size() == 0) {
+      return name;
+    }
+    List<String> subtreeShapes = Lists.newArrayList();
+    for (QueryTree subtree : subtrees) {
+      subtreeShapes.add(getQueryShape(subtree));
+    }
+    return name + "(" + Joiner.on(",").join(subtreeShapes) + ")";
+  }
+
+  public static int getQuerySize(QueryTree query) {
+    int size = 1;
+    for (QueryTree subtree : query.getSubtrees()) {
+      size += getQuerySize(subtree);
+    }
+    return size;
+  }
+
+  public static int getQueryDepth(QueryTree query) {
+    int depth = 0;
+    for (QueryTree subtree : query.getSubtrees()) {
+      depth = Math.max(depth, getQueryDepth(subtree));
+    }
+    return depth + 1;
+  }
+
+  /**
+   * Statistics about every visit to a single example.
+   */
+  public static class ExampleProfile {
+    private static final String HEADER = "rank\tmaxMs\ttotalMs\tvisits\tfailed\tparses\tqueries"
+        + "\tmaxQuerySize\tmaxQueryDepth\tilps\tmaxIlpVars\tmaxIlpConstraints\tilpMs\tilpFailures"
+        + "\tddIterations\tlastOutcome\texample\tlargestQuery";
+
+    private final String key;
+
+    private int numVisits = 0;
+    private int numFailedVisits = 0;
+    private long totalNanos = 0;
+    private long maxNanos = 0;
+    private String lastOutcome = null;
+    private String visitOutcome = null;
+
+    private int maxParses = 0;
+    private int numQueries = 0;
+    private int maxQuerySize = 0;
+    private int maxQueryDepth = 0;
+    private String largestQueryShape = "";
+
+    private int numIlps = 0;
+    private int maxIlpVariables = 0;
+    private int maxIlpConstraints = 0;
+    private long ilpNanos = 0;
+    private int numIlpFailures = 0;
+    private long ddIterations = 0;
+
+    private ExampleProfile(String key) {
+      this.key = key;
+    }
+
+    private synchronized void beginVisit() {
+      visitOutcome = null;
+    }
+
+    private synchronized void endVisit(long elapsedNanos, String outcome) {
+      numVisits++;
+      totalNanos += elapsedNanos;
+      maxNanos = Math.max(maxNanos, elapsedNanos);
+      lastOutcome = (visitOutcome != null) ? visitOutcome : outcome;
+      if (!lastOutcome.equals("ok")) {
+        numFailedVisits++;
+      }
+    }
+
+    private synchronized void recordParses(int numParses) {
+      maxParses = Math.max(maxParses, numParses);
+    }
+
+    private synchronized void recordQuery(String shape, int size, int depth) {
+      numQueries++;
+      if (size > maxQuerySize) {
+        maxQuerySize = size;
+        largestQueryShape = shape;
+      }
+      maxQueryDepth = Math.max(maxQueryDepth, depth);
+    }
+
+    private synchronized void recordIlp(int numVariables, int numConstraints, long solveNanos, boolean solved) {
+      numIlps++;
+      maxIlpVariables = Math.max(maxIlpVariables, numVariables);
+      maxIlpConstraints = Math.max(maxIlpConstraints, numConstraints);
+      ilpNanos += solveNanos;
+      if (!solved) {
+        numIlpFailures++;
+      }
+    }
+
+    private synchronized void recordDualDecomposition(int iterations) {
+      ddIterations += iterations;
+    }
+
+    private synchronized void recordOutcome(String outcome) {
+      visitOutcome = outcome;
+    }
+
+    @Override
+    public synchronized String toString() {
+      return String.format("%.1f\t%.1f\t%d\t%d\t%d\t%d\t%d\t%d\t%d\t%d\t%d\t%.1f\t%d\t%d\t%s\t%s\t%s",
+          maxNanos / 1e6, totalNanos / 1e6, numVisits, numFailedVisits, maxParses, numQueries,
+          maxQuerySize, maxQueryDepth, numIlps, maxIlpVariables, maxIlpConstraints, ilpNanos / 1e6,
+          numIlpFailures, ddIterations, lastOutcome, key, largestQueryShape);
+    }
+  }
+}
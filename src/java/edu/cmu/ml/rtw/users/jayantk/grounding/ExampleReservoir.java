@@ -0,0 +1,81 @@
+package edu.cmu.ml.rtw.users.jayantk.grounding;
+
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+
+/**
+ * A fixed-size uniform sample of every training example seen so far,
+ * maintained by reservoir sampling. Incremental training replays
+ * examples from the reservoir alongside new examples, so that updates
+ * on a few corrections do not erase what the model learned from the
+ * original training data.
+ *
+ * @author jayantk
+ */
+public class ExampleReservoir implements Serializable {
+
+  private static final long serialVersionUID = 1L;
+
+  private final int capacity;
+  private final List<GroundingExample> examples;
+  private final Random random;
+  // The total number of examples offered to the reservoir.
+  private long numSeen;
+
+  public ExampleReservoir(int capacity, long seed) {
+    Preconditions.checkArgument(capacity > 0);
+    this.capacity = capacity;
+    this.examples = Lists.newArrayList();
+    this.random = new Random(seed);
+    this.numSeen = 0;
+  }
+
+  public void add(GroundingExample example) {
+    numSeen++;
+    if (examples.size() < capacity) {
+      examples.add(example);
+    } else {
+      long index = (long) (random.nextDouble() * numSeen);
+      if (index < capacity) {
+        examples.set((int) index, example);
+      }
+    }
+  }
+
+  public void addAll(Iterable<GroundingExample> newExamples) {
+    for (GroundingExample example : newExamples) {
+      add(example);
+    }
+  }
+
+  /**
+   * Draws up to {@code numExamples} distinct examples from the
+   * reservoir, uniformly at random.
+   */
+  public List<GroundingExample> sample(int numExamples) {
+    List<GroundingExample> shuffled = Lists.newArrayList(examples);
+    Collections.shuffle(shuffled, random);
+    return shuffled.subList(0, Math.min(numExamples, shuffled.size()));
+  }
+
+  public List<GroundingExample> getExamples() {
+    return Collections.unmodifiableList(examples);
+  }
+
+  public int size() {
+    return examples.size();
+  }
+
+  public int getCapacity() {
+    return capacity;
+  }
+
+  public long getNumSeen() {
+    return numSeen;
+  }
+}
@@ -217,21 +217,17 @@ public class ExistentialQueryTree extends AbstractQueryTree {
   }
 
   @Override
-  public QueryTree copy() {
-    List<QueryTree> subtrees = Lists.newArrayList();
-    for (QueryTree subtree : getSubtrees()) {
-      subtrees.add(subtree.copy());
-    }
-    
+  protected ExistentialQueryTree copyNode(List<QueryTree> subtrees) {
     return new ExistentialQueryTree(getOutputLocalWeights(), subtrees, 
         childFactorWeights, outputFactorWeights, dimensionsToEliminate, valueDimension);
   }
   
   @Override
-  protected IloNumVar[] augmentIlpHelper(IloCplex cplex, IloLinearNumExpr objective, boolean useLpRelaxation,
+  protected IloNumVar[] augmentIlpHelper(IlpContext context, IloLinearNumExpr objective, boolean useLpRelaxation,
 					 boolean applyWeakSupervisionConstraints) throws IloException {
+    IloCplex cplex = context.getCplex();
     IloNumVar[] myVars = addLocalWeightsToIlp(cplex, objective, useLpRelaxation);
-    IloNumVar[] childVars = getSubtrees().get(0).augmentIlp(cplex, objective, useLpRelaxation, applyWeakSupervisionConstraints);
+    IloNumVar[] childVars = getSubtrees().get(0).augmentIlp(context, objective, useLpRelaxation, applyWeakSupervisionConstraints);
     
     // Implement OR constraint.
     // The output var of the OR.
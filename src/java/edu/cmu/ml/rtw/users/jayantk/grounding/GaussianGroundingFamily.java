@@ -4,6 +4,7 @@ import java.io.Serializable;
 import java.util.Arrays;
 
 import com.google.common.base.Preconditions;
+import com.google.common.collect.Ordering;
 import com.jayantkrish.jklol.models.DiscreteFactor;
 import com.jayantkrish.jklol.models.DiscreteVariable;
 import com.jayantkrish.jklol.models.TableFactor;
@@ -11,6 +12,7 @@ import com.jayantkrish.jklol.models.VariableNumMap;
 import com.jayantkrish.jklol.models.parametric.ListSufficientStatistics;
 import com.jayantkrish.jklol.models.parametric.SufficientStatistics;
 import com.jayantkrish.jklol.models.parametric.TensorSufficientStatistics;
+import com.jayantkrish.jklol.tensor.DenseTensor;
 import com.jayantkrish.jklol.tensor.DenseTensorBuilder;
 import com.jayantkrish.jklol.tensor.Tensor;
 
@@ -30,6 +32,9 @@ public class GaussianGroundingFamily implements GroundingFamily, Serializable {
   private final VariableNumMap variableVars;
   private final VariableNumMap valueVars;
 
+  // Dense copies of domainVectors, computed on first use.
+  private transient volatile DenseFeatures denseFeatures;
+
   // Per-class parameters for class prior probability and
   // class mean.
   public static final String PRIOR_PARAMETERS = "priors";
@@ -74,29 +79,59 @@ public class GaussianGroundingFamily implements GroundingFamily, Serializable {
 
   @Override
   public ParallelFactors getFactorFromParameters(SufficientStatistics parameters) {
-    GaussianParameters gaussianParameters = computeParameters(parameters);
-    
-    DiscreteFactor means = gaussianParameters.means;
-    DiscreteFactor variances = gaussianParameters.variances;
-    DiscreteFactor priors = gaussianParameters.priors;
-    
-    // Calculate the component of the gaussians in the exponent.
-    DiscreteFactor meanDeltas = domainVectors.add(means.product(-1.0));
-    DiscreteFactor outcomeWeights = meanDeltas.product(variances.inverse()).product(meanDeltas)
-        .marginalize(featureVars.getVariableNums()).product(-1.0 / 2);
-
-    // Add in gaussian scaling factors. -1/2 of (The log determinant of the variance,
-    // plus k * log(2 pi)) 
-    DiscreteVariable featureVariable = (DiscreteVariable) featureVars.getOnlyVariable();
-    Tensor scalingFactor = variances.getWeights().elementwiseLog()
-        .sumOutDimensions(featureVars.getVariableNums()).elementwiseAddition(featureVariable.numValues() * Math.log(2 * Math.PI))
-        .elementwiseProduct(-1.0 / 2);
-    // Incorporate logs of the prior probabilities of each class label.
-    scalingFactor = scalingFactor.elementwiseAddition(priors.getWeights().elementwiseLog());
-    DiscreteFactor additiveTerms = new TableFactor(valueVars, scalingFactor);
-    
-    outcomeWeights = outcomeWeights.add(additiveTerms);
-    return new ParallelFactors(outcomeWeights.getWeights(), variableVars, valueVars);
+    DenseFeatures dense = getDenseFeatures();
+    int numValues = dense.numValues;
+    int numFeatures = dense.numFeatures;
+    DenseGaussianParameters gaussianParameters = computeDenseParameters(parameters, dense);
+
+    // The log likelihood of entity e under class c is
+    // -1/2 * sum_f (x_ef - mu_cf)^2 / var_f, plus the log prior and the
+    // gaussian scaling factor of c. The squared distance is expanded as
+    // sum_f x_ef^2 / var_f - 2 x_ef mu_cf / var_f + mu_cf^2 / var_f.
+    // As in jklol, the inverse of a zero variance is zero.
+    double[] inverseVariances = new double[numFeatures];
+    double logDeterminant = 0.0;
+    for (int f = 0; f < numFeatures; f++) {
+      double variance = gaussianParameters.variances[f];
+      inverseVariances[f] = (variance == 0.0) ? 0.0 : 1.0 / variance;
+      logDeterminant += Math.log(variance);
+    }
+
+    double[] scaledMeans = new double[numValues * numFeatures];
+    double[] classConstants = new double[numValues];
+    for (int c = 0; c < numValues; c++) {
+      double meanNorm = 0.0;
+      for (int f = 0; f < numFeatures; f++) {
+        double mean = gaussianParameters.means[c * numFeatures + f];
+        scaledMeans[c * numFeatures + f] = mean * inverseVariances[f];
+        meanNorm += mean * mean * inverseVariances[f];
+      }
+      // -1/2 of (the log determinant of the variance, plus k * log(2 pi)),
+      // plus the log prior probability of the class.
+      classConstants[c] = (-1.0 / 2) * (meanNorm + logDeterminant + numFeatures * Math.log(2 * Math.PI))
+          + Math.log(gaussianParameters.priors[c]);
+    }
+
+    double[] outcomeWeights = new double[dense.numEntities * numValues];
+    for (int e = 0; e < dense.numEntities; e++) {
+      int entityOffset = e * numFeatures;
+      double squaredNorm = 0.0;
+      for (int f = 0; f < numFeatures; f++) {
+        squaredNorm += dense.squaredFeatures[entityOffset + f] * inverseVariances[f];
+      }
+      for (int c = 0; c < numValues; c++) {
+        int meanOffset = c * numFeatures;
+        double crossTerm = 0.0;
+        for (int f = 0; f < numFeatures; f++) {
+          crossTerm += dense.features[entityOffset + f] * scaledMeans[meanOffset + f];
+        }
+        outcomeWeights[e * numValues + c] = (-1.0 / 2) * (squaredNorm - 2 * crossTerm) + classConstants[c];
+      }
+    }
+
+    VariableNumMap outcomeVars = variableVars.union(valueVars);
+    return new ParallelFactors(new DenseTensor(outcomeVars.getVariableNumsArray(),
+        outcomeVars.getVariableSizes(), outcomeWeights), variableVars, valueVars);
   }
 
   @Override
@@ -159,39 +194,76 @@ public class GaussianGroundingFamily implements GroundingFamily, Serializable {
   public void incrementSufficientStatistics(SufficientStatistics parameters,
       SufficientStatistics currentParameters, Tensor assignment,
       double multiplier) {
+    DenseFeatures dense = getDenseFeatures();
+    int numValues = dense.numValues;
+    int numFeatures = dense.numFeatures;
+    Preconditions.checkArgument(Arrays.equals(assignment.getDimensionNumbers(),
+        variableVars.union(valueVars).getVariableNumsArray()));
+
+    double[] classFeatureSums = new double[numValues * numFeatures];
+    double[] featureSquareSums = new double[numFeatures];
+    double[] priorCounts = new double[numValues];
+    for (int i = 0; i < assignment.size(); i++) {
+      double weight = assignment.getByIndex(i);
+      if (weight == 0.0) {
+        continue;
+      }
+      int keyNum = (int) assignment.indexToKeyNum(i);
+      int entityOffset = (keyNum / numValues) * numFeatures;
+      int value = keyNum % numValues;
+      accumulate(dense.features, entityOffset, weight, classFeatureSums, value * numFeatures, numFeatures);
+      accumulate(dense.squaredFeatures, entityOffset, weight, featureSquareSums, 0, numFeatures);
+      priorCounts[value] += weight;
+    }
+
+    incrementStatistics(parameters, dense, classFeatureSums, featureSquareSums, priorCounts, multiplier);
+  }
+
+  /**
+   * Adds {@code weight * source[sourceOffset + i]} to
+   * {@code target[targetOffset + i]} for {@code i < length}.
+   */
+  private static void accumulate(double[] source, int sourceOffset, double weight, double[] target,
+      int targetOffset, int length) {
+    for (int i = 0; i < length; i++) {
+      target[targetOffset + i] += weight * source[sourceOffset + i];
+    }
+  }
+
+  /**
+   * Increments the parameters with per-class feature sums, global
+   * feature square sums, and per-class counts, in the dense layouts
+   * used by {@code DenseFeatures}. (For per-class variances, the
+   * feature square sums would also be kept per class.)
+   */
+  private void incrementStatistics(SufficientStatistics parameters, DenseFeatures dense,
+      double[] classFeatureSums, double[] featureSquareSums, double[] priorCounts, double multiplier) {
     ListSufficientStatistics parameterList = parameters.coerceToList();
+    int numValues = dense.numValues;
+    int numFeatures = dense.numFeatures;
 
-    TensorSufficientStatistics globalFeatureSums = ((TensorSufficientStatistics) parameterList
-        .getStatisticByName(GLOBAL_MEAN_PARAMETERS));
-    TensorSufficientStatistics globalFeatureSquareSums = ((TensorSufficientStatistics) parameterList
-        .getStatisticByName(GLOBAL_VARIANCE_PARAMETERS)); 
-    TensorSufficientStatistics classFeatureSums = ((TensorSufficientStatistics) parameterList
-        .getStatisticByName(MEAN_PARAMETERS));
-    TensorSufficientStatistics priorCounts = ((TensorSufficientStatistics) parameterList
-        .getStatisticByName(PRIOR_PARAMETERS));
-    
-    Tensor featureWeights = domainVectors.getWeights();
-    Tensor featureSumIncrement = featureWeights.elementwiseProduct(assignment)
-        .sumOutDimensions(variableVars.getVariableNums());
-    classFeatureSums.increment(featureSumIncrement, multiplier);
-    globalFeatureSums.increment(featureSumIncrement.sumOutDimensions(
-        valueVars.getVariableNums()), multiplier);
-    
-    Tensor featureSquareSumIncrement = featureWeights.elementwiseProduct(featureWeights)
-        .elementwiseProduct(assignment).sumOutDimensions(variableVars.getVariableNums());
-    // For per-class variances:
-    // featureSquareSums.increment(featureSquareSumIncrement, multiplier);
-    globalFeatureSquareSums.increment(featureSquareSumIncrement.sumOutDimensions(
-        valueVars.getVariableNums()), multiplier);
+    double[] globalFeatureSums = new double[numFeatures];
+    for (int c = 0; c < numValues; c++) {
+      accumulate(classFeatureSums, c * numFeatures, 1.0, globalFeatureSums, 0, numFeatures);
+    }
 
-    Tensor priorIncrement = assignment.sumOutDimensions(variableVars.getVariableNums());
-    priorCounts.increment(priorIncrement, multiplier);
+    VariableNumMap meanVars = valueVars.union(featureVars);
+    ((TensorSufficientStatistics) parameterList.getStatisticByName(MEAN_PARAMETERS)).increment(
+        new DenseTensor(meanVars.getVariableNumsArray(), meanVars.getVariableSizes(), classFeatureSums), multiplier);
+    ((TensorSufficientStatistics) parameterList.getStatisticByName(GLOBAL_MEAN_PARAMETERS)).increment(
+        new DenseTensor(featureVars.getVariableNumsArray(), featureVars.getVariableSizes(), globalFeatureSums), multiplier);
+    ((TensorSufficientStatistics) parameterList.getStatisticByName(GLOBAL_VARIANCE_PARAMETERS)).increment(
+        new DenseTensor(featureVars.getVariableNumsArray(), featureVars.getVariableSizes(), featureSquareSums), multiplier);
+    ((TensorSufficientStatistics) parameterList.getStatisticByName(PRIOR_PARAMETERS)).increment(
+        new DenseTensor(valueVars.getVariableNumsArray(), valueVars.getVariableSizes(), priorCounts), multiplier);
   }
 
   @Override
   public void incrementSufficientStatistics(SufficientStatistics parameters, 
       SufficientStatistics currentParameters, ParallelFactors probabilities, double multiplier) {
-    throw new UnsupportedOperationException();
+    // The statistics are linear in the assignment, so expected
+    // statistics are the statistics of the marginal probabilities.
+    incrementSufficientStatistics(parameters, currentParameters, probabilities.getTensor(), multiplier);
   }
 
   private GaussianParameters computeParameters(SufficientStatistics parameters) {
@@ -219,6 +291,123 @@ public class GaussianGroundingFamily implements GroundingFamily, Serializable {
     return new GaussianParameters(classMeans, classVariances, classPriors);
   }
   
+  /**
+   * Computes the same parameters as {@link #computeParameters}, as
+   * dense arrays in the layout of {@code DenseFeatures}.
+   */
+  private DenseGaussianParameters computeDenseParameters(SufficientStatistics parameters,
+      DenseFeatures dense) {
+    ListSufficientStatistics parameterList = parameters.coerceToList();
+    int numValues = dense.numValues;
+    int numFeatures = dense.numFeatures;
+
+    double[] globalFeatureSums = toArray(parameterList, GLOBAL_MEAN_PARAMETERS);
+    double[] globalFeatureSumSquares = toArray(parameterList, GLOBAL_VARIANCE_PARAMETERS);
+    double[] classFeatureSums = toArray(parameterList, MEAN_PARAMETERS);
+    double[] priorCounts = toArray(parameterList, PRIOR_PARAMETERS);
+
+    double numExamples = 0.0;
+    for (int c = 0; c < numValues; c++) {
+      numExamples += priorCounts[c];
+    }
+
+    double[] variances = new double[numFeatures];
+    for (int f = 0; f < numFeatures; f++) {
+      double globalMean = globalFeatureSums[f] / numExamples;
+      variances[f] = (globalFeatureSumSquares[f] / numExamples) - (globalMean * globalMean);
+    }
+
+    double[] means = new double[numValues * numFeatures];
+    double[] priors = new double[numValues];
+    for (int c = 0; c < numValues; c++) {
+      double inverseCount = (priorCounts[c] == 0.0) ? 0.0 : 1.0 / priorCounts[c];
+      for (int f = 0; f < numFeatures; f++) {
+        means[c * numFeatures + f] = classFeatureSums[c * numFeatures + f] * inverseCount;
+      }
+      priors[c] = priorCounts[c] / numExamples;
+    }
+    return new DenseGaussianParameters(means, variances, priors);
+  }
+
+  private static double[] toArray(ListSufficientStatistics parameterList, String name) {
+    Tensor tensor = ((TensorSufficientStatistics) parameterList.getStatisticByName(name)).get();
+    double[] values = new double[(int) tensor.getMaxKeyNum()];
+    for (int i = 0; i < tensor.size(); i++) {
+      values[(int) tensor.indexToKeyNum(i)] = tensor.getByIndex(i);
+    }
+    return values;
+  }
+
+  /**
+   * Gets the feature vectors of this domain's entities as dense arrays,
+   * computing them on first use.
+   */
+  private DenseFeatures getDenseFeatures() {
+    DenseFeatures dense = denseFeatures;
+    if (dense == null) {
+      dense = new DenseFeatures(domainVectors.getWeights(), variableVars, valueVars, featureVars);
+      denseFeatures = dense;
+    }
+    return dense;
+  }
+
+  /**
+   * The feature vectors of every entity, and their elementwise squares.
+   * Entity {@code e} (an assignment to the index variables, in key
+   * order) has feature {@code f} at {@code features[e * numFeatures + f]}.
+   * This layout assumes that the index variables are numbered before
+   * the value variables, which are numbered before the feature
+   * variables, so that keys of the {@code (index, value, feature)}
+   * tensors are ordered by entity, then value, then feature.
+   */
+  private static class DenseFeatures {
+    public final int numEntities;
+    public final int numValues;
+    public final int numFeatures;
+    public final double[] features;
+    public final double[] squaredFeatures;
+
+    public DenseFeatures(Tensor domainVectors, VariableNumMap variableVars, VariableNumMap valueVars,
+        VariableNumMap featureVars) {
+      Preconditions.checkArgument(Ordering.natural().max(variableVars.getVariableNums())
+          < Ordering.natural().min(valueVars.getVariableNums()));
+      Preconditions.checkArgument(Ordering.natural().max(valueVars.getVariableNums())
+          < Ordering.natural().min(featureVars.getVariableNums()));
+
+      numEntities = variableVars.getNumberOfPossibleAssignments();
+      numValues = valueVars.getNumberOfPossibleAssignments();
+      numFeatures = featureVars.getNumberOfPossibleAssignments();
+      features = new double[numEntities * numFeatures];
+      squaredFeatures = new double[numEntities * numFeatures];
+
+      // The feature vectors are the same for every value, so only
+      // the first value's vectors are read.
+      for (int i = 0; i < domainVectors.size(); i++) {
+        int keyNum = (int) domainVectors.indexToKeyNum(i);
+        int feature = keyNum % numFeatures;
+        int entityValue = keyNum / numFeatures;
+        if (entityValue % numValues == 0) {
+          double value = domainVectors.getByIndex(i);
+          int index = (entityValue / numValues) * numFeatures + feature;
+          features[index] = value;
+          squaredFeatures[index] = value * value;
+        }
+      }
+    }
+  }
+
+  private static class DenseGaussianParameters {
+    public final double[] means;
+    public final double[] variances;
+    public final double[] priors;
+
+    public DenseGaussianParameters(double[] means, double[] variances, double[] priors) {
+      this.means = means;
+      this.variances = variances;
+      this.priors = priors;
+    }
+  }
+
   private static class GaussianParameters {
     public DiscreteFactor means; 
     public DiscreteFactor variances;
@@ -0,0 +1,55 @@
+package edu.cmu.ml.rtw.users.jayantk.grounding;
+
+import java.util.Collections;
+import java.util.List;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.jayantkrish.jklol.cfg.ParseTree;
+import com.jayantkrish.jklol.models.parametric.SufficientStatistics;
+
+/**
+ * The expected sufficient statistics computed by the E-step of EM
+ * for the grounding model. The grounding statistics (feature sums and
+ * class counts of each predicate's {@code GaussianGroundingFamily})
+ * are summed across examples, so they take the same space no matter
+ * how many examples contributed to them. The parser's M-step needs the
+ * best parse of each example, which is retained.
+ *
+ * @author jayantk
+ */
+public class GroundingEmStatistics {
+
+  private final SufficientStatistics groundingStatistics;
+  private final List<ParseTree> parses;
+
+  public GroundingEmStatistics(SufficientStatistics groundingStatistics) {
+    this.groundingStatistics = Preconditions.checkNotNull(groundingStatistics);
+    this.parses = Lists.newArrayList();
+  }
+
+  public SufficientStatistics getGroundingStatistics() {
+    return groundingStatistics;
+  }
+
+  public List<ParseTree> getParses() {
+    return Collections.unmodifiableList(parses);
+  }
+
+  public int getNumExamples() {
+    return parses.size();
+  }
+
+  public void addParse(ParseTree parse) {
+    parses.add(parse);
+  }
+
+  /**
+   * Adds {@code other} to these statistics, scaling its grounding
+   * statistics by {@code multiplier}.
+   */
+  public void increment(GroundingEmStatistics other, double multiplier) {
+    groundingStatistics.increment(other.groundingStatistics, multiplier);
+    parses.addAll(other.parses);
+  }
+}
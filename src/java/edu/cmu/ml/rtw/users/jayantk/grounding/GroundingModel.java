@@ -54,6 +54,20 @@ import edu.cmu.ml.rtw.users.jayantk.semparse.SemanticParser;
 import edu.cmu.ml.rtw.users.jayantk.semparse.SemanticPredicate;
 import edu.cmu.ml.rtw.util.Pair;
 
+/**
+ * A trained semantic parser and grounding model, which predicts the
+ * groundings of natural language utterances in a {@code Domain}.
+ * <p>
+ * Thread safety: a {@code GroundingModel} and its domains are never
+ * modified after construction, so one model may be shared by any
+ * number of threads making predictions. Each prediction builds its own
+ * queries, and ILP solves keep their state in an {@link IlpContext}.
+ * The shared caches used during inference ({@link QueryPlanCache},
+ * {@link Metrics}) are thread-safe. {@link ConcurrentInferenceCheck}
+ * checks this contract for a trained model.
+ *
+ * @author jayantk
+ */
 public class GroundingModel implements Serializable {
   static final long serialVersionUID = 10275539472837495L;
 
@@ -70,6 +84,10 @@ public class GroundingModel implements Serializable {
   private final SufficientStatistics parserParameters;
   private final List<Domain> domains;
 
+  private static final Metrics.Histogram predictionTimer = Metrics.timer("prediction.total");
+  private static final Metrics.Histogram predictionParseTimer = Metrics.timer("prediction.parse");
+  private static final Metrics.Histogram predictionGroundingTimer = Metrics.timer("prediction.grounding");
+
   public GroundingModel(IndexedList<RelationType> groundingTypes, IndexedList<RelationType> knownPredicateTypes, 
       List<SufficientStatistics> groundingParameters,
       SufficientStatistics parserParameters, ParametricCfgFactor parserCfgFactor, List<Domain> domains) {
@@ -199,8 +217,18 @@ public class GroundingModel implements Serializable {
   }
 
   public QueryTree getQueryFromParse(ParseTree parse, Domain domain, boolean addImplicitDeterminer) {
-    SemanticPredicate semanticPredicate = getSemanticParseFromParseTree(parse);
-    QueryTree query = getQueryFromSemanticParse(semanticPredicate, domain);
+    return getQueryFromSemanticParse(getSemanticParseFromParseTree(parse), domain, null,
+        addImplicitDeterminer);
+  }
+
+  /**
+   * Builds the query for {@code semanticPredicate}. If {@code world}
+   * is non-null, predicate groundings are read from it instead of
+   * being recomputed from the model parameters.
+   */
+  private QueryTree getQueryFromSemanticParse(SemanticPredicate semanticPredicate, Domain domain,
+      World world, boolean addImplicitDeterminer) {
+    QueryTree query = getQueryFromSemanticParse(semanticPredicate, domain, world);
     if (addImplicitDeterminer) {
       query = new DeterminerQueryTree(query, true);
       System.out.println("adding determiner to: " + semanticPredicate);
@@ -255,11 +283,98 @@ public class GroundingModel implements Serializable {
 
   public GroundingPrediction getPrediction(List<List<String>> inputCandidates, double[] inputWeights, Domain domain,
       boolean addImplicitDeterminer) {
-    BeamSearchCfgFactor parser = parserCfgFactor.getModelFromParameters(parserParameters);
+    long startTime = predictionTimer.start();
+    List<ParseCandidate> candidates = parseCandidates(getParser(), inputCandidates, inputWeights);
+    GroundingPrediction prediction = groundBestCandidate(candidates, domain, null, null, addImplicitDeterminer);
+    predictionTimer.stop(startTime);
+    return prediction;
+  }
 
-    double bestWeight = Double.NEGATIVE_INFINITY;
-    GroundingPrediction bestPrediction = null;
+  /**
+   * Predicts groundings for many utterances in a single domain. The
+   * parser and the domain's {@code World} are instantiated once for
+   * the whole batch, repeated utterances are only predicted once, and
+   * parses with identical semantics share a single grounding
+   * inference. Results are returned in the order of {@code inputs}.
+   *
+   * @param inputs
+   * @param domain
+   * @param addImplicitDeterminer
+   * @return
+   */
+  public List<TimedPrediction> getPredictions(List<List<String>> inputs, Domain domain,
+      boolean addImplicitDeterminer) {
+    BeamSearchCfgFactor parser = getParser();
+    World world = getWorldForDomain(domain);
+    Map<SemanticPredicate, GroundingPrediction> groundingCache = Maps.newHashMap();
+    Map<List<String>, GroundingPrediction> inputCache = Maps.newHashMap();
+
+    List<TimedPrediction> results = Lists.newArrayList();
+    for (List<String> input : inputs) {
+      long start = System.nanoTime();
+      GroundingPrediction prediction = null;
+      if (inputCache.containsKey(input)) {
+        prediction = inputCache.get(input);
+      } else {
+        List<ParseCandidate> candidates = parseCandidates(parser,
+            Collections.singletonList(input), new double[] {0});
+        prediction = groundBestCandidate(candidates, domain, world, groundingCache,
+            addImplicitDeterminer);
+        inputCache.put(input, prediction);
+      }
+      results.add(new TimedPrediction(input, domain, prediction, System.nanoTime() - start));
+    }
+    return results;
+  }
 
+  /**
+   * Predicts groundings for a single utterance in many domains. The
+   * utterance is parsed once, and each domain's {@code World} is
+   * instantiated once. Results are returned in the order of
+   * {@code domains}.
+   *
+   * @param input
+   * @param domains
+   * @param addImplicitDeterminer
+   * @return
+   */
+  public List<TimedPrediction> getPredictions(List<String> input, List<Domain> domains,
+      boolean addImplicitDeterminer) {
+    long parseStart = System.nanoTime();
+    List<ParseCandidate> candidates = parseCandidates(getParser(),
+        Collections.singletonList(input), new double[] {0});
+    long parseTime = System.nanoTime() - parseStart;
+
+    Map<Domain, GroundingPrediction> domainCache = Maps.newHashMap();
+    List<TimedPrediction> results = Lists.newArrayList();
+    for (Domain domain : domains) {
+      // The parsing time is shared by all domains, so it is
+      // included in each domain's time.
+      long start = System.nanoTime();
+      GroundingPrediction prediction = null;
+      if (domainCache.containsKey(domain)) {
+        prediction = domainCache.get(domain);
+      } else {
+        Map<SemanticPredicate, GroundingPrediction> groundingCache = Maps.newHashMap();
+        prediction = groundBestCandidate(candidates, domain, getWorldForDomain(domain),
+            groundingCache, addImplicitDeterminer);
+        domainCache.put(domain, prediction);
+      }
+      results.add(new TimedPrediction(input, domain, prediction,
+          parseTime + System.nanoTime() - start));
+    }
+    return results;
+  }
+
+  /**
+   * Gets the best parse of each input, sorted in order of decreasing
+   * weight. The sort is stable, so ties are broken in favor of
+   * earlier inputs.
+   */
+  private List<ParseCandidate> parseCandidates(BeamSearchCfgFactor parser,
+      List<List<String>> inputCandidates, double[] inputWeights) {
+    long startTime = predictionParseTimer.start();
+    List<ParseCandidate> candidates = Lists.newArrayList();
     for (int i = 0; i < inputCandidates.size(); i++) {
       List<String> input = inputCandidates.get(i);
       double inputWeight = inputWeights[i];
@@ -272,25 +387,76 @@ public class GroundingModel implements Serializable {
       if (bestAssignments.size() > 0) {
         Assignment parseAssignment = bestAssignments.get(0);
         ParseTree tree = (ParseTree) parseAssignment.getOnlyValue();
-        SemanticPredicate semParse = getSemanticParseFromParseTree(tree);
-        QueryTree query = getQueryFromParse(tree, domain, addImplicitDeterminer);
-
-        // Queries can be deterministically evaluated.
-        // MultiTree<Tensor> assignment = query.evaluateQueryMap();
-        try {
-          MultiTree<Tensor> assignment = query.ilpInference(false, true);
-          double parseWeight = parseFactor.getUnnormalizedLogProbability(parseAssignment);
-          double groundingWeight = query.getWeight(assignment);
-          if (parseWeight + inputWeight > bestWeight) {
-            bestWeight = parseWeight + inputWeight;
-            bestPrediction = new GroundingPrediction(query, assignment, semParse, parseWeight + inputWeight, groundingWeight);
-          }
-        } catch (ZeroProbabilityError e) {
-          // There does not exist a satisfying assignment. Fail.
+        double parseWeight = parseFactor.getUnnormalizedLogProbability(parseAssignment);
+        candidates.add(new ParseCandidate(tree, parseWeight + inputWeight));
+      }
+    }
+    Collections.sort(candidates);
+    predictionParseTimer.stop(startTime);
+    return candidates;
+  }
+
+  /**
+   * Gets the prediction for the first candidate in {@code candidates}
+   * with a satisfying grounding, or {@code null} if no such candidate
+   * exists. If {@code groundingCache} is non-null, it is used to
+   * reuse grounding inference results across calls; unsatisfiable
+   * semantic parses are cached as {@code null}. {@code world} and
+   * {@code groundingCache} must both be specific to {@code domain}.
+   */
+  private GroundingPrediction groundBestCandidate(List<ParseCandidate> candidates, Domain domain,
+      World world, Map<SemanticPredicate, GroundingPrediction> groundingCache,
+      boolean addImplicitDeterminer) {
+    long startTime = predictionGroundingTimer.start();
+    try {
+      return groundBestCandidateHelper(candidates, domain, world, groundingCache, addImplicitDeterminer);
+    } finally {
+      predictionGroundingTimer.stop(startTime);
+    }
+  }
+
+  private GroundingPrediction groundBestCandidateHelper(List<ParseCandidate> candidates, Domain domain,
+      World world, Map<SemanticPredicate, GroundingPrediction> groundingCache,
+      boolean addImplicitDeterminer) {
+    // The best prediction is the highest-weight parse with a satisfying
+    // grounding. Grounding inference is only necessary for parses that
+    // could outscore the best satisfiable parse found so far, so check
+    // parses in order of decreasing weight and stop at the first
+    // satisfiable one.
+    for (ParseCandidate candidate : candidates) {
+      if (!(candidate.weight > Double.NEGATIVE_INFINITY)) {
+        continue;
+      }
+      SemanticPredicate semParse = getSemanticParseFromParseTree(candidate.tree);
+      if (groundingCache != null && groundingCache.containsKey(semParse)) {
+        GroundingPrediction cached = groundingCache.get(semParse);
+        if (cached != null) {
+          return new GroundingPrediction(cached.getQueryTree(), cached.getAssignment(), semParse,
+              candidate.weight, cached.getGroundingWeight());
         }
+        continue;
+      }
+
+      QueryTree query = getQueryFromSemanticParse(semParse, domain, world, addImplicitDeterminer);
+      GroundingPrediction prediction = null;
+      // Queries can be deterministically evaluated.
+      // MultiTree<Tensor> assignment = query.evaluateQueryMap();
+      try {
+        MultiTree<Tensor> assignment = query.ilpInference(false, true);
+        double groundingWeight = query.getWeight(assignment);
+        prediction = new GroundingPrediction(query, assignment, semParse, candidate.weight, groundingWeight);
+      } catch (ZeroProbabilityError e) {
+        // There does not exist a satisfying assignment. Try the next parse.
+      }
+
+      if (groundingCache != null) {
+        groundingCache.put(semParse, prediction);
+      }
+      if (prediction != null) {
+        return prediction;
       }
     }
-    return bestPrediction;
+    return null;
   }
 
   public ParallelFactors getFactorForRelation(RelationType relation, Domain domain) {
@@ -808,21 +974,85 @@ public class GroundingModel implements Serializable {
     return expression;
   }
 
-  private QueryTree getQueryFromSemanticParse(SemanticPredicate predicate, Domain domain) {
+  /**
+   * Builds the query for {@code predicate}. Only the predicates of the
+   * query are instantiated here; the rest of the query is bound from a
+   * cached plan for parses with the same shape.
+   */
+  private QueryTree getQueryFromSemanticParse(SemanticPredicate predicate, Domain domain, World world) {
+    List<QueryTree> predicates = Lists.newArrayList();
+    StringBuilder shape = new StringBuilder();
+    getQueryPredicates(predicate, domain, world, predicates, shape);
+
+    String key = shape.toString();
+    QueryTree plan = QueryPlanCache.get(domain, key);
+    if (plan == null) {
+      // Build the plan from copies of the predicates, so that the plan
+      // does not share any nodes with the returned query.
+      List<QueryTree> planPredicates = Lists.newArrayList();
+      for (QueryTree queryPredicate : predicates) {
+        planPredicates.add(queryPredicate.copy());
+      }
+      plan = buildQueryPlan(predicate, domain, planPredicates.iterator());
+      QueryPlanCache.put(domain, key, plan);
+    }
+    return plan.bindPredicates(predicates.iterator());
+  }
+
+  /**
+   * Instantiates the predicates of the query for {@code predicate} in
+   * depth-first order, and appends a description of the query's
+   * structure to {@code shape}. Queries with the same shape have the
+   * same plan.
+   */
+  private void getQueryPredicates(SemanticPredicate predicate, Domain domain, World world,
+      List<QueryTree> predicates, StringBuilder shape) {
+    RelationType relation = predicate.getRelation();
+    Map<Integer, SemanticPredicate> arguments = predicate.getArguments();
+    if (!relation.getName().startsWith("special-")) {
+      // This node in the parse tree refers to some predicate from a KB.
+      // Known relation names may carry a "#" suffix which the world
+      // does not contain, but their groundings are cheap to look up.
+      ParallelFactors relationFactor = (world != null && world.containsRelation(relation.getName())) ?
+          world.getFactorForRelation(relation.getName()) : getFactorForRelation(relation, domain);
+      predicates.add(new PredicateQueryTree(relation, relationFactor,
+          !groundingTypes.contains(relation)));
+
+      shape.append("(").append(QueryPlanCache.getSignature(relationFactor))
+          .append(" ").append(predicate.getOutputArgument());
+      for (Integer argumentNumber : arguments.keySet()) {
+        shape.append(" ").append(argumentNumber).append(":");
+        getQueryPredicates(arguments.get(argumentNumber), domain, world, predicates, shape);
+      }
+      shape.append(")");
+    } else {
+      shape.append("(").append(relation.getName());
+      for (SemanticPredicate argument : arguments.values()) {
+        shape.append(" ");
+        getQueryPredicates(argument, domain, world, predicates, shape);
+      }
+      shape.append(")");
+    }
+  }
+
+  /**
+   * Constructs the query for {@code predicate}, taking its predicates
+   * (in depth-first order) from {@code predicates}.
+   */
+  private QueryTree buildQueryPlan(SemanticPredicate predicate, Domain domain,
+      Iterator<QueryTree> predicates) {
     RelationType relation = predicate.getRelation();
 
     if (!relation.getName().startsWith("special-")) {
       // This node in the parse tree refers to some predicate from a KB.
-      QueryTree current = new PredicateQueryTree(relation, 
-          getFactorForRelation(relation, domain), 
-          !groundingTypes.contains(relation));
+      QueryTree current = predicates.next();
 
       int outputVariable = predicate.getOutputArgument();
 
       // For each argument to this, create a conjunction node.
       Map<Integer, SemanticPredicate> arguments = predicate.getArguments();
       for (Integer argumentNumber : arguments.keySet()) {
-        QueryTree subtree = getQueryFromSemanticParse(arguments.get(argumentNumber), domain);
+        QueryTree subtree = buildQueryPlan(arguments.get(argumentNumber), domain, predicates);
         current = ConjunctionQueryTree.createConjunction(domain.getAndTruthTable(), current, subtree, argumentNumber);
       }
 
@@ -841,11 +1071,11 @@ public class GroundingModel implements Serializable {
       String name = relation.getName();
       if (name.equals("special-the")) {
         Preconditions.checkState(arguments.size() == 1);
-        QueryTree subtree = getQueryFromSemanticParse(Iterables.getOnlyElement(arguments.values()), domain);
+        QueryTree subtree = buildQueryPlan(Iterables.getOnlyElement(arguments.values()), domain, predicates);
         return new DeterminerQueryTree(subtree, true);
       } else if (name.equals("special-a")) {
         Preconditions.checkState(arguments.size() == 1);
-        QueryTree subtree = getQueryFromSemanticParse(Iterables.getOnlyElement(arguments.values()), domain);
+        QueryTree subtree = buildQueryPlan(Iterables.getOnlyElement(arguments.values()), domain, predicates);
         return new DeterminerQueryTree(subtree, false);
       } else {
         throw new IllegalArgumentException("Invalid special relation: " + name);
@@ -1003,6 +1233,70 @@ public class GroundingModel implements Serializable {
         predicate.getFixedArguments(), simplifiedArguments);
   }
 
+  /**
+   * A parse tree and its total (parse + input) weight. Sorts in order
+   * of decreasing weight.
+   */
+  private static class ParseCandidate implements Comparable<ParseCandidate> {
+    public final ParseTree tree;
+    public final double weight;
+
+    public ParseCandidate(ParseTree tree, double weight) {
+      this.tree = tree;
+      this.weight = weight;
+    }
+
+    @Override
+    public int compareTo(ParseCandidate other) {
+      return Double.compare(other.weight, weight);
+    }
+  }
+
+  /**
+   * A prediction made by a batched prediction call, along with the
+   * input, domain and elapsed time.
+   *
+   * @author jayantk
+   */
+  public static class TimedPrediction {
+    private final List<String> input;
+    private final Domain domain;
+    private final GroundingPrediction prediction;
+    private final long elapsedNanos;
+
+    public TimedPrediction(List<String> input, Domain domain, GroundingPrediction prediction,
+        long elapsedNanos) {
+      this.input = input;
+      this.domain = domain;
+      this.prediction = prediction;
+      this.elapsedNanos = elapsedNanos;
+    }
+
+    public List<String> getInput() {
+      return input;
+    }
+
+    public Domain getDomain() {
+      return domain;
+    }
+
+    /**
+     * Gets the prediction, or {@code null} if no parse of the input
+     * has a satisfying grounding.
+     */
+    public GroundingPrediction getPrediction() {
+      return prediction;
+    }
+
+    public long getElapsedNanos() {
+      return elapsedNanos;
+    }
+
+    public double getElapsedMillis() {
+      return elapsedNanos / 1000000.0;
+    }
+  }
+
   public static class GroundingPrediction implements Serializable {
     static final long serialVersionUID = 10125539472837495L;
     private final QueryTree queryTree;
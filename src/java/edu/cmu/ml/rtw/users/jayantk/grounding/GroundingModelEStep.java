@@ -0,0 +1,67 @@
+package edu.cmu.ml.rtw.users.jayantk.grounding;
+
+import com.google.common.base.Preconditions;
+import com.jayantkrish.jklol.models.parametric.SufficientStatistics;
+import com.jayantkrish.jklol.parallel.Mapper;
+import com.jayantkrish.jklol.parallel.Reducer;
+import com.jayantkrish.jklol.training.LogFunction;
+
+import edu.cmu.ml.rtw.users.jayantk.grounding.GroundingModelEmOracle.GroundingExpectation;
+
+/**
+ * Mapreduce pipeline for the E-step of EM for the grounding model.
+ * The mapper computes the expectation of each example, and the
+ * reducer immediately folds it into a running
+ * {@link GroundingEmStatistics}, so each worker only holds the
+ * expectations of the example it is working on.
+ *
+ * @author jayantk
+ */
+public class GroundingModelEStep extends Mapper<GroundingExample, GroundingExpectation> {
+
+  private final GroundingModelEmOracle oracle;
+  private final GroundingModel model;
+  private final SufficientStatistics currentParameters;
+  private final LogFunction log;
+
+  public GroundingModelEStep(GroundingModelEmOracle oracle, GroundingModel model,
+      SufficientStatistics currentParameters, LogFunction log) {
+    this.oracle = Preconditions.checkNotNull(oracle);
+    this.model = Preconditions.checkNotNull(model);
+    this.currentParameters = currentParameters;
+    this.log = log;
+  }
+
+  @Override
+  public GroundingExpectation map(GroundingExample example) {
+    return oracle.computeExpectations(model, currentParameters, example, log);
+  }
+
+  public static class GroundingEStepReducer implements Reducer<GroundingExpectation, GroundingEmStatistics> {
+    private final GroundingModelFamily family;
+    private final GroundingModelMStep mStep;
+
+    public GroundingEStepReducer(GroundingModelFamily family, boolean onlyUseDeltas) {
+      this.family = Preconditions.checkNotNull(family);
+      this.mStep = new GroundingModelMStep(family, onlyUseDeltas);
+    }
+
+    @Override
+    public GroundingEmStatistics getInitialValue() {
+      return new GroundingEmStatistics(family.getNewSufficientStatistics());
+    }
+
+    @Override
+    public GroundingEmStatistics reduce(GroundingExpectation item, GroundingEmStatistics accumulated) {
+      mStep.incrementStatistics(item, accumulated.getGroundingStatistics());
+      accumulated.addParse(item.getParse());
+      return accumulated;
+    }
+
+    @Override
+    public GroundingEmStatistics combine(GroundingEmStatistics other, GroundingEmStatistics accumulated) {
+      accumulated.increment(other, 1.0);
+      return accumulated;
+    }
+  }
+}
@@ -2,6 +2,7 @@ package edu.cmu.ml.rtw.users.jayantk.grounding;
 
 import java.io.Serializable;
 import java.util.List;
+import java.util.Random;
 
 import com.google.common.base.Preconditions;
 import com.google.common.collect.Iterables;
@@ -9,6 +10,7 @@ import com.google.common.collect.Lists;
 import com.jayantkrish.jklol.cfg.ParametricCfgFactor;
 import com.jayantkrish.jklol.cfg.ParseTree;
 import com.jayantkrish.jklol.evaluation.Example;
+import com.jayantkrish.jklol.inference.MarginalCalculator.ZeroProbabilityError;
 import com.jayantkrish.jklol.inference.JunctionTree;
 import com.jayantkrish.jklol.models.DiscreteFactor;
 import com.jayantkrish.jklol.models.VariableNumMap;
@@ -21,6 +23,7 @@ import com.jayantkrish.jklol.models.parametric.SufficientStatistics;
 import com.jayantkrish.jklol.models.parametric.TensorSufficientStatistics;
 import com.jayantkrish.jklol.parallel.MapReduceConfiguration;
 import com.jayantkrish.jklol.parallel.MapReduceExecutor;
+import com.jayantkrish.jklol.parallel.Mappers;
 import com.jayantkrish.jklol.tensor.Tensor;
 import com.jayantkrish.jklol.training.EmOracle;
 import com.jayantkrish.jklol.training.GradientOracle;
@@ -32,14 +35,19 @@ import com.jayantkrish.jklol.training.StochasticGradientTrainer;
 import com.jayantkrish.jklol.util.Assignment;
 import com.jayantkrish.jklol.util.IndexedList;
 
+import edu.cmu.ml.rtw.users.jayantk.grounding.ExampleProfiler.ExampleProfile;
+import edu.cmu.ml.rtw.users.jayantk.grounding.GroundingModelEStep.GroundingEStepReducer;
 import edu.cmu.ml.rtw.users.jayantk.grounding.GroundingModelEmOracle.GroundingExpectation;
 import edu.cmu.ml.rtw.users.jayantk.grounding.GroundingModelInference.GroundingInference;
-import edu.cmu.ml.rtw.users.jayantk.grounding.GroundingModelMStep.GroundingModelReducer;
 import edu.cmu.ml.rtw.users.jayantk.semparse.RelationType;
 
 /**
- * Oracle for running hard EM, maximizing the generative version of 
- * the grounding model family.
+ * Oracle for running EM, maximizing the generative version of 
+ * the grounding model family. By default, this runs hard EM, where
+ * each example's expectation is its single best grounding. If
+ * {@code numPosteriorSamples} is positive, it runs soft EM instead,
+ * where the expectation is the posterior marginal of each predicate
+ * (see {@link GroundingModelInference#getConditionalMarginals}).
  * 
  * Expects every domain to contain a {@code GaussianGroundingFamily}.
  * 
@@ -61,10 +69,35 @@ public class GroundingModelEmOracle implements EmOracle<GroundingModel, Groundin
   // sum up grounding elements which differ from the prediction.
   private final boolean onlyUseDeltas;
 
+  // Number of samples used to estimate posterior marginals for soft
+  // EM, or 0 to run hard EM.
+  private final int numPosteriorSamples;
+  // Incremented by every M-step, so that each EM iteration draws
+  // different samples.
+  private volatile int samplingRound;
+
+  // If non-null, records the cost of the E-step for each example.
+  private transient ExampleProfiler profiler;
+
+  private static final Metrics.Histogram expectationTimer = Metrics.timer("em.expectation");
+  private static final Metrics.Histogram maximizationTimer = Metrics.timer("em.maximization");
+  private static final Metrics.Histogram parserMaximizationTimer = Metrics.timer("em.parserMaximization");
+
   public GroundingModelEmOracle(GroundingModelFamily family, 
       GroundingModelInference inferenceAlgorithm, List<Domain> domains, 
       IndexedList<String> domainNames, double varianceSmoothing, double positivePriorSmoothing,
       double negativePriorSmoothing, boolean onlyUseDeltas) {
+    this(family, inferenceAlgorithm, domains, domainNames, varianceSmoothing, positivePriorSmoothing,
+        negativePriorSmoothing, onlyUseDeltas, 0);
+  }
+
+  public GroundingModelEmOracle(GroundingModelFamily family, 
+      GroundingModelInference inferenceAlgorithm, List<Domain> domains, 
+      IndexedList<String> domainNames, double varianceSmoothing, double positivePriorSmoothing,
+      double negativePriorSmoothing, boolean onlyUseDeltas, int numPosteriorSamples) {
+    Preconditions.checkArgument(numPosteriorSamples >= 0);
+    Preconditions.checkArgument(!(onlyUseDeltas && numPosteriorSamples > 0),
+        "Soft EM cannot be combined with hard EM deltas");
     this.family = Preconditions.checkNotNull(family);
     this.inferenceAlgorithm = Preconditions.checkNotNull(inferenceAlgorithm);
     this.domains = Preconditions.checkNotNull(domains);
@@ -75,6 +108,12 @@ public class GroundingModelEmOracle implements EmOracle<GroundingModel, Groundin
     this.negativePriorSmoothing = negativePriorSmoothing;
     
     this.onlyUseDeltas = onlyUseDeltas;
+    this.numPosteriorSamples = numPosteriorSamples;
+    this.samplingRound = 0;
+  }
+
+  public void setProfiler(ExampleProfiler profiler) {
+    this.profiler = profiler;
   }
 
   @Override
@@ -84,6 +123,25 @@ public class GroundingModelEmOracle implements EmOracle<GroundingModel, Groundin
 
   @Override
     public GroundingExpectation computeExpectations(GroundingModel model, SufficientStatistics currentParameters, GroundingExample example, LogFunction log) {
+    long startTime = expectationTimer.start();
+    ExampleProfile profile = (profiler != null) ? profiler.begin(example) : null;
+    String outcome = "error";
+    try {
+      GroundingExpectation expectation = computeExpectationsHelper(model, example);
+      outcome = "ok";
+      return expectation;
+    } catch (ZeroProbabilityError e) {
+      outcome = "noSatisfyingParse";
+      throw e;
+    } finally {
+      long elapsed = expectationTimer.stop(startTime);
+      if (profile != null) {
+        profiler.end(profile, elapsed, outcome);
+      }
+    }
+  }
+
+  private GroundingExpectation computeExpectationsHelper(GroundingModel model, GroundingExample example) {
     Domain domain = domains.get(domainNames.getIndex(example.getDomainName()));
     
     if (!example.hasObservedRelation()) {
@@ -104,27 +162,24 @@ public class GroundingModelEmOracle implements EmOracle<GroundingModel, Groundin
 			 inferenceResult.getBestParse() + "\n" +
 			 query.getAssignmentString(inferenceResult.getBestAssignment()) + "\n");
       
+      MultiTree<Tensor> assignment = inferenceResult.getBestAssignment();
+      if (numPosteriorSamples > 0) {
+        // Seed with the example and iteration so that the samples do
+        // not depend on how examples are assigned to threads.
+        Random random = new Random(31L * parserInput.hashCode() + samplingRound);
+        assignment = inferenceAlgorithm.getConditionalMarginals(inferenceResult,
+            expectedGroundingWeights, numPosteriorSamples, random);
+      }
+
       // Compute unconditional marginals for all predicates.
       IndexedList<RelationType> relations = family.getGroundedRelationTypes();
       List<ParallelFactors> unconditionalMarginals = Lists.newArrayList();
       for (RelationType relation : relations.items()) {
-        ParallelFactors relationFactor = model.getFactorForRelation(relation, domain);
-        
-        int[] valueDimensions = relationFactor.getValueVariables().getVariableNumsArray();
-        Tensor unnormalizedLogMarginals = relationFactor.getTensor();
-        Tensor maxLogMarginals = unnormalizedLogMarginals.maxOutDimensions(valueDimensions);
-        unnormalizedLogMarginals = unnormalizedLogMarginals.elementwiseAddition(maxLogMarginals.elementwiseProduct(-1.0));
-
-        Tensor unnormalizedMarginals = unnormalizedLogMarginals.elementwiseExp();
-        Tensor marginals = unnormalizedMarginals.elementwiseProduct(
-            unnormalizedMarginals.sumOutDimensions(valueDimensions).elementwiseInverse());
-
-        unconditionalMarginals.add(new ParallelFactors(marginals, relationFactor.getIndexVariables(),
-            relationFactor.getValueVariables()));
+        unconditionalMarginals.add(model.getFactorForRelation(relation, domain).getMarginals());
       }
 
       return new GroundingExpectation(parserInput, domain, inferenceResult.getBestParse(), 
-          inferenceResult.getBestQuery(), inferenceResult.getBestAssignment(),
+          inferenceResult.getBestQuery(), assignment,
           inferenceResult.getBestUnconditionalAssignment(), relations, unconditionalMarginals);
     } else {
       throw new UnsupportedOperationException("Not yet implemented");
@@ -152,25 +207,64 @@ public class GroundingModelEmOracle implements EmOracle<GroundingModel, Groundin
   @Override
   public SufficientStatistics maximizeParameters(List<GroundingExpectation> expectations, 
       SufficientStatistics currentParameters, LogFunction log) {
+    // Use mapreduce to quickly sum up the grounding statistics in parallel.
+    MapReduceExecutor executor = MapReduceConfiguration.getMapReduceExecutor();
+    GroundingEmStatistics statistics = executor.mapReduce(expectations,
+        Mappers.<GroundingExpectation>identity(), getEStepReducer());
+    return maximizeParameters(statistics, currentParameters);
+  }
+
+  /**
+   * Gets a reducer that accumulates the expectations computed by this
+   * oracle into {@code GroundingEmStatistics}.
+   */
+  public GroundingEStepReducer getEStepReducer() {
+    return new GroundingEStepReducer(family, onlyUseDeltas);
+  }
+
+  /**
+   * Maximizes the parameters given the expected sufficient statistics
+   * accumulated by {@link #getEStepReducer()}.
+   */
+  public SufficientStatistics maximizeParameters(GroundingEmStatistics statistics,
+      SufficientStatistics currentParameters) {
     // M-step factors into loglikelihood maximization of parser 
     // and grounding functions independently.
+    long startTime = maximizationTimer.start();
+    samplingRound++;
     SufficientStatistics newParameters = smoothParameters(family.getNewSufficientStatistics());
+    long parserStartTime = parserMaximizationTimer.start();
     family.incrementParserParameters(newParameters, 
-        maximizeParserParameters(family.getCfgFamily(), expectations), 1.0);
-    
-    // Use mapreduce to quickly run the M-step in parallel.
-    MapReduceExecutor executor = MapReduceConfiguration.getMapReduceExecutor();
-    SufficientStatistics groundingParameters = executor.mapReduce(expectations, 
-        new GroundingModelMStep(family, onlyUseDeltas), new GroundingModelReducer(family));
-    newParameters.increment(groundingParameters, 1.0);
+        maximizeParserParameters(family.getCfgFamily(), statistics.getParses()), 1.0);
+    parserMaximizationTimer.stop(parserStartTime);
+
+    newParameters.increment(statistics.getGroundingStatistics(), 1.0);
+    maximizationTimer.stop(startTime);
     
     GroundingModel model = family.instantiateModel(newParameters);
     System.out.println(model.getParameterDescription(10));
     return newParameters;
   }
 
+  /**
+   * Maximizes only the grounding parameters given the accumulated
+   * grounding statistics, keeping the parser parameters of
+   * {@code currentParameters}. The grounding M-step is cheap, unlike
+   * the parser's, so stepwise EM runs it after every mini-batch.
+   */
+  public SufficientStatistics maximizeGroundingParameters(SufficientStatistics groundingStatistics,
+      SufficientStatistics currentParameters) {
+    long startTime = maximizationTimer.start();
+    samplingRound++;
+    SufficientStatistics newParameters = smoothParameters(family.getNewSufficientStatistics());
+    family.incrementParserParameters(newParameters, family.getParserParameters(currentParameters), 1.0);
+    newParameters.increment(groundingStatistics, 1.0);
+    maximizationTimer.stop(startTime);
+    return newParameters;
+  }
+
   private SufficientStatistics maximizeParserParameters(ParametricCfgFactor parserFamily, 
-      List<GroundingExpectation> examples) {
+      List<ParseTree> parses) {
     ParametricFactorGraphBuilder builder = new ParametricFactorGraphBuilder();
     builder.addVariables(parserFamily.getVars());
 
@@ -181,8 +275,8 @@ public class GroundingModelEmOracle implements EmOracle<GroundingModel, Groundin
     VariableNumMap inputVar = parserFamily.getInputVar();
     VariableNumMap outputVar = parserFamily.getTreeVar();
     List<Example<Assignment, Assignment>> trainingData = Lists.newArrayList();
-    for (int i = 0; i < examples.size(); i++) {
-      ParseTree outputTree = examples.get(i).getParse();
+    for (int i = 0; i < parses.size(); i++) {
+      ParseTree outputTree = parses.get(i);
       List<Object> terminals = outputTree.getTerminalProductions();
 
       Assignment input = inputVar.outcomeArrayToAssignment(terminals);
@@ -15,6 +15,7 @@ import joptsimple.OptionSet;
 import joptsimple.OptionSpec;
 
 import com.google.common.base.Function;
+import com.google.common.base.Preconditions;
 import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
@@ -24,15 +25,14 @@ import com.jayantkrish.jklol.cli.AbstractCli;
 import com.jayantkrish.jklol.models.parametric.SufficientStatistics;
 import com.jayantkrish.jklol.tensor.Tensor;
 import com.jayantkrish.jklol.training.DefaultLogFunction;
-import com.jayantkrish.jklol.training.ExpectationMaximization;
+import com.jayantkrish.jklol.training.LogFunction;
 import com.jayantkrish.jklol.util.IndexedList;
 
-import edu.cmu.ml.rtw.time.utils.IoUtil;
-import edu.cmu.ml.rtw.users.jayantk.semparse.Lexicon;
 
 /**
  * Command line program for training the generative grounding model
- * using hard EM.
+ * using hard EM. The E-step runs in parallel using the map-reduce
+ * executor configured by the command line options.
  * 
  * @author jayantk
  */
@@ -41,6 +41,7 @@ public class GroundingModelEmTrainer extends AbstractCli {
   private OptionSpec<String> domainDir;
   private OptionSpec<String> trainingFilename;
   private OptionSpec<String> ccgLexicon;
+  private OptionSpec<String> compiledGrammar;
   private OptionSpec<Integer> iterations;
   private OptionSpec<Integer> maxParses;
   private OptionSpec<String> modelFilename;
@@ -52,6 +53,14 @@ public class GroundingModelEmTrainer extends AbstractCli {
   private OptionSpec<Void> skipUnparseable;
   private OptionSpec<Void> standardizeFeatures;
     private OptionSpec<Void> hardEm;
+  private OptionSpec<Integer> posteriorSamples;
+  private OptionSpec<Integer> batchSize;
+  private OptionSpec<Double> stepwiseDecayRate;
+  private OptionSpec<String> metricsFilename;
+  private OptionSpec<String> profileReport;
+  private OptionSpec<Integer> profileExamples;
+  private OptionSpec<String> checkpointFilename;
+  private OptionSpec<Void> resume;
   
   public GroundingModelEmTrainer() {
     super(CommonOptions.MAP_REDUCE);
@@ -61,7 +70,8 @@ public class GroundingModelEmTrainer extends AbstractCli {
   public void initializeOptions(OptionParser parser) {
     domainDir = parser.accepts("domainDir").withRequiredArg().ofType(String.class).required();
     trainingFilename = parser.accepts("trainingFilename").withOptionalArg().ofType(String.class).defaultsTo("training.txt");
-    ccgLexicon = parser.accepts("lexicon").withRequiredArg().ofType(String.class).required();
+    ccgLexicon = parser.accepts("lexicon").withRequiredArg().ofType(String.class);
+    compiledGrammar = parser.accepts("compiledGrammar").withRequiredArg().ofType(String.class);
     iterations = parser.accepts("iterations").withOptionalArg().ofType(Integer.class).defaultsTo(5);
     maxParses = parser.accepts("maxParses").withOptionalArg().ofType(Integer.class).defaultsTo(10);
     modelFilename = parser.accepts("modelFilename").withRequiredArg().ofType(String.class).required();
@@ -76,11 +86,64 @@ public class GroundingModelEmTrainer extends AbstractCli {
     skipUnparseable = parser.accepts("skipUnparseable");
     standardizeFeatures = parser.accepts("standardizeFeatures");
     hardEm = parser.accepts("hardEm");
+    // If positive, runs soft EM, estimating each example's posterior
+    // marginals from this many samples.
+    posteriorSamples = parser.accepts("posteriorSamples").withRequiredArg().ofType(Integer.class).defaultsTo(0);
+    // If positive, runs stepwise EM, updating the parameters after every
+    // mini-batch of this many examples.
+    batchSize = parser.accepts("batchSize").withRequiredArg().ofType(Integer.class).defaultsTo(0);
+    stepwiseDecayRate = parser.accepts("stepwiseDecayRate").withRequiredArg().ofType(Double.class).defaultsTo(0.7);
+    // If given, a snapshot of the training metrics is appended to this file after every EM iteration.
+    metricsFilename = parser.accepts("metricsFile").withRequiredArg().ofType(String.class);
+    // If given, the cost of the E-step on each example is profiled, and a report
+    // of the slowest and failing examples is written to this file.
+    profileReport = parser.accepts("profileReport").withRequiredArg().ofType(String.class);
+    profileExamples = parser.accepts("profileExamples").withRequiredArg().ofType(Integer.class).defaultsTo(50);
+    // If given, training is checkpointed to this file after every EM iteration.
+    // With --resume, training continues from the checkpoint in this file.
+    checkpointFilename = parser.accepts("checkpointFile").withRequiredArg().ofType(String.class);
+    resume = parser.accepts("resume");
   }
   
   public static SufficientStatistics trainGroundingModel(GroundingModelFamily family,
       Iterable<GroundingExample> trainingData, int iterations, int maxParses, List<Domain> domains, 
 							 IndexedList<String> domainNames, boolean useCurriculum, int maxCurriculumLevel, boolean useHardEm) {
+    return trainGroundingModel(family, trainingData, iterations, maxParses, domains, domainNames,
+        useCurriculum, maxCurriculumLevel, useHardEm, new DefaultLogFunction(), null);
+  }
+
+  public static SufficientStatistics trainGroundingModel(GroundingModelFamily family,
+      Iterable<GroundingExample> trainingData, int iterations, int maxParses, List<Domain> domains, 
+      IndexedList<String> domainNames, boolean useCurriculum, int maxCurriculumLevel, boolean useHardEm,
+      LogFunction log, ExampleProfiler profiler) {
+    return trainGroundingModel(family, trainingData, iterations, maxParses, domains, domainNames,
+        useCurriculum, maxCurriculumLevel, useHardEm, log, profiler, null);
+  }
+
+  public static SufficientStatistics trainGroundingModel(GroundingModelFamily family,
+      Iterable<GroundingExample> trainingData, int iterations, int maxParses, List<Domain> domains, 
+      IndexedList<String> domainNames, boolean useCurriculum, int maxCurriculumLevel, boolean useHardEm,
+      LogFunction log, ExampleProfiler profiler, TrainingCheckpointer checkpointer) {
+    return trainGroundingModel(family, trainingData, iterations, maxParses, domains, domainNames,
+        useCurriculum, maxCurriculumLevel, useHardEm, log, profiler, checkpointer, 0, 0, 0.7);
+  }
+
+  /**
+   * Trains a grounding model with EM. If {@code checkpointer} is
+   * non-null, a checkpoint is saved after every EM iteration, and
+   * training resumes from the checkpointer's resume point for the
+   * current fold, if any. If {@code posteriorSamples} is positive,
+   * runs soft EM using that many samples to estimate each example's
+   * posterior marginals. If {@code batchSize} is positive, runs
+   * stepwise EM with mini-batches of that size (see
+   * {@link StepwiseExpectationMaximization}), and each iteration is a
+   * pass over the data.
+   */
+  public static SufficientStatistics trainGroundingModel(GroundingModelFamily family,
+      Iterable<GroundingExample> trainingData, int iterations, int maxParses, List<Domain> domains, 
+      IndexedList<String> domainNames, boolean useCurriculum, int maxCurriculumLevel, boolean useHardEm,
+      LogFunction log, ExampleProfiler profiler, TrainingCheckpointer checkpointer, int posteriorSamples,
+      int batchSize, double stepwiseDecayRate) {
 
     Function<QueryTree,MultiTree<Tensor>> inference = new Function<QueryTree, MultiTree<Tensor>>() {
       @Override
@@ -94,31 +157,82 @@ public class GroundingModelEmTrainer extends AbstractCli {
     };
     GroundingModelInference groundingInference = new GroundingModelInference(inference, maxParses);
     GroundingModelEmOracle oracle = new GroundingModelEmOracle(family, groundingInference, domains,
-        domainNames, 1.0, 0.5, 0.5, useHardEm);
+        domainNames, 1.0, 0.5, 0.5, useHardEm, posteriorSamples);
+    oracle.setProfiler(profiler);
 
-    ExpectationMaximization em = new ExpectationMaximization(iterations, new DefaultLogFunction());
     SufficientStatistics initialParams = oracle.smoothParameters(family.getNewSufficientStatistics());
 
     // Train the model in stages.
+    int maxLevel = 1;
     if (useCurriculum) {
-      int maxLevel = 0;
+      maxLevel = 0;
       for (GroundingExample datum : trainingData) {
         maxLevel = (int) Math.max(maxLevel, datum.getCurriculumLevel());
       }
       maxLevel = Math.min(maxCurriculumLevel + 1, maxLevel + 1);
       System.out.println(maxLevel + " Curriculum Levels");
-      for (int i = 0; i < maxLevel; i++) {
+    }
+
+    TrainingCheckpoint resumePoint = checkpointer != null ? checkpointer.getResumePoint() : null;
+    for (int i = 0; i < maxLevel; i++) {
+      List<GroundingExample> currentData = Lists.newArrayList();
+      if (useCurriculum) {
         System.out.println("Training level: " + i);
-        List<GroundingExample> currentData = Lists.newArrayList();
         for (GroundingExample datum : trainingData) {
           if (datum.getCurriculumLevel() <= i) {
             currentData.add(datum);
           }
         }
-        initialParams = em.train(oracle, initialParams, currentData);
+      } else {
+        Iterables.addAll(currentData, trainingData);
       }
-    } else {
-      initialParams = em.train(oracle, initialParams, trainingData);
+
+      if (checkpointer == null) {
+        if (batchSize > 0) {
+          initialParams = new StepwiseExpectationMaximization(iterations, batchSize, stepwiseDecayRate, log)
+              .train(oracle, initialParams, currentData);
+        } else {
+          initialParams = new ParallelExpectationMaximization(iterations, log).train(oracle, initialParams, currentData);
+        }
+        continue;
+      }
+
+      int completedIterations = 0;
+      if (resumePoint != null) {
+        if (i < resumePoint.getCurriculumLevel()) {
+          continue;
+        }
+        completedIterations = (int) resumePoint.getIteration();
+        initialParams = resumePoint.getParameters();
+        resumePoint = null;
+        System.out.println("Resuming level " + i + " at iteration " + completedIterations);
+      }
+
+      // Each EM iteration depends only on the current parameters, so
+      // running the iterations one at a time gives the same result.
+      // Stepwise EM carries its running statistics from pass to pass,
+      // which are not checkpointed; a resumed run re-estimates them
+      // starting from the checkpointed parameters.
+      StepwiseExpectationMaximization stepwiseEm = (batchSize > 0) ? new StepwiseExpectationMaximization(
+          1, batchSize, stepwiseDecayRate, checkpointer.wrapLogFunction(log, i, completedIterations, 0)) : null;
+      for (int j = completedIterations; j < iterations; j++) {
+        if (stepwiseEm != null) {
+          initialParams = stepwiseEm.train(oracle, initialParams, currentData);
+        } else {
+          ParallelExpectationMaximization em = new ParallelExpectationMaximization(1,
+              checkpointer.wrapLogFunction(log, i, j, 0));
+          initialParams = em.train(oracle, initialParams, currentData);
+        }
+        if (j + 1 < iterations) {
+          checkpointer.save(i, j + 1, initialParams);
+        }
+      }
+      checkpointer.save(i + 1, 0, initialParams);
+    }
+
+    if (resumePoint != null) {
+      // The run was interrupted after its last level.
+      initialParams = resumePoint.getParameters();
     }
     return initialParams;
   }
@@ -132,7 +246,7 @@ public class GroundingModelEmTrainer extends AbstractCli {
     System.out.println(domains);
     IndexedList<String> domainNames = IndexedList.create(extract(domains, on(Domain.class).getName()));
     GroundingModelFamily family = GroundingModelUtilities.constructGroundingModel(domains,
-        Lexicon.fromFile(IoUtil.LoadFile(options.valueOf(ccgLexicon))));
+        CompiledGrammar.fromLexiconOrCompiledFile(options.valueOf(ccgLexicon), options.valueOf(compiledGrammar)));
 
     // Choose an inference procedure.
     String inferenceAlg = "ilp";
@@ -156,13 +270,28 @@ public class GroundingModelEmTrainer extends AbstractCli {
       System.out.println("fold: " + key + " " + filtered.size() + " training examples");
     }
 
+    ExampleProfiler profiler = options.has(profileReport) ? new ExampleProfiler() : null;
+    Preconditions.checkArgument(!options.has(resume) || options.has(checkpointFilename),
+        "--resume requires --checkpointFile");
+    TrainingCheckpointer checkpointer = options.has(checkpointFilename) ?
+        TrainingCheckpointer.create(options.valueOf(checkpointFilename), options.has(resume)) : null;
     Map<String, GroundingModel> modelFolds = Maps.newHashMap();
     Map<String, SufficientStatistics> modelParams = Maps.newHashMap();
     for (String key : filteredFolds.keySet()) {
       Collection<GroundingExample> foldExamples = filteredFolds.get(key);
-      SufficientStatistics trainedParams = GroundingModelEmTrainer.trainGroundingModel(family, foldExamples,
-										       options.valueOf(iterations), options.valueOf(maxParses), domains, domainNames, !options.has(noCurriculum),
-										       options.valueOf(maxCurriculumLevel), options.has(hardEm));
+      SufficientStatistics trainedParams = checkpointer != null ? checkpointer.beginFold(key) : null;
+      if (trainedParams != null) {
+        System.out.println("fold: " + key + " restored from checkpoint");
+      } else {
+        trainedParams = GroundingModelEmTrainer.trainGroundingModel(family, foldExamples,
+            options.valueOf(iterations), options.valueOf(maxParses), domains, domainNames, !options.has(noCurriculum),
+            options.valueOf(maxCurriculumLevel), options.has(hardEm),
+            new MetricsLogFunction(key, 1, options.valueOf(metricsFilename)), profiler, checkpointer,
+            options.valueOf(posteriorSamples), options.valueOf(batchSize), options.valueOf(stepwiseDecayRate));
+        if (checkpointer != null) {
+          checkpointer.completeFold(trainedParams);
+        }
+      }
 
       // System.out.println(family.getParameterDescription(trainedParams));
       GroundingModel trainedGroundingModel = family.instantiateModel(trainedParams);
@@ -173,6 +302,15 @@ public class GroundingModelEmTrainer extends AbstractCli {
       GroundingModelUtilities.logDatasetError(trainedGroundingModel, foldExamples, domains, null, false);
     }
 
+    if (checkpointer != null) {
+      checkpointer.close();
+    }
+
+    if (profiler != null) {
+      System.out.println("Writing profile to " + options.valueOf(profileReport));
+      profiler.writeReport(options.valueOf(profileReport), options.valueOf(profileExamples));
+    }
+
     /* Save the model to a java serialized file */
     try {
       System.out.println("Saving to " + options.valueOf(modelFilename));
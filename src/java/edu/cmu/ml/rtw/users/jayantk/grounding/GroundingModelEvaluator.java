@@ -6,12 +6,14 @@ import java.io.FileInputStream;
 import java.io.ObjectInputStream;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
 
 import joptsimple.OptionParser;
 import joptsimple.OptionSet;
 import joptsimple.OptionSpec;
 
 import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.jayantkrish.jklol.util.IndexedList;
 
@@ -32,6 +34,8 @@ public class GroundingModelEvaluator {
     parser.accepts("skipUnparseable");
     OptionSpec<Void> implicitDeterminer = parser.accepts("implicitDeterminer");
     OptionSpec<Void> generative = parser.accepts("generative");
+    // Number of threads used to score examples (or folds, with crossValidation).
+    OptionSpec<Integer> numThreads = parser.accepts("threads").withRequiredArg().ofType(Integer.class).defaultsTo(1);
     OptionSet options = parser.parse(args);
 
     String goldKbFilename = options.has(goldKbFile) ? options.valueOf(goldKbFile) : null;
@@ -42,7 +46,7 @@ public class GroundingModelEvaluator {
       List<Domain> domains = Domain.readDomainsFromDirectory(options.valueOf(domainDir), options.valueOf(crossValidationTrainingFile), 
           goldKbFilename, options.valueOf(maxTrainingExamples), sample, options.has(generative), false, false);
 
-      testCrossValidation(modelFolds, domains, options.has(implicitDeterminer));
+      testCrossValidation(modelFolds, domains, options.has(implicitDeterminer), options.valueOf(numThreads));
       return;
     }
 
@@ -64,7 +68,8 @@ public class GroundingModelEvaluator {
 
     //run on test data
     System.out.println("TEST DATA: ");
-    GroundingModelUtilities.logDatasetError(trainedGroundingModel, testData, domains, null, options.has(implicitDeterminer));
+    GroundingModelUtilities.logDatasetError(trainedGroundingModel, testData, domains, null, options.has(implicitDeterminer),
+        options.valueOf(numThreads));
   }
 
   public static Map<String, GroundingModel> readModelFolds(String modelFilename) {
@@ -83,14 +88,31 @@ public class GroundingModelEvaluator {
 
   public static void testCrossValidation(Map<String, GroundingModel> trainedModels, List<Domain> domains,
       boolean implicitDeterminer) {
-    Map<Integer, EvaluationScore> scores = Maps.newHashMap();
+    testCrossValidation(trainedModels, domains, implicitDeterminer, 1);
+  }
+
+  /**
+   * Evaluates each fold's model on its held-out domain, evaluating
+   * up to {@code numThreads} folds concurrently. The output is
+   * identical for any number of threads.
+   */
+  public static void testCrossValidation(Map<String, GroundingModel> trainedModels, final List<Domain> domains,
+      final boolean implicitDeterminer, int numThreads) {
     IndexedList<String> domainNames = IndexedList.create(extract(domains, on(Domain.class).getName()));
+    List<Callable<Map<Integer, EvaluationScore>>> foldTasks = Lists.newArrayList();
     for (String key : trainedModels.keySet()) {
-      Iterable<GroundingExample> testData = domains.get(domainNames.getIndex(key)).getTrainingExamples();
-      GroundingModel model = trainedModels.get(key);
-      Map<Integer, EvaluationScore> foldScores = GroundingModelUtilities
-          .logDatasetError(model, testData, domains, null, implicitDeterminer);
+      final Iterable<GroundingExample> testData = domains.get(domainNames.getIndex(key)).getTrainingExamples();
+      final GroundingModel model = trainedModels.get(key);
+      foldTasks.add(new Callable<Map<Integer, EvaluationScore>>() {
+        @Override
+        public Map<Integer, EvaluationScore> call() {
+          return GroundingModelUtilities.logDatasetError(model, testData, domains, null, implicitDeterminer);
+        }
+      });
+    }
 
+    Map<Integer, EvaluationScore> scores = Maps.newHashMap();
+    for (Map<Integer, EvaluationScore> foldScores : OrderedTaskRunner.run(foldTasks, numThreads)) {
       for (Integer level : foldScores.keySet()) {
         if (!scores.containsKey(level)) {
           scores.put(level, foldScores.get(level));
@@ -8,6 +8,7 @@ import java.util.Arrays;
 import java.util.List;
 
 import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 import com.jayantkrish.jklol.cfg.ParametricCfgFactor;
 import com.jayantkrish.jklol.cfg.ParseTree;
@@ -22,6 +23,11 @@ import edu.cmu.ml.rtw.users.jayantk.semparse.RelationType;
 /**
  * The graphical model family containing the semantic parser and grounding
  * factor graph. This class is similar to a {@code ParametricFactorGraph}.
+ * <p>
+ * This class is safe to use from multiple threads. The set of domains
+ * is copied on write, so {@link #addDomain} may run concurrently with
+ * training, and models instantiated before a domain is added do not
+ * see it.
  * 
  * @author jayantk
  */
@@ -34,8 +40,9 @@ public class GroundingModelFamily implements Serializable{
 
   // The various domains in which this model family can be instantiated.
   // Each domain consists of a separate set of possibly-related entities.
-  private final List<Domain> domains;
-  private final IndexedList<String> domainNames;
+  // Both are replaced (never modified) by addDomain.
+  private volatile List<Domain> domains;
+  private volatile IndexedList<String> domainNames;
 
   // The parameterized semantic parser.
   private final ParametricCfgFactor parserCfgFactor;
@@ -52,15 +59,33 @@ public class GroundingModelFamily implements Serializable{
     this.parserCfgFactor = Preconditions.checkNotNull(parserCfgFactor);
     this.groundedRelationTypes = Preconditions.checkNotNull(groundedRelationTypes);
     this.knownRelationTypes = Preconditions.checkNotNull(knownRelationTypes);
-    this.domains = Lists.newArrayList(domains);
+    this.domains = ImmutableList.copyOf(domains);
 
     domainNames = IndexedList.create(extract(domains, on(Domain.class).getName()));
   }
 
-  public void addDomain(Domain domain) {
+  public synchronized void addDomain(Domain domain) {
     Preconditions.checkArgument(!domainNames.contains(domain.getName()));
-    domains.add(domain);
-    domainNames.add(domain.getName());
+    List<Domain> newDomains = Lists.newArrayList(domains);
+    newDomains.add(domain);
+    // Publish the domains first, so a reader that sees the new name
+    // can also find the domain.
+    domains = ImmutableList.copyOf(newDomains);
+    domainNames = IndexedList.create(extract(newDomains, on(Domain.class).getName()));
+  }
+
+  /**
+   * Gets the domain named {@code domainName}. This reads a single
+   * snapshot of the domains, so it is consistent with concurrent calls
+   * to {@link #addDomain}.
+   */
+  private Domain getDomain(String domainName) {
+    for (Domain domain : domains) {
+      if (domain.getName().equals(domainName)) {
+        return domain;
+      }
+    }
+    throw new IllegalArgumentException("Unknown domain: " + domainName);
   }
 
   public List<Domain> getDomains() {
@@ -162,8 +187,7 @@ public class GroundingModelFamily implements Serializable{
 
   public void incrementGroundingParameters(String domainName, SufficientStatistics parameters,
       QueryTree query, MultiTree<Tensor> assignment, double multiplier) {
-    Preconditions.checkArgument(domainNames.contains(domainName));
-    Domain domain = domains.get(domainNames.getIndex(domainName));
+    Domain domain = getDomain(domainName);
 
     List<SufficientStatistics> groundingParameters = getGroundingParameters(parameters);
     recursivelyUpdateGroundingParameters(domain, query, assignment, groundingParameters, multiplier);
@@ -173,7 +197,7 @@ public class GroundingModelFamily implements Serializable{
       RelationType relation, ParallelFactors marginal, double multiplier) {
     if (groundedRelationTypes.contains(relation)) {
       List<SufficientStatistics> groundingParameters = getGroundingParameters(parameters);
-      Domain domain = domains.get(domainNames.getIndex(domainName));
+      Domain domain = getDomain(domainName);
 
       int index = groundedRelationTypes.getIndex(relation);
       GroundingFamily relationFamily = domain.getFamilyForRelation(relation);
@@ -198,7 +222,8 @@ public class GroundingModelFamily implements Serializable{
       relationFamily.incrementSufficientStatistics(parameters.get(index), 
           parameters.get(index), bestAssignment, multiplier);
 
-      System.out.println(relation + ": " + parameters.get(index));
+      EventLog.debug("params", "updateGroundingParameters", "relation", relation,
+          "parameters", parameters.get(index));
     }
 
     List<QueryTree> subtrees = query.getSubtrees();
@@ -210,7 +235,7 @@ public class GroundingModelFamily implements Serializable{
   }
   
 
-  private SufficientStatistics getParserParameters(SufficientStatistics parameters) {
+  public SufficientStatistics getParserParameters(SufficientStatistics parameters) {
     return parameters.coerceToList().getStatistics().get(PARSER_PARAMETER_INDEX);
   }
 
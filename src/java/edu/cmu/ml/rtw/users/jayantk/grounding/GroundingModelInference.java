@@ -1,9 +1,12 @@
 package edu.cmu.ml.rtw.users.jayantk.grounding;
 
+import java.util.Collections;
 import java.util.List;
+import java.util.Random;
 
 import com.google.common.base.Function;
 import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
 import com.jayantkrish.jklol.cfg.BeamSearchCfgFactor;
 import com.jayantkrish.jklol.cfg.ParseTree;
 import com.jayantkrish.jklol.models.DiscreteObjectFactor;
@@ -42,6 +45,7 @@ public class GroundingModelInference {
     DiscreteObjectFactor parseFactor = parser.conditional(
         parser.getTerminalVariable().outcomeArrayToAssignment(parserInput))
         .coerceToDiscreteObject();
+    ExampleProfiler.recordParses((int) parseFactor.size());
     for (Assignment parseAssignment : parseFactor.getMostLikelyAssignments(maxParses)) {
       // For each parse tree generated by the beam search, instantiate
       // its grounding factor graph and perform inference.
@@ -53,6 +57,7 @@ public class GroundingModelInference {
       // corresponding to the current parse tree. Identify the best
       // predicted grounding for this tree.
       QueryTree queryGraph = model.getQueryFromParse(parse, domain, false);
+      ExampleProfiler.recordQuery(queryGraph);
 
       // Get the weight of the best grounding with no conditioning on
       // its output. This value controls for the fact that not all
@@ -60,15 +65,13 @@ public class GroundingModelInference {
       MultiTree<Tensor> bestUnconditionalAssignment = queryGraph.locallyDecodeVariables();
       double unconditionalWeight = queryGraph.getWeight(bestUnconditionalAssignment);
 
-      // Instantiate factor graph (/ probabilistic database query),
-      // incorporating the observed grounding weights.
-      QueryTree conditionalQueryGraph = model.getQueryFromParse(parse, domain, false);
-      conditionalQueryGraph.updateOutputLocalWeights(expectedGroundingWeights);
+      // Incorporate the observed grounding weights into the query for
+      // this solve only. The original query scores the result.
+      QueryTree conditionalQueryGraph = queryGraph.withObservation(expectedGroundingWeights);
       MultiTree<Tensor> bestConditionalAssignment = inferenceAlgorithm.apply(conditionalQueryGraph);
       
       // System.out.println(queryGraph.getAssignmentString(bestConditionalAssignment));
-      QueryTree conditionalQueryGraphScorable = model.getQueryFromParse(parse, domain, false);
-      double conditionalGroundingWeight = conditionalQueryGraphScorable.getWeight(bestConditionalAssignment) - unconditionalWeight;
+      double conditionalGroundingWeight = queryGraph.getWeight(bestConditionalAssignment) - unconditionalWeight;
 
       if (Double.isInfinite(bestWeight) || parseWeight + conditionalGroundingWeight >= bestWeight) {
         bestParse = parse;
@@ -91,6 +94,82 @@ public class GroundingModelInference {
         bestWeight, bestParseWeight, bestGroundingWeight);
   }
 
+  /**
+   * Estimates the posterior marginals of each predicate in the best
+   * query of {@code inference}, conditioned on the observed grounding.
+   * The returned tree has the same shape as the query's assignments,
+   * with fractional values in place of indicators.
+   * <p>
+   * The marginals are exact if the query is a single predicate.
+   * Otherwise, they are averaged over {@code numSamples} solves of the
+   * conditional query with Gumbel-perturbed predicate weights
+   * ("perturb-and-MAP"), which approximates sampling from the
+   * posterior.
+   */
+  public MultiTree<Tensor> getConditionalMarginals(GroundingInference inference,
+      Tensor expectedGroundingWeights, int numSamples, Random random) {
+    Preconditions.checkArgument(numSamples > 0);
+    QueryTree query = inference.getBestQuery();
+    if (query.isLeaf()) {
+      ParallelFactors marginals = query.getOutputLocalWeights()
+          .elementwiseAddition(expectedGroundingWeights).getMarginals();
+      return new MultiTree<Tensor>(marginals.getTensor(), Collections.<MultiTree<Tensor>>emptyList());
+    }
+
+    List<QueryTree> predicates = Lists.newArrayList();
+    getPredicatesInOrder(query, predicates);
+
+    MultiTree<Tensor> assignmentSum = null;
+    for (int i = 0; i < numSamples; i++) {
+      List<QueryTree> perturbedPredicates = Lists.newArrayList();
+      for (QueryTree predicate : predicates) {
+        PredicateQueryTree leaf = (PredicateQueryTree) predicate;
+        if (leaf.isHardConstraint()) {
+          // Known relations are deterministic.
+          perturbedPredicates.add(leaf);
+        } else {
+          perturbedPredicates.add(new PredicateQueryTree(leaf.getPredicate(),
+              leaf.getOutputLocalWeights().perturb(random), false));
+        }
+      }
+      QueryTree perturbedQuery = query.bindPredicates(perturbedPredicates.iterator())
+          .withObservation(expectedGroundingWeights);
+      MultiTree<Tensor> assignment = inferenceAlgorithm.apply(perturbedQuery);
+      assignmentSum = (assignmentSum == null) ? assignment : addAssignments(assignmentSum, assignment, 1.0);
+    }
+    return addAssignments(assignmentSum, null, 1.0 / numSamples);
+  }
+
+  private static void getPredicatesInOrder(QueryTree query, List<QueryTree> accumulator) {
+    if (query.isLeaf()) {
+      accumulator.add(query);
+    } else {
+      for (QueryTree subtree : query.getSubtrees()) {
+        getPredicatesInOrder(subtree, accumulator);
+      }
+    }
+  }
+
+  /**
+   * Computes {@code (first + second) * multiplier} for each node of two
+   * assignments to the same query. {@code second} may be null.
+   */
+  private static MultiTree<Tensor> addAssignments(MultiTree<Tensor> first, MultiTree<Tensor> second,
+      double multiplier) {
+    Tensor value = first.getValue();
+    if (second != null) {
+      value = value.elementwiseAddition(second.getValue());
+    }
+
+    List<MultiTree<Tensor>> children = Lists.newArrayList();
+    List<MultiTree<Tensor>> firstChildren = first.getChildren();
+    for (int i = 0; i < firstChildren.size(); i++) {
+      children.add(addAssignments(firstChildren.get(i),
+          second != null ? second.getChildren().get(i) : null, multiplier));
+    }
+    return new MultiTree<Tensor>(value.elementwiseProduct(multiplier), children);
+  }
+
   public static class GroundingInference {
     private final ParseTree bestParse;
     private final QueryTree bestQuery;
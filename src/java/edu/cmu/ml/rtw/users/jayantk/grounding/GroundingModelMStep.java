@@ -33,7 +33,15 @@ public class GroundingModelMStep extends Mapper<GroundingExpectation, Sufficient
   @Override
   public SufficientStatistics map(GroundingExpectation expectation) {
     SufficientStatistics newParameters = family.getNewSufficientStatistics();
+    incrementStatistics(expectation, newParameters);
+    return newParameters;
+  }
 
+  /**
+   * Adds the grounding sufficient statistics of {@code expectation} to
+   * {@code newParameters}.
+   */
+  public void incrementStatistics(GroundingExpectation expectation, SufficientStatistics newParameters) {
     if (onlyUseDeltas) {
       MultiTree<Tensor> deltaAssignment = computeDeltaAssignment(expectation.getAssignment(),
           expectation.getUnconditionalAssignment(), expectation.getQuery());
@@ -63,8 +71,6 @@ public class GroundingModelMStep extends Mapper<GroundingExpectation, Sufficient
 	  family.incrementGroundingParameters(domainName, newParameters, relation, marginal, 1.0);
       }
     }
-
-    return newParameters;
   }  
   
   private static MultiTree<Tensor> computeDeltaAssignment(MultiTree<Tensor> conditional, 
@@ -0,0 +1,352 @@
+package edu.cmu.ml.rtw.users.jayantk.grounding;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import joptsimple.OptionParser;
+import joptsimple.OptionSet;
+import joptsimple.OptionSpec;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Joiner;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import edu.cmu.ml.rtw.users.jayantk.grounding.GroundingModel.GroundingPrediction;
+import edu.cmu.ml.rtw.users.jayantk.semparse.SemanticParser;
+
+/**
+ * Long-running HTTP service which answers queries using a serialized
+ * grounding model. Unlike {@link GroundingModelService}, the model and
+ * domains are loaded once at startup and kept in memory, so each
+ * query only pays for parsing and grounding inference.
+ * <p>
+ * Endpoints (all responses are JSON):
+ * <ul>
+ * <li>{@code GET /predict?domain=<domain>&q=<words>} answers a single
+ * query.</li>
+ * <li>{@code POST /predict?domain=<domain>} answers a batch of queries,
+ * one per line of the request body. The queries of a batch are answered
+ * concurrently and returned in order.</li>
+ * <li>{@code GET /health} reports the loaded domains.</li>
+ * <li>{@code GET /stats} reports request counts and latencies.</li>
+ * <li>{@code GET /metrics} reports the inference {@link Metrics}.</li>
+ * </ul>
+ * The {@code domain} parameter may be omitted if a single domain is
+ * loaded.
+ *
+ * @author jayantk
+ */
+public class GroundingModelServer {
+
+  private final GroundingModel model;
+  private final Map<String, Domain> domains;
+  private final ExecutorService queryExecutor;
+
+  private final AtomicLong numRequests = new AtomicLong(0);
+  private final AtomicLong numQueries = new AtomicLong(0);
+  private final AtomicLong numErrors = new AtomicLong(0);
+  private final AtomicLong totalQueryNanos = new AtomicLong(0);
+  private final AtomicLong maxQueryNanos = new AtomicLong(0);
+
+  public GroundingModelServer(GroundingModel model, Map<String, Domain> domains, int numThreads) {
+    this.model = Preconditions.checkNotNull(model);
+    this.domains = Preconditions.checkNotNull(domains);
+    this.queryExecutor = Executors.newFixedThreadPool(numThreads,
+        new ThreadFactoryBuilder().setDaemon(true).setNameFormat("grounding-query-%d").build());
+  }
+
+  /**
+   * Starts serving requests on {@code port} of the loopback interface,
+   * so only local clients can connect. Returns the running server.
+   */
+  public HttpServer start(int port) throws IOException {
+    return start(InetAddress.getLoopbackAddress(), port);
+  }
+
+  /**
+   * Starts serving requests on {@code port} of {@code address}. The
+   * server has no authentication, so binding to an address other than
+   * loopback exposes the model and its metrics to anyone who can reach
+   * it. Returns the running server.
+   */
+  public HttpServer start(InetAddress address, int port) throws IOException {
+    HttpServer server = HttpServer.create(new InetSocketAddress(address, port), 0);
+    server.createContext("/predict", new PredictHandler());
+    server.createContext("/health", new HealthHandler());
+    server.createContext("/stats", new StatsHandler());
+    server.createContext("/metrics", new MetricsHandler());
+    server.setExecutor(Executors.newCachedThreadPool(
+        new ThreadFactoryBuilder().setDaemon(false).setNameFormat("grounding-http-%d").build()));
+    server.start();
+    return server;
+  }
+
+  /**
+   * Answers each query in {@code queries} against {@code domain},
+   * returning a JSON object per query in the same order.
+   */
+  public List<String> predict(final List<List<String>> queries, final Domain domain) {
+    List<Future<String>> futures = Lists.newArrayList();
+    for (final List<String> query : queries) {
+      futures.add(queryExecutor.submit(new Callable<String>() {
+        @Override
+        public String call() {
+          return predictJson(query, domain);
+        }
+      }));
+    }
+
+    List<String> results = Lists.newArrayList();
+    for (Future<String> future : futures) {
+      try {
+        results.add(future.get());
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new RuntimeException(e);
+      } catch (ExecutionException e) {
+        throw new RuntimeException(e.getCause());
+      }
+    }
+    return results;
+  }
+
+  private String predictJson(List<String> query, Domain domain) {
+    long start = System.nanoTime();
+    StringBuilder sb = new StringBuilder();
+    sb.append("{\"input\": ");
+    sb.append(quote(Joiner.on(" ").join(query)));
+    try {
+      GroundingPrediction prediction = model.getPredictionFromWords(query, domain, false);
+      if (prediction == null) {
+        sb.append(", \"error\": \"no parse\"");
+        numErrors.incrementAndGet();
+      } else {
+        ParallelFactors predictedTensor = prediction.getQueryTree().getOutputLocalWeights();
+        sb.append(", \"parse\": ");
+        sb.append(quote(prediction.getSemanticParse().toString()));
+        sb.append(", \"logicalForm\": ");
+        sb.append(quote(SemanticParser.getLogicalFormFromSemanticParse(prediction.getSemanticParse()).toString()));
+        sb.append(", \"parseWeight\": ");
+        sb.append(toJsonNumber(prediction.getParseWeight()));
+        sb.append(", \"groundingWeight\": ");
+        sb.append(toJsonNumber(prediction.getGroundingWeight()));
+        sb.append(", \"grounding\": [");
+        List<String> tuples = Lists.newArrayList();
+        for (List<Object> tuple : predictedTensor.getTrueAssignmentValues(prediction.getAssignment().getValue())) {
+          List<String> quotedValues = Lists.newArrayList();
+          for (Object value : tuple) {
+            quotedValues.add(quote(value.toString()));
+          }
+          tuples.add("[" + Joiner.on(", ").join(quotedValues) + "]");
+        }
+        sb.append(Joiner.on(", ").join(tuples));
+        sb.append("]");
+      }
+    } catch (RuntimeException e) {
+      numErrors.incrementAndGet();
+      sb.append(", \"error\": ");
+      sb.append(quote(e.toString()));
+    }
+
+    long elapsed = System.nanoTime() - start;
+    recordLatency(elapsed);
+    sb.append(", \"latencyMs\": ");
+    sb.append(toJsonNumber(elapsed / 1e6));
+    sb.append("}");
+    return sb.toString();
+  }
+
+  private void recordLatency(long nanos) {
+    numQueries.incrementAndGet();
+    totalQueryNanos.addAndGet(nanos);
+    long currentMax = maxQueryNanos.get();
+    while (nanos > currentMax && !maxQueryNanos.compareAndSet(currentMax, nanos)) {
+      currentMax = maxQueryNanos.get();
+    }
+  }
+
+  private Domain getRequestedDomain(Map<String, String> params) {
+    String domainName = params.get("domain");
+    if (domainName == null) {
+      Preconditions.checkArgument(domains.size() == 1, "Specify a domain. Available domains: %s", domains.keySet());
+      return Iterables.getOnlyElement(domains.values());
+    }
+    Preconditions.checkArgument(domains.containsKey(domainName), "Unknown domain: %s", domainName);
+    return domains.get(domainName);
+  }
+
+  private static List<String> tokenize(String query) {
+    return Arrays.asList(query.trim().toLowerCase().split("[ ,]+"));
+  }
+
+  private static Map<String, String> parseQueryString(String queryString) throws IOException {
+    Map<String, String> params = Maps.newHashMap();
+    if (queryString == null) {
+      return params;
+    }
+    for (String pair : queryString.split("&")) {
+      int index = pair.indexOf('=');
+      if (index > 0) {
+        params.put(URLDecoder.decode(pair.substring(0, index), "UTF-8"),
+            URLDecoder.decode(pair.substring(index + 1), "UTF-8"));
+      }
+    }
+    return params;
+  }
+
+  private static String quote(String value) {
+    StringBuilder sb = new StringBuilder("\"");
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      switch (c) {
+      case '"': sb.append("\\\""); break;
+      case '\\': sb.append("\\\\"); break;
+      case '\n': sb.append("\\n"); break;
+      case '\r': sb.append("\\r"); break;
+      case '\t': sb.append("\\t"); break;
+      default:
+        if (c < 0x20) {
+          sb.append(String.format("\\u%04x", (int) c));
+        } else {
+          sb.append(c);
+        }
+      }
+    }
+    sb.append("\"");
+    return sb.toString();
+  }
+
+  private static String toJsonNumber(double value) {
+    if (Double.isNaN(value) || Double.isInfinite(value)) {
+      return "null";
+    }
+    return Double.toString(value);
+  }
+
+  private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+    byte[] bytes = body.getBytes(Charsets.UTF_8);
+    exchange.getResponseHeaders().set("Content-Type", "application/json");
+    exchange.sendResponseHeaders(status, bytes.length);
+    OutputStream out = exchange.getResponseBody();
+    out.write(bytes);
+    out.close();
+  }
+
+  private class PredictHandler implements HttpHandler {
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+      numRequests.incrementAndGet();
+      try {
+        Map<String, String> params = parseQueryString(exchange.getRequestURI().getRawQuery());
+        Domain domain = getRequestedDomain(params);
+
+        if (exchange.getRequestMethod().equals("POST")) {
+          List<List<String>> queries = Lists.newArrayList();
+          BufferedReader reader = new BufferedReader(new InputStreamReader(
+              exchange.getRequestBody(), Charsets.UTF_8));
+          String line;
+          while ((line = reader.readLine()) != null) {
+            if (line.trim().length() > 0) {
+              queries.add(tokenize(line));
+            }
+          }
+          reader.close();
+          respond(exchange, 200, "[" + Joiner.on(",\n").join(predict(queries, domain)) + "]");
+        } else {
+          Preconditions.checkArgument(params.containsKey("q"), "Missing query parameter q");
+          List<List<String>> queries = Lists.newArrayList();
+          queries.add(tokenize(params.get("q")));
+          respond(exchange, 200, Iterables.getOnlyElement(predict(queries, domain)));
+        }
+      } catch (IllegalArgumentException e) {
+        numErrors.incrementAndGet();
+        respond(exchange, 400, "{\"error\": " + quote(e.getMessage()) + "}");
+      } catch (RuntimeException e) {
+        numErrors.incrementAndGet();
+        respond(exchange, 500, "{\"error\": " + quote(e.toString()) + "}");
+      }
+    }
+  }
+
+  private class HealthHandler implements HttpHandler {
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+      List<String> domainNames = Lists.newArrayList();
+      for (String domainName : domains.keySet()) {
+        domainNames.add(quote(domainName));
+      }
+      respond(exchange, 200, "{\"status\": \"ok\", \"domains\": [" + Joiner.on(", ").join(domainNames) + "]}");
+    }
+  }
+
+  private class StatsHandler implements HttpHandler {
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+      long queries = numQueries.get();
+      double meanLatencyMs = queries > 0 ? (totalQueryNanos.get() / 1e6) / queries : 0.0;
+      respond(exchange, 200, "{\"requests\": " + numRequests.get()
+          + ", \"queries\": " + queries
+          + ", \"errors\": " + numErrors.get()
+          + ", \"meanLatencyMs\": " + toJsonNumber(meanLatencyMs)
+          + ", \"maxLatencyMs\": " + toJsonNumber(maxQueryNanos.get() / 1e6) + "}");
+    }
+  }
+
+  private class MetricsHandler implements HttpHandler {
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+      respond(exchange, 200, Metrics.snapshotJson());
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    OptionParser parser = new OptionParser();
+    OptionSpec<String> modelFilename = parser.accepts("modelFilename").withRequiredArg().ofType(String.class).required();
+    OptionSpec<String> domainFilenames = parser.accepts("domain").withRequiredArg().ofType(String.class)
+        .withValuesSeparatedBy(',').required();
+    OptionSpec<Integer> port = parser.accepts("port").withRequiredArg().ofType(Integer.class).defaultsTo(8080);
+    // Address to listen on, e.g., 0.0.0.0 for every interface. Defaults to
+    // loopback, since the server has no authentication.
+    OptionSpec<String> host = parser.accepts("host").withRequiredArg().ofType(String.class);
+    // Each concurrent query holds one of the CPLEX instances allocated by AbstractQueryTree.
+    OptionSpec<Integer> numThreads = parser.accepts("threads").withRequiredArg().ofType(Integer.class).defaultsTo(4);
+    OptionSpec<Void> generative = parser.accepts("generative");
+    OptionSet options = parser.parse(args);
+
+    GroundingModel groundingModel = GroundingModel.fromSerializedFile(options.valueOf(modelFilename));
+    Map<String, Domain> domains = Maps.newLinkedHashMap();
+    for (String domainFilename : options.valuesOf(domainFilenames)) {
+      Domain domain = Domain.readDomainFromDirectory(domainFilename, groundingModel,
+          options.has(generative), false, null, null);
+      domains.put(domain.getName(), domain);
+    }
+
+    GroundingModelServer server = new GroundingModelServer(groundingModel, domains, options.valueOf(numThreads));
+    InetAddress address = options.has(host) ? InetAddress.getByName(options.valueOf(host))
+        : InetAddress.getLoopbackAddress();
+    server.start(address, options.valueOf(port));
+    System.out.println("Serving " + domains.keySet() + " on " + address.getHostAddress()
+        + ":" + options.valueOf(port));
+  }
+}
@@ -12,7 +12,9 @@ import edu.cmu.ml.rtw.users.jayantk.grounding.GroundingModel.GroundingPrediction
 
 /**
  * Service which produces predictions from a serialized grounding
- * model.
+ * model. This program answers a single query and exits; use
+ * {@link GroundingModelServer} to answer many queries without
+ * reloading the model.
  * 
  * @author jayantk
  */
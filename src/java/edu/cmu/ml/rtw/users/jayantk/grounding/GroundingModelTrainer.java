@@ -7,20 +7,34 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import joptsimple.OptionParser;
 import joptsimple.OptionSet;
 import joptsimple.OptionSpec;
 
+import com.google.common.base.Function;
 import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
 import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Multimap;
+import com.google.common.collect.Ordering;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.jayantkrish.jklol.ccg.lambda.Expression;
 import com.jayantkrish.jklol.cfg.BeamSearchCfgFactor;
 import com.jayantkrish.jklol.cfg.ParseTree;
@@ -28,7 +42,6 @@ import com.jayantkrish.jklol.inference.MarginalCalculator.ZeroProbabilityError;
 import com.jayantkrish.jklol.models.DiscreteObjectFactor;
 import com.jayantkrish.jklol.models.parametric.SufficientStatistics;
 import com.jayantkrish.jklol.tensor.Tensor;
-import com.jayantkrish.jklol.training.DefaultLogFunction;
 import com.jayantkrish.jklol.training.GradientOracle;
 import com.jayantkrish.jklol.training.LogFunction;
 import com.jayantkrish.jklol.training.StochasticGradientTrainer;
@@ -37,8 +50,8 @@ import com.jayantkrish.jklol.util.BoundedHeap;
 import com.jayantkrish.jklol.util.IndexedList;
 import com.jayantkrish.jklol.util.IoUtils;
 
-import edu.cmu.ml.rtw.time.utils.IoUtil;
-import edu.cmu.ml.rtw.users.jayantk.semparse.Lexicon;
+import edu.cmu.ml.rtw.users.jayantk.grounding.ExampleProfiler.ExampleProfile;
+
 
 public class GroundingModelTrainer implements GradientOracle<GroundingModel, GroundingExample>, Serializable {
   static final long serialVersionUID = 10275531232837410L;
@@ -51,10 +64,30 @@ public class GroundingModelTrainer implements GradientOracle<GroundingModel, Gro
   private final int maxParses;
   private final boolean addImplicitDeterminer;
 
+  // Number of threads used to run grounding inference for the parse
+  // candidates of a single example.
+  private final int numCandidateThreads;
+  private transient ExecutorService candidateExecutor;
+
+  // If non-null, records the cost of training on each example.
+  private transient ExampleProfiler profiler;
+
+  private static final int CANDIDATE_QUEUE_SIZE = 100;
+
+  private static final Metrics.Histogram gradientTimer = Metrics.timer("trainer.accumulateGradient");
+  private static final Metrics.Histogram parseTimer = Metrics.timer("trainer.parse");
+  private static final Metrics.Histogram queryConstructionTimer = Metrics.timer("trainer.queryConstruction");
+  private static final Metrics.Histogram candidatePoolWaitTimer = Metrics.timer("trainer.candidatePoolWait");
+  private static final Metrics.Histogram parseBeamSize = Metrics.histogram("trainer.parseBeamSize");
+  private static final Metrics.Histogram parseCandidateCount = Metrics.histogram("trainer.parseCandidates");
+  private static final Metrics.Counter solvedProblems = Metrics.counter("trainer.solvedProblems");
+  private static final Metrics.Counter prunedProblems = Metrics.counter("trainer.prunedProblems");
+  private static final Metrics.Counter fallbackCounter = Metrics.counter("trainer.inferenceFallbacks");
+
   public GroundingModelTrainer(GroundingModelFamily family,
       GroundingInferenceAlgorithm inferenceAlgorithm,
       List<Domain> domains, IndexedList<String> domainNames, int maxParses,
-      boolean addImplicitDeterminer) {
+      boolean addImplicitDeterminer, int numCandidateThreads) {
 
     this.family = Preconditions.checkNotNull(family);
     this.inferenceAlgorithm = Preconditions.checkNotNull(inferenceAlgorithm);
@@ -63,6 +96,7 @@ public class GroundingModelTrainer implements GradientOracle<GroundingModel, Gro
 
     this.maxParses = maxParses;
     this.addImplicitDeterminer = addImplicitDeterminer;
+    this.numCandidateThreads = numCandidateThreads;
   }
 
   /**
@@ -75,9 +109,9 @@ public class GroundingModelTrainer implements GradientOracle<GroundingModel, Gro
    */
   public static GroundingModelTrainer createWithDualDecomposition(GroundingModelFamily family,
       final int maxDualDecompositionIter, List<Domain> domains, IndexedList<String> domainNames,
-								  boolean addImplicitDeterminer, int maxParses) {
+								  boolean addImplicitDeterminer, int maxParses, int numCandidateThreads) {
       return new GroundingModelTrainer(family, new DdInferenceAlgorithm(maxDualDecompositionIter), 
-				       domains, domainNames, maxParses, addImplicitDeterminer);
+				       domains, domainNames, maxParses, addImplicitDeterminer, numCandidateThreads);
   }
 
   /**
@@ -89,14 +123,72 @@ public class GroundingModelTrainer implements GradientOracle<GroundingModel, Gro
    */
   public static GroundingModelTrainer createWithIlp(GroundingModelFamily family,
       List<Domain> domains, IndexedList<String> domainNames, final boolean useLpRelaxation,
-						    boolean addImplicitDeterminer, int maxParses) {
-      return new GroundingModelTrainer(family, new IlpInferenceAlgorithm(useLpRelaxation), 
-				       domains, domainNames, maxParses, addImplicitDeterminer);
+						    boolean addImplicitDeterminer, int maxParses, int numCandidateThreads) {
+      return new GroundingModelTrainer(family, new IlpInferenceAlgorithm(useLpRelaxation, InferenceBudget.UNLIMITED), 
+				       domains, domainNames, maxParses, addImplicitDeterminer, numCandidateThreads);
+  }
+
+  /**
+   * Creates a grounding model trainer that tries each of
+   * {@code inferenceAlgorithms} in order, moving to the next algorithm
+   * whenever an ILP exhausts {@code budget} without finding a
+   * solution. Each algorithm is one of {@code "ilp"}, {@code "lp"} or
+   * {@code "dualDecomposition"}. {@code budget} applies separately to
+   * each ILP and LP solve in the chain. Dual decomposition ignores it
+   * and is bounded by {@code maxDualDecompositionIter} instead, so
+   * ending the chain with dual decomposition bounds the time spent on
+   * every query.
+   */
+  public static GroundingModelTrainer createWithInferenceChain(GroundingModelFamily family,
+      List<String> inferenceAlgorithms, InferenceBudget budget, int maxDualDecompositionIter,
+      List<Domain> domains, IndexedList<String> domainNames, boolean addImplicitDeterminer,
+      int maxParses, int numCandidateThreads) {
+    Preconditions.checkArgument(inferenceAlgorithms.size() > 0);
+    List<GroundingInferenceAlgorithm> algorithms = Lists.newArrayList();
+    for (String name : inferenceAlgorithms) {
+      if (name.equals("dualDecomposition")) {
+        algorithms.add(new DdInferenceAlgorithm(maxDualDecompositionIter));
+      } else if (name.equals("ilp")) {
+        algorithms.add(new IlpInferenceAlgorithm(false, budget));
+      } else if (name.equals("lp")) {
+        algorithms.add(new IlpInferenceAlgorithm(true, budget));
+      } else {
+        throw new IllegalArgumentException("Unknown inference algorithm: " + name);
+      }
+    }
+    GroundingInferenceAlgorithm algorithm = algorithms.size() == 1 ? algorithms.get(0)
+        : new FallbackInferenceAlgorithm(inferenceAlgorithms, algorithms);
+    return new GroundingModelTrainer(family, algorithm, domains, domainNames, maxParses,
+        addImplicitDeterminer, numCandidateThreads);
+  }
+
+  public void setProfiler(ExampleProfiler profiler) {
+    this.profiler = profiler;
   }
 
   @Override
     public double accumulateGradient(SufficientStatistics gradient, SufficientStatistics parameters, GroundingModel model,
       GroundingExample example, LogFunction log) {
+    long startTime = gradientTimer.start();
+    ExampleProfile profile = (profiler != null) ? profiler.begin(example) : null;
+    String outcome = "error";
+    try {
+      double value = accumulateGradientHelper(gradient, parameters, model, example, log);
+      outcome = "ok";
+      return value;
+    } catch (ZeroProbabilityError e) {
+      outcome = "noSatisfyingParse";
+      throw e;
+    } finally {
+      long elapsed = gradientTimer.stop(startTime);
+      if (profile != null) {
+        profiler.end(profile, elapsed, outcome);
+      }
+    }
+  }
+
+  private double accumulateGradientHelper(SufficientStatistics gradient, SufficientStatistics parameters,
+      GroundingModel model, GroundingExample example, LogFunction log) {
     Tensor expectedGrounding = example.getGrounding();
     Domain domain = domains.get(domainNames.getIndex(example.getDomainName()));
 
@@ -117,18 +209,18 @@ public class GroundingModelTrainer implements GradientOracle<GroundingModel, Gro
 
   private double accumulateGradientForPredicate(GroundingModel model, String relationName,
                                                 Domain domain, Tensor expectedGrounding, SufficientStatistics gradient, SufficientStatistics parameters, LogFunction log) {
-    QueryTree queryGraph = model.getQueryForRelationName(relationName, domain);
-    if(queryGraph == null){
+    QueryTree query = model.getQueryForRelationName(relationName, domain);
+    if(query == null){
 	return 0.0;
     }
 
-    MultiTree<Tensor> bestCostAugmentedAssignment = costAugmentedInference(queryGraph, expectedGrounding);
+    QueryTree queryGraph = getCostAugmentedQuery(query, expectedGrounding);
+    MultiTree<Tensor> bestCostAugmentedAssignment = inferenceAlgorithm.apply(queryGraph, false);
     double costAugmentedWeight = queryGraph.getWeight(bestCostAugmentedAssignment);
 
-    QueryTree truthConditionedQuery = model.getQueryForRelationName(relationName, domain);
-    MultiTree<Tensor> bestTruthConditionalAssignment = truthConditionalInference(truthConditionedQuery, expectedGrounding);
-    double truthConditionalWeight = model.getQueryForRelationName(relationName, domain)
-        .getWeight(bestTruthConditionalAssignment);
+    QueryTree truthConditionedQuery = getTruthConditionedQuery(query, expectedGrounding);
+    MultiTree<Tensor> bestTruthConditionalAssignment = inferenceAlgorithm.apply(truthConditionedQuery, true);
+    double truthConditionalWeight = query.getWeight(bestTruthConditionalAssignment);
 
     log.logMessage("cost augmented: " + queryGraph.getAssignmentString(bestCostAugmentedAssignment));
     log.logMessage("truth conditioned: " + queryGraph.getAssignmentString(bestTruthConditionalAssignment));
@@ -145,7 +237,7 @@ public class GroundingModelTrainer implements GradientOracle<GroundingModel, Gro
 							   SufficientStatistics gradient, SufficientStatistics parameters, LogFunction log) {
       BeamSearchCfgFactor parser = model.getParser();
       List<WordParseCombination> bestParseCandidates = generateParseCandidates(parser, parserCandidates, parserCandidateWeights);
-      System.out.println(bestParseCandidates.size() + " word combinations");
+      EventLog.debug("parse", "wordCombinations", "count", bestParseCandidates.size());
 
       List<String> bestPredictedWords = null, bestTrueWords = null;
       ParseTree bestPredictedParse = null, bestTrueParse = null;
@@ -208,67 +300,38 @@ public class GroundingModelTrainer implements GradientOracle<GroundingModel, Gro
 
     BeamSearchCfgFactor parser = model.getParser();
     List<WordParseCombination> bestParseCandidates = generateParseCandidates(parser, parserCandidates, parserCandidateWeights);
-    System.out.println(bestParseCandidates.size() + " word combinations");
-
-    for (WordParseCombination candidateParse : bestParseCandidates) {
-      // For each parse tree generated by the beam search, instantiate its
-      // grounding factor graph and perform inference.
+    EventLog.debug("parse", "wordCombinations", "count", bestParseCandidates.size());
+
+    // Grounding inference for each candidate is independent, so it may run
+    // concurrently. Results are merged in candidate order, which makes the
+    // selected predictions identical to running the candidates serially.
+    List<CandidateInference> inferences = inferCandidates(model, bestParseCandidates, domain, expectedGrounding);
+    for (CandidateInference inference : inferences) {
+      WordParseCombination candidateParse = inference.candidate;
       ParseTree parse = candidateParse.getParse();
-      // log.logMessage(parse);
       log.logMessage("inference: " + candidateParse.getWords() + " " + model.getSemanticParseFromParseTree(parse));
       double parseWeight = candidateParse.getWeight();
-
-      // Instantiate the factor graph (/ probabilistic database query)
-      // corresponding to
-      // the current parse tree. Identify the best predicted grounding for this
-      // tree.
-      QueryTree queryGraph = model.getQueryFromParse(parse, domain, addImplicitDeterminer);
-
-      // Get the weight of the best grounding with no conditioning on its output.
-      // This value controls for the fact that not all predicates occur in every 
-      // logical form.
-      MultiTree<Tensor> bestUnconditionalAssignment = queryGraph.locallyDecodeVariables();
-      double unconditionalWeight = queryGraph.getWeight(bestUnconditionalAssignment);
-
-      // Find the best cost augmented assignment.
-      MultiTree<Tensor> bestAssignment = null;
-      double groundingWeight = Double.NEGATIVE_INFINITY;
-      try {
-        bestAssignment = costAugmentedInference(queryGraph, expectedGrounding);
-        // log.logMessage(queryGraph.getAssignmentString(bestAssignment));
-        groundingWeight = queryGraph.getWeight(bestAssignment) - unconditionalWeight;
-      } catch (ZeroProbabilityError e) {} // groundingWeight = -infty 
+      double groundingWeight = inference.groundingWeight;
+      double conditionalGroundingWeight = inference.conditionalGroundingWeight;
 
       if (parseWeight + groundingWeight > bestPredictedWeight) {
         // This prediction is more likely than the current best prediction.
         bestPredictedWords = candidateParse.getWords();
         bestPredictedParse = parse;
-        bestPredictedUnconditionalGrounding = bestUnconditionalAssignment;
-        bestPredictedGrounding = bestAssignment;
-        bestPredictedQuery = queryGraph;
+        bestPredictedUnconditionalGrounding = inference.unconditionalAssignment;
+        bestPredictedGrounding = inference.assignment;
+        bestPredictedQuery = inference.query;
         bestPredictedParseWeight = parseWeight;
         bestPredictedGroundingWeight = groundingWeight;
         bestPredictedWeight = parseWeight + groundingWeight;
       }
 
-      // Instantiate factor graph (/ probabilistic database query), conditioning
-      // on the observed grounding.
-      QueryTree conditionalQueryGraph = model.getQueryFromParse(parse, domain, addImplicitDeterminer);
-      MultiTree<Tensor> bestConditionalAssignment = null;
-      double conditionalGroundingWeight = Double.NEGATIVE_INFINITY;
-      try {
-        bestConditionalAssignment = truthConditionalInference(conditionalQueryGraph, expectedGrounding);
-        // log.logMessage(queryGraph.getAssignmentString(bestConditionalAssignment));
-        QueryTree conditionalQueryGraphScorable = model.getQueryFromParse(parse, domain, addImplicitDeterminer);
-        conditionalGroundingWeight = conditionalQueryGraphScorable.getWeight(bestConditionalAssignment) - unconditionalWeight;
-      } catch (ZeroProbabilityError e) {} // groundingWeight = -infty
-
       if (Double.isInfinite(bestTrueWeight) || parseWeight + conditionalGroundingWeight >= bestTrueWeight) {
         bestTrueWords = candidateParse.getWords();
         bestTrueParse = parse;
-        bestTrueUnconditionalGrounding = bestUnconditionalAssignment;
-        bestTrueGrounding = bestConditionalAssignment;
-        bestTrueQuery = conditionalQueryGraph;
+        bestTrueUnconditionalGrounding = inference.unconditionalAssignment;
+        bestTrueGrounding = inference.conditionalAssignment;
+        bestTrueQuery = inference.conditionalQuery;
         bestTrueParseWeight = parseWeight;
         bestTrueGroundingWeight = conditionalGroundingWeight;
         bestTrueWeight = parseWeight + conditionalGroundingWeight;
@@ -294,6 +357,7 @@ public class GroundingModelTrainer implements GradientOracle<GroundingModel, Gro
 
     // Some examples may be unsatisfiable under the given grammar. Ignore them.
     if (Double.isInfinite(bestTrueWeight) && bestTrueWeight < 0) {
+      ExampleProfiler.recordOutcome("unsatisfiableGrounding");
       return 0.0;
     }
 
@@ -315,9 +379,182 @@ public class GroundingModelTrainer implements GradientOracle<GroundingModel, Gro
     // Return the negative hinge loss
     return Math.min(0.0, bestTrueWeight - bestPredictedWeight);
   }
+
+  /**
+   * Runs grounding inference for each parse candidate, returning the
+   * results in the same order as {@code candidates}. If this trainer
+   * was created with more than one candidate thread, the candidates are
+   * solved concurrently on a bounded work queue. Otherwise, candidates
+   * are solved in order of an upper bound on their weight, and
+   * inference is skipped for candidates whose bound shows they cannot
+   * be selected. Skipped candidates are returned with a weight of
+   * negative infinity, which never changes the selected predictions.
+   */
+  private List<CandidateInference> inferCandidates(final GroundingModel model,
+      List<WordParseCombination> candidates, final Domain domain, final Tensor expectedGrounding) {
+    List<CandidateInference> inferences = Lists.newArrayList();
+    if (numCandidateThreads <= 1 || candidates.size() <= 1) {
+      for (WordParseCombination candidate : candidates) {
+        inferences.add(initializeCandidate(model, candidate, domain, expectedGrounding));
+      }
+      branchAndBound(model, inferences, domain, expectedGrounding);
+      return inferences;
+    }
+
+    ExecutorService executor = getCandidateExecutor();
+    List<Future<CandidateInference>> futures = Lists.newArrayList();
+    for (final WordParseCombination candidate : candidates) {
+      final long submitTime = candidatePoolWaitTimer.start();
+      final ExampleProfile profile = ExampleProfiler.current();
+      futures.add(executor.submit(new Callable<CandidateInference>() {
+        @Override
+        public CandidateInference call() {
+          candidatePoolWaitTimer.stop(submitTime);
+          solvedProblems.add(2);
+          // Attribute this work to the example being profiled by the submitting thread.
+          ExampleProfile workerProfile = ExampleProfiler.current();
+          ExampleProfiler.setCurrent(profile);
+          try {
+            CandidateInference inference = initializeCandidate(model, candidate, domain, expectedGrounding);
+            inference.solvePredicted();
+            inference.solveTrue(expectedGrounding);
+            return inference;
+          } finally {
+            ExampleProfiler.setCurrent(workerProfile);
+          }
+        }
+      }));
+    }
+
+    for (Future<CandidateInference> future : futures) {
+      try {
+        inferences.add(future.get());
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new RuntimeException(e);
+      } catch (ExecutionException e) {
+        Throwables.propagateIfPossible(e.getCause());
+        throw new RuntimeException(e.getCause());
+      }
+    }
+    return inferences;
+  }
+
+  /**
+   * Solves the cost-augmented and truth-conditioned problems of
+   * {@code inferences}, skipping any problem whose upper bound is less
+   * than the weight of the best solution found so far.
+   */
+  private void branchAndBound(GroundingModel model, List<CandidateInference> inferences,
+      Domain domain, Tensor expectedGrounding) {
+    List<CandidateInference> predictedOrder = Lists.newArrayList(inferences);
+    Collections.sort(predictedOrder, Ordering.natural().reverse().onResultOf(
+        new Function<CandidateInference, Double>() {
+          @Override
+          public Double apply(CandidateInference inference) {
+            return inference.predictedBound;
+          }
+        }));
+
+    double bestPredictedWeight = Double.NEGATIVE_INFINITY;
+    int numPruned = 0;
+    for (CandidateInference inference : predictedOrder) {
+      if (inference.predictedBound < bestPredictedWeight
+          || inference.predictedBound == Double.NEGATIVE_INFINITY) {
+        numPruned++;
+        continue;
+      }
+      inference.solvePredicted();
+      bestPredictedWeight = Math.max(bestPredictedWeight, inference.getPredictedWeight());
+    }
+
+    // The truth-conditioned grounding weight is at most 0, so the parse
+    // weight bounds the weight of each truth-conditioned candidate.
+    List<CandidateInference> trueOrder = Lists.newArrayList(inferences);
+    Collections.sort(trueOrder, Ordering.natural().reverse().onResultOf(
+        new Function<CandidateInference, Double>() {
+          @Override
+          public Double apply(CandidateInference inference) {
+            return inference.candidate.getWeight();
+          }
+        }));
+
+    double bestTrueWeight = Double.NEGATIVE_INFINITY;
+    for (CandidateInference inference : trueOrder) {
+      if (inference.candidate.getWeight() < bestTrueWeight) {
+        numPruned++;
+        continue;
+      }
+      inference.solveTrue(expectedGrounding);
+      bestTrueWeight = Math.max(bestTrueWeight, inference.getTrueWeight());
+    }
+    prunedProblems.add(numPruned);
+    solvedProblems.add(2 * inferences.size() - numPruned);
+    EventLog.debug("inference", "branchAndBound", "pruned", numPruned, "problems", 2 * inferences.size());
+  }
+
+  /**
+   * Instantiates the grounding query for a single parse candidate, adds
+   * the margin costs to it, and computes the upper bound used to prune
+   * the candidate during {@link #branchAndBound}.
+   */
+  private CandidateInference initializeCandidate(GroundingModel model, WordParseCombination candidate,
+      Domain domain, Tensor expectedGrounding) {
+    // For each parse tree generated by the beam search, instantiate its
+    // grounding factor graph and perform inference.
+    ParseTree parse = candidate.getParse();
+
+    // Instantiate the factor graph (/ probabilistic database query)
+    // corresponding to
+    // the current parse tree. Identify the best predicted grounding for this
+    // tree.
+    long queryStart = queryConstructionTimer.start();
+    QueryTree queryGraph = model.getQueryFromParse(parse, domain, addImplicitDeterminer);
+    queryConstructionTimer.stop(queryStart);
+    ExampleProfiler.recordQuery(queryGraph);
+
+    // Get the weight of the best grounding with no conditioning on its output.
+    // This value controls for the fact that not all predicates occur in every 
+    // logical form.
+    MultiTree<Tensor> bestUnconditionalAssignment = queryGraph.locallyDecodeVariables();
+    double unconditionalWeight = queryGraph.getWeight(bestUnconditionalAssignment);
+
+    // Decoding each variable independently ignores the query's constraints,
+    // so it upper bounds the weight of the best cost augmented assignment.
+    QueryTree costAugmentedQuery = getCostAugmentedQuery(queryGraph, expectedGrounding);
+    double costAugmentedBound = costAugmentedQuery.getWeight(costAugmentedQuery.locallyDecodeVariables());
+    double predictedBound = candidate.getWeight() + costAugmentedBound - unconditionalWeight;
+
+    return new CandidateInference(candidate, queryGraph, costAugmentedQuery, bestUnconditionalAssignment,
+        unconditionalWeight, predictedBound, this);
+  }
+
+  /**
+   * Stops the threads used to run inference for parse candidates, if
+   * any were started. The trainer must not be used after it is closed.
+   */
+  public synchronized void close() {
+    if (candidateExecutor != null) {
+      candidateExecutor.shutdown();
+      candidateExecutor = null;
+    }
+  }
+
+  private synchronized ExecutorService getCandidateExecutor() {
+    if (candidateExecutor == null) {
+      // The bounded queue and caller-runs policy apply backpressure when
+      // more candidates are submitted than the workers can keep up with.
+      candidateExecutor = new ThreadPoolExecutor(numCandidateThreads, numCandidateThreads,
+          0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(CANDIDATE_QUEUE_SIZE),
+          new ThreadFactoryBuilder().setDaemon(true).setNameFormat("grounding-inference-%d").build(),
+          new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+    return candidateExecutor;
+  }
   
   private List<WordParseCombination> generateParseCandidates(BeamSearchCfgFactor parser,
       List<List<String>> candidates, double[] candidateScores) {
+    long startTime = parseTimer.start();
     BoundedHeap<WordParseCombination> heap = new BoundedHeap<WordParseCombination>(maxParses,
         new WordParseCombination[0]);
     int numOffered = 0;
@@ -343,40 +580,39 @@ public class GroundingModelTrainer implements GradientOracle<GroundingModel, Gro
         numOffered++;
       }
     }
-    System.out.println("Num offered: " + numOffered);
-    return heap.getItems();
+    EventLog.debug("parse", "parseCandidates", "offered", numOffered);
+    List<WordParseCombination> items = heap.getItems();
+    parseTimer.stop(startTime);
+    parseBeamSize.record(numOffered);
+    ExampleProfiler.recordParses(numOffered);
+    parseCandidateCount.record(items.size());
+    return items;
   }
 
   /**
-   * Augments {@code queryGraph} with costs (representing the margin) and
-   * decodes the best assignment. After returning, {@code queryGraph} can be
-   * used to evaluate the probability of the returned grounding.
-   * 
-   * @param queryGraph
-   * @param expectedGrounding
-   * @return
+   * Gets a query for cost-augmented inference, which adds costs
+   * (representing the margin) to {@code queryGraph}. The returned query
+   * can be used to evaluate the cost-augmented weight of its
+   * assignments. {@code queryGraph} is not modified.
    */
-  private MultiTree<Tensor> costAugmentedInference(QueryTree queryGraph, Tensor expectedGrounding) {
+  private static QueryTree getCostAugmentedQuery(QueryTree queryGraph, Tensor expectedGrounding) {
     // Uncomment this to train a structured SVM (as opposed to a structured
     // perceptron)
     // But uncommenting seems to make inference very slow.
     // When commented out, the model is a structured perceptron (with
     // regularization?)
-    queryGraph.updateOutputLocalWeights(expectedGrounding.elementwiseProduct(-1.0).elementwiseAddition(1.0));
-    // System.out.println("Running cost-augmented inference");
-    return inferenceAlgorithm.apply(queryGraph, false);
+    return queryGraph.withObservation(expectedGrounding.elementwiseProduct(-1.0).elementwiseAddition(1.0));
   }
 
   /**
-   * This method mutates {@code queryGraph} so that it is no longer suitable for
-   * scoring the returned assignment. (Score the returned assignment with an
-   * exact copy of {@code queryGraph}.) This occurs because each incorrect
-   * output gets a negative infinite weight, and 0.0 * -Inf = NaN.
+   * Gets a query for truth-conditioned inference, in which every
+   * output that disagrees with {@code expectedGrounding} has weight
+   * negative infinity. The returned query is not suitable for scoring
+   * assignments, because 0.0 * -Inf = NaN; score them with
+   * {@code queryGraph}, which is not modified.
    */
-  private MultiTree<Tensor> truthConditionalInference(QueryTree queryGraph, Tensor expectedGrounding) {
-    queryGraph.updateOutputLocalWeights(expectedGrounding.elementwiseLog());
-    // System.out.println("Running truth-conditioned inference");
-    return inferenceAlgorithm.apply(queryGraph, true);
+  private static QueryTree getTruthConditionedQuery(QueryTree queryGraph, Tensor expectedGrounding) {
+    return queryGraph.withObservation(expectedGrounding.elementwiseLog());
   }
 
   @Override
@@ -394,50 +630,159 @@ public class GroundingModelTrainer implements GradientOracle<GroundingModel, Gro
       double initialStepSize, boolean decayStepSize, int batchSize, String inferenceAlgorithm, double l2regularization, 
       double l1regularization, List<Domain> domains, IndexedList<String> domainNames, boolean useCurriculum, boolean addImplicitDeterminer,
 							 SufficientStatistics initialParams, LogFunction log, int maxParses) {
+    return trainGroundingModel(family, trainingData, iterations, dualDecompositionIterations, initialStepSize,
+        decayStepSize, batchSize, inferenceAlgorithm, l2regularization, l1regularization, domains, domainNames,
+        useCurriculum, addImplicitDeterminer, initialParams, log, maxParses, 1);
+  }
 
-    GroundingModelTrainer oracle = null;
-    if (inferenceAlgorithm.equals("dualDecomposition")) {
-	oracle = GroundingModelTrainer.createWithDualDecomposition(family, dualDecompositionIterations, domains, domainNames, addImplicitDeterminer, maxParses);
-    } else if (inferenceAlgorithm.equals("ilp")) {
-	oracle = GroundingModelTrainer.createWithIlp(family, domains, domainNames, false, addImplicitDeterminer, maxParses);
-    } else if (inferenceAlgorithm.equals("lp")) {
-	oracle = GroundingModelTrainer.createWithIlp(family, domains, domainNames, true, addImplicitDeterminer, maxParses);
-    }
+  public static SufficientStatistics trainGroundingModel(GroundingModelFamily family,
+      Iterable<GroundingExample> trainingData, int iterations, int dualDecompositionIterations,
+      double initialStepSize, boolean decayStepSize, int batchSize, String inferenceAlgorithm, double l2regularization, 
+      double l1regularization, List<Domain> domains, IndexedList<String> domainNames, boolean useCurriculum, boolean addImplicitDeterminer,
+      SufficientStatistics initialParams, LogFunction log, int maxParses, int numCandidateThreads) {
+    return trainGroundingModel(family, trainingData, iterations, dualDecompositionIterations, initialStepSize,
+        decayStepSize, batchSize, inferenceAlgorithm, l2regularization, l1regularization, domains, domainNames,
+        useCurriculum, addImplicitDeterminer, initialParams, log, maxParses, numCandidateThreads, null);
+  }
 
-    StochasticGradientTrainer trainer;
-    if (l2regularization > 0.0) {
-      trainer = StochasticGradientTrainer.createWithL2Regularization(
-          iterations * Iterables.size(trainingData) / batchSize, batchSize, initialStepSize, decayStepSize, false,
-          l2regularization, log);
-    } else {
-      trainer = StochasticGradientTrainer.createWithL1Regularization(
-          iterations * Iterables.size(trainingData) / batchSize, batchSize, initialStepSize, decayStepSize, false,
-          l1regularization, log);
-    }
+  /**
+   * Trains a grounding model. If {@code profiler} is non-null, it
+   * records the cost of training on each example.
+   */
+  public static SufficientStatistics trainGroundingModel(GroundingModelFamily family,
+      Iterable<GroundingExample> trainingData, int iterations, int dualDecompositionIterations,
+      double initialStepSize, boolean decayStepSize, int batchSize, String inferenceAlgorithm, double l2regularization, 
+      double l1regularization, List<Domain> domains, IndexedList<String> domainNames, boolean useCurriculum, boolean addImplicitDeterminer,
+      SufficientStatistics initialParams, LogFunction log, int maxParses, int numCandidateThreads,
+      ExampleProfiler profiler) {
+    return trainGroundingModel(family, trainingData, iterations, dualDecompositionIterations, initialStepSize,
+        decayStepSize, batchSize, inferenceAlgorithm, l2regularization, l1regularization, domains, domainNames,
+        useCurriculum, addImplicitDeterminer, initialParams, log, maxParses, numCandidateThreads, profiler,
+        InferenceBudget.UNLIMITED);
+  }
+
+  public static SufficientStatistics trainGroundingModel(GroundingModelFamily family,
+      Iterable<GroundingExample> trainingData, int iterations, int dualDecompositionIterations,
+      double initialStepSize, boolean decayStepSize, int batchSize, String inferenceAlgorithm, double l2regularization, 
+      double l1regularization, List<Domain> domains, IndexedList<String> domainNames, boolean useCurriculum, boolean addImplicitDeterminer,
+      SufficientStatistics initialParams, LogFunction log, int maxParses, int numCandidateThreads,
+      ExampleProfiler profiler, InferenceBudget budget) {
+    return trainGroundingModel(family, trainingData, iterations, dualDecompositionIterations, initialStepSize,
+        decayStepSize, batchSize, inferenceAlgorithm, l2regularization, l1regularization, domains, domainNames,
+        useCurriculum, addImplicitDeterminer, initialParams, log, maxParses, numCandidateThreads, profiler,
+        budget, null);
+  }
 
-    // Train the model in stages.
-    if (useCurriculum) {
-      int maxLevel = 0;
-      for (GroundingExample datum : trainingData) {
-        maxLevel = (int) Math.max(maxLevel, datum.getCurriculumLevel());
+  /**
+   * Trains a grounding model. {@code inferenceAlgorithm} is a
+   * comma-separated chain of inference algorithms (e.g.,
+   * {@code "ilp,lp,dualDecomposition"}) that are tried in order when an
+   * ILP solve exhausts {@code budget}. See
+   * {@link #createWithInferenceChain}.
+   * <p>
+   * If {@code checkpointer} is non-null, a checkpoint is saved after
+   * every epoch, and training resumes from the checkpointer's resume
+   * point for the current fold, if any.
+   */
+  public static SufficientStatistics trainGroundingModel(GroundingModelFamily family,
+      Iterable<GroundingExample> trainingData, int iterations, int dualDecompositionIterations,
+      double initialStepSize, boolean decayStepSize, int batchSize, String inferenceAlgorithm, double l2regularization, 
+      double l1regularization, List<Domain> domains, IndexedList<String> domainNames, boolean useCurriculum, boolean addImplicitDeterminer,
+      SufficientStatistics initialParams, LogFunction log, int maxParses, int numCandidateThreads,
+      ExampleProfiler profiler, InferenceBudget budget, TrainingCheckpointer checkpointer) {
+
+    GroundingModelTrainer oracle = GroundingModelTrainer.createWithInferenceChain(family,
+        Arrays.asList(inferenceAlgorithm.split(",")), budget, dualDecompositionIterations, domains,
+        domainNames, addImplicitDeterminer, maxParses, numCandidateThreads);
+    oracle.setProfiler(profiler);
+
+    try {
+      int numExamples = Iterables.size(trainingData);
+      long numIterations = iterations * numExamples / batchSize;
+      long iterationsPerEpoch = Math.max(1, numExamples / batchSize);
+
+      // Train the model in stages.
+      int maxLevel = 1;
+      if (useCurriculum) {
+        maxLevel = 0;
+        for (GroundingExample datum : trainingData) {
+          maxLevel = (int) Math.max(maxLevel, datum.getCurriculumLevel());
+        }
+        maxLevel++;
+        System.out.println(maxLevel + " Curriculum Levels");
       }
-      maxLevel++;
-      System.out.println(maxLevel + " Curriculum Levels");
+
+      TrainingCheckpoint resumePoint = checkpointer != null ? checkpointer.getResumePoint() : null;
       for (int i = 0; i < maxLevel; i++) {
-        System.out.println("Training level: " + i);
         List<GroundingExample> currentData = Lists.newArrayList();
-        for (GroundingExample datum : trainingData) {
-          if (datum.getCurriculumLevel() <= i) {
-            currentData.add(datum);
+        if (useCurriculum) {
+          System.out.println("Training level: " + i);
+          for (GroundingExample datum : trainingData) {
+            if (datum.getCurriculumLevel() <= i) {
+              currentData.add(datum);
+            }
+          }
+        } else {
+          Iterables.addAll(currentData, trainingData);
+        }
+
+        if (checkpointer == null) {
+          initialParams = createStochasticGradientTrainer(numIterations, batchSize, initialStepSize,
+              decayStepSize, l2regularization, l1regularization, log).train(oracle, initialParams, currentData);
+          continue;
+        }
+
+        long completedIterations = 0;
+        double stepSize = initialStepSize;
+        if (resumePoint != null) {
+          if (i < resumePoint.getCurriculumLevel()) {
+            continue;
+          }
+          completedIterations = resumePoint.getIteration();
+          initialParams = resumePoint.getParameters();
+          resumePoint = null;
+          System.out.println("Resuming level " + i + " at iteration " + completedIterations);
+
+          // Stochastic gradient visits the training data cyclically, so
+          // rotate the data to start at the next unvisited example.
+          Collections.rotate(currentData, -(int) ((completedIterations * batchSize) % currentData.size()));
+          if (decayStepSize) {
+            // Continue the step size schedule (initialStepSize / sqrt(t + 2))
+            // from the first resumed iteration.
+            stepSize = initialStepSize * Math.sqrt(2.0 / (completedIterations + 2));
           }
         }
-        initialParams = trainer.train(oracle, initialParams, currentData);
+
+        if (completedIterations < numIterations) {
+          LogFunction checkpointLog = checkpointer.wrapLogFunction(log, i, completedIterations, iterationsPerEpoch);
+          initialParams = createStochasticGradientTrainer(numIterations - completedIterations, batchSize,
+              stepSize, decayStepSize, l2regularization, l1regularization, checkpointLog)
+              .train(oracle, initialParams, currentData);
+        }
+        checkpointer.save(i + 1, 0, initialParams);
       }
-    } else {
-      initialParams = trainer.train(oracle, initialParams, trainingData);
+
+      if (resumePoint != null) {
+        // The run was interrupted after its last level.
+        initialParams = resumePoint.getParameters();
+      }
+      return initialParams;
+    } finally {
+      // Each call builds a new oracle, e.g., for every cross validation fold.
+      oracle.close();
     }
+  }
 
-    return initialParams;
+  private static StochasticGradientTrainer createStochasticGradientTrainer(long numIterations,
+      int batchSize, double stepSize, boolean decayStepSize, double l2regularization,
+      double l1regularization, LogFunction log) {
+    if (l2regularization > 0.0) {
+      return StochasticGradientTrainer.createWithL2Regularization(numIterations, batchSize, stepSize,
+          decayStepSize, false, l2regularization, log);
+    } else {
+      return StochasticGradientTrainer.createWithL1Regularization(numIterations, batchSize, stepSize,
+          decayStepSize, false, l1regularization, log);
+    }
   }
 
   public static List<GroundingExample> filterParseableExamples(GroundingModelFamily family,
@@ -520,13 +865,22 @@ public class GroundingModelTrainer implements GradientOracle<GroundingModel, Gro
     OptionSpec<String> domainDir = parser.accepts("domainDir").withRequiredArg().ofType(String.class).required();
     OptionSpec<String> trainingFilename = parser.accepts("trainingFilename").withOptionalArg().ofType(String.class).defaultsTo("training.txt");
     OptionSpec<String> goldKbFile = parser.accepts("goldKbFile").withRequiredArg().ofType(String.class);
-    OptionSpec<String> ccgLexicon = parser.accepts("lexicon").withRequiredArg().ofType(String.class).required();
+    OptionSpec<String> ccgLexicon = parser.accepts("lexicon").withRequiredArg().ofType(String.class);
+    OptionSpec<String> compiledGrammar = parser.accepts("compiledGrammar").withRequiredArg().ofType(String.class);
     OptionSpec<Integer> iterations = parser.accepts("iterations").withOptionalArg().ofType(Integer.class).defaultsTo(5);
     OptionSpec<String> modelFilename = parser.accepts("modelFilename").withRequiredArg().ofType(String.class).required();
     OptionSpec<String> modelFamilyFilename = parser.accepts("modelFamilyFilename").withRequiredArg().ofType(String.class);
     OptionSpec<String> modelParametersFilename = parser.accepts("modelParametersFilename").withRequiredArg().ofType(String.class);
 
     OptionSpec<Integer> dualDecompositionIterations = parser.accepts("ddIterations").withOptionalArg().ofType(Integer.class).defaultsTo(1000);
+    // A comma-separated chain of inference algorithms, e.g., "ilp,lp,dualDecomposition".
+    // Overrides useIlp / useLp.
+    OptionSpec<String> inferenceChain = parser.accepts("inferenceChain").withRequiredArg().ofType(String.class);
+    // Per-solve limits for ILP / LP inference. Nonpositive limits are unlimited.
+    // Dual decomposition is limited by ddIterations instead.
+    OptionSpec<Double> ilpTimeLimit = parser.accepts("ilpTimeLimit").withRequiredArg().ofType(Double.class).defaultsTo(0.0);
+    OptionSpec<Integer> ilpNodeLimit = parser.accepts("ilpNodeLimit").withRequiredArg().ofType(Integer.class).defaultsTo(0);
+    OptionSpec<Double> ilpGap = parser.accepts("ilpGap").withRequiredArg().ofType(Double.class).defaultsTo(1e-4);
     parser.accepts("rescaleGroundingObjective");
     parser.accepts("useIlp");
     parser.accepts("useLp");
@@ -541,7 +895,18 @@ public class GroundingModelTrainer implements GradientOracle<GroundingModel, Gro
     OptionSpec<Double> l2regularization = parser.accepts("l2regularization").withOptionalArg().ofType(Double.class).defaultsTo(0.00);
     OptionSpec<Double> l1regularization = parser.accepts("l1regularization").withOptionalArg().ofType(Double.class).defaultsTo(0.00);
     OptionSpec<Integer> maxParsesForInference = parser.accepts("maxParses").withOptionalArg().ofType(Integer.class).defaultsTo(10);
+    OptionSpec<Integer> candidateThreads = parser.accepts("candidateThreads").withRequiredArg().ofType(Integer.class).defaultsTo(1);
+    // If given, a snapshot of the training metrics is appended to this file after every epoch.
+    OptionSpec<String> metricsFilename = parser.accepts("metricsFile").withRequiredArg().ofType(String.class);
+    // If given, the cost of training on each example is profiled, and a report
+    // of the slowest and failing examples is written to this file.
+    OptionSpec<String> profileReport = parser.accepts("profileReport").withRequiredArg().ofType(String.class);
+    OptionSpec<Integer> profileExamples = parser.accepts("profileExamples").withRequiredArg().ofType(Integer.class).defaultsTo(50);
     parser.accepts("skipUnparseable");
+    // If given, training is checkpointed to this file after every epoch.
+    // With --resume, training continues from the checkpoint in this file.
+    OptionSpec<String> checkpointFilename = parser.accepts("checkpointFile").withRequiredArg().ofType(String.class);
+    parser.accepts("resume");
 
     OptionSet options = parser.parse(args);
 
@@ -549,6 +914,8 @@ public class GroundingModelTrainer implements GradientOracle<GroundingModel, Gro
     Preconditions.checkArgument(!(options.has(l2regularization) && options.has(l1regularization)));
     // Either LP or ILP inference or neither (dual decomposition). 
     Preconditions.checkArgument(!(options.has("useIlp") && options.has("useLp")));
+    Preconditions.checkArgument(!options.has("resume") || options.has(checkpointFilename),
+        "--resume requires --checkpointFile");
 
     // Read domains and lexicon from files, construct the grounding model family.
     String goldKbFilename = options.has(goldKbFile) ? options.valueOf(goldKbFile) : null;
@@ -558,7 +925,7 @@ public class GroundingModelTrainer implements GradientOracle<GroundingModel, Gro
     System.out.println(domains);
     IndexedList<String> domainNames = IndexedList.create(extract(domains, on(Domain.class).getName()));
     GroundingModelFamily family = GroundingModelUtilities.constructGroundingModel(domains,
-										  Lexicon.fromFile(IoUtil.LoadFile(options.valueOf(ccgLexicon))));
+        CompiledGrammar.fromLexiconOrCompiledFile(options.valueOf(ccgLexicon), options.valueOf(compiledGrammar)));
 
     // Choose an inference procedure.
     String inferenceAlg = "dualDecomposition";
@@ -567,7 +934,12 @@ public class GroundingModelTrainer implements GradientOracle<GroundingModel, Gro
     } else if (options.has("useLp")) {
       inferenceAlg = "lp";
     }
-    System.out.println("Inference algorithm: " + inferenceAlg);
+    if (options.has(inferenceChain)) {
+      inferenceAlg = options.valueOf(inferenceChain);
+    }
+    InferenceBudget budget = InferenceBudget.fromOptions(options.valueOf(ilpTimeLimit),
+        options.valueOf(ilpNodeLimit), options.valueOf(ilpGap));
+    System.out.println("Inference algorithm: " + inferenceAlg + " " + budget);
 
     // Construct cross-validation folds, if necessary.
     Multimap<String, GroundingExample> folds = null;
@@ -588,14 +960,28 @@ public class GroundingModelTrainer implements GradientOracle<GroundingModel, Gro
       System.out.println("fold: " + key + " " + supervisionFiltered.size() + " training examples");
     }
 
+    ExampleProfiler profiler = options.has(profileReport) ? new ExampleProfiler() : null;
+    TrainingCheckpointer checkpointer = options.has(checkpointFilename) ?
+        TrainingCheckpointer.create(options.valueOf(checkpointFilename), options.has("resume")) : null;
     Map<String, GroundingModel> modelFolds = Maps.newHashMap();
     Map<String, SufficientStatistics> modelParams = Maps.newHashMap();
     for (String key : filteredFolds.keySet()) {
       Collection<GroundingExample> foldExamples = filteredFolds.get(key);
-      SufficientStatistics trainedParams = GroundingModelTrainer.trainGroundingModel(family, foldExamples, options.valueOf(iterations),
-          options.valueOf(dualDecompositionIterations), options.valueOf(initialStepSize), true, options.valueOf(batchSize), inferenceAlg,
-          options.valueOf(l2regularization), options.valueOf(l1regularization), domains, domainNames, !options.has("noCurriculum"), options.has(implicitDeterminer),
-										     family.getNewSufficientStatistics(), new DefaultLogFunction(), options.valueOf(maxParsesForInference));
+      SufficientStatistics trainedParams = checkpointer != null ? checkpointer.beginFold(key) : null;
+      if (trainedParams != null) {
+        System.out.println("fold: " + key + " restored from checkpoint");
+      } else {
+        LogFunction log = new MetricsLogFunction(key, Math.max(1, foldExamples.size() / options.valueOf(batchSize)),
+            options.valueOf(metricsFilename));
+        trainedParams = GroundingModelTrainer.trainGroundingModel(family, foldExamples, options.valueOf(iterations),
+            options.valueOf(dualDecompositionIterations), options.valueOf(initialStepSize), true, options.valueOf(batchSize), inferenceAlg,
+            options.valueOf(l2regularization), options.valueOf(l1regularization), domains, domainNames, !options.has("noCurriculum"), options.has(implicitDeterminer),
+            family.getNewSufficientStatistics(), log, options.valueOf(maxParsesForInference),
+            options.valueOf(candidateThreads), profiler, budget, checkpointer);
+        if (checkpointer != null) {
+          checkpointer.completeFold(trainedParams);
+        }
+      }
 
       // System.out.println(family.getParameterDescription(trainedParams));
       GroundingModel trainedGroundingModel = family.instantiateModel(trainedParams);
@@ -606,6 +992,15 @@ public class GroundingModelTrainer implements GradientOracle<GroundingModel, Gro
       GroundingModelUtilities.logDatasetError(trainedGroundingModel, foldExamples, domains, null, options.has(implicitDeterminer));
     }
 
+    if (checkpointer != null) {
+      checkpointer.close();
+    }
+
+    if (profiler != null) {
+      System.out.println("Writing profile to " + options.valueOf(profileReport));
+      profiler.writeReport(options.valueOf(profileReport), options.valueOf(profileExamples));
+    }
+
     /* Save the model to a java serialized file */
     try
     {
@@ -668,15 +1063,88 @@ public class GroundingModelTrainer implements GradientOracle<GroundingModel, Gro
     }
   }
 
+  /**
+   * The results of grounding inference for a single parse candidate.
+   * The weights of problems which have not been solved are negative
+   * infinity.
+   */
+  private static class CandidateInference {
+    public final WordParseCombination candidate;
+    private final GroundingModelTrainer trainer;
+
+    // The query for this candidate, which is never modified, and its
+    // cost-augmented version.
+    public final QueryTree baseQuery;
+    public final QueryTree query;
+    public final MultiTree<Tensor> unconditionalAssignment;
+    public final double unconditionalWeight;
+    public final double predictedBound;
+
+    public MultiTree<Tensor> assignment = null;
+    public double groundingWeight = Double.NEGATIVE_INFINITY;
+
+    public QueryTree conditionalQuery = null;
+    public MultiTree<Tensor> conditionalAssignment = null;
+    public double conditionalGroundingWeight = Double.NEGATIVE_INFINITY;
+
+    public CandidateInference(WordParseCombination candidate, QueryTree baseQuery, QueryTree query,
+        MultiTree<Tensor> unconditionalAssignment, double unconditionalWeight, double predictedBound,
+        GroundingModelTrainer trainer) {
+      this.candidate = candidate;
+      this.baseQuery = baseQuery;
+      this.query = query;
+      this.unconditionalAssignment = unconditionalAssignment;
+      this.unconditionalWeight = unconditionalWeight;
+      this.predictedBound = predictedBound;
+      this.trainer = trainer;
+    }
+
+    /**
+     * Finds the best cost augmented assignment to {@code query}.
+     */
+    public void solvePredicted() {
+      try {
+        assignment = trainer.inferenceAlgorithm.apply(query, false);
+        groundingWeight = query.getWeight(assignment) - unconditionalWeight;
+      } catch (ZeroProbabilityError e) {} // groundingWeight = -infty 
+    }
+
+    /**
+     * Conditions the query on the observed grounding and finds its best
+     * assignment.
+     */
+    public void solveTrue(Tensor expectedGrounding) {
+      conditionalQuery = getTruthConditionedQuery(baseQuery, expectedGrounding);
+      try {
+        conditionalAssignment = trainer.inferenceAlgorithm.apply(conditionalQuery, true);
+        conditionalGroundingWeight = baseQuery.getWeight(conditionalAssignment) - unconditionalWeight;
+      } catch (ZeroProbabilityError e) {} // groundingWeight = -infty
+    }
+
+    public double getPredictedWeight() {
+      return candidate.getWeight() + groundingWeight;
+    }
+
+    public double getTrueWeight() {
+      return candidate.getWeight() + conditionalGroundingWeight;
+    }
+  }
+
+  /**
+   * Finds the best assignment to a query. Implementations must not
+   * modify {@code query}, which may be shared with other solves.
+   */
   private static interface GroundingInferenceAlgorithm {
       public MultiTree<Tensor> apply(QueryTree query, boolean applyWeakSupervision);
   }
 
   private static class IlpInferenceAlgorithm implements GroundingInferenceAlgorithm {
       private final boolean useLpRelaxation;
+      private final InferenceBudget budget;
 
-      public IlpInferenceAlgorithm(boolean useLpRelaxation) {
+      public IlpInferenceAlgorithm(boolean useLpRelaxation, InferenceBudget budget) {
 	  this.useLpRelaxation = useLpRelaxation;
+	  this.budget = Preconditions.checkNotNull(budget);
       }
 
       @Override
@@ -685,10 +1153,14 @@ public class GroundingModelTrainer implements GradientOracle<GroundingModel, Gro
 	      // This case is easy, so don't bother loading up the ILP solver.
 	      return query.locallyDecodeVariables();
 	  }
-	  return query.ilpInference(useLpRelaxation, applyWeakSupervision);
+	  return query.ilpInference(useLpRelaxation, applyWeakSupervision, budget);
       }
   }
 
+  /**
+   * Dual decomposition modifies the weights of the query, so it runs on
+   * a copy that holds the multipliers for a single solve.
+   */
   private static class DdInferenceAlgorithm implements GroundingInferenceAlgorithm {
       private final int maxDualDecompositionIter;
 
@@ -703,4 +1175,35 @@ public class GroundingModelTrainer implements GradientOracle<GroundingModel, Gro
 	  return reparameterizedQuery.locallyDecodeVariables();
       }
   }
+
+  /**
+   * Tries a sequence of inference algorithms, falling back to the
+   * next algorithm when one exhausts its budget. Each ILP or LP step
+   * gets the full budget, and the final step is never interrupted, so
+   * it should be one whose running time is bounded (e.g., dual
+   * decomposition). Queries that are unsatisfiable fail immediately.
+   */
+  private static class FallbackInferenceAlgorithm implements GroundingInferenceAlgorithm {
+      private final List<String> names;
+      private final List<GroundingInferenceAlgorithm> algorithms;
+
+      public FallbackInferenceAlgorithm(List<String> names, List<GroundingInferenceAlgorithm> algorithms) {
+	  Preconditions.checkArgument(names.size() == algorithms.size());
+	  this.names = ImmutableList.copyOf(names);
+	  this.algorithms = ImmutableList.copyOf(algorithms);
+      }
+
+      @Override
+      public MultiTree<Tensor> apply(QueryTree query, boolean applyWeakSupervision) {
+	  for (int i = 0; i < algorithms.size() - 1; i++) {
+	      try {
+		  return algorithms.get(i).apply(query, applyWeakSupervision);
+	      } catch (InferenceBudget.BudgetExceededError e) {
+		  fallbackCounter.increment();
+		  EventLog.warn("inference", "fallback", "from", names.get(i), "to", names.get(i + 1));
+	      }
+	  }
+	  return algorithms.get(algorithms.size() - 1).apply(query, applyWeakSupervision);
+      }
+  }
 }
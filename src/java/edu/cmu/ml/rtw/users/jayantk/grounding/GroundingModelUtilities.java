@@ -6,10 +6,12 @@ import static ch.lambdaj.Lambda.on;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
 
 import com.google.common.base.Preconditions;
 import com.google.common.base.Predicate;
@@ -21,10 +23,8 @@ import com.google.common.collect.Sets;
 import com.google.common.primitives.Ints;
 import com.jayantkrish.jklol.ccg.lambda.Expression;
 import com.jayantkrish.jklol.ccg.lambda.ExpressionParser;
-import com.jayantkrish.jklol.cfg.ParametricCfgFactor;
 import com.jayantkrish.jklol.cfg.ParseTree;
 import com.jayantkrish.jklol.lisp.SExpression;
-import com.jayantkrish.jklol.models.ObjectVariable;
 import com.jayantkrish.jklol.models.TableFactorBuilder;
 import com.jayantkrish.jklol.models.VariableNumMap;
 import com.jayantkrish.jklol.tensor.DenseTensor;
@@ -59,11 +59,11 @@ public class GroundingModelUtilities implements Serializable {
       }
 
       String[] parts = line.split(";");
-      System.out.println("myline->"+line);
+      EventLog.debug("data", "trainingLine", "domain", domainName, "line", line);
 
       // Parse the grounding into a tensor of indicator variables.
       Tensor outputTensor = parseGroundingTensor(parts, groundingVar1, groundingVar2, booleanVar);
-      System.out.println(outputTensor);
+      EventLog.debug("data", "grounding", "domain", domainName, "tensor", outputTensor);
 
       int curriculumLevel = 0;
       Expression logicalForm = null;
@@ -166,9 +166,17 @@ public class GroundingModelUtilities implements Serializable {
 
   /**
    * @param domains
-   * @param ccgLexiconFile
+   * @param lexicon
    */
   public static GroundingModelFamily constructGroundingModel(List<Domain> domains, Lexicon<String> lexicon) {
+    return constructGroundingModel(domains, CompiledGrammar.fromLexicon(lexicon, CompiledGrammar.DEFAULT_BEAM_SIZE));
+  }
+
+  /**
+   * @param domains
+   * @param grammar
+   */
+  public static GroundingModelFamily constructGroundingModel(List<Domain> domains, CompiledGrammar grammar) {
     // Instantiate the parameterization of the grounding function.
     // Each predicate uses the category or relation features defined
     // above to instantiate sets of groundings.
@@ -179,7 +187,7 @@ public class GroundingModelUtilities implements Serializable {
       knownRelationNames.addAll(domain.getKnownRelationNames());
     }
 
-    for (RelationType relation : lexicon.getPredicatesInGrammar()) {
+    for (RelationType relation : grammar.getPredicates()) {
       if (knownRelationNames.contains(relation.getName())) {
         knownRelationList.add(relation);
       } else {
@@ -187,31 +195,24 @@ public class GroundingModelUtilities implements Serializable {
       }
     }
 
-    // System.out.println("KNOWN RELATION LIST: " +
-    // knownRelationList);
-
     // Build the GroundingModelFamily, the parameterized version of
-    // the parsing
-    // + grounding model.
-    // Convert the semantic parser to a CFG.
-    SemanticParser parser = new SemanticParser(lexicon);
-
-    /*
-     * for (List<String> wordSeq :
-     * lexicon.getAllRecognizedWordSequences()) { for (LexicalCategory
-     * category : lexicon.getCategories(wordSeq)) {
-     * System.out.println(wordSeq + " : " + category); } }
-     */
-
-    VariableNumMap parserInput = VariableNumMap.singleton(0, "parserInput", new ObjectVariable(List.class));
-    VariableNumMap parserOutput = VariableNumMap.singleton(1, "parserOutput", new ObjectVariable(ParseTree.class));
-    ParametricCfgFactor parserFactor = parser.toCfgFactor(parserInput, parserOutput, 1000, new TreeValidityPredicate());
-
-    return new GroundingModelFamily(parserFactor, groundedRelationList, knownRelationList, domains);
+    // the parsing + grounding model.
+    return new GroundingModelFamily(grammar.getParserFactor(), groundedRelationList, knownRelationList, domains);
   }
 
   public static Map<Integer, EvaluationScore> logDatasetError(GroundingModel model, Iterable<GroundingExample> data,
       List<Domain> domains, UnigramLanguageModel languageModel, boolean addImplicitDeterminer) { 
+    return logDatasetError(model, data, domains, languageModel, addImplicitDeterminer, 1);
+  }
+
+  /**
+   * Same as {@link #logDatasetError(GroundingModel, Iterable, List, UnigramLanguageModel, boolean)},
+   * but scores examples using {@code numThreads} threads. The output
+   * is identical for any number of threads.
+   */
+  public static Map<Integer, EvaluationScore> logDatasetError(GroundingModel model, Iterable<GroundingExample> data,
+      List<Domain> domains, UnigramLanguageModel languageModel, boolean addImplicitDeterminer,
+      int numThreads) {
     // Sort the examples into curriculum levels
     ListMultimap<Integer, GroundingExample> examplesByCurriculumLevel = ArrayListMultimap.create();
     for (GroundingExample example : data) {
@@ -223,7 +224,8 @@ public class GroundingModelUtilities implements Serializable {
     EvaluationScore accumulated = EvaluationScore.zero();
     for (Integer level : examplesByCurriculumLevel.keySet()) {
       List<GroundingExample> levelExamples = examplesByCurriculumLevel.get(level);
-      EvaluationScore score = scoreExamples(model, levelExamples, domains, languageModel, addImplicitDeterminer);
+      EvaluationScore score = scoreExamples(model, levelExamples, domains, languageModel,
+          addImplicitDeterminer, numThreads);
 
       accumulated = accumulated.add(score);
       levelScores.put(level, score);
@@ -239,6 +241,39 @@ public class GroundingModelUtilities implements Serializable {
     return levelScores;
   }
 
+  /**
+   * Scores each example in {@code data} in parallel using
+   * {@code numThreads} threads. Each example is scored independently
+   * by {@link #scoreExamples(GroundingModel, Iterable, List, UnigramLanguageModel, boolean)}
+   * and the scores are summed in the order of {@code data}, so both
+   * the returned score and the logged output are identical to the
+   * serial evaluation.
+   */
+  public static EvaluationScore scoreExamples(final GroundingModel model, Iterable<GroundingExample> data,
+      final List<Domain> domains, final UnigramLanguageModel languageModel,
+      final boolean addImplicitDeterminer, int numThreads) {
+    if (numThreads <= 1) {
+      return scoreExamples(model, data, domains, languageModel, addImplicitDeterminer);
+    }
+
+    List<Callable<EvaluationScore>> tasks = Lists.newArrayList();
+    for (final GroundingExample example : data) {
+      tasks.add(new Callable<EvaluationScore>() {
+        @Override
+        public EvaluationScore call() {
+          return scoreExamples(model, Collections.singletonList(example), domains, languageModel,
+              addImplicitDeterminer);
+        }
+      });
+    }
+
+    EvaluationScore score = EvaluationScore.zero();
+    for (EvaluationScore exampleScore : OrderedTaskRunner.run(tasks, numThreads)) {
+      score = score.add(exampleScore);
+    }
+    return score;
+  }
+
   public static EvaluationScore scoreExamples(GroundingModel model, Iterable<GroundingExample> data,
       List<Domain> domains, UnigramLanguageModel languageModel,
       boolean addImplicitDeterminer) {
@@ -494,7 +529,7 @@ public class GroundingModelUtilities implements Serializable {
       }
   }
   
-  private static class TreeValidityPredicate implements Predicate<ParseTree>, Serializable {
+  static class TreeValidityPredicate implements Predicate<ParseTree>, Serializable {
     private static final long serialVersionUID = 1L;
 
     @Override
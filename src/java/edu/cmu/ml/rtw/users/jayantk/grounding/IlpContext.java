@@ -0,0 +1,48 @@
+package edu.cmu.ml.rtw.users.jayantk.grounding;
+
+import ilog.concert.IloNumVar;
+import ilog.cplex.IloCplex;
+
+import java.util.Map;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Maps;
+
+/**
+ * The state of a single ILP solve: the solver instance and the ILP
+ * variables created for each node of the query being solved. Keeping
+ * this state out of the {@code QueryTree} allows several threads to
+ * solve queries that share nodes at the same time. An
+ * {@code IlpContext} must only be used by one thread.
+ *
+ * @author jayantk
+ */
+public class IlpContext {
+
+  private final IloCplex cplex;
+  // Nodes are compared by identity, since equal nodes in different
+  // positions of a query have different variables.
+  private final Map<QueryTree, IloNumVar[]> variables = Maps.newIdentityHashMap();
+
+  public IlpContext(IloCplex cplex) {
+    this.cplex = Preconditions.checkNotNull(cplex);
+  }
+
+  public IloCplex getCplex() {
+    return cplex;
+  }
+
+  public void setVariables(QueryTree node, IloNumVar[] nodeVariables) {
+    variables.put(node, nodeVariables);
+  }
+
+  /**
+   * Gets the ILP variables for the output of {@code node}, which must
+   * have been added to the ILP in this context.
+   */
+  public IloNumVar[] getVariables(QueryTree node) {
+    IloNumVar[] nodeVariables = variables.get(node);
+    Preconditions.checkState(nodeVariables != null, "No ILP variables for %s", node);
+    return nodeVariables;
+  }
+}
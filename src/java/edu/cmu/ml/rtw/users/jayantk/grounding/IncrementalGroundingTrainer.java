@@ -0,0 +1,229 @@
+package edu.cmu.ml.rtw.users.jayantk.grounding;
+
+import static ch.lambdaj.Lambda.extract;
+import static ch.lambdaj.Lambda.on;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import joptsimple.OptionParser;
+import joptsimple.OptionSet;
+import joptsimple.OptionSpec;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.jayantkrish.jklol.models.parametric.SufficientStatistics;
+import com.jayantkrish.jklol.training.LogFunction;
+import com.jayantkrish.jklol.util.IndexedList;
+import com.jayantkrish.jklol.util.IoUtils;
+
+/**
+ * Updates a trained grounding model with new labeled examples, without
+ * retraining from scratch. Training starts from the saved parameters
+ * of the model and makes a few passes of subgradient updates over the
+ * new examples, mixed with examples replayed from an
+ * {@link ExampleReservoir} of earlier training data. The parameters
+ * and model are checkpointed atomically after every pass, so a server
+ * can reload the model file at any time.
+ *
+ * @author jayantk
+ */
+public class IncrementalGroundingTrainer {
+
+  private static final Metrics.Counter newExampleCounter = Metrics.counter("incremental.newExamples");
+  private static final Metrics.Counter replayedExampleCounter = Metrics.counter("incremental.replayedExamples");
+
+  private final GroundingModelFamily family;
+  private final List<Domain> domains;
+  private final IndexedList<String> domainNames;
+  private final ExampleReservoir reservoir;
+
+  private final String inferenceAlgorithm;
+  private final InferenceBudget budget;
+  private final int dualDecompositionIterations;
+  private final double stepSize;
+  private final int batchSize;
+  private final double l2regularization;
+  private final boolean addImplicitDeterminer;
+  private final int maxParses;
+  private final int numCandidateThreads;
+
+  // Shuffles the new and replayed examples of each pass together.
+  private final Random random;
+
+  public IncrementalGroundingTrainer(GroundingModelFamily family, List<Domain> domains,
+      ExampleReservoir reservoir, String inferenceAlgorithm, InferenceBudget budget,
+      int dualDecompositionIterations, double stepSize, int batchSize, double l2regularization,
+      boolean addImplicitDeterminer, int maxParses, int numCandidateThreads) {
+    this.family = Preconditions.checkNotNull(family);
+    this.domains = Preconditions.checkNotNull(domains);
+    this.domainNames = IndexedList.create(extract(domains, on(Domain.class).getName()));
+    this.reservoir = Preconditions.checkNotNull(reservoir);
+    this.inferenceAlgorithm = inferenceAlgorithm;
+    this.budget = budget;
+    this.dualDecompositionIterations = dualDecompositionIterations;
+    this.stepSize = stepSize;
+    this.batchSize = batchSize;
+    this.l2regularization = l2regularization;
+    this.addImplicitDeterminer = addImplicitDeterminer;
+    this.maxParses = maxParses;
+    this.numCandidateThreads = numCandidateThreads;
+    this.random = new Random(0L);
+  }
+
+  /**
+   * Makes {@code passes} passes over {@code newExamples}, starting from
+   * {@code parameters}, which are updated in place and returned. Each
+   * pass also replays {@code replayRatio} reservoir examples per new
+   * example, shuffled together with the new examples. A pass with
+   * fewer examples than the batch size trains on a single smaller
+   * batch. If {@code paramsFilename} or {@code modelFilename} is
+   * non-null, the parameters or model are checkpointed there after
+   * each pass. Afterward, the new examples are added to the reservoir.
+   */
+  public SufficientStatistics update(SufficientStatistics parameters, List<GroundingExample> newExamples,
+      int passes, double replayRatio, String paramsFilename, String modelFilename) throws IOException {
+    Preconditions.checkArgument(replayRatio >= 0);
+    int numReplayed = (int) Math.round(replayRatio * newExamples.size());
+    LogFunction log = new MetricsLogFunction("incremental", Math.max(1, (newExamples.size() + numReplayed) / batchSize), null);
+
+    for (int pass = 0; pass < passes; pass++) {
+      List<GroundingExample> passExamples = Lists.newArrayList(newExamples);
+      List<GroundingExample> replayed = reservoir.sample(numReplayed);
+      passExamples.addAll(replayed);
+      Collections.shuffle(passExamples, random);
+      newExampleCounter.add(newExamples.size());
+      replayedExampleCounter.add(replayed.size());
+      EventLog.info("incremental", "pass", "pass", pass, "newExamples", newExamples.size(),
+          "replayedExamples", replayed.size());
+
+      int passBatchSize = Math.min(batchSize, passExamples.size());
+      if (passBatchSize < batchSize) {
+        EventLog.warn("incremental", "smallPass", "pass", pass, "examples", passExamples.size(),
+            "batchSize", batchSize);
+      }
+      if (passBatchSize > 0) {
+        // The step size is not decayed, because each pass is a short
+        // continuation of training rather than a fresh run.
+        parameters = GroundingModelTrainer.trainGroundingModel(family, passExamples, 1,
+            dualDecompositionIterations, stepSize, false, passBatchSize, inferenceAlgorithm, l2regularization,
+            0.0, domains, domainNames, false, addImplicitDeterminer, parameters, log, maxParses,
+            numCandidateThreads, null, budget);
+      }
+
+      checkpoint(parameters, paramsFilename, modelFilename);
+    }
+
+    reservoir.addAll(newExamples);
+    return parameters;
+  }
+
+  private void checkpoint(SufficientStatistics parameters, String paramsFilename,
+      String modelFilename) throws IOException {
+    if (paramsFilename != null) {
+      Checkpoints.writeAtomically(parameters, paramsFilename);
+    }
+    if (modelFilename != null) {
+      Checkpoints.writeAtomically(family.instantiateModel(parameters), modelFilename);
+    }
+    EventLog.info("incremental", "checkpoint", "parameters", paramsFilename, "model", modelFilename);
+  }
+
+  public ExampleReservoir getReservoir() {
+    return reservoir;
+  }
+
+  public static void main(String[] args) throws Exception {
+    OptionParser parser = new OptionParser();
+    OptionSpec<String> domainDir = parser.accepts("domainDir").withRequiredArg().ofType(String.class).required();
+    // The file in each domain directory containing the new examples.
+    OptionSpec<String> newTrainingFilename = parser.accepts("newTrainingFilename").withRequiredArg().ofType(String.class).required();
+    OptionSpec<String> goldKbFile = parser.accepts("goldKbFile").withRequiredArg().ofType(String.class);
+    OptionSpec<Integer> maxTrainingExamples = parser.accepts("maxTrainingExamples").withOptionalArg().ofType(Integer.class).defaultsTo(10000000);
+    // Written by GroundingModelTrainer. The parameters are read from
+    // and checkpointed to the same file.
+    OptionSpec<String> modelFamilyFilename = parser.accepts("modelFamilyFilename").withRequiredArg().ofType(String.class).required();
+    OptionSpec<String> modelParametersFilename = parser.accepts("modelParametersFilename").withRequiredArg().ofType(String.class).required();
+    OptionSpec<String> modelFilename = parser.accepts("modelFilename").withRequiredArg().ofType(String.class).required();
+
+    // The reservoir of old examples to replay. If the file does not
+    // exist, a new reservoir is seeded from replayTrainingFilename.
+    OptionSpec<String> reservoirFilename = parser.accepts("reservoirFile").withRequiredArg().ofType(String.class);
+    OptionSpec<String> replayTrainingFilename = parser.accepts("replayTrainingFilename").withRequiredArg().ofType(String.class);
+    OptionSpec<Integer> reservoirSize = parser.accepts("reservoirSize").withRequiredArg().ofType(Integer.class).defaultsTo(1000);
+    // The number of replayed examples per new example in each pass.
+    OptionSpec<Double> replayRatio = parser.accepts("replayRatio").withRequiredArg().ofType(Double.class).defaultsTo(1.0);
+    OptionSpec<Integer> passes = parser.accepts("passes").withRequiredArg().ofType(Integer.class).defaultsTo(3);
+
+    OptionSpec<Integer> dualDecompositionIterations = parser.accepts("ddIterations").withOptionalArg().ofType(Integer.class).defaultsTo(1000);
+    OptionSpec<String> inferenceChain = parser.accepts("inferenceChain").withRequiredArg().ofType(String.class).defaultsTo("dualDecomposition");
+    OptionSpec<Double> ilpTimeLimit = parser.accepts("ilpTimeLimit").withRequiredArg().ofType(Double.class).defaultsTo(0.0);
+    OptionSpec<Integer> ilpNodeLimit = parser.accepts("ilpNodeLimit").withRequiredArg().ofType(Integer.class).defaultsTo(0);
+    OptionSpec<Double> ilpGap = parser.accepts("ilpGap").withRequiredArg().ofType(Double.class).defaultsTo(1e-4);
+    OptionSpec<Integer> batchSize = parser.accepts("batchSize").withOptionalArg().ofType(Integer.class).defaultsTo(1);
+    OptionSpec<Double> stepSize = parser.accepts("stepSize").withOptionalArg().ofType(Double.class).defaultsTo(0.1);
+    OptionSpec<Double> l2regularization = parser.accepts("l2regularization").withOptionalArg().ofType(Double.class).defaultsTo(0.00);
+    OptionSpec<Integer> maxParsesForInference = parser.accepts("maxParses").withOptionalArg().ofType(Integer.class).defaultsTo(10);
+    OptionSpec<Integer> candidateThreads = parser.accepts("candidateThreads").withRequiredArg().ofType(Integer.class).defaultsTo(1);
+    parser.accepts("rescaleGroundingObjective");
+    OptionSpec<Void> implicitDeterminer = parser.accepts("implicitDeterminer");
+    OptionSpec<Void> fullSupervision = parser.accepts("fullSupervision");
+    parser.accepts("skipUnparseable");
+    OptionSet options = parser.parse(args);
+
+    GroundingModelFamily family = IoUtils.readSerializedObject(options.valueOf(modelFamilyFilename),
+        GroundingModelFamily.class);
+    SufficientStatistics parameters = IoUtils.readSerializedObject(options.valueOf(modelParametersFilename),
+        SufficientStatistics.class);
+
+    String goldKbFilename = options.has(goldKbFile) ? options.valueOf(goldKbFile) : null;
+    List<Domain> domains = Domain.readDomainsFromDirectory(options.valueOf(domainDir),
+        options.valueOf(newTrainingFilename), goldKbFilename, options.valueOf(maxTrainingExamples),
+        false, options.has("rescaleGroundingObjective"), false);
+    List<GroundingExample> newExamples = readExamples(family, domains, options.has("skipUnparseable"),
+        options.has(fullSupervision));
+    System.out.println(newExamples.size() + " new training examples");
+
+    ExampleReservoir reservoir = null;
+    if (options.has(reservoirFilename)) {
+      reservoir = Checkpoints.read(options.valueOf(reservoirFilename), ExampleReservoir.class);
+    }
+    if (reservoir == null) {
+      reservoir = new ExampleReservoir(options.valueOf(reservoirSize), 0L);
+      if (options.has(replayTrainingFilename)) {
+        List<Domain> replayDomains = Domain.readDomainsFromDirectory(options.valueOf(domainDir),
+            options.valueOf(replayTrainingFilename), goldKbFilename, options.valueOf(maxTrainingExamples),
+            false, options.has("rescaleGroundingObjective"), false);
+        reservoir.addAll(readExamples(family, replayDomains, true, options.has(fullSupervision)));
+      }
+    }
+    System.out.println("Replaying from " + reservoir.size() + " examples");
+
+    InferenceBudget budget = InferenceBudget.fromOptions(options.valueOf(ilpTimeLimit),
+        options.valueOf(ilpNodeLimit), options.valueOf(ilpGap));
+    IncrementalGroundingTrainer trainer = new IncrementalGroundingTrainer(family, domains, reservoir,
+        options.valueOf(inferenceChain), budget, options.valueOf(dualDecompositionIterations),
+        options.valueOf(stepSize), options.valueOf(batchSize), options.valueOf(l2regularization),
+        options.has(implicitDeterminer), options.valueOf(maxParsesForInference), options.valueOf(candidateThreads));
+    trainer.update(parameters, newExamples, options.valueOf(passes), options.valueOf(replayRatio),
+        options.valueOf(modelParametersFilename), options.valueOf(modelFilename));
+
+    if (options.has(reservoirFilename)) {
+      System.out.println("Saving reservoir to " + options.valueOf(reservoirFilename));
+      Checkpoints.writeAtomically(reservoir, options.valueOf(reservoirFilename));
+    }
+    EventLog.flush();
+    System.exit(0);
+  }
+
+  private static List<GroundingExample> readExamples(GroundingModelFamily family, List<Domain> domains,
+      boolean skipUnparseable, boolean fullSupervision) {
+    List<GroundingExample> examples = Lists.newArrayList(Iterables.concat(
+        extract(domains, on(Domain.class).getTrainingExamples())));
+    return GroundingModelTrainer.filterBySupervision(GroundingModelTrainer.filterParseableExamples(
+        family, examples, !skipUnparseable), fullSupervision);
+  }
+}
@@ -0,0 +1,92 @@
+package edu.cmu.ml.rtw.users.jayantk.grounding;
+
+import java.io.Serializable;
+
+import com.google.common.base.Preconditions;
+import com.jayantkrish.jklol.inference.MarginalCalculator.ZeroProbabilityError;
+
+/**
+ * Limits on the work done by a single ILP solve in
+ * {@link QueryTree#ilpInference(boolean, boolean, InferenceBudget)}.
+ * When a limit is reached, the solver returns the best solution found
+ * so far. If no solution was found, inference fails with a
+ * {@link BudgetExceededError}, which callers can catch to fall back to
+ * a cheaper inference algorithm. The budget applies to ILP and LP
+ * solves only; dual decomposition is bounded by its iteration count.
+ *
+ * @author jayantk
+ */
+public class InferenceBudget implements Serializable {
+
+  private static final long serialVersionUID = 1L;
+
+  // Values used when no limit is given. The time limit and relative
+  // gap are CPLEX's defaults. The node limit is effectively unlimited,
+  // but is smaller than CPLEX's default (about 9.2e18), which does not
+  // fit in the int parameter.
+  private static final double DEFAULT_TIME_LIMIT = 1e75;
+  private static final int DEFAULT_NODE_LIMIT = Integer.MAX_VALUE;
+  private static final double DEFAULT_RELATIVE_GAP = 1e-4;
+
+  public static final InferenceBudget UNLIMITED = new InferenceBudget(DEFAULT_TIME_LIMIT,
+      DEFAULT_NODE_LIMIT, DEFAULT_RELATIVE_GAP);
+
+  private final double timeLimitSeconds;
+  private final int nodeLimit;
+  private final double relativeGap;
+
+  /**
+   * {@code timeLimitSeconds} bounds the wall-clock time of a solve,
+   * {@code nodeLimit} bounds the number of branch-and-bound nodes, and
+   * {@code relativeGap} stops the search once the incumbent is
+   * provably within this fraction of the optimum.
+   */
+  public InferenceBudget(double timeLimitSeconds, int nodeLimit, double relativeGap) {
+    Preconditions.checkArgument(timeLimitSeconds > 0);
+    Preconditions.checkArgument(nodeLimit >= 0);
+    Preconditions.checkArgument(relativeGap >= 0);
+    this.timeLimitSeconds = timeLimitSeconds;
+    this.nodeLimit = nodeLimit;
+    this.relativeGap = relativeGap;
+  }
+
+  /**
+   * Creates a budget from command line values, where a nonpositive
+   * time or node limit means unlimited.
+   */
+  public static InferenceBudget fromOptions(double timeLimitSeconds, int nodeLimit, double relativeGap) {
+    return new InferenceBudget(timeLimitSeconds > 0 ? timeLimitSeconds : DEFAULT_TIME_LIMIT,
+        nodeLimit > 0 ? nodeLimit : DEFAULT_NODE_LIMIT, relativeGap);
+  }
+
+  public double getTimeLimitSeconds() {
+    return timeLimitSeconds;
+  }
+
+  public int getNodeLimit() {
+    return nodeLimit;
+  }
+
+  public double getRelativeGap() {
+    return relativeGap;
+  }
+
+  public boolean isLimited() {
+    return timeLimitSeconds < DEFAULT_TIME_LIMIT || nodeLimit < DEFAULT_NODE_LIMIT;
+  }
+
+  @Override
+  public String toString() {
+    return "InferenceBudget(timeLimit=" + timeLimitSeconds + "s, nodeLimit=" + nodeLimit
+        + ", gap=" + relativeGap + ")";
+  }
+
+  /**
+   * Thrown when inference reaches its budget without finding any
+   * solution. Unlike its superclass, this does not mean that the
+   * query is unsatisfiable.
+   */
+  public static class BudgetExceededError extends ZeroProbabilityError {
+    private static final long serialVersionUID = 1L;
+  }
+}
@@ -0,0 +1,246 @@
+package edu.cmu.ml.rtw.users.jayantk.grounding;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Ordering;
+
+/**
+ * A registry of counters and histograms describing where time goes
+ * during training and inference. Metrics are looked up by name once
+ * (typically into a static field) and can then be updated from any
+ * thread without allocating, so they are always on.
+ * <p>
+ * A snapshot of all metrics can be rendered as JSON with
+ * {@link #snapshotJson()}, or appended to a JSONL file with
+ * {@link #dump}. {@link MetricsLogFunction} dumps a snapshot at the
+ * end of each training epoch, and {@link GroundingModelServer} serves
+ * the current snapshot.
+ *
+ * @author jayantk
+ */
+public class Metrics {
+
+  private static final ConcurrentMap<String, Counter> counters = new ConcurrentHashMap<String, Counter>();
+  private static final ConcurrentMap<String, Histogram> histograms = new ConcurrentHashMap<String, Histogram>();
+
+  public static Counter counter(String name) {
+    Counter counter = counters.get(name);
+    if (counter == null) {
+      counters.putIfAbsent(name, new Counter());
+      counter = counters.get(name);
+    }
+    return counter;
+  }
+
+  /**
+   * Gets a histogram of arbitrary nonnegative values, such as the
+   * number of variables in an ILP.
+   */
+  public static Histogram histogram(String name) {
+    return getHistogram(name, false);
+  }
+
+  /**
+   * Gets a histogram of elapsed times. Timers record nanoseconds and
+   * report milliseconds.
+   */
+  public static Histogram timer(String name) {
+    return getHistogram(name, true);
+  }
+
+  private static Histogram getHistogram(String name, boolean isTimer) {
+    Histogram histogram = histograms.get(name);
+    if (histogram == null) {
+      histograms.putIfAbsent(name, new Histogram(isTimer));
+      histogram = histograms.get(name);
+    }
+    return histogram;
+  }
+
+  /**
+   * Resets every metric to zero.
+   */
+  public static void reset() {
+    for (Counter counter : counters.values()) {
+      counter.reset();
+    }
+    for (Histogram histogram : histograms.values()) {
+      histogram.reset();
+    }
+  }
+
+  /**
+   * Gets the current value of every metric as a JSON object.
+   */
+  public static String snapshotJson() {
+    StringBuilder sb = new StringBuilder("{");
+    List<String> counterNames = Ordering.natural().sortedCopy(counters.keySet());
+    for (String name : counterNames) {
+      if (sb.length() > 1) {
+        sb.append(",");
+      }
+      sb.append(EventLog.quote(name)).append(":").append(counters.get(name).get());
+    }
+
+    List<String> histogramNames = Ordering.natural().sortedCopy(histograms.keySet());
+    for (String name : histogramNames) {
+      if (sb.length() > 1) {
+        sb.append(",");
+      }
+      sb.append(EventLog.quote(name)).append(":").append(histograms.get(name).toJson());
+    }
+    return sb.append("}").toString();
+  }
+
+  /**
+   * Appends a snapshot of all metrics to {@code filename} as a single
+   * line of JSON, labeled with {@code label}.
+   */
+  public static synchronized void dump(String label, String filename) {
+    String line = "{\"label\":" + EventLog.quote(label) + ",\"time\":" + System.currentTimeMillis()
+        + ",\"metrics\":" + snapshotJson() + "}\n";
+    try {
+      Writer out = new OutputStreamWriter(new FileOutputStream(filename, true), Charsets.UTF_8);
+      out.write(line);
+      out.close();
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * A count of events.
+   */
+  public static class Counter {
+    private final AtomicLong count = new AtomicLong();
+
+    public void increment() {
+      count.incrementAndGet();
+    }
+
+    public void add(long amount) {
+      count.addAndGet(amount);
+    }
+
+    public long get() {
+      return count.get();
+    }
+
+    private void reset() {
+      count.set(0);
+    }
+  }
+
+  /**
+   * A histogram of nonnegative values with power-of-two buckets. Bucket
+   * {@code i} counts values in {@code [2^(i-1), 2^i)}, and bucket 0
+   * counts zeros.
+   */
+  public static class Histogram {
+    private static final int NUM_BUCKETS = 64;
+
+    private final boolean isTimer;
+    private final AtomicLongArray buckets = new AtomicLongArray(NUM_BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    private Histogram(boolean isTimer) {
+      this.isTimer = isTimer;
+    }
+
+    public void record(long value) {
+      value = Math.max(value, 0);
+      buckets.incrementAndGet(NUM_BUCKETS - Long.numberOfLeadingZeros(value));
+      count.incrementAndGet();
+      sum.addAndGet(value);
+      long curMax = max.get();
+      while (value > curMax && !max.compareAndSet(curMax, value)) {
+        curMax = max.get();
+      }
+    }
+
+    /**
+     * Returns the current time, to be passed to {@link #stop} when
+     * the timed operation completes.
+     */
+    public long start() {
+      return System.nanoTime();
+    }
+
+    /**
+     * Records the time elapsed since {@code startTime}, a value
+     * returned by {@link #start}.
+     */
+    public long stop(long startTime) {
+      long elapsed = System.nanoTime() - startTime;
+      record(elapsed);
+      return elapsed;
+    }
+
+    public long getCount() {
+      return count.get();
+    }
+
+    /**
+     * Gets an upper bound on the {@code quantile}-th value, based on
+     * the bucket boundaries.
+     */
+    public long getQuantileUpperBound(double quantile) {
+      long total = count.get();
+      long target = (long) Math.ceil(quantile * total);
+      long seen = 0;
+      for (int i = 0; i < NUM_BUCKETS; i++) {
+        seen += buckets.get(i);
+        if (seen >= target && seen > 0) {
+          long bucketMax = (i == NUM_BUCKETS - 1) ? Long.MAX_VALUE : (1L << i) - 1;
+          return Math.min(bucketMax, max.get());
+        }
+      }
+      return max.get();
+    }
+
+    private void reset() {
+      for (int i = 0; i < NUM_BUCKETS; i++) {
+        buckets.set(i, 0);
+      }
+      count.set(0);
+      sum.set(0);
+      max.set(0);
+    }
+
+    private String toJson() {
+      long n = count.get();
+      List<String> fields = Lists.newArrayList();
+      fields.add("\"count\":" + n);
+      fields.add("\"mean\":" + format(n == 0 ? 0.0 : ((double) sum.get()) / n));
+      fields.add("\"p50\":" + format(getQuantileUpperBound(0.5)));
+      fields.add("\"p90\":" + format(getQuantileUpperBound(0.9)));
+      fields.add("\"p99\":" + format(getQuantileUpperBound(0.99)));
+      fields.add("\"max\":" + format(max.get()));
+      if (isTimer) {
+        fields.add("\"unit\":\"ms\"");
+      }
+
+      StringBuilder sb = new StringBuilder("{");
+      for (int i = 0; i < fields.size(); i++) {
+        sb.append(i > 0 ? "," : "").append(fields.get(i));
+      }
+      return sb.append("}").toString();
+    }
+
+    private String format(double value) {
+      return String.valueOf(isTimer ? value / 1000000.0 : value);
+    }
+  }
+}
@@ -0,0 +1,39 @@
+package edu.cmu.ml.rtw.users.jayantk.grounding;
+
+import com.google.common.base.Preconditions;
+import com.jayantkrish.jklol.training.DefaultLogFunction;
+
+/**
+ * A log function that appends a snapshot of {@link Metrics} to a file
+ * at the end of every training epoch. An epoch is a fixed number of
+ * trainer iterations, e.g., the number of training examples divided
+ * by the batch size for stochastic gradient, or 1 for EM.
+ *
+ * @author jayantk
+ */
+public class MetricsLogFunction extends DefaultLogFunction {
+
+  private final String label;
+  private final long iterationsPerEpoch;
+  private final String metricsFilename;
+
+  /**
+   * If {@code metricsFilename} is null, metrics are not written.
+   * {@code label} identifies the training run (e.g., the
+   * cross-validation fold) in the dumped snapshots.
+   */
+  public MetricsLogFunction(String label, long iterationsPerEpoch, String metricsFilename) {
+    Preconditions.checkArgument(iterationsPerEpoch > 0);
+    this.label = label;
+    this.iterationsPerEpoch = iterationsPerEpoch;
+    this.metricsFilename = metricsFilename;
+  }
+
+  @Override
+  public void notifyIterationEnd(long iteration) {
+    super.notifyIterationEnd(iteration);
+    if (metricsFilename != null && (iteration + 1) % iterationsPerEpoch == 0) {
+      Metrics.dump(label + " epoch " + ((iteration + 1) / iterationsPerEpoch), metricsFilename);
+    }
+  }
+}
@@ -0,0 +1,170 @@
+package edu.cmu.ml.rtw.users.jayantk.grounding;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Runs a list of tasks on a pool of worker threads such that the
+ * program's output is identical to running the tasks serially.
+ * Anything a task prints to {@code System.out} is buffered, then
+ * replayed in task order, and results are returned in task order.
+ * This lets the (verbose) evaluation code run in parallel without
+ * interleaving the logs of different examples.
+ *
+ * @author jayantk
+ */
+public class OrderedTaskRunner {
+
+  private static final ThreadLocal<ByteArrayOutputStream> threadBuffer =
+      new ThreadLocal<ByteArrayOutputStream>();
+
+  /**
+   * Runs {@code tasks} using {@code numThreads} threads and returns
+   * their results in order. If {@code numThreads <= 1}, or if this
+   * method is called from within a task, the tasks are simply run
+   * serially in the calling thread.
+   *
+   * @param tasks
+   * @param numThreads
+   * @return
+   */
+  public static <T> List<T> run(List<? extends Callable<T>> tasks, int numThreads) {
+    if (numThreads <= 1 || threadBuffer.get() != null) {
+      List<T> results = Lists.newArrayList();
+      for (Callable<T> task : tasks) {
+        results.add(call(task));
+      }
+      return results;
+    }
+
+    List<BufferedTask<T>> bufferedTasks = Lists.newArrayList();
+    for (Callable<T> task : tasks) {
+      bufferedTasks.add(new BufferedTask<T>(task));
+    }
+
+    synchronized (OrderedTaskRunner.class) {
+      PrintStream originalOut = System.out;
+      System.setOut(new PrintStream(new ThreadRoutingOutputStream(originalOut), true));
+      ExecutorService executor = Executors.newFixedThreadPool(numThreads,
+          new ThreadFactoryBuilder().setDaemon(true).setNameFormat("evaluation-%d").build());
+      try {
+        List<Future<T>> futures = Lists.newArrayList();
+        for (BufferedTask<T> task : bufferedTasks) {
+          futures.add(executor.submit(task));
+        }
+
+        List<T> results = Lists.newArrayList();
+        for (int i = 0; i < futures.size(); i++) {
+          try {
+            T result = futures.get(i).get();
+            bufferedTasks.get(i).replayOutput(originalOut);
+            results.add(result);
+          } catch (ExecutionException e) {
+            bufferedTasks.get(i).replayOutput(originalOut);
+            throw Throwables.propagate(e.getCause());
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw Throwables.propagate(e);
+          }
+        }
+        return results;
+      } finally {
+        executor.shutdownNow();
+        System.out.flush();
+        System.setOut(originalOut);
+      }
+    }
+  }
+
+  private static <T> T call(Callable<T> task) {
+    try {
+      return task.call();
+    } catch (Exception e) {
+      throw Throwables.propagate(e);
+    }
+  }
+
+  /**
+   * Runs a task with {@code System.out} redirected to a buffer.
+   */
+  private static class BufferedTask<T> implements Callable<T> {
+    private final Callable<T> task;
+    private volatile ByteArrayOutputStream output;
+
+    public BufferedTask(Callable<T> task) {
+      this.task = Preconditions.checkNotNull(task);
+    }
+
+    @Override
+    public T call() throws Exception {
+      ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+      threadBuffer.set(buffer);
+      try {
+        return task.call();
+      } finally {
+        System.out.flush();
+        threadBuffer.remove();
+        output = buffer;
+      }
+    }
+
+    public void replayOutput(PrintStream out) {
+      if (output != null) {
+        out.write(output.toByteArray(), 0, output.size());
+        out.flush();
+      }
+    }
+  }
+
+  /**
+   * Writes to the calling thread's buffer if it has one, and
+   * otherwise to the original output stream.
+   */
+  private static class ThreadRoutingOutputStream extends OutputStream {
+    private final OutputStream defaultOut;
+
+    public ThreadRoutingOutputStream(OutputStream defaultOut) {
+      this.defaultOut = defaultOut;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      ByteArrayOutputStream buffer = threadBuffer.get();
+      if (buffer != null) {
+        buffer.write(b);
+      } else {
+        defaultOut.write(b);
+      }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      ByteArrayOutputStream buffer = threadBuffer.get();
+      if (buffer != null) {
+        buffer.write(b, off, len);
+      } else {
+        defaultOut.write(b, off, len);
+      }
+    }
+
+    @Override
+    public void flush() throws IOException {
+      if (threadBuffer.get() == null) {
+        defaultOut.flush();
+      }
+    }
+  }
+}
@@ -0,0 +1,56 @@
+package edu.cmu.ml.rtw.users.jayantk.grounding;
+
+import java.util.List;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.jayantkrish.jklol.models.parametric.SufficientStatistics;
+import com.jayantkrish.jklol.parallel.MapReduceConfiguration;
+import com.jayantkrish.jklol.parallel.MapReduceExecutor;
+import com.jayantkrish.jklol.training.LogFunction;
+
+/**
+ * Expectation maximization for the grounding model. This is the same
+ * algorithm as jklol's {@code ExpectationMaximization}, except that
+ * the E-step reduces expectations to sufficient statistics as they
+ * are computed (see {@link GroundingModelEStep}), instead of
+ * collecting every example's expectation before the M-step. Examples
+ * are partitioned across threads by the configured
+ * {@code MapReduceExecutor}.
+ *
+ * @author jayantk
+ */
+public class ParallelExpectationMaximization {
+
+  private final int numIterations;
+  private final LogFunction log;
+
+  public ParallelExpectationMaximization(int numIterations, LogFunction log) {
+    this.numIterations = numIterations;
+    this.log = Preconditions.checkNotNull(log);
+  }
+
+  public SufficientStatistics train(GroundingModelEmOracle oracle, SufficientStatistics initialParameters,
+      Iterable<GroundingExample> trainingData) {
+    MapReduceExecutor executor = MapReduceConfiguration.getMapReduceExecutor();
+    List<GroundingExample> data = Lists.newArrayList(trainingData);
+
+    SufficientStatistics parameters = initialParameters;
+    for (int i = 0; i < numIterations; i++) {
+      log.notifyIterationStart(i);
+
+      log.startTimer("e_step");
+      GroundingModel model = oracle.instantiateModel(parameters);
+      GroundingEmStatistics statistics = executor.mapReduce(data,
+          new GroundingModelEStep(oracle, model, parameters, log), oracle.getEStepReducer());
+      log.stopTimer("e_step");
+
+      log.startTimer("m_step");
+      parameters = oracle.maximizeParameters(statistics, parameters);
+      log.stopTimer("m_step");
+
+      log.notifyIterationEnd(i);
+    }
+    return parameters;
+  }
+}
@@ -3,8 +3,11 @@ package edu.cmu.ml.rtw.users.jayantk.grounding;
 import java.io.Serializable;
 import java.util.Arrays;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
 
 import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
 import com.google.common.primitives.Ints;
 import com.jayantkrish.jklol.models.DiscreteFactor;
 import com.jayantkrish.jklol.models.TableFactor;
@@ -37,7 +40,9 @@ import com.jayantkrish.jklol.util.Assignment;
 public class ParallelFactors implements Serializable {
   static final long serialVersionUID = 10275539472837496L;
   private final Tensor tensor;
-  private Tensor indexTensor;
+  // Lazily computed; volatile so that a tensor computed by one
+  // thread is safely published to the others.
+  private volatile Tensor indexTensor;
   
   private final VariableNumMap varNums;
   private final VariableNumMap valueNums;
@@ -112,6 +117,40 @@ public class ParallelFactors implements Serializable {
         varNums, valueNums);
   }
 
+  /**
+   * Treats the weights in this as unnormalized log probabilities, and
+   * returns the marginal distribution over the value of each variable.
+   *
+   * @return
+   */
+  public ParallelFactors getMarginals() {
+    int[] valueDimensions = valueNums.getVariableNumsArray();
+    Tensor maxLogMarginals = tensor.maxOutDimensions(valueDimensions);
+    Tensor unnormalizedLogMarginals = tensor.elementwiseAddition(maxLogMarginals.elementwiseProduct(-1.0));
+
+    Tensor unnormalizedMarginals = unnormalizedLogMarginals.elementwiseExp();
+    Tensor marginals = unnormalizedMarginals.elementwiseProduct(
+        unnormalizedMarginals.sumOutDimensions(valueDimensions).elementwiseInverse());
+    return new ParallelFactors(marginals, varNums, valueNums);
+  }
+
+  /**
+   * Returns a copy of {@code this} with independent Gumbel noise added
+   * to every weight. The best assignment of the perturbed weights is a
+   * sample from {@link #getMarginals()}.
+   *
+   * @param random
+   * @return
+   */
+  public ParallelFactors perturb(Random random) {
+    double[] noise = new double[(int) tensor.getMaxKeyNum()];
+    for (int i = 0; i < noise.length; i++) {
+      noise[i] = -Math.log(-Math.log(1.0 - random.nextDouble()));
+    }
+    Tensor noiseTensor = new DenseTensor(tensor.getDimensionNumbers(), tensor.getDimensionSizes(), noise);
+    return new ParallelFactors(tensor.elementwiseAddition(noiseTensor), varNums, valueNums);
+  }
+
   public ParallelFactors relabelVariables(VariableRelabeling relabeling) {
     return new ParallelFactors(tensor.relabelDimensions(relabeling.getVariableIndexReplacementMap()),
         relabeling.apply(varNums), relabeling.apply(valueNums));
@@ -129,10 +168,13 @@ public class ParallelFactors implements Serializable {
   }
   
   private Tensor getIndexTensor() {
-    if (indexTensor == null) {
-      indexTensor = tensor.sumOutDimensions(valueNums.getVariableNums());
+    Tensor result = indexTensor;
+    if (result == null) {
+      // Concurrent callers may both compute the (identical) tensor.
+      result = tensor.sumOutDimensions(valueNums.getVariableNums());
+      indexTensor = result;
     }
-    return indexTensor;
+    return result;
   }
   
   public Assignment ilpIndexToAssignment(int index) {
@@ -153,6 +195,30 @@ public class ParallelFactors implements Serializable {
     return new ParallelFactors(SparseTensorBuilder.copyOf(weights).build(), variableVars, valueVars);
   }
 
+  /**
+   * Gets the assignments to the index variables whose value is true
+   * in the assignment {@code tensor}.
+   * 
+   * @param tensor
+   * @return
+   */
+  public List<List<Object>> getTrueAssignmentValues(Tensor tensor) {
+    int[] valueDims = Ints.toArray(valueNums.getVariableNums());
+    int[] oneVals = new int[valueDims.length];
+    Arrays.fill(oneVals, 1);
+
+    List<List<Object>> trueAssignments = Lists.newArrayList();
+    Tensor sliced = tensor.slice(valueDims, oneVals);
+    Iterator<KeyValue> iter = sliced.keyValueIterator();
+    while (iter.hasNext()) {
+      KeyValue k = iter.next();
+      if (k.getValue() != 0.0) {
+        trueAssignments.add(varNums.intArrayToAssignment(k.getKey()).getValues());
+      }
+    }
+    return trueAssignments;
+  }
+
   public String getTensorAssignmentString(Tensor tensor) {
     int[] valueDims = Ints.toArray(valueNums.getVariableNums());
     int[] oneVals = new int[valueDims.length];
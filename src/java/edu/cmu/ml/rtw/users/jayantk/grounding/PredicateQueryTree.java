@@ -3,11 +3,12 @@ package edu.cmu.ml.rtw.users.jayantk.grounding;
 import ilog.concert.IloException;
 import ilog.concert.IloLinearNumExpr;
 import ilog.concert.IloNumVar;
-import ilog.cplex.IloCplex;
 
+import com.google.common.base.Preconditions;
 import com.google.common.collect.Lists;
 
 import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
 
 import com.jayantkrish.jklol.tensor.Tensor;
@@ -25,9 +26,23 @@ public class PredicateQueryTree extends AbstractQueryTree {
 
   @Override
   public PredicateQueryTree copy() {
+    return copyNode(getSubtrees());
+  }
+
+  @Override
+  protected PredicateQueryTree copyNode(List<QueryTree> subtrees) {
     return new PredicateQueryTree(getPredicate(), getOutputLocalWeights(), isHardConstraint());
   }
 
+  @Override
+  public QueryTree bindPredicates(Iterator<QueryTree> predicates) {
+    QueryTree predicate = predicates.next();
+    Preconditions.checkArgument(predicate.isLeaf());
+    Preconditions.checkArgument(predicate.getOutputLocalWeights().getAllVariables().getVariableNums().equals(
+        getOutputLocalWeights().getAllVariables().getVariableNums()), "Cannot bind %s to %s", predicate, this);
+    return predicate;
+  }
+
   @Override
   protected int localSubgradientUpdate(Tensor rootAssignment,
       List<Tensor> childAssignments, List<Tensor> factorAssignment, double stepSize) {
@@ -49,9 +64,9 @@ public class PredicateQueryTree extends AbstractQueryTree {
   }
 
   @Override
-  protected IloNumVar[] augmentIlpHelper(IloCplex cplex, IloLinearNumExpr objective, 
+  protected IloNumVar[] augmentIlpHelper(IlpContext context, IloLinearNumExpr objective, 
 					 boolean useLpRelaxation, boolean applyWeakSupervisionConstraints) throws IloException {
-    return addLocalWeightsToIlp(cplex, objective, useLpRelaxation);
+    return addLocalWeightsToIlp(context.getCplex(), objective, useLpRelaxation);
   }
 
   @Override
@@ -0,0 +1,77 @@
+package edu.cmu.ml.rtw.users.jayantk.grounding;
+
+import java.util.Arrays;
+import java.util.Map;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+
+/**
+ * Caches the structure of instantiated queries. The interior nodes of
+ * a query (conjunctions, existential quantifiers) depend only on the
+ * shape of the semantic parse and on the variables of each predicate,
+ * not on the predicate weights. Their relabelings and constraint
+ * factors are therefore computed once per (shape, domain), and later
+ * queries with the same shape are built by binding new predicates to
+ * the cached plan using {@link QueryTree#bindPredicates}.
+ * <p>
+ * Cached plans must never be solved directly, because inference (e.g.,
+ * dual decomposition) modifies query trees. Domains are held weakly,
+ * so plans are discarded along with their domain.
+ *
+ * @author jayantk
+ */
+public class QueryPlanCache {
+
+  private static final int MAX_PLANS_PER_DOMAIN = 10000;
+
+  private static final Metrics.Counter planHits = Metrics.counter("query.planHits");
+  private static final Metrics.Counter planMisses = Metrics.counter("query.planMisses");
+
+  private static final LoadingCache<Domain, Cache<String, QueryTree>> plans = CacheBuilder.newBuilder()
+      .weakKeys().build(new CacheLoader<Domain, Cache<String, QueryTree>>() {
+        @Override
+        public Cache<String, QueryTree> load(Domain domain) {
+          return CacheBuilder.newBuilder().maximumSize(MAX_PLANS_PER_DOMAIN).build();
+        }
+      });
+
+  /**
+   * Gets the cached plan for queries with {@code shape} in
+   * {@code domain}, or {@code null} if no such plan has been cached.
+   */
+  public static QueryTree get(Domain domain, String shape) {
+    QueryTree plan = plans.getUnchecked(domain).getIfPresent(shape);
+    if (plan != null) {
+      planHits.increment();
+    } else {
+      planMisses.increment();
+    }
+    return plan;
+  }
+
+  public static void put(Domain domain, String shape, QueryTree plan) {
+    plans.getUnchecked(domain).put(shape, plan);
+  }
+
+  /**
+   * Discards every cached plan.
+   */
+  public static void clear() {
+    for (Map.Entry<Domain, Cache<String, QueryTree>> entry : plans.asMap().entrySet()) {
+      entry.getValue().invalidateAll();
+    }
+  }
+
+  /**
+   * Gets a string identifying the variables of a predicate's weights.
+   * Predicates with the same signature can be bound to the same
+   * position of a plan.
+   */
+  public static String getSignature(ParallelFactors factor) {
+    return factor.getIndexVariables().getVariableNums() + "/" + factor.getValueVariables().getVariableNums()
+        + Arrays.toString(factor.getDimensionSizes());
+  }
+}
@@ -3,8 +3,8 @@ package edu.cmu.ml.rtw.users.jayantk.grounding;
 import ilog.concert.IloException;
 import ilog.concert.IloLinearNumExpr;
 import ilog.concert.IloNumVar;
-import ilog.cplex.IloCplex;
 
+import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
 
@@ -26,7 +26,14 @@ import edu.cmu.ml.rtw.users.jayantk.semparse.RelationType;
  * Note that {@code QueryTree} is mutable, and that the
  * {@link #dualDecomposition} method modifies the weights of the predicates
  * stored in the query tree. Use {@link #copy()} to retain the original query
- * tree, if desired.
+ * tree, if desired. The other inference methods do not modify weights.
+ * <p>
+ * A query is best treated as an immutable plan for inference, with
+ * cheap per-solve copies holding any state that changes during a solve:
+ * use {@link #withObservation} to add observed groundings or margin
+ * costs for a single solve, and run dual decomposition on a
+ * {@link #copy()}. The unmodified plan can then score the assignments
+ * of every solve.
  * 
  * @author jayantk
  */
@@ -96,6 +103,25 @@ public interface QueryTree {
 
   public QueryTree copy();
 
+  /**
+   * Returns a copy of this query whose predicates (leaves) are replaced
+   * by {@code predicates}, in depth-first order. The interior nodes of
+   * the returned query share the structural state of this query, so
+   * binding is much cheaper than constructing a new query. Each
+   * replacement predicate must have the same variables as the
+   * predicate it replaces. See {@link QueryPlanCache}.
+   */
+  public QueryTree bindPredicates(Iterator<QueryTree> predicates);
+
+  /**
+   * Returns a query whose output weights are the weights of this query
+   * plus {@code outputWeightDelta}, e.g., the log weights of an observed
+   * grounding. This query is not modified. The returned query shares
+   * its subtrees with this query, so it must not be passed to
+   * {@link #dualDecomposition} without copying it first.
+   */
+  public QueryTree withObservation(Tensor outputWeightDelta);
+
   /**
    * Returns a copy of this tree whose weights have been reparameterized by
    * running dual decomposition.
@@ -140,9 +166,19 @@ public interface QueryTree {
    * @return
    */
   public MultiTree<Tensor> ilpInference(boolean useLpRelaxation, boolean applyWeakSupervisionConstraints);
+
+  /**
+   * Same as {@link #ilpInference(boolean, boolean)}, but limits the
+   * work done by the solver to {@code budget}. If the budget is
+   * reached, this returns the best solution found so far, or throws
+   * {@link InferenceBudget.BudgetExceededError} if there is none.
+   */
+  public MultiTree<Tensor> ilpInference(boolean useLpRelaxation, boolean applyWeakSupervisionConstraints,
+      InferenceBudget budget);
   
   // Helper for adding constraints and variables to an existing ILP instance.
-    public IloNumVar[] augmentIlp(IloCplex cplex, IloLinearNumExpr objective, boolean useLpRelaxation, boolean applyWeakSupervisionConstraints) throws IloException;
+  // The variables for each node are stored in {@code context}, not in the query.
+  public IloNumVar[] augmentIlp(IlpContext context, IloLinearNumExpr objective, boolean useLpRelaxation, boolean applyWeakSupervisionConstraints) throws IloException;
   
-  public MultiTree<Tensor> decodeIlpSolution(IloCplex cplex) throws IloException;
+  public MultiTree<Tensor> decodeIlpSolution(IlpContext context) throws IloException;
 }
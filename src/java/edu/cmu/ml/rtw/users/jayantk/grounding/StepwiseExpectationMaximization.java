@@ -0,0 +1,120 @@
+package edu.cmu.ml.rtw.users.jayantk.grounding;
+
+import java.util.List;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.jayantkrish.jklol.cfg.ParseTree;
+import com.jayantkrish.jklol.models.parametric.SufficientStatistics;
+import com.jayantkrish.jklol.parallel.MapReduceConfiguration;
+import com.jayantkrish.jklol.parallel.MapReduceExecutor;
+import com.jayantkrish.jklol.training.LogFunction;
+
+/**
+ * Stepwise (online) expectation maximization for the grounding model.
+ * Instead of computing expectations for every example before each
+ * M-step, this algorithm computes the expected statistics of a
+ * mini-batch of examples, interpolates them into running statistics
+ * for the whole data set, and immediately re-estimates the grounding
+ * parameters. The interpolation weight of the {@code k}th mini-batch
+ * is {@code (k + 2)^-decayRate}, where {@code decayRate} should be in
+ * {@code (0.5, 1]}.
+ * <p>
+ * The parser's M-step trains a model by stochastic gradient, which is
+ * too expensive to run after every mini-batch. Instead, it is run at
+ * the end of each pass over the data, using the most recent parse of
+ * every example.
+ * <p>
+ * The running statistics are retained across calls to {@link #train},
+ * so training may be split into several calls (e.g., to checkpoint
+ * between passes).
+ *
+ * @author jayantk
+ */
+public class StepwiseExpectationMaximization {
+
+  private final int numPasses;
+  private final int batchSize;
+  private final double decayRate;
+  private final LogFunction log;
+
+  // Running estimate of the grounding statistics of the entire data
+  // set, and the number of mini-batches interpolated into it.
+  private SufficientStatistics runningStatistics;
+  private long numUpdates;
+  private int numCompletedPasses;
+
+  public StepwiseExpectationMaximization(int numPasses, int batchSize, double decayRate,
+      LogFunction log) {
+    Preconditions.checkArgument(batchSize > 0);
+    Preconditions.checkArgument(decayRate > 0.5 && decayRate <= 1.0,
+        "Decay rate must be in (0.5, 1]: %s", decayRate);
+    this.numPasses = numPasses;
+    this.batchSize = batchSize;
+    this.decayRate = decayRate;
+    this.log = Preconditions.checkNotNull(log);
+
+    this.runningStatistics = null;
+    this.numUpdates = 0;
+    this.numCompletedPasses = 0;
+  }
+
+  public SufficientStatistics train(GroundingModelEmOracle oracle, SufficientStatistics initialParameters,
+      Iterable<GroundingExample> trainingData) {
+    MapReduceExecutor executor = MapReduceConfiguration.getMapReduceExecutor();
+    List<GroundingExample> data = Lists.newArrayList(trainingData);
+    int numExamples = data.size();
+    if (numExamples == 0) {
+      return initialParameters;
+    }
+
+    SufficientStatistics parameters = initialParameters;
+    for (int i = 0; i < numPasses; i++) {
+      int pass = numCompletedPasses;
+      log.notifyIterationStart(pass);
+      List<ParseTree> parses = Lists.newArrayList();
+
+      for (int start = 0; start < numExamples; start += batchSize) {
+        List<GroundingExample> batch = data.subList(start, Math.min(start + batchSize, numExamples));
+
+        log.startTimer("e_step");
+        GroundingModel model = oracle.instantiateModel(parameters);
+        GroundingEmStatistics batchStatistics = executor.mapReduce(batch,
+            new GroundingModelEStep(oracle, model, parameters, log), oracle.getEStepReducer());
+        log.stopTimer("e_step");
+        parses.addAll(batchStatistics.getParses());
+
+        // Scale the mini-batch statistics up to the size of the data
+        // set, so that the running statistics always estimate the
+        // statistics of a full E-step.
+        double scale = ((double) numExamples) / batch.size();
+        if (runningStatistics == null) {
+          runningStatistics = batchStatistics.getGroundingStatistics().duplicate();
+          runningStatistics.multiply(scale);
+        } else {
+          double stepSize = Math.pow(numUpdates + 2, -decayRate);
+          runningStatistics.multiply(1.0 - stepSize);
+          runningStatistics.increment(batchStatistics.getGroundingStatistics(), stepSize * scale);
+        }
+        numUpdates++;
+
+        log.startTimer("m_step");
+        parameters = oracle.maximizeGroundingParameters(runningStatistics, parameters);
+        log.stopTimer("m_step");
+      }
+
+      log.startTimer("m_step");
+      GroundingEmStatistics passStatistics = new GroundingEmStatistics(runningStatistics.duplicate());
+      for (ParseTree parse : parses) {
+        passStatistics.addParse(parse);
+      }
+      parameters = oracle.maximizeParameters(passStatistics, parameters);
+      log.stopTimer("m_step");
+
+      log.logStatistic(pass, "stepwise updates", numUpdates);
+      log.notifyIterationEnd(pass);
+      numCompletedPasses++;
+    }
+    return parameters;
+  }
+}
@@ -0,0 +1,70 @@
+package edu.cmu.ml.rtw.users.jayantk.grounding;
+
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.Map;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Maps;
+import com.jayantkrish.jklol.models.parametric.SufficientStatistics;
+
+/**
+ * A snapshot of a training run that can be resumed. A run trains one
+ * model per cross-validation fold, and each fold is trained in stages
+ * (curriculum levels) of many trainer iterations. The snapshot holds
+ * the trained parameters of every finished fold, and the position and
+ * parameters of the fold in progress.
+ *
+ * @author jayantk
+ */
+public class TrainingCheckpoint implements Serializable {
+
+  private static final long serialVersionUID = 1L;
+
+  private final Map<String, SufficientStatistics> completedFolds;
+
+  // The fold in progress, or null if no fold is in progress.
+  private final String fold;
+  private final int curriculumLevel;
+  // The number of trainer iterations completed at curriculumLevel.
+  // For stochastic gradient, this determines the position of the next
+  // example in the (cyclically ordered) training data.
+  private final long iteration;
+  private final SufficientStatistics parameters;
+
+  public TrainingCheckpoint(Map<String, SufficientStatistics> completedFolds, String fold,
+      int curriculumLevel, long iteration, SufficientStatistics parameters) {
+    Preconditions.checkArgument(fold == null || parameters != null);
+    this.completedFolds = Maps.newLinkedHashMap(completedFolds);
+    this.fold = fold;
+    this.curriculumLevel = curriculumLevel;
+    this.iteration = iteration;
+    this.parameters = parameters;
+  }
+
+  public Map<String, SufficientStatistics> getCompletedFolds() {
+    return Collections.unmodifiableMap(completedFolds);
+  }
+
+  public String getFold() {
+    return fold;
+  }
+
+  public int getCurriculumLevel() {
+    return curriculumLevel;
+  }
+
+  public long getIteration() {
+    return iteration;
+  }
+
+  public SufficientStatistics getParameters() {
+    return parameters;
+  }
+
+  @Override
+  public String toString() {
+    return "TrainingCheckpoint(completed=" + completedFolds.keySet() + ", fold=" + fold
+        + ", level=" + curriculumLevel + ", iteration=" + iteration + ")";
+  }
+}
@@ -0,0 +1,247 @@
+package edu.cmu.ml.rtw.users.jayantk.grounding;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.jayantkrish.jklol.models.FactorGraph;
+import com.jayantkrish.jklol.models.parametric.SufficientStatistics;
+import com.jayantkrish.jklol.training.LogFunction;
+import com.jayantkrish.jklol.util.Assignment;
+
+/**
+ * Periodically saves {@link TrainingCheckpoint}s of a training run, so
+ * that a run interrupted by a crash or preemption can be resumed.
+ * Checkpoints are serialized on a background thread, so training only
+ * waits for I/O if a checkpoint is requested while the previous one is
+ * still being written. Each checkpoint atomically replaces the last.
+ * <p>
+ * The training loop calls {@link #beginFold} before training each
+ * fold, {@link #save} at convenient points during training, and
+ * {@link #completeFold} afterward.
+ *
+ * @author jayantk
+ */
+public class TrainingCheckpointer {
+
+  private static final Metrics.Histogram writeTimer = Metrics.timer("checkpoint.write");
+
+  private final String filename;
+  private final ExecutorService writer;
+  private Future<?> pendingWrite;
+
+  private final Map<String, SufficientStatistics> completedFolds;
+  private String currentFold;
+  // The point to resume the current fold from, or null to train it
+  // from the beginning.
+  private TrainingCheckpoint resumePoint;
+  private TrainingCheckpoint loaded;
+
+  private TrainingCheckpointer(String filename, TrainingCheckpoint loaded) {
+    this.filename = Preconditions.checkNotNull(filename);
+    this.writer = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+        .setDaemon(true).setNameFormat("checkpoint-writer").build());
+    this.pendingWrite = null;
+    this.completedFolds = Maps.newLinkedHashMap();
+    this.loaded = loaded;
+    if (loaded != null) {
+      completedFolds.putAll(loaded.getCompletedFolds());
+    }
+  }
+
+  /**
+   * Creates a checkpointer that writes to {@code filename}. If
+   * {@code resume} is true and {@code filename} exists, training
+   * resumes from the checkpoint in it.
+   */
+  public static TrainingCheckpointer create(String filename, boolean resume) {
+    TrainingCheckpoint loaded = null;
+    if (resume) {
+      try {
+        loaded = Checkpoints.read(filename, TrainingCheckpoint.class);
+      } catch (IOException e) {
+        throw Throwables.propagate(e);
+      } catch (ClassNotFoundException e) {
+        throw Throwables.propagate(e);
+      }
+      System.out.println(loaded == null ? "No checkpoint in " + filename + ", starting from scratch"
+          : "Resuming from " + loaded);
+    }
+    return new TrainingCheckpointer(filename, loaded);
+  }
+
+  /**
+   * Starts training {@code fold}, returning its parameters if the fold
+   * was already trained before the run was resumed, and {@code null}
+   * otherwise.
+   */
+  public SufficientStatistics beginFold(String fold) {
+    currentFold = fold;
+    resumePoint = null;
+    if (completedFolds.containsKey(fold)) {
+      return completedFolds.get(fold);
+    }
+    if (loaded != null && fold.equals(loaded.getFold())) {
+      resumePoint = loaded;
+      loaded = null;
+    }
+    return null;
+  }
+
+  /**
+   * Gets the position in the current fold to resume training from, or
+   * {@code null} if the fold should be trained from the beginning.
+   */
+  public TrainingCheckpoint getResumePoint() {
+    return resumePoint;
+  }
+
+  /**
+   * Saves a checkpoint for the current fold after {@code iteration}
+   * iterations of {@code curriculumLevel}. {@code parameters} are
+   * copied before this method returns, so the caller may continue to
+   * modify them.
+   */
+  public void save(int curriculumLevel, long iteration, SufficientStatistics parameters) {
+    Preconditions.checkState(currentFold != null);
+    write(new TrainingCheckpoint(completedFolds, currentFold, curriculumLevel, iteration,
+        parameters.duplicate()));
+  }
+
+  /**
+   * Records the final parameters of the current fold.
+   */
+  public void completeFold(SufficientStatistics parameters) {
+    Preconditions.checkState(currentFold != null);
+    completedFolds.put(currentFold, parameters.duplicate());
+    currentFold = null;
+    resumePoint = null;
+    write(new TrainingCheckpoint(completedFolds, null, 0, 0, null));
+  }
+
+  /**
+   * Waits for the last checkpoint to be written.
+   */
+  public void close() {
+    awaitPendingWrite();
+    writer.shutdown();
+  }
+
+  /**
+   * Wraps {@code log} so that a checkpoint of the current fold is saved
+   * every {@code interval} iterations of a stochastic gradient trainer.
+   * Iteration numbers are offset by {@code iterationOffset}, the number
+   * of iterations of {@code curriculumLevel} completed before the
+   * trainer started. If {@code interval} is not positive, no
+   * checkpoints are saved, and only the iteration numbers are offset.
+   */
+  public LogFunction wrapLogFunction(LogFunction log, int curriculumLevel, long iterationOffset,
+      long interval) {
+    return new CheckpointingLogFunction(log, curriculumLevel, iterationOffset, interval);
+  }
+
+  private void write(final TrainingCheckpoint checkpoint) {
+    awaitPendingWrite();
+    pendingWrite = writer.submit(new Callable<Void>() {
+      @Override
+      public Void call() throws IOException {
+        long start = writeTimer.start();
+        Checkpoints.writeAtomically(checkpoint, filename);
+        writeTimer.stop(start);
+        EventLog.info("checkpoint", "write", "file", filename, "fold", checkpoint.getFold(),
+            "level", checkpoint.getCurriculumLevel(), "iteration", checkpoint.getIteration());
+        return null;
+      }
+    });
+  }
+
+  private void awaitPendingWrite() {
+    if (pendingWrite != null) {
+      try {
+        pendingWrite.get();
+      } catch (InterruptedException e) {
+        throw Throwables.propagate(e);
+      } catch (ExecutionException e) {
+        throw Throwables.propagate(e.getCause());
+      }
+      pendingWrite = null;
+    }
+  }
+
+  /**
+   * Stochastic gradient calls {@code logParameters} with the current
+   * parameters at the start of every iteration, which is where
+   * checkpoints are taken.
+   */
+  private class CheckpointingLogFunction implements LogFunction {
+    private final LogFunction log;
+    private final int curriculumLevel;
+    private final long iterationOffset;
+    private final long interval;
+
+    public CheckpointingLogFunction(LogFunction log, int curriculumLevel, long iterationOffset,
+        long interval) {
+      this.log = log;
+      this.curriculumLevel = curriculumLevel;
+      this.iterationOffset = iterationOffset;
+      this.interval = interval;
+    }
+
+    @Override
+    public void log(Assignment example, FactorGraph graph) {
+      log.log(example, graph);
+    }
+
+    @Override
+    public void log(long iteration, int exampleNum, Assignment example, FactorGraph graph) {
+      log.log(iteration + iterationOffset, exampleNum, example, graph);
+    }
+
+    @Override
+    public void logMessage(Object message) {
+      log.logMessage(message);
+    }
+
+    @Override
+    public void logParameters(long iteration, SufficientStatistics parameters) {
+      long completedIterations = iteration + iterationOffset;
+      if (interval > 0 && iteration > 0 && completedIterations % interval == 0) {
+        save(curriculumLevel, completedIterations, parameters);
+      }
+      log.logParameters(completedIterations, parameters);
+    }
+
+    @Override
+    public void logStatistic(long iteration, String statisticName, double value) {
+      log.logStatistic(iteration + iterationOffset, statisticName, value);
+    }
+
+    @Override
+    public void notifyIterationStart(long iteration) {
+      log.notifyIterationStart(iteration + iterationOffset);
+    }
+
+    @Override
+    public void notifyIterationEnd(long iteration) {
+      log.notifyIterationEnd(iteration + iterationOffset);
+    }
+
+    @Override
+    public void startTimer(String timerName) {
+      log.startTimer(timerName);
+    }
+
+    @Override
+    public double stopTimer(String timerName) {
+      return log.stopTimer(timerName);
+    }
+  }
+}
@@ -0,0 +1,214 @@
+package edu.cmu.ml.rtw.users.jayantk.semparse;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.HashMultiset;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Multiset;
+import com.google.common.collect.Sets;
+
+import edu.cmu.ml.rtw.users.jayantk.semparse.Lexicon.LexicalCategory;
+import edu.cmu.ml.rtw.users.jayantk.semparse.Lexicon.TypeRaisingRule;
+
+/**
+ * Shrinks a {@link Lexicon} before it is converted into a CFG by
+ * {@link SemanticParser}. Every lexicon entry becomes a terminal
+ * production, and every distinct set of fixed arguments becomes an
+ * edge type, so removing redundant entries directly reduces the size
+ * of the grammar and the parser's search space. Compilation:
+ * <ul>
+ * <li>deduplicates lexical categories, treating a missing fixed
+ * argument map as an empty one, so equivalent entries share one
+ * terminal edge;</li>
+ * <li>optionally drops trigger sequences which occur fewer than a
+ * threshold number of times in a corpus;</li>
+ * <li>drops type-raising rules which cannot apply to any nonterminal
+ * of the remaining grammar.</li>
+ * </ul>
+ *
+ * @author jayantk
+ */
+public class LexiconCompiler {
+
+  /**
+   * Compiles {@code lexicon}, returning a new lexicon. If
+   * {@code triggerCounts} is non-null, trigger sequences with a count
+   * less than {@code minFrequency} are removed.
+   *
+   * @param lexicon
+   * @param triggerCounts
+   * @param minFrequency
+   * @return
+   */
+  public static Lexicon<String> compile(Lexicon<String> lexicon, Multiset<List<String>> triggerCounts,
+      int minFrequency) {
+    Lexicon<String> compiled = new Lexicon<String>();
+    for (List<String> triggerSequence : lexicon.getTriggerSequences()) {
+      if (triggerCounts != null && triggerCounts.count(triggerSequence) < minFrequency) {
+        continue;
+      }
+
+      for (LexicalCategory category : lexicon.getCategories(triggerSequence)) {
+        compiled.addLexicalEntry(triggerSequence, canonicalizeCategory(category));
+      }
+    }
+
+    for (TypeRaisingRule rule : getUsableTypeRaisingRules(compiled.getLexicalCategories(),
+        lexicon.getTypeRaisingRules())) {
+      compiled.addTypeRaisingRule(rule);
+    }
+    return compiled;
+  }
+
+  /**
+   * Counts the number of times each trigger sequence of
+   * {@code lexicon} occurs as a contiguous subsequence of the given
+   * sentences.
+   *
+   * @param lexicon
+   * @param sentences
+   * @return
+   */
+  public static Multiset<List<String>> countTriggerSequences(Lexicon<String> lexicon,
+      Iterable<List<String>> sentences) {
+    Set<List<String>> triggerSequences = lexicon.getTriggerSequences();
+    int maxLength = 0;
+    for (List<String> triggerSequence : triggerSequences) {
+      maxLength = Math.max(maxLength, triggerSequence.size());
+    }
+
+    Multiset<List<String>> counts = HashMultiset.create();
+    for (List<String> sentence : sentences) {
+      for (int i = 0; i < sentence.size(); i++) {
+        for (int j = i + 1; j <= Math.min(sentence.size(), i + maxLength); j++) {
+          List<String> span = sentence.subList(i, j);
+          if (triggerSequences.contains(span)) {
+            counts.add(span);
+          }
+        }
+      }
+    }
+    return counts;
+  }
+
+  private static LexicalCategory canonicalizeCategory(LexicalCategory category) {
+    Map<Integer, Object> fixedValues = category.getFixedValues();
+    if (fixedValues == null || fixedValues.size() == 0) {
+      fixedValues = Collections.<Integer, Object>emptyMap();
+    } else {
+      fixedValues = ImmutableMap.copyOf(fixedValues);
+    }
+    return LexicalCategory.createWithHiddenArguments(category.getType(),
+        category.getSemanticType(), fixedValues);
+  }
+
+  /**
+   * Gets the type-raising rules in {@code rules} whose input type is
+   * an ancestor of some nonterminal type reachable from
+   * {@code categories}, either by function application or by other
+   * usable type-raising rules.
+   */
+  private static Set<TypeRaisingRule> getUsableTypeRaisingRules(Iterable<LexicalCategory> categories,
+      Set<TypeRaisingRule> rules) {
+    Set<Type> nonterminalTypes = Sets.newHashSet();
+    for (LexicalCategory category : categories) {
+      addApplicationResultTypes(category.getType(), nonterminalTypes);
+    }
+
+    Set<TypeRaisingRule> usableRules = Sets.newHashSet();
+    boolean changed = true;
+    while (changed) {
+      changed = false;
+      for (TypeRaisingRule rule : rules) {
+        if (usableRules.contains(rule)) {
+          continue;
+        }
+
+        for (Type type : nonterminalTypes) {
+          if (type.hasAncestor(rule.getInputType())) {
+            usableRules.add(rule);
+            Type outputType = rule.getOutputType();
+            if (outputType instanceof DirectedFunctionType) {
+              addApplicationResultTypes(((DirectedFunctionType) outputType).getReturnType(), nonterminalTypes);
+            }
+            changed = true;
+            break;
+          }
+        }
+      }
+    }
+    return usableRules;
+  }
+
+  private static void addApplicationResultTypes(Type type, Set<Type> addTo) {
+    addTo.add(type);
+    if (type instanceof DirectedFunctionType) {
+      addApplicationResultTypes(((DirectedFunctionType) type).getReturnType(), addTo);
+    }
+  }
+
+  /**
+   * Size statistics of the grammar generated by a lexicon.
+   *
+   * @author jayantk
+   */
+  public static class LexiconStatistics {
+    public final int numTriggerSequences;
+    public final int numEntries;
+    public final int numTypeRaisingRules;
+    public final int numPredicates;
+    public final int numTerminalEdgeTypes;
+    public final int numEdgeTypes;
+
+    public LexiconStatistics(int numTriggerSequences, int numEntries, int numTypeRaisingRules,
+        int numPredicates, int numTerminalEdgeTypes, int numEdgeTypes) {
+      this.numTriggerSequences = numTriggerSequences;
+      this.numEntries = numEntries;
+      this.numTypeRaisingRules = numTypeRaisingRules;
+      this.numPredicates = numPredicates;
+      this.numTerminalEdgeTypes = numTerminalEdgeTypes;
+      this.numEdgeTypes = numEdgeTypes;
+    }
+
+    /**
+     * Computes statistics for {@code lexicon}. The edge type count
+     * matches the number of edge types created by
+     * {@link SemanticParser#toCfgFactor}.
+     */
+    public static LexiconStatistics fromLexicon(Lexicon<String> lexicon) {
+      Preconditions.checkNotNull(lexicon);
+      int numEntries = 0;
+      for (List<String> triggerSequence : lexicon.getTriggerSequences()) {
+        numEntries += lexicon.getCategories(triggerSequence).size();
+      }
+
+      Set<Map<Integer, Object>> fixedValues = Sets.newHashSet();
+      for (LexicalCategory category : lexicon.getLexicalCategories()) {
+        fixedValues.add(category.getFixedValues());
+      }
+
+      // Application edges in both directions, with and without each
+      // type-raising rule, plus one terminal edge per fixed value map.
+      int numTypeRaisingRules = lexicon.getTypeRaisingRules().size();
+      int numEdgeTypes = 2 * (numTypeRaisingRules + 1) + fixedValues.size();
+
+      return new LexiconStatistics(lexicon.getTriggerSequences().size(), numEntries,
+          numTypeRaisingRules, lexicon.getPredicatesInGrammar().size(), fixedValues.size(),
+          numEdgeTypes);
+    }
+
+    @Override
+    public String toString() {
+      return "trigger sequences: " + numTriggerSequences + "\n"
+          + "lexicon entries: " + numEntries + "\n"
+          + "type-raising rules: " + numTypeRaisingRules + "\n"
+          + "predicates: " + numPredicates + "\n"
+          + "terminal edge types: " + numTerminalEdgeTypes + "\n"
+          + "edge types: " + numEdgeTypes;
+    }
+  }
+}
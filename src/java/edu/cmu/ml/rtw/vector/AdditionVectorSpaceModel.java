@@ -1,9 +1,13 @@
 package edu.cmu.ml.rtw.vector;
 
+import static edu.cmu.ml.rtw.vector.VsmExpressions.add;
+import static edu.cmu.ml.rtw.vector.VsmExpressions.matvecmul;
+import static edu.cmu.ml.rtw.vector.VsmExpressions.parameter;
+import static edu.cmu.ml.rtw.vector.VsmExpressions.tensor;
+
 import java.util.List;
 
 import com.jayantkrish.jklol.ccg.lambda.Expression;
-import com.jayantkrish.jklol.ccg.lambda.ExpressionParser;
 
 import edu.cmu.ml.rtw.users.jayantk.grounding.GroundingExample;
 
@@ -12,21 +16,17 @@ public class AdditionVectorSpaceModel implements VectorSpaceModelInterface {
   @Override
   public Expression getFormula(GroundingExample example) {
     List<String> words = example.getWords().get(0);
-    String expressionString = getExpressionString(words);
-
-    String domainCategoryFeaturesName = VectorModelTrainer.getCategoryTensorName(example.getDomainName());
-    expressionString = "(op:matvecmul " + domainCategoryFeaturesName + " " + expressionString + ")";
-
-    return ExpressionParser.lambdaCalculus().parseSingleExpression(expressionString);
+    Expression domainCategoryFeatures = tensor(VectorModelTrainer.getCategoryTensorName(example.getDomainName()));
+    return matvecmul(domainCategoryFeatures, getExpression(words));
   }
 
-  private String getExpressionString(List<String> words) {
+  private Expression getExpression(List<String> words) {
     String word = words.get(0);
     if (words.size() == 1) {
-      return "t:catFeatures:" + word;
+      return parameter(word, "catFeatures");
     } else {
-      String rest = getExpressionString(words.subList(1, words.size()));
-      return "(op:add t:catFeatures:" + word + " " + rest + ")";
+      Expression rest = getExpression(words.subList(1, words.size()));
+      return add(parameter(word, "catFeatures"), rest);
     }
   }
 }
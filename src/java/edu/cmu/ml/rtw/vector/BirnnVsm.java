@@ -1,9 +1,15 @@
 package edu.cmu.ml.rtw.vector;
 
+import static edu.cmu.ml.rtw.vector.VsmExpressions.add;
+import static edu.cmu.ml.rtw.vector.VsmExpressions.logistic;
+import static edu.cmu.ml.rtw.vector.VsmExpressions.matvecmul;
+import static edu.cmu.ml.rtw.vector.VsmExpressions.parameter;
+import static edu.cmu.ml.rtw.vector.VsmExpressions.tanh;
+import static edu.cmu.ml.rtw.vector.VsmExpressions.tensor;
+
 import java.util.List;
 
 import com.jayantkrish.jklol.ccg.lambda.Expression;
-import com.jayantkrish.jklol.ccg.lambda.ExpressionParser;
 
 import edu.cmu.ml.rtw.users.jayantk.grounding.GroundingExample;
 
@@ -18,60 +24,56 @@ public class BirnnVsm implements VectorSpaceModelInterface {
   @Override
   public Expression getFormula(GroundingExample example) {
     List<String> words = example.getWords().get(0);
-    String expressionString = getExpressionStringFirstLast(words);
-
-    String domainCategoryFeaturesName = VectorModelTrainer.getCategoryTensorName(example.getDomainName());
-    expressionString = "(op:matvecmul " + domainCategoryFeaturesName + "(op:tanh (op:matvecmul t:catFeatures;"
-        + dimensionality + ":output_params " + expressionString + ")))";
+    Expression sequence = getExpressionFirstLast(words);
 
-    return ExpressionParser.lambdaCalculus().parseSingleExpression(expressionString);
+    Expression domainCategoryFeatures = tensor(VectorModelTrainer.getCategoryTensorName(example.getDomainName()));
+    return matvecmul(domainCategoryFeatures,
+        tanh(matvecmul(parameter("output_params", "catFeatures", Integer.toString(dimensionality)), sequence)));
   }
 
-  private String getExpressionStringFirstLast(List<String> words) {
+  private Expression getExpressionFirstLast(List<String> words) {
     String word = words.get(0);
     if (words.size() == 1) {
-      return "t:" + dimensionality + ":" + word;
+      return parameter(word, dimensionality);
     } else {
-		String s1 = getForwardExpressionString(words);
-		String s2 = getBackwardExpressionString(words);
-		String W1 = "t:" + dimensionality + ";" + dimensionality + ":Wf";
-		String W2 = "t:" + dimensionality + ";" + dimensionality + ":Wb";
+      Expression s1 = getForwardExpression(words);
+      Expression s2 = getBackwardExpression(words);
+      Expression W1 = parameter("Wf", dimensionality, dimensionality);
+      Expression W2 = parameter("Wb", dimensionality, dimensionality);
 
-      return "(op:logistic (op:add (op:matvecmul " + W1 + " " + s1 + ") " + 
-		  "(op:matvecmul " + W2 + " " + s2 + ")))";
+      return logistic(add(matvecmul(W1, s1), matvecmul(W2, s2)));
     }
   }
 
-  private String getForwardExpressionString(List<String> words) {
+  private Expression getForwardExpression(List<String> words) {
     String word = words.get(0);
-	  String W1 = "t:" + dimensionality + ";" + dimensionality + ":W1_f";
+    Expression W1 = parameter("W1_f", dimensionality, dimensionality);
     if (words.size() == 1) {
-			String bias = "t:" + dimensionality + ":b_f1";
-      return "(op:logistic (op:add (op:matvecmul " + W1 + " t:" + dimensionality + ":" + word + ")" + bias + "))";
+      Expression bias = parameter("b_f1", dimensionality);
+      return logistic(add(matvecmul(W1, parameter(word, dimensionality)), bias));
     } else {
-      String rest = getForwardExpressionString(words.subList(1, words.size()));
-	  String W2 = "t:" + dimensionality + ";" + dimensionality + ":W2_f";
-		String bias = "t:" + dimensionality + ":b_f2";
-	  String cur_word = "t:" + dimensionality + ":" + word;
+      Expression rest = getForwardExpression(words.subList(1, words.size()));
+      Expression W2 = parameter("W2_f", dimensionality, dimensionality);
+      Expression bias = parameter("b_f2", dimensionality);
+      Expression curWord = parameter(word, dimensionality);
 
-      return "(op:logistic (op:add (op:matvecmul " + W1 + " " + cur_word + ") (op:matvecmul " + W2 + " " + rest + ") " + bias + "))";
+      return logistic(add(matvecmul(W1, curWord), matvecmul(W2, rest), bias));
     }
   }
 
-  private String getBackwardExpressionString(List<String> words) {
-    String word = words.get(words.size()-1);
-	  String W1 = "t:" + dimensionality + ";" + dimensionality + ":W1_b";
+  private Expression getBackwardExpression(List<String> words) {
+    String word = words.get(words.size() - 1);
+    Expression W1 = parameter("W1_b", dimensionality, dimensionality);
     if (words.size() == 1) {
-			String bias = "t:" + dimensionality + ":b_b1";
-      return "(op:logistic (op:add (op:matvecmul " + W1 + " t:" + dimensionality + ":" + word + ")" + bias + "))";
-    } 
-		else {
-      String rest = getBackwardExpressionString(words.subList(0, words.size()-1));
-			String W2 = "t:" + dimensionality + ";" + dimensionality + ":W2_b";
-			String bias = "t:" + dimensionality + ":b_b2";
-			String cur_word = "t:" + dimensionality + ":" + word;
+      Expression bias = parameter("b_b1", dimensionality);
+      return logistic(add(matvecmul(W1, parameter(word, dimensionality)), bias));
+    } else {
+      Expression rest = getBackwardExpression(words.subList(0, words.size() - 1));
+      Expression W2 = parameter("W2_b", dimensionality, dimensionality);
+      Expression bias = parameter("b_b2", dimensionality);
+      Expression curWord = parameter(word, dimensionality);
 
-      return "(op:logistic (op:add (op:matvecmul " + W1 + " " + cur_word + ") (op:matvecmul " + W2 + " " + rest + ") " + bias + "))";
+      return logistic(add(matvecmul(W1, curWord), matvecmul(W2, rest), bias));
     }
   }
 }
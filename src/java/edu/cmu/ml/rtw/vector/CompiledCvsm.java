@@ -0,0 +1,111 @@
+package edu.cmu.ml.rtw.vector;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentMap;
+
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Maps;
+import com.jayantkrish.jklol.cvsm.Cvsm;
+import com.jayantkrish.jklol.cvsm.lrt.LowRankTensor;
+import com.jayantkrish.jklol.tensor.DenseTensor;
+
+/**
+ * A {@code Cvsm} whose tensors are copied into dense arrays for
+ * evaluation by {@link CvsmProgram}s. Tensors are copied the first
+ * time they are used. Constant tensors are instead read from a
+ * {@link ConstantTensorStore}, which copies each of them once for
+ * every model that shares the store. Sparse constant tensors and
+ * low-rank parameters can also be multiplied without a dense copy;
+ * see {@link #getMatrix}.
+ *
+ * @author jayantk
+ */
+public class CompiledCvsm implements CvsmProgram.TensorShapes {
+
+  private final Cvsm cvsm;
+  // May be null, in which case constant tensors are copied like
+  // any other tensor.
+  private final ConstantTensorStore constantTensors;
+  private final ConcurrentMap<String, double[]> values;
+  // Factored forms of low-rank tensors; absent if a tensor has no
+  // factored form.
+  private final ConcurrentMap<String, Optional<LowRankMatrix>> lowRankMatrices;
+
+  public CompiledCvsm(Cvsm cvsm) {
+    this(cvsm, null);
+  }
+
+  public CompiledCvsm(Cvsm cvsm, ConstantTensorStore constantTensors) {
+    this.cvsm = Preconditions.checkNotNull(cvsm);
+    this.constantTensors = constantTensors;
+    this.values = Maps.newConcurrentMap();
+    this.lowRankMatrices = Maps.newConcurrentMap();
+  }
+
+  public Cvsm getCvsm() {
+    return cvsm;
+  }
+
+  @Override
+  public int[] getDimensionSizes(String tensorName) {
+    LowRankTensor tensor = cvsm.getTensor(tensorName);
+    Preconditions.checkArgument(tensor != null, "Unknown tensor: %s", tensorName);
+    int[] dimensionNumbers = tensor.getDimensionNumbers();
+    for (int i = 0; i < dimensionNumbers.length; i++) {
+      // Programs assume that the dimensions of every tensor are
+      // numbered from 0, which is how the vector space models name them.
+      Preconditions.checkArgument(dimensionNumbers[i] == i,
+          "Cannot compile tensor %s with dimensions %s", tensorName, Arrays.toString(dimensionNumbers));
+    }
+    return tensor.getDimensionSizes();
+  }
+
+  /**
+   * Gets the values of the tensor named {@code tensorName} in
+   * jklol's dense layout. The returned array must not be modified.
+   */
+  public double[] getValues(String tensorName) {
+    if (isConstant(tensorName)) {
+      return constantTensors.getDenseValues(tensorName);
+    }
+
+    double[] tensorValues = values.get(tensorName);
+    if (tensorValues == null) {
+      // Concurrent callers may both copy the (identical) tensor.
+      tensorValues = DenseTensor.copyOf(cvsm.getTensor(tensorName).getTensor()).getValues();
+      values.put(tensorName, tensorValues);
+    }
+    return tensorValues;
+  }
+
+  /**
+   * Gets the value of {@code tensorName} as a sparse or low-rank matrix
+   * with {@code numRows} rows, for tensors where that is cheaper than
+   * a dense array. Returns {@code null} if the tensor should be
+   * multiplied as a dense array.
+   */
+  public CvsmProgram.MatrixOperand getMatrix(String tensorName, int numRows) {
+    if (isConstant(tensorName)) {
+      return constantTensors.getSparseMatrix(tensorName, numRows);
+    }
+
+    Optional<LowRankMatrix> matrix = lowRankMatrices.get(tensorName);
+    if (matrix == null) {
+      matrix = Optional.fromNullable(LowRankMatrix.fromLowRankTensor(cvsm.getTensor(tensorName)));
+      lowRankMatrices.put(tensorName, matrix);
+    }
+    if (matrix.isPresent() && matrix.get().getNumRows() == numRows) {
+      return matrix.get();
+    }
+    return null;
+  }
+
+  /**
+   * Returns {@code true} if {@code tensorName} is a constant tensor
+   * from this model's {@code ConstantTensorStore}.
+   */
+  public boolean isConstant(String tensorName) {
+    return constantTensors != null && constantTensors.contains(tensorName);
+  }
+}
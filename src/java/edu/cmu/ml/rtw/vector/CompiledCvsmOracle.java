@@ -0,0 +1,369 @@
+package edu.cmu.ml.rtw.vector;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.jayantkrish.jklol.cvsm.CvsmFamily;
+import com.jayantkrish.jklol.cvsm.CvsmGradient;
+import com.jayantkrish.jklol.cvsm.lrt.TensorLowRankTensor;
+import com.jayantkrish.jklol.models.parametric.SufficientStatistics;
+import com.jayantkrish.jklol.tensor.DenseTensor;
+import com.jayantkrish.jklol.training.GradientOracle;
+import com.jayantkrish.jklol.training.LogFunction;
+import com.jayantkrish.jklol.training.NullLogFunction;
+
+/**
+ * Loglikelihood oracle for vector space models that evaluates
+ * compiled {@link CvsmProgram}s. The objective is the same as
+ * {@code CvsmLoglikelihoodOracle} with a {@code CvsmKlElementwiseLoss}:
+ * each output is passed through a logistic function and treated as
+ * the probability that the corresponding target is 1. Unlike jklol's
+ * loss, the loss is computed in log space, so outputs whose logistic
+ * rounds to exactly 0 or 1 still have a finite loss and a nonzero
+ * gradient.
+ * <p>
+ * Large batches can be split across several threads. Each chunk of a
+ * batch is evaluated in its own workspace, and the gradients are summed
+ * once all chunks finish. Workspaces are returned to a pool after their
+ * gradients are summed, so the per-example slot, output and gradient
+ * arrays are reused rather than allocated for every batch. The threads
+ * are started on first use and stopped by {@link #close()}.
+ *
+ * @author jayantk
+ */
+public class CompiledCvsmOracle implements GradientOracle<CompiledCvsm, CvsmBatch> {
+
+  // Batches are only split across threads if each thread gets at
+  // least this many examples.
+  private static final int MIN_CHUNK_SIZE = 4;
+
+  private final CvsmFamily family;
+  // Tensors that are not parameters, whose gradients are not needed.
+  private final ConstantTensorStore constantTensors;
+
+  private final int numThreads;
+  private ExecutorService executor;
+
+  // Workspaces not in use by any chunk. A workspace is taken for each
+  // chunk, and only returned once the chunk's gradient is summed.
+  private final Queue<ChunkWorkspace> workspaces;
+
+  public CompiledCvsmOracle(CvsmFamily family, ConstantTensorStore constantTensors) {
+    this(family, constantTensors, 1);
+  }
+
+  public CompiledCvsmOracle(CvsmFamily family, ConstantTensorStore constantTensors, int numThreads) {
+    Preconditions.checkArgument(numThreads > 0);
+    this.family = Preconditions.checkNotNull(family);
+    this.constantTensors = Preconditions.checkNotNull(constantTensors);
+    this.numThreads = numThreads;
+    this.executor = null;
+    this.workspaces = new ConcurrentLinkedQueue<ChunkWorkspace>();
+  }
+
+  @Override
+  public SufficientStatistics initializeGradient() {
+    return family.getNewSufficientStatistics();
+  }
+
+  @Override
+  public CompiledCvsm instantiateModel(SufficientStatistics parameters) {
+    return new CompiledCvsm(family.getModelFromParameters(parameters), constantTensors);
+  }
+
+  @Override
+  public double accumulateGradient(SufficientStatistics gradient, SufficientStatistics currentParameters,
+      final CompiledCvsm model, final CvsmBatch batch, final LogFunction log) {
+    int batchSize = batch.size();
+    int numChunks = Math.min(numThreads, batchSize / MIN_CHUNK_SIZE);
+    List<ChunkWorkspace> chunks = Lists.newArrayList();
+    for (int i = 0; i < Math.max(numChunks, 1); i++) {
+      ChunkWorkspace workspace = workspaces.poll();
+      chunks.add(workspace != null ? workspace : new ChunkWorkspace());
+    }
+
+    try {
+      evaluateChunks(model, batch, chunks, log);
+      return sumGradients(gradient, model, batch, chunks);
+    } finally {
+      workspaces.addAll(chunks);
+    }
+  }
+
+  /**
+   * Evaluates {@code batch} split into one chunk per workspace in
+   * {@code chunks}.
+   */
+  private void evaluateChunks(final CompiledCvsm model, final CvsmBatch batch,
+      List<ChunkWorkspace> chunks, LogFunction log) {
+    int batchSize = batch.size();
+    int numChunks = chunks.size();
+    if (numChunks == 1) {
+      evaluateChunk(model, batch, 0, batchSize, chunks.get(0), log);
+    } else {
+      // Each chunk of the batch is evaluated by a different task into
+      // its own workspace, so the tasks never write to shared memory,
+      // even if one thread runs several of them.
+      log.startTimer("compiled_parallel_gradient");
+      ExecutorService executor = getExecutor();
+      List<Future<?>> futures = Lists.newArrayList();
+      for (int i = 0; i < numChunks; i++) {
+        final int start = (int) (((long) batchSize) * i / numChunks);
+        final int end = (int) (((long) batchSize) * (i + 1) / numChunks);
+        final ChunkWorkspace workspace = chunks.get(i);
+        futures.add(executor.submit(new Runnable() {
+          @Override
+          public void run() {
+            // LogFunction timers are not thread-safe.
+            evaluateChunk(model, batch, start, end, workspace, new NullLogFunction());
+          }
+        }));
+      }
+
+      for (Future<?> future : futures) {
+        try {
+          future.get();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+          Throwables.propagateIfPossible(e.getCause());
+          throw new RuntimeException(e.getCause());
+        }
+      }
+      log.stopTimer("compiled_parallel_gradient");
+    }
+  }
+
+  /**
+   * Adds the gradients of the slots of {@code chunks} to
+   * {@code gradient}, and returns their total loss.
+   */
+  private double sumGradients(SufficientStatistics gradient, CompiledCvsm model,
+      CvsmBatch batch, List<ChunkWorkspace> chunks) {
+    // Sum the gradients of slots bound to the same tensor. The sums
+    // are copies, as the slot gradients belong to the workspaces.
+    Map<String, double[]> tensorGradients = Maps.newHashMap();
+    double loss = 0.0;
+    int numSlots = batch.getProgram().getNumSlots();
+    int offset = 0;
+    for (ChunkWorkspace chunk : chunks) {
+      loss += chunk.loss;
+      double[][][] slotGradients = chunk.slotGradients;
+      for (int i = 0; i < chunk.chunkSize; i++) {
+        for (int j = 0; j < numSlots; j++) {
+          double[] slotGradient = slotGradients[i][j];
+          if (slotGradient == null) {
+            continue;
+          }
+          String name = batch.getSlotName(offset + i, j);
+          double[] tensorGradient = tensorGradients.get(name);
+          if (tensorGradient == null) {
+            tensorGradients.put(name, Arrays.copyOf(slotGradient, slotGradient.length));
+          } else {
+            for (int k = 0; k < tensorGradient.length; k++) {
+              tensorGradient[k] += slotGradient[k];
+            }
+          }
+        }
+      }
+      offset += chunk.chunkSize;
+    }
+
+    CvsmGradient cvsmGradient = new CvsmGradient();
+    for (Map.Entry<String, double[]> entry : tensorGradients.entrySet()) {
+      int[] dimensionSizes = model.getDimensionSizes(entry.getKey());
+      int[] dimensionNumbers = new int[dimensionSizes.length];
+      for (int i = 0; i < dimensionNumbers.length; i++) {
+        dimensionNumbers[i] = i;
+      }
+      cvsmGradient.incrementValue(entry.getKey(), new TensorLowRankTensor(
+          new DenseTensor(dimensionNumbers, dimensionSizes, entry.getValue())));
+    }
+    family.incrementSufficientStatistics(cvsmGradient, model.getCvsm(), gradient);
+
+    return loss;
+  }
+
+  /**
+   * Computes the loss of examples {@code start} through {@code end - 1}
+   * of {@code batch} and the gradient of each of their slots, indexed
+   * by {@code [example - start][slot]}. The results are stored in
+   * {@code workspace}.
+   */
+  private void evaluateChunk(CompiledCvsm model, CvsmBatch batch, int start, int end,
+      ChunkWorkspace workspace, LogFunction log) {
+    CvsmProgram program = batch.getProgram();
+    boolean[] sharedSlots = batch.getSharedSlots();
+    int chunkSize = end - start;
+    int numSlots = program.getNumSlots();
+    int outputSize = program.getOutputSize();
+
+    workspace.reset(chunkSize, numSlots, chunkSize * outputSize);
+    CvsmProgram.MatrixOperand[] slotMatrices = workspace.slotMatrices;
+    double[][][] slotValues = workspace.slotValues;
+    double[][][] slotGradients = workspace.slotGradients;
+    double[] outputs = workspace.outputs;
+
+    // Sparse and low-rank matrices are multiplied in their own
+    // representation, and aren't copied into dense arrays.
+    for (int j = 0; j < numSlots; j++) {
+      slotMatrices[j] = null;
+      if (sharedSlots[j] && program.getMatrixRows(j) > 0) {
+        slotMatrices[j] = model.getMatrix(batch.getSlotName(start, j), program.getMatrixRows(j));
+      }
+    }
+
+    for (int i = 0; i < chunkSize; i++) {
+      for (int j = 0; j < numSlots; j++) {
+        String name = batch.getSlotName(start + i, j);
+        slotValues[i][j] = (slotMatrices[j] == null) ? model.getValues(name) : null;
+        slotGradients[i][j] = null;
+        if (!model.isConstant(name) && (i == 0 || !sharedSlots[j])) {
+          // backward overwrites the gradient, so the array needn't be cleared.
+          slotGradients[i][j] = workspace.getGradientArray(program.getSlotSize(j));
+        }
+      }
+    }
+
+    log.startTimer("compiled_forward");
+    program.forward(chunkSize, slotValues, slotMatrices, sharedSlots, outputs);
+    log.stopTimer("compiled_forward");
+
+    // Replace each output with the gradient of the loglikelihood with
+    // respect to it. As in jklol, the returned loss is the negative
+    // loglikelihood.
+    double loss = 0.0;
+    for (int i = 0; i < chunkSize; i++) {
+      double[] targets = batch.getTargets(start + i);
+      for (int j = 0; j < outputSize; j++) {
+        double x = outputs[i * outputSize + j];
+        double target = targets[j];
+        // Computed so that large |x| doesn't overflow.
+        double logProbability = (x >= 0) ? -Math.log1p(Math.exp(-x)) : x - Math.log1p(Math.exp(x));
+        double probability = Math.exp(logProbability);
+        loss -= target * logProbability + (1.0 - target) * (logProbability - x);
+        outputs[i * outputSize + j] = target - probability;
+      }
+    }
+
+    log.startTimer("compiled_backward");
+    program.backward(outputs, slotGradients);
+    log.stopTimer("compiled_backward");
+    workspace.loss = loss;
+  }
+
+  /**
+   * Checks that splitting batches across threads gives the same loss
+   * and gradient as evaluating each batch on one thread. Every batch
+   * is evaluated {@code numRounds} times, so later rounds run on a warm
+   * thread pool, where one thread often runs several chunks of a batch.
+   * Returns the largest difference found, relative to the size of the
+   * single-threaded loss or gradient.
+   */
+  public double checkParallelGradient(SufficientStatistics parameters, List<CvsmBatch> batches,
+      int numRounds) {
+    CompiledCvsmOracle serialOracle = new CompiledCvsmOracle(family, constantTensors, 1);
+    CompiledCvsm model = instantiateModel(parameters);
+    LogFunction log = new NullLogFunction();
+    double maxError = 0.0;
+    for (int round = 0; round < numRounds; round++) {
+      for (CvsmBatch batch : batches) {
+        SufficientStatistics serialGradient = initializeGradient();
+        double serialLoss = serialOracle.accumulateGradient(serialGradient, parameters, model, batch, log);
+        SufficientStatistics parallelGradient = initializeGradient();
+        double parallelLoss = accumulateGradient(parallelGradient, parameters, model, batch, log);
+
+        double gradientNorm = serialGradient.getL2Norm();
+        serialGradient.increment(parallelGradient, -1.0);
+        maxError = Math.max(maxError, serialGradient.getL2Norm() / Math.max(gradientNorm, 1.0));
+        maxError = Math.max(maxError, Math.abs(serialLoss - parallelLoss) / Math.max(Math.abs(serialLoss), 1.0));
+      }
+    }
+    return maxError;
+  }
+
+  /**
+   * Stops the threads used to split batches, if any were started.
+   * The oracle must not be used after it is closed.
+   */
+  public synchronized void close() {
+    if (executor != null) {
+      executor.shutdown();
+      executor = null;
+    }
+  }
+
+  private synchronized ExecutorService getExecutor() {
+    if (executor == null) {
+      executor = Executors.newFixedThreadPool(numThreads,
+          new ThreadFactoryBuilder().setDaemon(true).setNameFormat("cvsm-gradient-%d").build());
+    }
+    return executor;
+  }
+
+  /**
+   * Arrays for evaluating one chunk of a batch at a time. The arrays
+   * grow to fit the largest chunk seen so far, and gradient arrays are
+   * reused by size, so chunks of different programs share them.
+   */
+  private static class ChunkWorkspace {
+    private int chunkSize;
+    private double loss;
+
+    private CvsmProgram.MatrixOperand[] slotMatrices = new CvsmProgram.MatrixOperand[0];
+    private double[][][] slotValues = new double[0][][];
+    private double[][][] slotGradients = new double[0][][];
+    private double[] outputs = new double[0];
+
+    // Gradient arrays of each size, and the number of each in use by
+    // the current chunk.
+    private final Map<Integer, List<double[]>> gradientArrays = Maps.newHashMap();
+    private final Map<Integer, Integer> numGradientArraysUsed = Maps.newHashMap();
+
+    public void reset(int chunkSize, int numSlots, int outputSize) {
+      this.chunkSize = chunkSize;
+      this.loss = 0.0;
+      if (slotMatrices.length < numSlots) {
+        slotMatrices = new CvsmProgram.MatrixOperand[numSlots];
+      }
+      if (slotValues.length < chunkSize || slotValues[0].length < numSlots) {
+        int rows = Math.max(chunkSize, slotValues.length);
+        int columns = Math.max(numSlots, (slotValues.length > 0) ? slotValues[0].length : 0);
+        slotValues = new double[rows][columns][];
+        slotGradients = new double[rows][columns][];
+      }
+      if (outputs.length < outputSize) {
+        outputs = new double[outputSize];
+      }
+      numGradientArraysUsed.clear();
+    }
+
+    public double[] getGradientArray(int size) {
+      List<double[]> arrays = gradientArrays.get(size);
+      if (arrays == null) {
+        arrays = Lists.newArrayList();
+        gradientArrays.put(size, arrays);
+      }
+      Integer numUsed = numGradientArraysUsed.get(size);
+      int index = (numUsed == null) ? 0 : numUsed;
+      if (index == arrays.size()) {
+        arrays.add(new double[size]);
+      }
+      numGradientArraysUsed.put(size, index + 1);
+      return arrays.get(index);
+    }
+  }
+}
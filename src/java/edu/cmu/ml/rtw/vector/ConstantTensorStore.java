@@ -0,0 +1,346 @@
+package edu.cmu.ml.rtw.vector;
+
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Maps;
+import com.jayantkrish.jklol.cvsm.LrtFamily;
+import com.jayantkrish.jklol.cvsm.lrt.LowRankTensor;
+import com.jayantkrish.jklol.cvsm.lrt.TensorLowRankTensor;
+import com.jayantkrish.jklol.models.DiscreteFactor;
+import com.jayantkrish.jklol.models.VariableNumMap;
+import com.jayantkrish.jklol.models.VariableNumMap.VariableRelabeling;
+import com.jayantkrish.jklol.models.parametric.ListSufficientStatistics;
+import com.jayantkrish.jklol.models.parametric.SufficientStatistics;
+import com.jayantkrish.jklol.tensor.DenseTensor;
+import com.jayantkrish.jklol.tensor.Tensor;
+
+import edu.cmu.ml.rtw.users.jayantk.grounding.Domain;
+
+/**
+ * The constant tensors of vector space models: each domain's object
+ * features, relation features, and known predicate groundings. Every
+ * tensor is built from its {@code Domain} the first time it is used,
+ * then shared by all models and families that reference this store.
+ * The dimensions of a tensor are determined from its domain's
+ * variables, so families can be constructed without building any
+ * tensors.
+ * <p>
+ * This is a lazy, shared store, not a zero-copy view of the domains:
+ * building a tensor conditions and relabels the domain's factor, which
+ * copies its weights. {@link CvsmProgram}s multiply sparse tensors as
+ * {@link CsrMatrix}es, which are a second, compressed copy. Tensors
+ * that are needed as dense arrays replace their sparse original, so
+ * at most one full copy of each tensor is kept.
+ *
+ * @author jayantk
+ */
+public class ConstantTensorStore implements Serializable {
+  private static final long serialVersionUID = 1L;
+
+  // Tensors with at most this fraction of nonzero entries are
+  // multiplied as sparse matrices.
+  private static final double MAX_SPARSE_DENSITY = 0.25;
+
+  // In the order they were added.
+  private final Map<String, ConstantTensor> tensors;
+
+  private ConstantTensorStore(Map<String, ConstantTensor> tensors) {
+    this.tensors = Preconditions.checkNotNull(tensors);
+  }
+
+  public static ConstantTensorStore fromDomains(List<Domain> domains) {
+    Map<String, ConstantTensor> tensors = Maps.newLinkedHashMap();
+    for (Domain domain : domains) {
+      tensors.put(VectorModelTrainer.getCategoryTensorName(domain.getName()),
+          new CategoryFeatureTensor(domain));
+      tensors.put(VectorModelTrainer.getRelationTensorName(domain.getName()),
+          new RelationFeatureTensor(domain));
+      for (String relName : domain.getKnownRelationNames()) {
+        tensors.put(VectorModelTrainer.getPredicateTensorName(domain.getName(), relName),
+            new PredicateTensor(domain, relName));
+      }
+    }
+    return new ConstantTensorStore(tensors);
+  }
+
+  public List<String> getNames() {
+    return ImmutableList.copyOf(tensors.keySet());
+  }
+
+  public boolean contains(String name) {
+    return tensors.containsKey(name);
+  }
+
+  public LowRankTensor getTensor(String name) {
+    return get(name).getTensor();
+  }
+
+  /**
+   * Gets the values of the tensor {@code name} in jklol's dense
+   * layout. The returned array is shared, and must not be modified.
+   * If the tensor is sparse, it is replaced by its dense form.
+   */
+  public double[] getDenseValues(String name) {
+    return get(name).getDenseValues();
+  }
+
+  /**
+   * Gets the tensor {@code name} as a sparse matrix with {@code numRows}
+   * rows, or {@code null} if too many of its entries are nonzero for a
+   * sparse matrix to be faster than a dense array.
+   */
+  public CsrMatrix getSparseMatrix(String name, int numRows) {
+    return get(name).getSparseMatrix(numRows);
+  }
+
+  /**
+   * Gets a parametric family whose value is always the tensor
+   * {@code name}. Repeated calls return the same family.
+   */
+  public LrtFamily getFamily(String name) {
+    return get(name).family;
+  }
+
+  private ConstantTensor get(String name) {
+    ConstantTensor tensor = tensors.get(name);
+    Preconditions.checkArgument(tensor != null, "Unknown constant tensor: %s", name);
+    return tensor;
+  }
+
+  /**
+   * A tensor that is built from a domain on first use.
+   */
+  private static abstract class ConstantTensor implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final StoredLrtFamily family;
+
+    // Rebuilt after deserialization.
+    // Sparse until its dense values are requested.
+    private transient LowRankTensor tensor;
+    // null with a nonzero sparseRows if the tensor is too dense.
+    private transient CsrMatrix sparseMatrix;
+    private transient int sparseRows;
+
+    public ConstantTensor() {
+      this.family = new StoredLrtFamily(this);
+    }
+
+    protected abstract Tensor build();
+
+    /**
+     * Gets the variables of the tensor returned by {@link #build},
+     * without building it.
+     */
+    protected abstract VariableNumMap getVariables();
+
+    public synchronized int[] getDimensionNumbers() {
+      return (tensor != null) ? tensor.getDimensionNumbers() : getVariables().getVariableNumsArray();
+    }
+
+    public synchronized int[] getDimensionSizes() {
+      return (tensor != null) ? tensor.getDimensionSizes() : getVariables().getVariableSizes();
+    }
+
+    public synchronized LowRankTensor getTensor() {
+      if (tensor == null) {
+        tensor = new TensorLowRankTensor(build());
+      }
+      return tensor;
+    }
+
+    public synchronized double[] getDenseValues() {
+      Tensor values = getTensor().getTensor();
+      if (!(values instanceof DenseTensor)) {
+        // Drop the sparse tensor rather than keeping both copies.
+        // Models that already hold it are unaffected.
+        values = DenseTensor.copyOf(values);
+        tensor = new TensorLowRankTensor(values);
+      }
+      return ((DenseTensor) values).getValues();
+    }
+
+    public synchronized CsrMatrix getSparseMatrix(int numRows) {
+      if (sparseRows == numRows) {
+        return sparseMatrix;
+      }
+
+      // Matrices are only cached for one number of rows, as each tensor
+      // is always multiplied by vectors of the same size.
+      CsrMatrix matrix = CsrMatrix.fromTensor(getTensor().getTensor(), numRows);
+      sparseMatrix = (matrix.getDensity() <= MAX_SPARSE_DENSITY) ? matrix : null;
+      sparseRows = numRows;
+      return sparseMatrix;
+    }
+  }
+
+  private static class CategoryFeatureTensor extends ConstantTensor {
+    private static final long serialVersionUID = 1L;
+    private final Domain domain;
+
+    public CategoryFeatureTensor(Domain domain) {
+      this.domain = Preconditions.checkNotNull(domain);
+    }
+
+    @Override
+    protected Tensor build() {
+      // Get the object features of each object in the domain.
+      // The features are for the assignment (entity name, T), and we just want features per entity,
+      // so condition on the "T" value.
+      DiscreteFactor categoryFeatures = domain.getCategoryFamily().getFeatureVectors();
+      VariableNumMap truthVar = categoryFeatures.getVars().getVariablesByName("truthVal");
+      categoryFeatures = categoryFeatures.conditional(truthVar.outcomeArrayToAssignment("T"));
+      categoryFeatures = (DiscreteFactor) categoryFeatures.relabelVariables(
+          getRelabeling(categoryFeatures.getVars()));
+      return categoryFeatures.getWeights();
+    }
+
+    @Override
+    protected VariableNumMap getVariables() {
+      VariableNumMap vars = domain.getCategoryFamily().getFeatureVectors().getVars();
+      vars = vars.removeAll(vars.getVariablesByName("truthVal"));
+      return getRelabeling(vars).apply(vars);
+    }
+
+    private static VariableRelabeling getRelabeling(VariableNumMap vars) {
+      VariableNumMap entityVar = vars.getVariablesByName("grounding0");
+      VariableNumMap featureVar = vars.getVariablesByName("catFeatures");
+
+      VariableRelabeling entityRelabeling = VariableRelabeling.createFromVariables(entityVar,
+          entityVar.relabelVariableNums(new int[] {1}));
+      VariableRelabeling featureRelabeling = VariableRelabeling.createFromVariables(featureVar,
+          featureVar.relabelVariableNums(new int[] {0}));
+      return entityRelabeling.union(featureRelabeling);
+    }
+  }
+
+  private static class RelationFeatureTensor extends ConstantTensor {
+    private static final long serialVersionUID = 1L;
+    private final Domain domain;
+
+    public RelationFeatureTensor(Domain domain) {
+      this.domain = Preconditions.checkNotNull(domain);
+    }
+
+    @Override
+    protected Tensor build() {
+      DiscreteFactor relationFeatures = domain.getRelationFamily().getFeatureVectors();
+      VariableNumMap truthVar = relationFeatures.getVars().getVariablesByName("truthVal");
+      relationFeatures = relationFeatures.conditional(truthVar.outcomeArrayToAssignment("T"));
+      relationFeatures = (DiscreteFactor) relationFeatures.relabelVariables(
+          getRelabeling(relationFeatures.getVars()));
+      return relationFeatures.getWeights();
+    }
+
+    @Override
+    protected VariableNumMap getVariables() {
+      VariableNumMap vars = domain.getRelationFamily().getFeatureVectors().getVars();
+      vars = vars.removeAll(vars.getVariablesByName("truthVal"));
+      return getRelabeling(vars).apply(vars);
+    }
+
+    private static VariableRelabeling getRelabeling(VariableNumMap vars) {
+      VariableNumMap entity0Var = vars.getVariablesByName("grounding0");
+      VariableNumMap entity1Var = vars.getVariablesByName("grounding1");
+      VariableNumMap relFeatureVar = vars.getVariablesByName("relFeatures");
+
+      VariableRelabeling entity0Relabeling = VariableRelabeling.createFromVariables(entity0Var,
+          entity0Var.relabelVariableNums(new int[] {1}));
+      VariableRelabeling entity1Relabeling = VariableRelabeling.createFromVariables(entity1Var,
+          entity1Var.relabelVariableNums(new int[] {2}));
+      VariableRelabeling relFeatureRelabeling = VariableRelabeling.createFromVariables(relFeatureVar,
+          relFeatureVar.relabelVariableNums(new int[] {0}));
+      return entity0Relabeling.union(relFeatureRelabeling).union(entity1Relabeling);
+    }
+  }
+
+  private static class PredicateTensor extends ConstantTensor {
+    private static final long serialVersionUID = 1L;
+    private final Domain domain;
+    private final String relName;
+
+    public PredicateTensor(Domain domain, String relName) {
+      this.domain = Preconditions.checkNotNull(domain);
+      this.relName = Preconditions.checkNotNull(relName);
+    }
+
+    @Override
+    protected Tensor build() {
+      DiscreteFactor relGrounding = domain.getGroundingForFixedRelation(relName).getFactor();
+
+      VariableNumMap truthVar = relGrounding.getVars().getVariablesByName("truthVal");
+      Tensor tensor = relGrounding.conditional(truthVar.outcomeArrayToAssignment("T")).getWeights()
+          .elementwiseAddition(relGrounding.conditional(truthVar.outcomeArrayToAssignment("F")).product(-1.0).getWeights());
+
+      // Make each entry of the tensor 1000 * this number. It's 1000 by default, for whatever reason.
+      return tensor.elementwiseProduct(0.001);
+    }
+
+    @Override
+    protected VariableNumMap getVariables() {
+      VariableNumMap vars = domain.getGroundingForFixedRelation(relName).getAllVariables();
+      return vars.removeAll(vars.getVariablesByName("truthVal"));
+    }
+  }
+
+  /**
+   * A family with no parameters whose value is a stored constant
+   * tensor. Unlike {@code ConstantLrtFamily}, the tensor is not copied
+   * into the family.
+   */
+  private static class StoredLrtFamily implements LrtFamily {
+    private static final long serialVersionUID = 1L;
+    private final ConstantTensor tensor;
+
+    public StoredLrtFamily(ConstantTensor tensor) {
+      this.tensor = tensor;
+    }
+
+    @Override
+    public int[] getDimensionNumbers() {
+      return tensor.getDimensionNumbers();
+    }
+
+    @Override
+    public int[] getDimensionSizes() {
+      return tensor.getDimensionSizes();
+    }
+
+    @Override
+    public void setInitialTensor(Tensor initialTensor) {
+      // Constant tensors have no parameters to initialize.
+    }
+
+    @Override
+    public SufficientStatistics getNewSufficientStatistics() {
+      return new ListSufficientStatistics(Collections.<String>emptyList(),
+          Collections.<SufficientStatistics>emptyList());
+    }
+
+    @Override
+    public LowRankTensor getModelFromParameters(SufficientStatistics parameters) {
+      return tensor.getTensor();
+    }
+
+    @Override
+    public void increment(SufficientStatistics gradient, LowRankTensor value,
+        LowRankTensor increment, double multiplier) {
+      // Constant tensors have no parameters to update.
+    }
+
+    @Override
+    public String getParameterDescription(SufficientStatistics parameters) {
+      return "";
+    }
+
+    @Override
+    public String getParameterDescription(SufficientStatistics parameters, int numFeatures) {
+      return "";
+    }
+  }
+}
@@ -0,0 +1,123 @@
+package edu.cmu.ml.rtw.vector;
+
+import java.io.Serializable;
+
+import com.google.common.base.Preconditions;
+import com.jayantkrish.jklol.tensor.Tensor;
+
+/**
+ * A sparse matrix in compressed sparse row format. Row {@code p},
+ * column {@code q} of the matrix is entry {@code p * numColumns + q}
+ * of a tensor in jklol's dense layout, so multiplying by the matrix
+ * sums out the lowest-numbered dimensions of the tensor, like
+ * {@code op:matvecmul}.
+ *
+ * @author jayantk
+ */
+public class CsrMatrix implements CvsmProgram.MatrixOperand, Serializable {
+  private static final long serialVersionUID = 1L;
+
+  private final int numRows;
+  private final int numColumns;
+
+  // The nonzeros of row p are entries rowStarts[p] through
+  // rowStarts[p + 1] - 1 of columns and values.
+  private final int[] rowStarts;
+  private final int[] columns;
+  private final double[] values;
+
+  public CsrMatrix(int numRows, int numColumns, int[] rowStarts, int[] columns, double[] values) {
+    Preconditions.checkArgument(rowStarts.length == numRows + 1);
+    Preconditions.checkArgument(columns.length == values.length);
+    this.numRows = numRows;
+    this.numColumns = numColumns;
+    this.rowStarts = rowStarts;
+    this.columns = columns;
+    this.values = values;
+  }
+
+  /**
+   * Copies the nonzero entries of {@code tensor} into a matrix with
+   * {@code numRows} rows.
+   */
+  public static CsrMatrix fromTensor(Tensor tensor, int numRows) {
+    long tensorSize = 1;
+    for (int size : tensor.getDimensionSizes()) {
+      tensorSize *= size;
+    }
+    Preconditions.checkArgument(numRows > 0 && tensorSize % numRows == 0,
+        "Cannot split a tensor of size %s into %s rows", tensorSize, numRows);
+    int numColumns = (int) (tensorSize / numRows);
+
+    int numNonzeros = 0;
+    int[] rowStarts = new int[numRows + 1];
+    for (int i = 0; i < tensor.size(); i++) {
+      if (tensor.getByIndex(i) != 0.0) {
+        rowStarts[(int) (tensor.indexToKeyNum(i) / numColumns) + 1]++;
+        numNonzeros++;
+      }
+    }
+    for (int p = 0; p < numRows; p++) {
+      rowStarts[p + 1] += rowStarts[p];
+    }
+
+    int[] columns = new int[numNonzeros];
+    double[] values = new double[numNonzeros];
+    int[] next = new int[numRows];
+    System.arraycopy(rowStarts, 0, next, 0, numRows);
+    for (int i = 0; i < tensor.size(); i++) {
+      double value = tensor.getByIndex(i);
+      if (value != 0.0) {
+        long keyNum = tensor.indexToKeyNum(i);
+        int p = (int) (keyNum / numColumns);
+        columns[next[p]] = (int) (keyNum % numColumns);
+        values[next[p]] = value;
+        next[p]++;
+      }
+    }
+    return new CsrMatrix(numRows, numColumns, rowStarts, columns, values);
+  }
+
+  public int getNumRows() {
+    return numRows;
+  }
+
+  public int getNumColumns() {
+    return numColumns;
+  }
+
+  public int getNumNonzeros() {
+    return values.length;
+  }
+
+  /**
+   * Gets the fraction of entries of this matrix that are nonzero.
+   */
+  public double getDensity() {
+    return ((double) values.length) / (((double) numRows) * numColumns);
+  }
+
+  @Override
+  public void multiply(double[] vector, int vectorOffset, double[] out, int outOffset) {
+    for (int p = 0; p < numRows; p++) {
+      double vectorValue = vector[vectorOffset + p];
+      if (vectorValue == 0.0) {
+        continue;
+      }
+      for (int k = rowStarts[p]; k < rowStarts[p + 1]; k++) {
+        out[outOffset + columns[k]] += values[k] * vectorValue;
+      }
+    }
+  }
+
+  @Override
+  public void multiplyTranspose(double[] vector, int vectorOffset, double[] out, int outOffset) {
+    for (int p = 0; p < numRows; p++) {
+      double value = 0.0;
+      for (int k = rowStarts[p]; k < rowStarts[p + 1]; k++) {
+        value += values[k] * vector[vectorOffset + columns[k]];
+      }
+      out[outOffset + p] += value;
+    }
+  }
+}
@@ -0,0 +1,108 @@
+package edu.cmu.ml.rtw.vector;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Multimap;
+import com.jayantkrish.jklol.cvsm.CvsmExample;
+import com.jayantkrish.jklol.tensor.DenseTensor;
+
+/**
+ * A batch of {@code CvsmExample}s whose formulas compile to the same
+ * {@link CvsmProgram}.
+ *
+ * @author jayantk
+ */
+public class CvsmBatch {
+
+  private final CvsmProgram program;
+  // Indexed by [example][slot].
+  private final String[][] slotNames;
+  private final boolean[] sharedSlots;
+  // Indexed by [example][output].
+  private final double[][] targets;
+
+  public CvsmBatch(CvsmProgram program, List<List<String>> slotNames, List<double[]> targets) {
+    this.program = Preconditions.checkNotNull(program);
+    Preconditions.checkArgument(slotNames.size() > 0 && slotNames.size() == targets.size());
+
+    int numSlots = program.getNumSlots();
+    this.slotNames = new String[slotNames.size()][];
+    this.targets = targets.toArray(new double[0][]);
+    for (int i = 0; i < slotNames.size(); i++) {
+      Preconditions.checkArgument(slotNames.get(i).size() == numSlots);
+      Preconditions.checkArgument(this.targets[i].length == program.getOutputSize());
+      this.slotNames[i] = slotNames.get(i).toArray(new String[0]);
+    }
+
+    this.sharedSlots = new boolean[numSlots];
+    for (int j = 0; j < numSlots; j++) {
+      sharedSlots[j] = true;
+      for (int i = 1; i < this.slotNames.length; i++) {
+        sharedSlots[j] = sharedSlots[j] && this.slotNames[i][j].equals(this.slotNames[0][j]);
+      }
+    }
+  }
+
+  /**
+   * Compiles {@code examples} and groups them into batches of up to
+   * {@code batchSize} examples with the same program. Batches are
+   * ordered by their first example, so with a batch size of 1 the
+   * examples keep their original order.
+   */
+  public static List<CvsmBatch> fromExamples(Collection<CvsmExample> examples,
+      CvsmProgram.TensorShapes shapes, int batchSize) {
+    Preconditions.checkArgument(batchSize > 0);
+    List<CvsmExample> exampleList = Lists.newArrayList(examples);
+    Map<String, CvsmProgram> programs = Maps.newHashMap();
+    Multimap<String, Integer> examplesByProgram = ArrayListMultimap.create();
+    for (int i = 0; i < exampleList.size(); i++) {
+      CvsmProgram program = CvsmProgram.compile(exampleList.get(i).getLogicalForm(), shapes);
+      programs.put(program.getKey(), program);
+      examplesByProgram.put(program.getKey(), i);
+    }
+
+    // Index of the first example in each batch, and the batch.
+    SortedMap<Integer, CvsmBatch> batches = Maps.newTreeMap();
+    for (String key : programs.keySet()) {
+      List<Integer> programExamples = Lists.newArrayList(examplesByProgram.get(key));
+      for (List<Integer> batchExamples : Lists.partition(programExamples, batchSize)) {
+        List<List<String>> slotNames = Lists.newArrayList();
+        List<double[]> targets = Lists.newArrayList();
+        for (int index : batchExamples) {
+          CvsmExample example = exampleList.get(index);
+          slotNames.add(CvsmProgram.getSlotNames(example.getLogicalForm()));
+          targets.add(DenseTensor.copyOf(example.getTargets()).getValues());
+        }
+        batches.put(batchExamples.get(0), new CvsmBatch(programs.get(key), slotNames, targets));
+      }
+    }
+    return Lists.newArrayList(batches.values());
+  }
+
+  public CvsmProgram getProgram() {
+    return program;
+  }
+
+  public int size() {
+    return slotNames.length;
+  }
+
+  public String getSlotName(int example, int slot) {
+    return slotNames[example][slot];
+  }
+
+  public boolean[] getSharedSlots() {
+    return sharedSlots;
+  }
+
+  public double[] getTargets(int example) {
+    return targets[example];
+  }
+}
@@ -0,0 +1,717 @@
+package edu.cmu.ml.rtw.vector;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.base.Preconditions;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.primitives.Ints;
+import com.jayantkrish.jklol.ccg.lambda.ApplicationExpression;
+import com.jayantkrish.jklol.ccg.lambda.ConstantExpression;
+import com.jayantkrish.jklol.ccg.lambda.Expression;
+
+/**
+ * A vector space model formula compiled into a flat sequence of
+ * operations over dense arrays. Jklol's {@code Cvsm} interprets a
+ * formula by building a tree of tensor objects for every forward and
+ * backward pass; a {@code CvsmProgram} is compiled once per formula
+ * structure, and evaluating it only reads and writes preallocated
+ * arrays.
+ * <p>
+ * A program abstracts over the names of the tensors in its formula:
+ * every occurrence of a tensor is a <i>slot</i>, which is bound to a
+ * tensor name when the program is evaluated. Hence, formulas with the
+ * same structure and tensor dimensions (e.g., the sequence RNN
+ * formulas of all sentences with the same length) share one program.
+ * <p>
+ * Programs evaluate a batch of examples at once. A slot bound to the
+ * same tensor for every example in the batch (e.g., an RNN transition
+ * matrix) is <i>shared</i>, and is stored once; all of the
+ * matrix-vector products with a shared matrix are computed together
+ * as a matrix-matrix product.
+ * <p>
+ * Tensors use jklol's dense layout. Multiplication ({@code op:matvecmul})
+ * sums out the dimensions of the right argument, which must be the
+ * lowest-numbered dimensions of the left argument. A shared slot that
+ * is only used as the left argument of a multiplication may instead be
+ * bound to a {@link MatrixOperand}, such as a sparse or low-rank
+ * matrix, which is multiplied without copying it into a dense array.
+ *
+ * @author jayantk
+ */
+public class CvsmProgram {
+
+  private static final int LEAF = 0;
+  private static final int MATVECMUL = 1;
+  private static final int ADD = 2;
+  private static final int TANH = 3;
+  private static final int LOGISTIC = 4;
+  private static final int EXP = 5;
+  private static final int LOG = 6;
+
+  private static final Map<String, Integer> OPERATIONS = Maps.newHashMap();
+  static {
+    OPERATIONS.put("op:matvecmul", MATVECMUL);
+    OPERATIONS.put("op:add", ADD);
+    OPERATIONS.put("op:tanh", TANH);
+    OPERATIONS.put("op:logistic", LOGISTIC);
+    OPERATIONS.put("op:exp", EXP);
+    OPERATIONS.put("op:log", LOG);
+  }
+
+  // Compiled programs, keyed by structure. Each program keeps a
+  // workspace for every thread that evaluates it, so only the most
+  // recently used programs are kept; an evicted program is simply
+  // compiled again.
+  private static final int MAX_CACHED_PROGRAMS = 1000;
+  private static final Cache<String, CvsmProgram> programs = CacheBuilder.newBuilder()
+      .maximumSize(MAX_CACHED_PROGRAMS).build();
+
+  private final String key;
+
+  // Nodes in topological order; the last node is the output.
+  private final int[] operations;
+  private final int[][] inputs;
+  // Number of entries in each node's value.
+  private final int[] sizes;
+  private final int[][] dimensionSizes;
+  // For each slot, the index of its leaf node.
+  private final int[] slotNodes;
+  // For each slot, the number of rows of the slot when it is bound to a
+  // MatrixOperand, or 0 if it cannot be bound to one.
+  private final int[] matrixRows;
+
+  // Each thread evaluates programs in its own workspace.
+  private final ThreadLocal<Workspace> workspaces;
+
+  private CvsmProgram(String key, int[] operations, int[][] inputs, int[][] dimensionSizes,
+      int[] slotNodes) {
+    this.key = key;
+    this.operations = operations;
+    this.inputs = inputs;
+    this.dimensionSizes = dimensionSizes;
+    this.slotNodes = slotNodes;
+
+    this.sizes = new int[operations.length];
+    for (int i = 0; i < operations.length; i++) {
+      sizes[i] = product(dimensionSizes[i], 0, dimensionSizes[i].length);
+    }
+
+    // Every leaf has one parent, so a leaf that is the left argument of
+    // a multiplication is not used anywhere else.
+    int[] leafMatrixRows = new int[operations.length];
+    for (int i = 0; i < operations.length; i++) {
+      if (operations[i] == MATVECMUL && operations[inputs[i][0]] == LEAF) {
+        leafMatrixRows[inputs[i][0]] = sizes[inputs[i][1]];
+      }
+    }
+    this.matrixRows = new int[slotNodes.length];
+    for (int slot = 0; slot < slotNodes.length; slot++) {
+      matrixRows[slot] = leafMatrixRows[slotNodes[slot]];
+    }
+    this.workspaces = new ThreadLocal<Workspace>();
+  }
+
+  /**
+   * Gets the compiled program for {@code expression}, compiling it if
+   * no formula with the same structure has been compiled recently.
+   * {@code shapes} determines the dimension sizes of each tensor name
+   * in {@code expression}.
+   */
+  public static CvsmProgram compile(Expression expression, TensorShapes shapes) {
+    Compiler compiler = new Compiler(shapes);
+    compiler.compile(expression);
+    String key = compiler.key.toString();
+
+    CvsmProgram program = programs.getIfPresent(key);
+    if (program == null) {
+      program = new CvsmProgram(key, Ints.toArray(compiler.operations),
+          compiler.inputs.toArray(new int[0][]), compiler.dimensionSizes.toArray(new int[0][]),
+          Ints.toArray(compiler.slotNodes));
+      CvsmProgram existing = programs.asMap().putIfAbsent(key, program);
+      if (existing != null) {
+        program = existing;
+      }
+    }
+    return program;
+  }
+
+  /**
+   * Gets the tensor names bound to the slots of {@code expression}'s
+   * program, in slot order.
+   */
+  public static List<String> getSlotNames(Expression expression) {
+    List<String> names = Lists.newArrayList();
+    getSlotNames(expression, names);
+    return names;
+  }
+
+  private static void getSlotNames(Expression expression, List<String> accumulator) {
+    if (expression instanceof ConstantExpression) {
+      accumulator.add(((ConstantExpression) expression).getName());
+    } else {
+      for (Expression argument : ((ApplicationExpression) expression).getArguments()) {
+        getSlotNames(argument, accumulator);
+      }
+    }
+  }
+
+  public String getKey() {
+    return key;
+  }
+
+  public int getNumSlots() {
+    return slotNodes.length;
+  }
+
+  public int[] getSlotDimensionSizes(int slot) {
+    return dimensionSizes[slotNodes[slot]];
+  }
+
+  public int getSlotSize(int slot) {
+    return sizes[slotNodes[slot]];
+  }
+
+  public int getOutputSize() {
+    return sizes[sizes.length - 1];
+  }
+
+  public int[] getOutputDimensionSizes() {
+    return dimensionSizes[dimensionSizes.length - 1];
+  }
+
+  /**
+   * Gets the number of rows that {@code slot} has when its value is a
+   * {@link MatrixOperand}, i.e., the number of entries summed out when
+   * it is multiplied by a vector. Returns 0 if the slot is not only
+   * used as the left argument of {@code op:matvecmul}, in which case
+   * its value must be a dense array.
+   */
+  public int getMatrixRows(int slot) {
+    return matrixRows[slot];
+  }
+
+  /**
+   * Evaluates this program on a batch of examples. {@code slotValues}
+   * contains the value of each slot for each example, indexed by
+   * {@code [example][slot]}; {@code sharedSlots} identifies the slots
+   * whose value is the same for every example. The outputs are
+   * written to {@code output}, indexed by
+   * {@code example * getOutputSize() + i}.
+   * <p>
+   * The values of intermediate nodes are retained in this thread's
+   * workspace until the next call to {@code forward}, for use by
+   * {@link #backward}.
+   */
+  public void forward(double[][][] slotValues, boolean[] sharedSlots, double[] output) {
+    forward(slotValues, null, sharedSlots, output);
+  }
+
+  /**
+   * Same as {@link #forward(double[][][], boolean[], double[])}, except
+   * that the value of each slot with a non-null entry in
+   * {@code slotMatrices} is given by that matrix, and its entries in
+   * {@code slotValues} are ignored. Only shared slots with nonzero
+   * {@link #getMatrixRows} can be bound to matrices. {@code slotMatrices}
+   * may be null.
+   */
+  public void forward(double[][][] slotValues, MatrixOperand[] slotMatrices, boolean[] sharedSlots,
+      double[] output) {
+    forward(slotValues.length, slotValues, slotMatrices, sharedSlots, output);
+  }
+
+  /**
+   * Same as {@link #forward(double[][][], MatrixOperand[], boolean[], double[])}
+   * on the first {@code batchSize} examples of {@code slotValues}, so
+   * callers can reuse arrays sized for larger batches.
+   */
+  public void forward(int batchSize, double[][][] slotValues, MatrixOperand[] slotMatrices,
+      boolean[] sharedSlots, double[] output) {
+    Preconditions.checkArgument(batchSize <= slotValues.length);
+    Workspace workspace = getWorkspace(batchSize);
+    workspace.batchSize = batchSize;
+    boolean[] shared = workspace.shared;
+    double[][] values = workspace.values;
+    MatrixOperand[] matrices = workspace.matrices;
+
+    for (int slot = 0; slot < slotNodes.length; slot++) {
+      int node = slotNodes[slot];
+      shared[node] = sharedSlots[slot];
+      matrices[node] = null;
+      if (slotMatrices != null && slotMatrices[slot] != null) {
+        Preconditions.checkArgument(sharedSlots[slot] && matrixRows[slot] > 0,
+            "Slot %s cannot be bound to a matrix", slot);
+        matrices[node] = slotMatrices[slot];
+        values[node] = null;
+      } else if (sharedSlots[slot]) {
+        values[node] = slotValues[0][slot];
+      } else {
+        double[] buffer = workspace.buffers[node];
+        for (int e = 0; e < batchSize; e++) {
+          System.arraycopy(slotValues[e][slot], 0, buffer, e * sizes[node], sizes[node]);
+        }
+        values[node] = buffer;
+      }
+    }
+
+    for (int node = 0; node < operations.length; node++) {
+      int op = operations[node];
+      if (op == LEAF) {
+        continue;
+      }
+      int[] nodeInputs = inputs[node];
+      boolean isShared = true;
+      for (int i = 0; i < nodeInputs.length; i++) {
+        isShared = isShared && shared[nodeInputs[i]];
+      }
+      shared[node] = isShared;
+      double[] out = workspace.buffers[node];
+      values[node] = out;
+      int numExamples = isShared ? 1 : batchSize;
+      int size = sizes[node];
+
+      switch (op) {
+      case MATVECMUL:
+        if (matrices[nodeInputs[0]] != null) {
+          matrixMultiply(matrices[nodeInputs[0]], values[nodeInputs[1]], shared[nodeInputs[1]],
+              sizes[nodeInputs[1]], size, numExamples, out);
+        } else {
+          matvecmul(values[nodeInputs[0]], shared[nodeInputs[0]], values[nodeInputs[1]],
+              shared[nodeInputs[1]], sizes[nodeInputs[1]], size, numExamples, out);
+        }
+        break;
+      case ADD:
+        Arrays.fill(out, 0, numExamples * size, 0.0);
+        for (int i = 0; i < nodeInputs.length; i++) {
+          double[] in = values[nodeInputs[i]];
+          int inStride = shared[nodeInputs[i]] ? 0 : size;
+          for (int e = 0; e < numExamples; e++) {
+            int inOffset = e * inStride;
+            int outOffset = e * size;
+            for (int j = 0; j < size; j++) {
+              out[outOffset + j] += in[inOffset + j];
+            }
+          }
+        }
+        break;
+      default:
+        double[] in = values[nodeInputs[0]];
+        int length = numExamples * size;
+        for (int j = 0; j < length; j++) {
+          out[j] = apply(op, in[j]);
+        }
+      }
+    }
+
+    int outputNode = operations.length - 1;
+    int outputSize = sizes[outputNode];
+    for (int e = 0; e < batchSize; e++) {
+      System.arraycopy(values[outputNode], shared[outputNode] ? 0 : e * outputSize,
+          output, e * outputSize, outputSize);
+    }
+  }
+
+  /**
+   * Backpropagates {@code outputGradient} through the values computed
+   * by the last call to {@link #forward} on this thread. The gradient
+   * of each slot is written to {@code slotGradients}, which has the
+   * same layout as {@code forward}'s {@code slotValues}; a shared slot's
+   * gradient (summed over the batch) is written to
+   * {@code slotGradients[0][slot]}. Slots with a null gradient array
+   * are not needed, and their gradient is not computed.
+   */
+  public void backward(double[] outputGradient, double[][][] slotGradients) {
+    Workspace workspace = workspaces.get();
+    int batchSize = workspace.batchSize;
+    boolean[] shared = workspace.shared;
+    double[][] values = workspace.values;
+    double[][] gradients = workspace.gradients;
+    boolean[] needsGradient = workspace.needsGradient;
+    MatrixOperand[] matrices = workspace.matrices;
+
+    // Determine which nodes have a slot that needs a gradient beneath them.
+    Arrays.fill(needsGradient, false);
+    for (int slot = 0; slot < slotNodes.length; slot++) {
+      needsGradient[slotNodes[slot]] = slotGradients[0][slot] != null;
+    }
+    for (int node = 0; node < operations.length; node++) {
+      for (int input : inputs[node]) {
+        needsGradient[node] = needsGradient[node] || needsGradient[input];
+      }
+      Arrays.fill(gradients[node], 0, (shared[node] ? 1 : batchSize) * sizes[node], 0.0);
+    }
+
+    // The output gradient is given per example, even if the output is shared.
+    int outputNode = operations.length - 1;
+    int outputSize = sizes[outputNode];
+    for (int e = 0; e < batchSize; e++) {
+      int outOffset = shared[outputNode] ? 0 : e * outputSize;
+      for (int j = 0; j < outputSize; j++) {
+        gradients[outputNode][outOffset + j] += outputGradient[e * outputSize + j];
+      }
+    }
+
+    for (int node = operations.length - 1; node >= 0; node--) {
+      int op = operations[node];
+      if (op == LEAF || !needsGradient[node]) {
+        continue;
+      }
+      int[] nodeInputs = inputs[node];
+      double[] gOut = gradients[node];
+      int numExamples = shared[node] ? 1 : batchSize;
+      int size = sizes[node];
+
+      switch (op) {
+      case MATVECMUL:
+        int a = nodeInputs[0];
+        int b = nodeInputs[1];
+        if (matrices[a] != null) {
+          matrixMultiplyBackward(matrices[a], needsGradient[a] ? gradients[a] : null,
+              values[b], shared[b], needsGradient[b] ? gradients[b] : null,
+              sizes[b], size, numExamples, gOut);
+        } else {
+          matvecmulBackward(values[a], shared[a], needsGradient[a] ? gradients[a] : null,
+              values[b], shared[b], needsGradient[b] ? gradients[b] : null,
+              sizes[b], size, numExamples, gOut);
+        }
+        break;
+      case ADD:
+        for (int i = 0; i < nodeInputs.length; i++) {
+          int input = nodeInputs[i];
+          if (!needsGradient[input]) {
+            continue;
+          }
+          double[] gIn = gradients[input];
+          int inStride = shared[input] ? 0 : size;
+          for (int e = 0; e < numExamples; e++) {
+            int inOffset = e * inStride;
+            int outOffset = e * size;
+            for (int j = 0; j < size; j++) {
+              gIn[inOffset + j] += gOut[outOffset + j];
+            }
+          }
+        }
+        break;
+      default:
+        int input = nodeInputs[0];
+        if (!needsGradient[input]) {
+          break;
+        }
+        double[] in = values[input];
+        double[] out = values[node];
+        double[] gIn = gradients[input];
+        int length = numExamples * size;
+        for (int j = 0; j < length; j++) {
+          gIn[j] += gOut[j] * derivative(op, in[j], out[j]);
+        }
+      }
+    }
+
+    for (int slot = 0; slot < slotNodes.length; slot++) {
+      if (slotGradients[0][slot] == null) {
+        continue;
+      }
+      int node = slotNodes[slot];
+      int size = sizes[node];
+      if (shared[node]) {
+        System.arraycopy(gradients[node], 0, slotGradients[0][slot], 0, size);
+      } else {
+        for (int e = 0; e < batchSize; e++) {
+          System.arraycopy(gradients[node], e * size, slotGradients[e][slot], 0, size);
+        }
+      }
+    }
+  }
+
+  private static double apply(int op, double x) {
+    switch (op) {
+    case TANH:
+      return Math.tanh(x);
+    case LOGISTIC:
+      return 1.0 / (1.0 + Math.exp(-x));
+    case EXP:
+      return Math.exp(x);
+    case LOG:
+      return Math.log(x);
+    default:
+      throw new IllegalArgumentException("Unknown operation: " + op);
+    }
+  }
+
+  private static double derivative(int op, double x, double fx) {
+    switch (op) {
+    case TANH:
+      return 1.0 - fx * fx;
+    case LOGISTIC:
+      return fx * (1.0 - fx);
+    case EXP:
+      return fx;
+    case LOG:
+      return 1.0 / x;
+    default:
+      throw new IllegalArgumentException("Unknown operation: " + op);
+    }
+  }
+
+  /**
+   * Computes {@code out[e][q] = sum_p a[e][p * q_size + q] * b[e][p]}
+   * for each example {@code e}. If {@code a} is shared, the loops are
+   * ordered so that each row of {@code a} is multiplied with every
+   * example while it is in cache, i.e., a matrix-matrix product.
+   */
+  private static void matvecmul(double[] a, boolean aShared, double[] b, boolean bShared,
+      int pSize, int qSize, int numExamples, double[] out) {
+    Arrays.fill(out, 0, numExamples * qSize, 0.0);
+    int aStride = aShared ? 0 : pSize * qSize;
+    int bStride = bShared ? 0 : pSize;
+    if (aShared) {
+      for (int p = 0; p < pSize; p++) {
+        int rowOffset = p * qSize;
+        for (int e = 0; e < numExamples; e++) {
+          double bValue = b[e * bStride + p];
+          if (bValue == 0.0) {
+            continue;
+          }
+          int outOffset = e * qSize;
+          for (int q = 0; q < qSize; q++) {
+            out[outOffset + q] += a[rowOffset + q] * bValue;
+          }
+        }
+      }
+    } else {
+      for (int e = 0; e < numExamples; e++) {
+        int aOffset = e * aStride;
+        int bOffset = e * bStride;
+        int outOffset = e * qSize;
+        for (int p = 0; p < pSize; p++) {
+          double bValue = b[bOffset + p];
+          if (bValue == 0.0) {
+            continue;
+          }
+          int rowOffset = aOffset + p * qSize;
+          for (int q = 0; q < qSize; q++) {
+            out[outOffset + q] += a[rowOffset + q] * bValue;
+          }
+        }
+      }
+    }
+  }
+
+  private static void matvecmulBackward(double[] a, boolean aShared, double[] aGradient,
+      double[] b, boolean bShared, double[] bGradient, int pSize, int qSize, int numExamples,
+      double[] outGradient) {
+    int aStride = aShared ? 0 : pSize * qSize;
+    int bStride = bShared ? 0 : pSize;
+    for (int p = 0; p < pSize; p++) {
+      for (int e = 0; e < numExamples; e++) {
+        int rowOffset = e * aStride + p * qSize;
+        int outOffset = e * qSize;
+        double bValue = b[e * bStride + p];
+        double bGradientValue = 0.0;
+        for (int q = 0; q < qSize; q++) {
+          double g = outGradient[outOffset + q];
+          bGradientValue += a[rowOffset + q] * g;
+          if (aGradient != null) {
+            aGradient[rowOffset + q] += bValue * g;
+          }
+        }
+        if (bGradient != null) {
+          bGradient[e * bStride + p] += bGradientValue;
+        }
+      }
+    }
+  }
+
+  /**
+   * Same as {@link #matvecmul}, where the (shared) left argument is
+   * {@code a}.
+   */
+  private static void matrixMultiply(MatrixOperand a, double[] b, boolean bShared,
+      int pSize, int qSize, int numExamples, double[] out) {
+    Arrays.fill(out, 0, numExamples * qSize, 0.0);
+    int bStride = bShared ? 0 : pSize;
+    for (int e = 0; e < numExamples; e++) {
+      a.multiply(b, e * bStride, out, e * qSize);
+    }
+  }
+
+  private static void matrixMultiplyBackward(MatrixOperand a, double[] aGradient,
+      double[] b, boolean bShared, double[] bGradient, int pSize, int qSize, int numExamples,
+      double[] outGradient) {
+    int bStride = bShared ? 0 : pSize;
+    for (int e = 0; e < numExamples; e++) {
+      int outOffset = e * qSize;
+      if (bGradient != null) {
+        a.multiplyTranspose(outGradient, outOffset, bGradient, e * bStride);
+      }
+      if (aGradient != null) {
+        // The gradient of a matrix is dense, even if the matrix isn't.
+        for (int p = 0; p < pSize; p++) {
+          double bValue = b[e * bStride + p];
+          if (bValue == 0.0) {
+            continue;
+          }
+          int rowOffset = p * qSize;
+          for (int q = 0; q < qSize; q++) {
+            aGradient[rowOffset + q] += bValue * outGradient[outOffset + q];
+          }
+        }
+      }
+    }
+  }
+
+  private Workspace getWorkspace(int batchSize) {
+    Workspace workspace = workspaces.get();
+    if (workspace == null || workspace.capacity < batchSize) {
+      workspace = new Workspace(sizes, batchSize);
+      workspaces.set(workspace);
+    }
+    return workspace;
+  }
+
+  private static int product(int[] values, int start, int end) {
+    int product = 1;
+    for (int i = start; i < end; i++) {
+      product *= values[i];
+    }
+    return product;
+  }
+
+  /**
+   * Looks up the dimension sizes of tensors by name.
+   */
+  public static interface TensorShapes {
+    public int[] getDimensionSizes(String tensorName);
+  }
+
+  /**
+   * A matrix that is multiplied by vectors without being copied into
+   * jklol's dense layout. Row {@code p}, column {@code q} of the matrix
+   * corresponds to entry {@code p * numColumns + q} of the dense
+   * tensor, where rows index the dimensions summed out by
+   * {@code op:matvecmul}.
+   */
+  public static interface MatrixOperand {
+    /**
+     * Adds the product of this matrix and the vector starting at
+     * {@code vectorOffset} to {@code out}, starting at {@code outOffset},
+     * i.e., {@code out[q] += sum_p matrix[p][q] * vector[p]}.
+     */
+    public void multiply(double[] vector, int vectorOffset, double[] out, int outOffset);
+
+    /**
+     * Adds {@code out[p] += sum_q matrix[p][q] * vector[q]}, with the
+     * same offsets as {@link #multiply}.
+     */
+    public void multiplyTranspose(double[] vector, int vectorOffset, double[] out, int outOffset);
+  }
+
+  /**
+   * Preallocated arrays for evaluating a program on batches of up to
+   * {@code capacity} examples.
+   */
+  private static class Workspace {
+    private final int capacity;
+    private int batchSize;
+
+    private final boolean[] shared;
+    private final boolean[] needsGradient;
+    private final double[][] values;
+    private final double[][] buffers;
+    private final double[][] gradients;
+    private final MatrixOperand[] matrices;
+
+    public Workspace(int[] sizes, int capacity) {
+      this.capacity = capacity;
+      this.shared = new boolean[sizes.length];
+      this.needsGradient = new boolean[sizes.length];
+      this.values = new double[sizes.length][];
+      this.buffers = new double[sizes.length][];
+      this.gradients = new double[sizes.length][];
+      this.matrices = new MatrixOperand[sizes.length];
+      for (int i = 0; i < sizes.length; i++) {
+        buffers[i] = new double[sizes[i] * capacity];
+        gradients[i] = new double[sizes[i] * capacity];
+      }
+    }
+  }
+
+  /**
+   * Flattens an expression into nodes in topological order, and
+   * builds a key identifying its structure.
+   */
+  private static class Compiler {
+    private final TensorShapes shapes;
+
+    private final List<Integer> operations = Lists.newArrayList();
+    private final List<int[]> inputs = Lists.newArrayList();
+    private final List<int[]> dimensionSizes = Lists.newArrayList();
+    private final List<Integer> slotNodes = Lists.newArrayList();
+    private final StringBuilder key = new StringBuilder();
+
+    public Compiler(TensorShapes shapes) {
+      this.shapes = Preconditions.checkNotNull(shapes);
+    }
+
+    public int compile(Expression expression) {
+      if (expression instanceof ConstantExpression) {
+        String name = ((ConstantExpression) expression).getName();
+        int[] sizes = shapes.getDimensionSizes(name);
+        Preconditions.checkArgument(sizes != null, "Unknown tensor: %s", name);
+        key.append(Arrays.toString(sizes));
+        slotNodes.add(operations.size());
+        return addNode(LEAF, new int[0], sizes);
+      }
+
+      Preconditions.checkArgument(expression instanceof ApplicationExpression,
+          "Cannot compile: %s", expression);
+      ApplicationExpression application = (ApplicationExpression) expression;
+      String function = application.getFunction().toString();
+      Integer op = OPERATIONS.get(function);
+      Preconditions.checkArgument(op != null, "Unsupported operation: %s", function);
+
+      key.append("(").append(function);
+      List<Expression> arguments = application.getArguments();
+      int[] argumentNodes = new int[arguments.size()];
+      for (int i = 0; i < arguments.size(); i++) {
+        key.append(" ");
+        argumentNodes[i] = compile(arguments.get(i));
+      }
+      key.append(")");
+
+      int[] sizes = null;
+      if (op == MATVECMUL) {
+        Preconditions.checkArgument(argumentNodes.length == 2, "matvecmul requires 2 arguments");
+        int[] left = dimensionSizes.get(argumentNodes[0]);
+        int[] right = dimensionSizes.get(argumentNodes[1]);
+        Preconditions.checkArgument(right.length <= left.length
+            && Arrays.equals(right, Arrays.copyOf(left, right.length)),
+            "Cannot multiply %s by %s", Arrays.toString(left), Arrays.toString(right));
+        sizes = Arrays.copyOfRange(left, right.length, left.length);
+      } else {
+        if (op == ADD) {
+          Preconditions.checkArgument(argumentNodes.length >= 2, "Addition requires more than 1 argument.");
+        } else {
+          Preconditions.checkArgument(argumentNodes.length == 1, "%s requires 1 argument", function);
+        }
+        sizes = dimensionSizes.get(argumentNodes[0]);
+        for (int argumentNode : argumentNodes) {
+          Preconditions.checkArgument(Arrays.equals(sizes, dimensionSizes.get(argumentNode)),
+              "Arguments of %s have different dimensions", function);
+        }
+      }
+      return addNode(op, argumentNodes, sizes);
+    }
+
+    private int addNode(int op, int[] nodeInputs, int[] sizes) {
+      operations.add(op);
+      inputs.add(nodeInputs);
+      dimensionSizes.add(sizes);
+      return operations.size() - 1;
+    }
+  }
+}
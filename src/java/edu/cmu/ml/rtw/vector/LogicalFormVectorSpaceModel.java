@@ -1,9 +1,15 @@
 package edu.cmu.ml.rtw.vector;
 
+import static edu.cmu.ml.rtw.vector.VsmExpressions.add;
+import static edu.cmu.ml.rtw.vector.VsmExpressions.exp;
+import static edu.cmu.ml.rtw.vector.VsmExpressions.log;
+import static edu.cmu.ml.rtw.vector.VsmExpressions.matvecmul;
+import static edu.cmu.ml.rtw.vector.VsmExpressions.parameter;
+import static edu.cmu.ml.rtw.vector.VsmExpressions.tensor;
+
 import java.util.List;
 import java.util.Map;
 
-import com.google.common.base.Joiner;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.HashMultimap;
 import com.google.common.collect.Lists;
@@ -12,13 +18,13 @@ import com.google.common.collect.Multimap;
 import com.jayantkrish.jklol.ccg.lambda.ApplicationExpression;
 import com.jayantkrish.jklol.ccg.lambda.CommutativeOperator;
 import com.jayantkrish.jklol.ccg.lambda.Expression;
-import com.jayantkrish.jklol.ccg.lambda.ExpressionParser;
 import com.jayantkrish.jklol.ccg.lambda.ForAllExpression;
 import com.jayantkrish.jklol.ccg.lambda.LambdaExpression;
 import com.jayantkrish.jklol.ccg.lambda.QuantifierExpression;
 import com.jayantkrish.jklol.util.Pair;
 
 import edu.cmu.ml.rtw.users.jayantk.grounding.Domain;
+import edu.cmu.ml.rtw.users.jayantk.grounding.EventLog;
 import edu.cmu.ml.rtw.users.jayantk.grounding.GroundingExample;
 
 public class LogicalFormVectorSpaceModel implements VectorSpaceModelInterface {
@@ -31,25 +37,22 @@ public class LogicalFormVectorSpaceModel implements VectorSpaceModelInterface {
 
   @Override
   public Expression getFormula(GroundingExample example) {
-    String expressionString;
     Expression expression = null;
     if (autogeneratedLfModel) {
       expression = example.getAutogeneratedLogicalForm();
     } else {
       expression = example.getLogicalForm();
     }
-    expressionString = getExpressionString(expression, example.getDomainName());
-
-		System.out.println(expression);
-		System.out.println(expressionString + "\n");
-    return ExpressionParser.lambdaCalculus().parseSingleExpression(expressionString);
+    Expression vsmExpression = getExpression(expression, example.getDomainName());
+    EventLog.debug("vector", "formula", "logicalForm", expression, "vsmExpression", vsmExpression);
+    return vsmExpression;
   }
 
-  private String getExpressionString(Expression logicalForm, String domainName) {
+  private Expression getExpression(Expression logicalForm, String domainName) {
     if (logicalForm == null) {
-      String unknownFuncVector = "t:catFeatures" + ":UNKNOWN";
-      String categoryTensorName = VectorModelTrainer.getCategoryTensorName(domainName);
-      return "(op:matvecmul " + categoryTensorName + " " + unknownFuncVector + ")";
+      Expression unknownFuncVector = parameter("UNKNOWN", "catFeatures");
+      Expression categoryTensor = tensor(VectorModelTrainer.getCategoryTensorName(domainName));
+      return matvecmul(categoryTensor, unknownFuncVector);
     }
     
     logicalForm = logicalForm.simplify();
@@ -73,10 +76,10 @@ public class LogicalFormVectorSpaceModel implements VectorSpaceModelInterface {
       subexpressions.add(body);
     }
 
-    return getExpressionStringConjunction(subexpressions, arg, domainName);
+    return getExpressionConjunction(subexpressions, arg, domainName);
   }
 
-  private String getExpressionStringConjunction(
+  private Expression getExpressionConjunction(
 			List<Expression> subexpressions,
       String queryVar, 
 			String domainName) 
@@ -107,7 +110,7 @@ public class LogicalFormVectorSpaceModel implements VectorSpaceModelInterface {
     return buildExpressionFromGraph(null, queryVar, domainName, variableMap, variableRelationMap, variableCategoryMap);
   }
   
-  private String buildExpressionFromGraph(
+  private Expression buildExpressionFromGraph(
 			String parent, 
 			String root,
       String domainName, 
@@ -117,7 +120,7 @@ public class LogicalFormVectorSpaceModel implements VectorSpaceModelInterface {
 	{
     // System.out.println("buildexpression: " + root);
     
-    List<String> expressionStrings = Lists.newArrayList();
+    List<Expression> expressions = Lists.newArrayList();
     for (Expression subexpression : variableCategoryMap.get(root)) {
       ApplicationExpression a = (ApplicationExpression) subexpression;
       String funcName = a.getFunction().toString();
@@ -125,40 +128,38 @@ public class LogicalFormVectorSpaceModel implements VectorSpaceModelInterface {
       if (a.getArguments().size() == 1) {
         
         if (funcName.startsWith(Domain.KB_PREFIX)) {
-          String denotationVector = VectorModelTrainer.getPredicateTensorName(domainName, funcName);
-          expressionStrings.add(denotationVector);
+          expressions.add(tensor(VectorModelTrainer.getPredicateTensorName(domainName, funcName)));
         } else {
-          String funcVector = "t:catFeatures" + ":" + funcName;
-          String categoryTensorName = VectorModelTrainer.getCategoryTensorName(domainName);
-          String expressionString = "(op:matvecmul " + categoryTensorName + " " + funcVector + ")";
-          expressionStrings.add(expressionString);
+          Expression funcVector = parameter(funcName, "catFeatures");
+          Expression categoryTensor = tensor(VectorModelTrainer.getCategoryTensorName(domainName));
+          expressions.add(matvecmul(categoryTensor, funcVector));
         }
       }
     }
 
     for (String child : variableMap.get(root)) {
       if (!child.equals(parent)) {
-        expressionStrings.add(buildExpressionFromGraph(root, child, domainName,
+        expressions.add(buildExpressionFromGraph(root, child, domainName,
             variableMap, variableRelationMap, variableCategoryMap));
       }
     }
     
-    String baseExpressionString = null;
-    if (expressionStrings.size() == 1) {
-      baseExpressionString = expressionStrings.get(0);
+    Expression baseExpression = null;
+    if (expressions.size() == 1) {
+      baseExpression = expressions.get(0);
     } else {
-      baseExpressionString = "(op:add " + Joiner.on(" ").join(expressionStrings) + ")";
+      baseExpression = add(expressions);
     }
 
-    // System.out.println("base:" + baseExpressionString);
-    String expressionString = null;
+    // System.out.println("base:" + baseExpression);
+    Expression expression = null;
     if (parent != null) {
       Pair<String, String> argsInOrder = Pair.of(parent, root);
       ApplicationExpression a = variableRelationMap.get(argsInOrder);
-      String funcVector = null;
+      Expression funcVector = null;
       if (a != null) {
         String funcName = a.getFunction().toString();
-        funcVector = "t:relFeatures" + ":" + funcName;
+        funcVector = parameter(funcName, "relFeatures");
         
       }
 
@@ -166,19 +167,19 @@ public class LogicalFormVectorSpaceModel implements VectorSpaceModelInterface {
       a = variableRelationMap.get(argsOutOfOrder);
       if (a != null) {
         String funcName = a.getFunction().toString();
-        funcVector = "t:relFeatures" + ":" + funcName + "-inv";
+        funcVector = parameter(funcName + "-inv", "relFeatures");
       }
       
       if (funcVector != null) {
-        String relationTensorName = VectorModelTrainer.getRelationTensorName(domainName);
-        expressionString = "(op:log (op:matvecmul (op:exp (op:matvecmul " + relationTensorName + " " + funcVector + ")) " + "(op:exp " + baseExpressionString + ")))";
+        Expression relationTensor = tensor(VectorModelTrainer.getRelationTensorName(domainName));
+        expression = log(matvecmul(exp(matvecmul(relationTensor, funcVector)), exp(baseExpression)));
       }
     } else {
-      expressionString = baseExpressionString;
+      expression = baseExpression;
     }
-    Preconditions.checkState(expressionString != null);
-    // System.out.println("expressionString:" + expressionString);
+    Preconditions.checkState(expression != null);
+    // System.out.println("expression:" + expression);
 
-    return expressionString;
+    return expression;
   }
 }
@@ -0,0 +1,138 @@
+package edu.cmu.ml.rtw.vector;
+
+import java.util.List;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.jayantkrish.jklol.cvsm.lrt.LowRankTensor;
+import com.jayantkrish.jklol.cvsm.lrt.OuterProductLowRankTensor;
+import com.jayantkrish.jklol.cvsm.lrt.SumLowRankTensor;
+import com.jayantkrish.jklol.tensor.DenseTensor;
+import com.jayantkrish.jklol.tensor.Tensor;
+
+/**
+ * A matrix stored as a sum of outer products of vectors, plus a sparse
+ * remainder. This is the form of the low-rank ({@code tlr:})
+ * parameters of vector space models, whose value is a sum of
+ * {@code rank} outer products and a diagonal matrix. Multiplying a
+ * vector by a rank {@code k} matrix with {@code P} rows and {@code Q}
+ * columns takes {@code O(k (P + Q))} time, and the matrix itself is
+ * never materialized.
+ *
+ * @author jayantk
+ */
+public class LowRankMatrix implements CvsmProgram.MatrixOperand {
+
+  private final int numRows;
+  private final int numColumns;
+
+  // The matrix is sum_k rowFactors[k] (outer product) columnFactors[k] + remainder.
+  private final double[][] rowFactors;
+  private final double[][] columnFactors;
+  // May be null.
+  private final CsrMatrix remainder;
+
+  public LowRankMatrix(double[][] rowFactors, double[][] columnFactors, CsrMatrix remainder,
+      int numRows, int numColumns) {
+    Preconditions.checkArgument(rowFactors.length == columnFactors.length);
+    Preconditions.checkArgument(remainder == null
+        || (remainder.getNumRows() == numRows && remainder.getNumColumns() == numColumns));
+    this.numRows = numRows;
+    this.numColumns = numColumns;
+    this.rowFactors = rowFactors;
+    this.columnFactors = columnFactors;
+    this.remainder = remainder;
+  }
+
+  /**
+   * Gets the factored form of a matrix-valued {@code tensor} that is a
+   * sum of outer products of vectors (and other terms). Returns
+   * {@code null} if {@code tensor} is not a matrix of this form.
+   */
+  public static LowRankMatrix fromLowRankTensor(LowRankTensor tensor) {
+    int[] dimensionNumbers = tensor.getDimensionNumbers();
+    int[] dimensionSizes = tensor.getDimensionSizes();
+    if (dimensionNumbers.length != 2 || !(tensor instanceof SumLowRankTensor)) {
+      return null;
+    }
+
+    List<double[]> rowFactors = Lists.newArrayList();
+    List<double[]> columnFactors = Lists.newArrayList();
+    Tensor remainder = null;
+    for (LowRankTensor term : ((SumLowRankTensor) tensor).getTerms()) {
+      if (term instanceof OuterProductLowRankTensor) {
+        LowRankTensor left = ((OuterProductLowRankTensor) term).getLeft();
+        LowRankTensor right = ((OuterProductLowRankTensor) term).getRight();
+        if (left.getDimensionNumbers().length != 1 || right.getDimensionNumbers().length != 1) {
+          return null;
+        }
+        if (left.getDimensionNumbers()[0] != dimensionNumbers[0]) {
+          LowRankTensor temp = left;
+          left = right;
+          right = temp;
+        }
+        rowFactors.add(DenseTensor.copyOf(left.getTensor()).getValues());
+        columnFactors.add(DenseTensor.copyOf(right.getTensor()).getValues());
+      } else {
+        remainder = (remainder == null) ? term.getTensor()
+            : remainder.elementwiseAddition(term.getTensor());
+      }
+    }
+
+    if (rowFactors.size() == 0) {
+      // Not a low-rank matrix.
+      return null;
+    }
+    return new LowRankMatrix(rowFactors.toArray(new double[0][]), columnFactors.toArray(new double[0][]),
+        remainder == null ? null : CsrMatrix.fromTensor(remainder, dimensionSizes[0]),
+        dimensionSizes[0], dimensionSizes[1]);
+  }
+
+  public int getNumRows() {
+    return numRows;
+  }
+
+  public int getNumColumns() {
+    return numColumns;
+  }
+
+  public int getRank() {
+    return rowFactors.length;
+  }
+
+  @Override
+  public void multiply(double[] vector, int vectorOffset, double[] out, int outOffset) {
+    for (int k = 0; k < rowFactors.length; k++) {
+      double[] rowFactor = rowFactors[k];
+      double innerProduct = 0.0;
+      for (int p = 0; p < numRows; p++) {
+        innerProduct += rowFactor[p] * vector[vectorOffset + p];
+      }
+      double[] columnFactor = columnFactors[k];
+      for (int q = 0; q < numColumns; q++) {
+        out[outOffset + q] += columnFactor[q] * innerProduct;
+      }
+    }
+    if (remainder != null) {
+      remainder.multiply(vector, vectorOffset, out, outOffset);
+    }
+  }
+
+  @Override
+  public void multiplyTranspose(double[] vector, int vectorOffset, double[] out, int outOffset) {
+    for (int k = 0; k < rowFactors.length; k++) {
+      double[] columnFactor = columnFactors[k];
+      double innerProduct = 0.0;
+      for (int q = 0; q < numColumns; q++) {
+        innerProduct += columnFactor[q] * vector[vectorOffset + q];
+      }
+      double[] rowFactor = rowFactors[k];
+      for (int p = 0; p < numRows; p++) {
+        out[outOffset + p] += rowFactor[p] * innerProduct;
+      }
+    }
+    if (remainder != null) {
+      remainder.multiplyTranspose(vector, vectorOffset, out, outOffset);
+    }
+  }
+}
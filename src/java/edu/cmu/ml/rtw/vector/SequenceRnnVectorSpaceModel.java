@@ -1,10 +1,15 @@
 package edu.cmu.ml.rtw.vector;
 
+import static edu.cmu.ml.rtw.vector.VsmExpressions.add;
+import static edu.cmu.ml.rtw.vector.VsmExpressions.matvecmul;
+import static edu.cmu.ml.rtw.vector.VsmExpressions.parameter;
+import static edu.cmu.ml.rtw.vector.VsmExpressions.tanh;
+import static edu.cmu.ml.rtw.vector.VsmExpressions.tensor;
+
 import java.util.List;
 
 import com.google.common.base.Preconditions;
 import com.jayantkrish.jklol.ccg.lambda.Expression;
-import com.jayantkrish.jklol.ccg.lambda.ExpressionParser;
 
 import edu.cmu.ml.rtw.users.jayantk.grounding.GroundingExample;
 
@@ -31,30 +36,28 @@ public class SequenceRnnVectorSpaceModel implements VectorSpaceModelInterface {
   @Override
   public Expression getFormula(GroundingExample example) {
     List<String> words = example.getWords().get(0);
-    String expressionString = getExpressionString(words);
-    
-    String domainCategoryFeaturesName = VectorModelTrainer.getCategoryTensorName(example.getDomainName());
-    expressionString = "(op:matvecmul " + domainCategoryFeaturesName + " (op:matvecmul t:catFeatures;" + dimensionality + ":output_params " + expressionString + "))";
+    Expression sequence = getExpression(words);
 
-    return ExpressionParser.lambdaCalculus().parseSingleExpression(expressionString);
+    Expression domainCategoryFeatures = tensor(VectorModelTrainer.getCategoryTensorName(example.getDomainName()));
+    return matvecmul(domainCategoryFeatures,
+        matvecmul(parameter("output_params", "catFeatures", Integer.toString(dimensionality)), sequence));
   }
 
-  private String getExpressionString(List<String> words) {
+  private Expression getExpression(List<String> words) {
     String word = words.get(0);
-    String wordParam = "t:" + dimensionality + ":" + word;
-    String transitionParams = "t:" + dimensionality + ";" + dimensionality  + ":transition_params";
-    String transitionBiasParams = "t:" + dimensionality + ":transition_bias";
-    String wordMatrixParams = "t:" + dimensionality + ";" + dimensionality  + ":word_matrix_params";
-    String wordBiasParams = "t:" + dimensionality + ":word_bias";
-
-    //String wordSeqString = "(op:add (op:matvecmul " + wordMatrixParams + " " + wordParam + ") " + wordBiasParams + ")";
-    String wordSeqString = wordParam;
+    Expression wordParam = parameter(word, dimensionality);
+    Expression transitionParams = parameter("transition_params", dimensionality, dimensionality);
+    Expression transitionBiasParams = parameter("transition_bias", dimensionality);
+
+    //Expression wordSeq = add(matvecmul(parameter("word_matrix_params", dimensionality, dimensionality), wordParam),
+    //    parameter("word_bias", dimensionality));
+    Expression wordSeq = wordParam;
     
     if (words.size() == 1) {
-      return wordSeqString;
+      return wordSeq;
     } else {
-      String rest = getExpressionString(words.subList(1, words.size()));
-      return "(op:tanh (op:add " + wordSeqString + " " + transitionBiasParams + " (op:matvecmul " + transitionParams + " " + rest + ")))";
+      Expression rest = getExpression(words.subList(1, words.size()));
+      return tanh(add(wordSeq, transitionBiasParams, matvecmul(transitionParams, rest)));
     }
   }
 }
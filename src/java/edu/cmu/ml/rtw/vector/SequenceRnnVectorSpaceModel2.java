@@ -1,9 +1,13 @@
 package edu.cmu.ml.rtw.vector;
 
+import static edu.cmu.ml.rtw.vector.VsmExpressions.add;
+import static edu.cmu.ml.rtw.vector.VsmExpressions.logistic;
+import static edu.cmu.ml.rtw.vector.VsmExpressions.matvecmul;
+import static edu.cmu.ml.rtw.vector.VsmExpressions.parameter;
+
 import java.util.List;
 
 import com.jayantkrish.jklol.ccg.lambda.Expression;
-import com.jayantkrish.jklol.ccg.lambda.ExpressionParser;
 
 import edu.cmu.ml.rtw.users.jayantk.grounding.GroundingExample;
 
@@ -28,24 +32,21 @@ public class SequenceRnnVectorSpaceModel2 implements VectorSpaceModelInterface {
   @Override
   public Expression getFormula(GroundingExample example) {
     List<String> words = example.getWords().get(0);
-    String expressionString = getExpressionString(words);
-
-    expressionString = "(op:matvecmul t:catFeatures;" + dimensionality + ":output_params " + expressionString + ")";
-
-    return ExpressionParser.lambdaCalculus().parseSingleExpression(expressionString);
+    return matvecmul(parameter("output_params", "catFeatures", Integer.toString(dimensionality)),
+        getExpression(words));
   }
   
-  private String getExpressionString(List<String> words) {
+  private Expression getExpression(List<String> words) {
     String word = words.get(0);
     if (words.size() == 1) {
-      return "t:" + dimensionality + ":" + word;
+      return parameter(word, dimensionality);
     } else {
-      String rest = getExpressionString(words.subList(1, words.size()));
-      String W1 = "t:" + dimensionality + ";" + dimensionality + ":W1";
-      String W2 = "t:" + dimensionality + ";" + dimensionality + ":W2";
-      String cur_word = "t:" + dimensionality + ":" + word;
+      Expression rest = getExpression(words.subList(1, words.size()));
+      Expression W1 = parameter("W1", dimensionality, dimensionality);
+      Expression W2 = parameter("W2", dimensionality, dimensionality);
+      Expression curWord = parameter(word, dimensionality);
 
-      return "(op:logistic (op:add (op:matvecmul " + W1 + " " + cur_word + ") (op:matvecmul " + W2 + " " + rest + ")))";
+      return logistic(add(matvecmul(W1, curWord), matvecmul(W2, rest)));
     }
   }
 }
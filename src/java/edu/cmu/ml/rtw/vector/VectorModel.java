@@ -0,0 +1,75 @@
+package edu.cmu.ml.rtw.vector;
+
+import java.io.Serializable;
+import java.util.List;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.jayantkrish.jklol.cvsm.Cvsm;
+import com.jayantkrish.jklol.cvsm.lrt.LowRankTensor;
+import com.jayantkrish.jklol.util.IndexedList;
+import com.jayantkrish.jklol.util.IoUtils;
+
+/**
+ * A trained vector space model, as saved by {@link VectorModelTrainer}
+ * and served by {@link VectorModelPredictor}. Only the trained
+ * parameters are saved; the constant tensors of each domain are
+ * rebuilt from the domains the model is served on.
+ *
+ * @author jayantk
+ */
+public class VectorModel implements Serializable {
+  private static final long serialVersionUID = 1L;
+
+  // Arguments to VectorModelTrainer.createVectorSpaceModel.
+  private final String vectorModelName;
+  private final int dimension;
+
+  private final List<String> parameterNames;
+  private final List<LowRankTensor> parameterValues;
+
+  public VectorModel(String vectorModelName, int dimension, List<String> parameterNames,
+      List<LowRankTensor> parameterValues) {
+    Preconditions.checkArgument(parameterNames.size() == parameterValues.size());
+    this.vectorModelName = Preconditions.checkNotNull(vectorModelName);
+    this.dimension = dimension;
+    this.parameterNames = ImmutableList.copyOf(parameterNames);
+    this.parameterValues = ImmutableList.copyOf(parameterValues);
+  }
+
+  public static VectorModel fromSerializedFile(String filename) {
+    return IoUtils.readSerializedObject(filename, VectorModel.class);
+  }
+
+  public String getVectorModelName() {
+    return vectorModelName;
+  }
+
+  public int getDimension() {
+    return dimension;
+  }
+
+  public List<String> getParameterNames() {
+    return parameterNames;
+  }
+
+  public VectorSpaceModelInterface getVectorSpaceModel() {
+    return VectorModelTrainer.createVectorSpaceModel(vectorModelName, dimension);
+  }
+
+  /**
+   * Gets a {@code Cvsm} containing this model's parameters and the
+   * constant tensors in {@code constantTensors}.
+   */
+  public Cvsm getCvsm(ConstantTensorStore constantTensors) {
+    List<String> names = Lists.newArrayList(constantTensors.getNames());
+    List<LowRankTensor> values = Lists.newArrayList();
+    for (String name : names) {
+      values.add(constantTensors.getTensor(name));
+    }
+    names.addAll(parameterNames);
+    values.addAll(parameterValues);
+    return Cvsm.fromTensors(IndexedList.create(names), values);
+  }
+}
@@ -0,0 +1,176 @@
+package edu.cmu.ml.rtw.vector;
+
+import static ch.lambdaj.Lambda.extract;
+import static ch.lambdaj.Lambda.on;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.base.Joiner;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Multimap;
+import com.jayantkrish.jklol.ccg.lambda.Expression;
+import com.jayantkrish.jklol.ccg.lambda.ExpressionParser;
+import com.jayantkrish.jklol.lisp.SExpression;
+import com.jayantkrish.jklol.models.DiscreteVariable;
+import com.jayantkrish.jklol.tensor.Tensor;
+import com.jayantkrish.jklol.util.IndexedList;
+
+import edu.cmu.ml.rtw.time.utils.IoUtil;
+import edu.cmu.ml.rtw.users.jayantk.grounding.Domain;
+import edu.cmu.ml.rtw.users.jayantk.grounding.GroundingExample;
+import edu.cmu.ml.rtw.users.jayantk.grounding.GroundingModelTrainer;
+import edu.cmu.ml.rtw.users.jayantk.semparse.Lexicon;
+import edu.cmu.ml.rtw.users.jayantk.semparse.Lexicon.LexicalCategory;
+
+/**
+ * The domains, cross validation folds, and constant tensors used to
+ * train vector space models. None of these depend on the vector space
+ * model being trained, so they can be read once and shared (read-only)
+ * by every model trained on the same data.
+ *
+ * @author jayantk
+ */
+public class VectorModelData {
+
+  private final List<Domain> domains;
+  private final IndexedList<String> domainNames;
+  private final Multimap<String, GroundingExample> crossValidationFolds;
+  // Training examples shared by all folds.
+  private final List<GroundingExample> allFoldExamples;
+
+  // The object features, relation features and known predicates of each
+  // domain, as constant tensors.
+  private final ConstantTensorStore constantTensors;
+  // Variables for named tensor dimensions (catFeatures and relFeatures).
+  private final Map<String, DiscreteVariable> namedDimensions;
+
+  public VectorModelData(List<Domain> domains, Multimap<String, GroundingExample> crossValidationFolds,
+      List<GroundingExample> allFoldExamples, ConstantTensorStore constantTensors,
+      Map<String, DiscreteVariable> namedDimensions) {
+    this.domains = ImmutableList.copyOf(domains);
+    this.domainNames = IndexedList.create(extract(domains, on(Domain.class).getName()));
+    this.crossValidationFolds = crossValidationFolds;
+    this.allFoldExamples = ImmutableList.copyOf(allFoldExamples);
+    this.constantTensors = Preconditions.checkNotNull(constantTensors);
+    this.namedDimensions = ImmutableMap.copyOf(namedDimensions);
+  }
+
+  /**
+   * Reads the domains in {@code domainDir}. Their constant tensors are
+   * built on first use. If {@code lexiconFilename} is non-null, a training
+   * example is also generated for each entity name in the lexicon
+   * (used for the geography domain).
+   */
+  public static VectorModelData read(String domainDir, String trainingFilename, String lexiconFilename) {
+    // Read training data from disk and partition
+    // into leave-one-environment-out cross validation folds.
+    List<Domain> domains = Domain.readDomainsFromDirectory(domainDir,
+        trainingFilename, null, Integer.MAX_VALUE, false, false, false);
+    Multimap<String, GroundingExample> trainingFolds = GroundingModelTrainer.getCrossValidationFolds(domains);
+
+    List<GroundingExample> allFoldExamples = Collections.emptyList();
+    if (lexiconFilename != null) {
+      allFoldExamples = generateLexiconExamples(domains, lexiconFilename);
+    }
+
+    // The feature variables are the same in every domain.
+    DiscreteVariable featureVarType = null;
+    DiscreteVariable relFeatureVarType = null;
+    if (domains.size() > 0) {
+      Domain domain = domains.get(0);
+      featureVarType = (DiscreteVariable) domain.getCategoryFamily().getFeatureVectors().getVars()
+          .getVariablesByName("catFeatures").getOnlyVariable();
+      relFeatureVarType = (DiscreteVariable) domain.getRelationFamily().getFeatureVectors().getVars()
+          .getVariablesByName("relFeatures").getOnlyVariable();
+    }
+
+    Map<String, DiscreteVariable> namedDimensions = Maps.newHashMap();
+    namedDimensions.put("catFeatures", featureVarType);
+    namedDimensions.put("relFeatures", relFeatureVarType);
+
+    return new VectorModelData(domains, trainingFolds, allFoldExamples,
+        ConstantTensorStore.fromDomains(domains), namedDimensions);
+  }
+
+  private static List<GroundingExample> generateLexiconExamples(List<Domain> domains,
+      String lexiconFilename) {
+    Lexicon<String> lexicon = Lexicon.fromFile(IoUtil.LoadFile(lexiconFilename));
+    Multimap<String, List<String>> predicateNames = HashMultimap.create();
+    for (List<String> words : lexicon.getTriggerSequences()) {
+      for (LexicalCategory cat : lexicon.getCategories(words)) {
+        String predName = cat.getSemanticType().getRelation().getName();
+        if (predName.startsWith(Domain.KB_PREFIX) && !predName.startsWith(Domain.KB_IGNORE_PREFIX) &&
+            !predName.startsWith(Domain.KB_IGNORE_EQUAL_PREFIX) &&
+            !predName.startsWith(Domain.KB_EQUAL_PREFIX)) {
+          predicateNames.put(predName, words);
+        }
+      }
+    }
+
+    List<GroundingExample> examples = Lists.newArrayList();
+    ExpressionParser<Expression> parser = ExpressionParser.lambdaCalculus();
+    for (Domain domain : domains) {
+      if (domain.getTrainingExamples().size() > 0) {
+        for (String predName : domain.getKnownRelationNames()) {
+          for (List<String> words : predicateNames.get(predName)) {
+            List<List<String>> inputCandidates = Lists.newArrayList();
+            inputCandidates.add(words);
+            double[] inputScores = new double[] {0};
+            Tensor outputTensor = domain.getGroundingForFixedRelation(predName).getBestAssignments();
+            Expression logicalForm = parser.parseSingleExpression("(lambda $x (" + predName + " $x))");
+
+            SExpression cfgParse = null;
+
+            List<String> wordParts = Lists.newArrayList();
+            for (String word : words) {
+              wordParts.add("(" + word.toLowerCase() + " $x)");
+            }
+            Expression autogeneratedLogicalForm = parser.parseSingleExpression("(lambda $x (and " + Joiner.on(" ").join(wordParts) + "))");
+
+            GroundingExample ex = new GroundingExample(inputCandidates, inputScores, outputTensor,
+                domain.getName(), 0, logicalForm, cfgParse, autogeneratedLogicalForm);
+            System.out.println(ex.getWords().get(0) + " " + ex.getLogicalForm() + " " + ex.getAutogeneratedLogicalForm());
+            System.out.println(domain.getGroundingForFixedRelation(predName).getTensorAssignmentString(ex.getGrounding()));
+            examples.add(ex);
+          }
+        }
+      }
+    }
+    return examples;
+  }
+
+  public List<Domain> getDomains() {
+    return domains;
+  }
+
+  public Domain getDomain(String domainName) {
+    return domains.get(domainNames.getIndex(domainName));
+  }
+
+  public Multimap<String, GroundingExample> getCrossValidationFolds() {
+    return crossValidationFolds;
+  }
+
+  public List<GroundingExample> getAllFoldExamples() {
+    return allFoldExamples;
+  }
+
+  /**
+   * Gets the constant tensors of every domain. The store is shared by
+   * every model built from this data.
+   */
+  public ConstantTensorStore getConstantTensors() {
+    return constantTensors;
+  }
+
+  public Map<String, DiscreteVariable> getNamedDimensions() {
+    return namedDimensions;
+  }
+}
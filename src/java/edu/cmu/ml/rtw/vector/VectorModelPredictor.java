@@ -0,0 +1,332 @@
+package edu.cmu.ml.rtw.vector;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.google.common.base.Joiner;
+import com.google.common.base.Preconditions;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Multimap;
+import com.jayantkrish.jklol.ccg.lambda.ApplicationExpression;
+import com.jayantkrish.jklol.ccg.lambda.ConstantExpression;
+import com.jayantkrish.jklol.ccg.lambda.Expression;
+import com.jayantkrish.jklol.models.DiscreteVariable;
+
+import edu.cmu.ml.rtw.users.jayantk.grounding.Domain;
+import edu.cmu.ml.rtw.users.jayantk.grounding.GroundingExample;
+import edu.cmu.ml.rtw.users.jayantk.grounding.Metrics;
+
+/**
+ * Answers queries using a trained {@link VectorModel}. The formula of
+ * each query is compiled into a {@link CvsmProgram}, whose output
+ * scores every entity of the query's domain at once, and queries with
+ * the same program are evaluated together as a single batch.
+ * <p>
+ * The parts of a formula that do not depend on the domain (e.g., the
+ * composition of the query's word vectors) are evaluated one operation
+ * at a time, and the value of each such subexpression is cached.
+ * Queries that share words (for example, the common suffix of two
+ * queries under the sequence RNN) reuse these values instead of
+ * recomputing them.
+ * <p>
+ * Predictors are thread-safe.
+ *
+ * @author jayantk
+ */
+public class VectorModelPredictor {
+
+  private static final int DEFAULT_CACHE_SIZE = 100000;
+  // Slots bound to the value of a cached subexpression are given
+  // names with this prefix.
+  private static final String CACHED_PREFIX = "cached:";
+
+  private static final Metrics.Counter compositionHits = Metrics.counter("vector.compositionHits");
+  private static final Metrics.Counter compositionMisses = Metrics.counter("vector.compositionMisses");
+
+  private final VectorSpaceModelInterface vsmInterface;
+  private final CompiledCvsm model;
+  private final Map<String, Domain> domains;
+
+  // Values of domain-independent subexpressions, keyed by expression.
+  private final Cache<String, CachedValue> subexpressionValues;
+
+  public VectorModelPredictor(VectorModel vectorModel, List<Domain> domains) {
+    this(vectorModel, domains, DEFAULT_CACHE_SIZE);
+  }
+
+  public VectorModelPredictor(VectorModel vectorModel, List<Domain> domains, int cacheSize) {
+    this.vsmInterface = vectorModel.getVectorSpaceModel();
+    ConstantTensorStore constantTensors = ConstantTensorStore.fromDomains(domains);
+    this.model = new CompiledCvsm(vectorModel.getCvsm(constantTensors), constantTensors);
+    this.domains = Maps.newLinkedHashMap();
+    for (Domain domain : domains) {
+      this.domains.put(domain.getName(), domain);
+    }
+    this.subexpressionValues = CacheBuilder.newBuilder().maximumSize(cacheSize).build();
+  }
+
+  public Set<String> getDomainNames() {
+    return domains.keySet();
+  }
+
+  /**
+   * Scores every entity of the domain {@code domainName} for each
+   * query in {@code queries}. Returns one prediction per query, in the
+   * same order. Queries whose formula cannot be evaluated (e.g.,
+   * because they contain a word without a trained vector) get a
+   * prediction with an error.
+   */
+  public List<VectorPrediction> predict(List<List<String>> queries, String domainName) {
+    Domain domain = domains.get(domainName);
+    Preconditions.checkArgument(domain != null, "Unknown domain: %s", domainName);
+    DiscreteVariable entityVar = (DiscreteVariable) domain.getCategoryFamily().getFeatureVectors()
+        .getVars().getVariablesByName("grounding0").getOnlyVariable();
+
+    // Values of the cached subexpressions used by these queries, which
+    // may be evicted from the cache before the queries are evaluated.
+    Map<String, CachedValue> boundValues = Maps.newHashMap();
+    CvsmProgram.TensorShapes shapes = getShapes(boundValues);
+
+    VectorPrediction[] predictions = new VectorPrediction[queries.size()];
+    List<List<String>> querySlotNames = Lists.newArrayList();
+    Map<String, CvsmProgram> programs = Maps.newLinkedHashMap();
+    Multimap<String, Integer> queriesByProgram = ArrayListMultimap.create();
+    for (int i = 0; i < queries.size(); i++) {
+      List<String> query = queries.get(i);
+      List<String> slotNames = null;
+      try {
+        GroundingExample example = new GroundingExample(Collections.singletonList(query),
+            new double[] {0}, null, domainName, 0, null, null, null);
+        Expression formula = bindCachedSubexpressions(vsmInterface.getFormula(example), boundValues);
+        CvsmProgram program = CvsmProgram.compile(formula, shapes);
+        Preconditions.checkArgument(program.getOutputSize() == entityVar.numValues(),
+            "Query formula does not score the entities of domain %s", domainName);
+
+        slotNames = CvsmProgram.getSlotNames(formula);
+        programs.put(program.getKey(), program);
+        queriesByProgram.put(program.getKey(), i);
+      } catch (RuntimeException e) {
+        predictions[i] = new VectorPrediction(query, e.toString());
+      }
+      querySlotNames.add(slotNames);
+    }
+
+    for (String key : programs.keySet()) {
+      CvsmProgram program = programs.get(key);
+      List<Integer> batch = Lists.newArrayList(queriesByProgram.get(key));
+      List<List<String>> batchSlotNames = Lists.newArrayList();
+      for (int i : batch) {
+        batchSlotNames.add(querySlotNames.get(i));
+      }
+
+      double[] outputs = evaluate(program, batchSlotNames, boundValues);
+      int outputSize = program.getOutputSize();
+      for (int j = 0; j < batch.size(); j++) {
+        int i = batch.get(j);
+        predictions[i] = new VectorPrediction(queries.get(i), entityVar,
+            Arrays.copyOfRange(outputs, j * outputSize, (j + 1) * outputSize));
+      }
+    }
+    return Arrays.asList(predictions);
+  }
+
+  /**
+   * Replaces each subexpression of {@code expression} that does not
+   * depend on a domain with a tensor bound (in {@code boundValues}) to
+   * its value.
+   */
+  private Expression bindCachedSubexpressions(Expression expression, Map<String, CachedValue> boundValues) {
+    if (!(expression instanceof ApplicationExpression)) {
+      return expression;
+    }
+
+    ApplicationExpression application = (ApplicationExpression) expression;
+    List<Expression> arguments = Lists.newArrayList();
+    boolean isDomainIndependent = true;
+    for (Expression argument : application.getArguments()) {
+      Expression boundArgument = bindCachedSubexpressions(argument, boundValues);
+      arguments.add(boundArgument);
+      // Arguments that are still applications depend on the domain.
+      isDomainIndependent = isDomainIndependent && boundArgument instanceof ConstantExpression
+          && !model.isConstant(((ConstantExpression) boundArgument).getName());
+    }
+
+    Expression boundExpression = new ApplicationExpression(application.getFunction(), arguments);
+    if (!isDomainIndependent) {
+      return boundExpression;
+    }
+
+    String key = expression.toString();
+    CachedValue value = subexpressionValues.getIfPresent(key);
+    if (value == null) {
+      compositionMisses.increment();
+      // The arguments of boundExpression are all tensors, so this
+      // evaluates a single operation.
+      CvsmProgram program = CvsmProgram.compile(boundExpression, getShapes(boundValues));
+      List<List<String>> slotNames = Lists.newArrayList();
+      slotNames.add(CvsmProgram.getSlotNames(boundExpression));
+      value = new CachedValue(program.getOutputDimensionSizes(), evaluate(program, slotNames, boundValues));
+      subexpressionValues.put(key, value);
+    } else {
+      compositionHits.increment();
+    }
+
+    String name = CACHED_PREFIX + key;
+    boundValues.put(name, value);
+    return new ConstantExpression(name);
+  }
+
+  /**
+   * Evaluates {@code program} on a batch of queries, whose slots are
+   * bound to the tensors in {@code slotNames}.
+   */
+  private double[] evaluate(CvsmProgram program, List<List<String>> slotNames,
+      Map<String, CachedValue> boundValues) {
+    int batchSize = slotNames.size();
+    int numSlots = program.getNumSlots();
+
+    boolean[] sharedSlots = new boolean[numSlots];
+    CvsmProgram.MatrixOperand[] slotMatrices = new CvsmProgram.MatrixOperand[numSlots];
+    for (int j = 0; j < numSlots; j++) {
+      String name = slotNames.get(0).get(j);
+      sharedSlots[j] = true;
+      for (int i = 1; i < batchSize; i++) {
+        sharedSlots[j] = sharedSlots[j] && slotNames.get(i).get(j).equals(name);
+      }
+      if (sharedSlots[j] && program.getMatrixRows(j) > 0 && !boundValues.containsKey(name)) {
+        slotMatrices[j] = model.getMatrix(name, program.getMatrixRows(j));
+      }
+    }
+
+    double[][][] slotValues = new double[batchSize][numSlots][];
+    for (int i = 0; i < batchSize; i++) {
+      for (int j = 0; j < numSlots; j++) {
+        if (slotMatrices[j] == null) {
+          String name = slotNames.get(i).get(j);
+          CachedValue value = boundValues.get(name);
+          slotValues[i][j] = (value != null) ? value.values : model.getValues(name);
+        }
+      }
+    }
+
+    double[] outputs = new double[batchSize * program.getOutputSize()];
+    program.forward(slotValues, slotMatrices, sharedSlots, outputs);
+    return outputs;
+  }
+
+  private CvsmProgram.TensorShapes getShapes(final Map<String, CachedValue> boundValues) {
+    return new CvsmProgram.TensorShapes() {
+      @Override
+      public int[] getDimensionSizes(String tensorName) {
+        CachedValue value = boundValues.get(tensorName);
+        return (value != null) ? value.dimensionSizes : model.getDimensionSizes(tensorName);
+      }
+    };
+  }
+
+  private static class CachedValue {
+    private final int[] dimensionSizes;
+    private final double[] values;
+
+    public CachedValue(int[] dimensionSizes, double[] values) {
+      this.dimensionSizes = dimensionSizes;
+      this.values = values;
+    }
+  }
+
+  /**
+   * The entities of a domain ranked by their probability of being in
+   * the denotation of a query.
+   */
+  public static class VectorPrediction {
+    private final List<String> query;
+    // Null if the query could be answered.
+    private final String error;
+
+    // Sorted by decreasing probability.
+    private final List<Object> entities;
+    private final double[] probabilities;
+
+    public VectorPrediction(List<String> query, DiscreteVariable entityVar, final double[] scores) {
+      this.query = Preconditions.checkNotNull(query);
+      this.error = null;
+
+      List<Integer> order = Lists.newArrayList();
+      for (int i = 0; i < scores.length; i++) {
+        order.add(i);
+      }
+      Collections.sort(order, new Comparator<Integer>() {
+        @Override
+        public int compare(Integer i, Integer j) {
+          return Double.compare(scores[j], scores[i]);
+        }
+      });
+
+      this.entities = Lists.newArrayList();
+      this.probabilities = new double[scores.length];
+      for (int i = 0; i < scores.length; i++) {
+        entities.add(entityVar.getValue(order.get(i)));
+        probabilities[i] = 1.0 / (1.0 + Math.exp(-scores[order.get(i)]));
+      }
+    }
+
+    public VectorPrediction(List<String> query, String error) {
+      this.query = Preconditions.checkNotNull(query);
+      this.error = Preconditions.checkNotNull(error);
+      this.entities = Collections.emptyList();
+      this.probabilities = new double[0];
+    }
+
+    public List<String> getQuery() {
+      return query;
+    }
+
+    public boolean hasError() {
+      return error != null;
+    }
+
+    public String getError() {
+      return error;
+    }
+
+    public List<Object> getRankedEntities() {
+      return entities;
+    }
+
+    public double[] getProbabilities() {
+      return probabilities;
+    }
+
+    /**
+     * Gets the entities whose probability is above 0.5, i.e., the
+     * predicted denotation of the query.
+     */
+    public List<Object> getGrounding() {
+      List<Object> grounding = Lists.newArrayList();
+      for (int i = 0; i < entities.size() && probabilities[i] > 0.5; i++) {
+        grounding.add(entities.get(i));
+      }
+      return grounding;
+    }
+
+    /**
+     * Formats the {@code maxEntities} highest-ranked entities and their
+     * probabilities.
+     */
+    public String getRankingString(int maxEntities) {
+      List<String> parts = Lists.newArrayList();
+      for (int i = 0; i < Math.min(maxEntities, entities.size()); i++) {
+        parts.add(entities.get(i) + "=" + String.format("%.3f", probabilities[i]));
+      }
+      return Joiner.on(" ").join(parts);
+    }
+  }
+}
@@ -0,0 +1,83 @@
+package edu.cmu.ml.rtw.vector;
+
+import java.util.Arrays;
+import java.util.List;
+
+import joptsimple.OptionParser;
+import joptsimple.OptionSet;
+import joptsimple.OptionSpec;
+
+import com.google.common.base.Joiner;
+import com.google.common.collect.Lists;
+import com.jayantkrish.jklol.util.IoUtils;
+
+import edu.cmu.ml.rtw.users.jayantk.grounding.Domain;
+
+/**
+ * Service which produces predictions from a vector space model saved
+ * by {@link VectorModelTrainer} (with {@code --modelFilename}). This is
+ * the vector space counterpart of {@code GroundingModelService}: it
+ * answers the query given on the command line, as well as each line of
+ * {@code --queryFile}, then exits. All of the queries are scored
+ * together; see {@link VectorModelPredictor}.
+ *
+ * @author jayantk
+ */
+public class VectorModelService {
+
+  public static void main(String[] args) throws Exception {
+    OptionParser parser = new OptionParser();
+    OptionSpec<String> modelFilename = parser.accepts("modelFilename").withRequiredArg().ofType(String.class).required();
+    // Directory containing the domains the model can be queried on.
+    OptionSpec<String> domainDir = parser.accepts("domainDir").withRequiredArg().ofType(String.class).required();
+    OptionSpec<String> trainingFilename = parser.accepts("trainingFilename").withOptionalArg().ofType(String.class).defaultsTo("training.annotated.txt");
+    // Name of the domain to answer queries in.
+    OptionSpec<String> domainName = parser.accepts("domain").withRequiredArg().ofType(String.class).required();
+    // File with one query per line.
+    OptionSpec<String> queryFile = parser.accepts("queryFile").withRequiredArg().ofType(String.class);
+    // Number of ranked entities printed for each query.
+    OptionSpec<Integer> numEntities = parser.accepts("numEntities").withRequiredArg().ofType(Integer.class).defaultsTo(10);
+    OptionSet options = parser.parse(args);
+
+    VectorModel model = VectorModel.fromSerializedFile(options.valueOf(modelFilename));
+    List<Domain> domains = Domain.readDomainsFromDirectory(options.valueOf(domainDir),
+        options.valueOf(trainingFilename), null, Integer.MAX_VALUE, false, false, false);
+    VectorModelPredictor predictor = new VectorModelPredictor(model, domains);
+
+    List<List<String>> queries = Lists.newArrayList();
+    if (options.nonOptionArguments().size() > 0) {
+      queries.add(tokenize(Joiner.on(" ").join(options.nonOptionArguments())));
+    }
+    if (options.has(queryFile)) {
+      for (String line : IoUtils.readLines(options.valueOf(queryFile))) {
+        if (line.trim().length() > 0) {
+          queries.add(tokenize(line));
+        }
+      }
+    }
+
+    long start = System.nanoTime();
+    List<VectorModelPredictor.VectorPrediction> predictions = predictor.predict(queries,
+        options.valueOf(domainName));
+    long elapsed = System.nanoTime() - start;
+
+    for (VectorModelPredictor.VectorPrediction prediction : predictions) {
+      System.out.println("INPUT: " + Joiner.on(" ").join(prediction.getQuery()));
+      if (prediction.hasError()) {
+        System.out.println("ERROR: " + prediction.getError());
+      } else {
+        System.out.println("GROUNDING: " + prediction.getGrounding());
+        System.out.println("RANKING: " + prediction.getRankingString(options.valueOf(numEntities)));
+      }
+    }
+    System.out.println("Answered " + queries.size() + " queries in " + (elapsed / 1e6) + " ms");
+  }
+
+  /**
+   * Splits a query into lowercased words. Queries given on the command
+   * line and in {@code --queryFile} are tokenized the same way.
+   */
+  private static List<String> tokenize(String query) {
+    return Arrays.asList(query.trim().toLowerCase().split("[ ,]+"));
+  }
+}
@@ -0,0 +1,181 @@
+package edu.cmu.ml.rtw.vector;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import joptsimple.OptionParser;
+import joptsimple.OptionSet;
+import joptsimple.OptionSpec;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+
+import edu.cmu.ml.rtw.users.jayantk.grounding.OrderedTaskRunner;
+
+/**
+ * Trains and evaluates a grid of vector space model configurations in
+ * a single JVM. The domains and their constant tensors are read once
+ * and shared by every configuration, and configurations are trained
+ * in parallel. Stochastic gradient options (iterations, step size,
+ * regularization, etc.) are shared by every configuration.
+ * <p>
+ * The accuracy of each configuration is written to a tab-separated
+ * results table.
+ *
+ * @author jayantk
+ */
+public class VectorModelSweep extends VectorModelTrainer {
+
+  private OptionSpec<String> domainDir;
+  private OptionSpec<String> trainingFilename;
+  private OptionSpec<String> lexiconExamples;
+  private OptionSpec<Integer> numFoldsToRun;
+
+  // The grid of configurations. Every combination of these values is
+  // trained.
+  private OptionSpec<String> vectorModelNames;
+  private OptionSpec<Integer> dimensions;
+  private OptionSpec<Double> gaussianVariances;
+  // "kl" (the elementwise log-loss) or "hinge".
+  private OptionSpec<String> losses;
+
+  private OptionSpec<Void> interpretedVsm;
+  private OptionSpec<Integer> compiledBatchSize;
+  private OptionSpec<Integer> gradientThreads;
+
+  // Number of configurations trained at once.
+  private OptionSpec<Integer> sweepThreads;
+  private OptionSpec<String> resultsFilename;
+
+  @Override
+  public void initializeOptions(OptionParser parser) {
+    domainDir = parser.accepts("domainDir").withRequiredArg().ofType(String.class).required();
+    trainingFilename = parser.accepts("trainingFilename").withOptionalArg().ofType(String.class).defaultsTo("training.annotated.txt");
+    lexiconExamples = parser.accepts("lexiconExamples").withRequiredArg().ofType(String.class);
+    numFoldsToRun = parser.accepts("numFoldsToRun").withRequiredArg().ofType(Integer.class);
+
+    vectorModelNames = parser.accepts("vectorModelNames").withRequiredArg().ofType(String.class)
+        .withValuesSeparatedBy(',').required();
+    dimensions = parser.accepts("dims").withRequiredArg().ofType(Integer.class)
+        .withValuesSeparatedBy(',').required();
+    gaussianVariances = parser.accepts("gaussianVariances").withRequiredArg().ofType(Double.class)
+        .withValuesSeparatedBy(',').defaultsTo(0.0);
+    losses = parser.accepts("losses").withRequiredArg().ofType(String.class)
+        .withValuesSeparatedBy(',').defaultsTo("kl");
+
+    interpretedVsm = parser.accepts("interpretedVsm");
+    compiledBatchSize = parser.accepts("compiledBatchSize").withRequiredArg().ofType(Integer.class).defaultsTo(1);
+    gradientThreads = parser.accepts("gradientThreads").withRequiredArg().ofType(Integer.class).defaultsTo(1);
+
+    sweepThreads = parser.accepts("sweepThreads").withRequiredArg().ofType(Integer.class).defaultsTo(1);
+    resultsFilename = parser.accepts("resultsFilename").withRequiredArg().ofType(String.class).required();
+  }
+
+  @Override
+  public void run(OptionSet options) {
+    final VectorModelData data = VectorModelData.read(options.valueOf(domainDir),
+        options.valueOf(trainingFilename),
+        options.has(lexiconExamples) ? options.valueOf(lexiconExamples) : null);
+
+    int numFolds = data.getCrossValidationFolds().keySet().size();
+    if (options.has(numFoldsToRun)) {
+      numFolds = options.valueOf(numFoldsToRun);
+    }
+    final int foldsToRun = numFolds;
+    final boolean useCompiledVsm = !options.has(interpretedVsm);
+    final int batchSize = options.valueOf(compiledBatchSize);
+    final int numGradientThreads = options.valueOf(gradientThreads);
+
+    final List<SweepConfiguration> configurations = Lists.newArrayList();
+    for (String modelName : options.valuesOf(vectorModelNames)) {
+      for (int dim : options.valuesOf(dimensions)) {
+        for (double variance : options.valuesOf(gaussianVariances)) {
+          for (String loss : options.valuesOf(losses)) {
+            Preconditions.checkArgument(loss.equals("kl") || loss.equals("hinge"),
+                "Unknown loss: %s", loss);
+            configurations.add(new SweepConfiguration(modelName, dim, variance, loss.equals("hinge")));
+          }
+        }
+      }
+    }
+
+    List<Callable<SweepResult>> tasks = Lists.newArrayList();
+    for (final SweepConfiguration configuration : configurations) {
+      tasks.add(new Callable<SweepResult>() {
+        @Override
+        public SweepResult call() {
+          System.out.println("CONFIGURATION " + configuration);
+          long startTime = System.currentTimeMillis();
+          VectorSpaceModelInterface vsmInterface = createVectorSpaceModel(configuration.modelName,
+              configuration.dim);
+          // Folds are trained serially within each configuration; the
+          // configurations themselves are trained in parallel.
+          EvaluationResult result = runExperiment(data, vsmInterface, configuration.variance,
+              configuration.hingeLoss, useCompiledVsm, batchSize, numGradientThreads, foldsToRun, 1);
+          return new SweepResult(configuration, result, System.currentTimeMillis() - startTime);
+        }
+      });
+    }
+
+    List<SweepResult> results = OrderedTaskRunner.run(tasks, options.valueOf(sweepThreads));
+
+    StringBuilder table = new StringBuilder();
+    table.append("model\tdim\tgaussianVariance\tloss\tcorrect\ttotal\taccuracy\tseconds\n");
+    for (SweepResult result : results) {
+      table.append(result.toTableRow()).append("\n");
+    }
+    System.out.println("SWEEP RESULTS");
+    System.out.print(table);
+
+    try {
+      Files.write(table.toString(), new File(options.valueOf(resultsFilename)), Charsets.UTF_8);
+    } catch (IOException e) {
+      throw new RuntimeException("Could not write results to " + options.valueOf(resultsFilename), e);
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    (new VectorModelSweep()).run(args);
+  }
+
+  private static class SweepConfiguration {
+    public final String modelName;
+    public final int dim;
+    public final double variance;
+    public final boolean hingeLoss;
+
+    public SweepConfiguration(String modelName, int dim, double variance, boolean hingeLoss) {
+      this.modelName = Preconditions.checkNotNull(modelName);
+      this.dim = dim;
+      this.variance = variance;
+      this.hingeLoss = hingeLoss;
+    }
+
+    @Override
+    public String toString() {
+      return modelName + "\t" + dim + "\t" + variance + "\t" + (hingeLoss ? "hinge" : "kl");
+    }
+  }
+
+  private static class SweepResult {
+    private final SweepConfiguration configuration;
+    private final EvaluationResult result;
+    private final long elapsedMillis;
+
+    public SweepResult(SweepConfiguration configuration, EvaluationResult result, long elapsedMillis) {
+      this.configuration = configuration;
+      this.result = result;
+      this.elapsedMillis = elapsedMillis;
+    }
+
+    public String toTableRow() {
+      double accuracy = ((double) result.numCorrect) / result.total;
+      return configuration + "\t" + result.numCorrect + "\t" + result.total + "\t" + accuracy
+          + "\t" + (elapsedMillis / 1000.0);
+    }
+  }
+}
@@ -1,31 +1,28 @@
 package edu.cmu.ml.rtw.vector;
 
-import static ch.lambdaj.Lambda.extract;
-import static ch.lambdaj.Lambda.on;
-
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
 
 import joptsimple.OptionParser;
 import joptsimple.OptionSet;
 import joptsimple.OptionSpec;
 
-import com.google.common.base.Joiner;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.HashMultimap;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Multimap;
+import com.google.common.collect.Sets;
 import com.google.common.primitives.Ints;
 import com.jayantkrish.jklol.ccg.lambda.ApplicationExpression;
 import com.jayantkrish.jklol.ccg.lambda.ConstantExpression;
 import com.jayantkrish.jklol.ccg.lambda.Expression;
-import com.jayantkrish.jklol.ccg.lambda.ExpressionParser;
 import com.jayantkrish.jklol.cli.AbstractCli;
-import com.jayantkrish.jklol.cvsm.ConstantLrtFamily;
 import com.jayantkrish.jklol.cvsm.Cvsm;
 import com.jayantkrish.jklol.cvsm.CvsmExample;
 import com.jayantkrish.jklol.cvsm.CvsmFamily;
@@ -36,27 +33,22 @@ import com.jayantkrish.jklol.cvsm.CvsmLoglikelihoodOracle.CvsmLoss;
 import com.jayantkrish.jklol.cvsm.LrtFamily;
 import com.jayantkrish.jklol.cvsm.OpLrtFamily;
 import com.jayantkrish.jklol.cvsm.TensorLrtFamily;
-import com.jayantkrish.jklol.cvsm.lrt.TensorLowRankTensor;
-import com.jayantkrish.jklol.lisp.SExpression;
-import com.jayantkrish.jklol.models.DiscreteFactor;
+import com.jayantkrish.jklol.cvsm.lrt.LowRankTensor;
 import com.jayantkrish.jklol.models.DiscreteVariable;
 import com.jayantkrish.jklol.models.TableFactor;
 import com.jayantkrish.jklol.models.Variable;
 import com.jayantkrish.jklol.models.VariableNumMap;
-import com.jayantkrish.jklol.models.VariableNumMap.VariableRelabeling;
 import com.jayantkrish.jklol.models.parametric.SufficientStatistics;
 import com.jayantkrish.jklol.tensor.DenseTensor;
 import com.jayantkrish.jklol.tensor.Tensor;
 import com.jayantkrish.jklol.training.GradientOptimizer;
 import com.jayantkrish.jklol.training.GradientOracle;
 import com.jayantkrish.jklol.util.IndexedList;
+import com.jayantkrish.jklol.util.IoUtils;
 
-import edu.cmu.ml.rtw.time.utils.IoUtil;
 import edu.cmu.ml.rtw.users.jayantk.grounding.Domain;
 import edu.cmu.ml.rtw.users.jayantk.grounding.GroundingExample;
-import edu.cmu.ml.rtw.users.jayantk.grounding.GroundingModelTrainer;
-import edu.cmu.ml.rtw.users.jayantk.semparse.Lexicon;
-import edu.cmu.ml.rtw.users.jayantk.semparse.Lexicon.LexicalCategory;
+import edu.cmu.ml.rtw.users.jayantk.grounding.OrderedTaskRunner;
 
 /**
  * Command line program for training a vector space-based
@@ -77,6 +69,29 @@ public class VectorModelTrainer extends AbstractCli {
   private OptionSpec<Void> hingeLoss;
   private OptionSpec<String> lexiconExamples;
 
+  // Evaluate formulas with jklol's interpreter instead of
+  // compiling them.
+  private OptionSpec<Void> interpretedVsm;
+  // Number of examples with the same formula structure evaluated
+  // together in each gradient step of the compiled models.
+  private OptionSpec<Integer> compiledBatchSize;
+  // Number of threads that compute the gradient of each batch of the
+  // compiled models.
+  private OptionSpec<Integer> gradientThreads;
+  // Before training each compiled model, check that its gradient with
+  // gradientThreads threads matches its gradient on one thread.
+  private OptionSpec<Void> checkGradientThreads;
+  // Number of cross validation folds trained at once.
+  private OptionSpec<Integer> foldThreads;
+  // If given, a model is also trained on every domain's examples and
+  // saved to this file, for use by VectorModelService.
+  private OptionSpec<String> modelFilename;
+
+  // Tolerance and number of rounds for --checkGradientThreads.
+  private static final double MAX_PARALLEL_GRADIENT_ERROR = 1e-8;
+  private static final int NUM_PARALLEL_GRADIENT_ROUNDS = 20;
+  private boolean checkParallelGradients = false;
+
   public VectorModelTrainer() {
     super(CommonOptions.STOCHASTIC_GRADIENT, CommonOptions.MAP_REDUCE,
         CommonOptions.LBFGS);
@@ -93,22 +108,53 @@ public class VectorModelTrainer extends AbstractCli {
     numFoldsToRun = parser.accepts("numFoldsToRun").withRequiredArg().ofType(Integer.class);
     hingeLoss = parser.accepts("hingeLoss");
     lexiconExamples = parser.accepts("lexiconExamples").withRequiredArg().ofType(String.class);
+
+    interpretedVsm = parser.accepts("interpretedVsm");
+    compiledBatchSize = parser.accepts("compiledBatchSize").withRequiredArg().ofType(Integer.class).defaultsTo(1);
+    gradientThreads = parser.accepts("gradientThreads").withRequiredArg().ofType(Integer.class).defaultsTo(1);
+    checkGradientThreads = parser.accepts("checkGradientThreads");
+    foldThreads = parser.accepts("foldThreads").withRequiredArg().ofType(Integer.class).defaultsTo(1);
+    modelFilename = parser.accepts("modelFilename").withRequiredArg().ofType(String.class);
   }
 
   @Override
   public void run(OptionSet options) {
-    // Read training data from disk and partition
-    // into leave-one-environment-out cross validation folds.
-    List<Domain> domains = Domain.readDomainsFromDirectory(options.valueOf(domainDir), 
-        options.valueOf(trainingFilename), null, Integer.MAX_VALUE,
-        false, false, false);
-    IndexedList<String> domainNames = IndexedList.create(extract(domains, on(Domain.class).getName()));
-    Multimap<String, GroundingExample> trainingFoldsOrig = GroundingModelTrainer.getCrossValidationFolds(domains);
+    checkParallelGradients = options.has(checkGradientThreads);
+    VectorModelData data = VectorModelData.read(options.valueOf(domainDir),
+        options.valueOf(trainingFilename),
+        options.has(lexiconExamples) ? options.valueOf(lexiconExamples) : null);
 
     // Instantiate the vector space model for this experiment.
+    VectorSpaceModelInterface vsmInterface = createVectorSpaceModel(
+        options.valueOf(vectorModelName), options.valueOf(dimension));
+
+    int foldsToRun = data.getCrossValidationFolds().keySet().size();
+    if (options.has(numFoldsToRun)) {
+      foldsToRun = options.valueOf(numFoldsToRun);
+    }
+
+    if (foldsToRun > 0) {
+      runExperiment(data, vsmInterface, options.valueOf(gaussianVariance), options.has(hingeLoss),
+          !options.has(interpretedVsm), options.valueOf(compiledBatchSize),
+          options.valueOf(gradientThreads), foldsToRun, options.valueOf(foldThreads));
+    }
+
+    if (options.has(modelFilename)) {
+      VectorModel model = trainFinalModel(data, options.valueOf(vectorModelName),
+          options.valueOf(dimension), options.valueOf(gaussianVariance), options.has(hingeLoss),
+          !options.has(interpretedVsm), options.valueOf(compiledBatchSize),
+          options.valueOf(gradientThreads));
+      IoUtils.serializeObjectToFile(model, options.valueOf(modelFilename));
+      System.out.println("Saved model to " + options.valueOf(modelFilename));
+    }
+  }
+
+  /**
+   * Gets the vector space model named {@code modelName}, whose hidden
+   * vectors (if any) have {@code dim} dimensions.
+   */
+  public static VectorSpaceModelInterface createVectorSpaceModel(String modelName, int dim) {
     VectorSpaceModelInterface vsmInterface = null;
-    String modelName = options.valueOf(vectorModelName);
-		int dim = options.valueOf(dimension);
     if (modelName.equals("addition")) {
       vsmInterface = new AdditionVectorSpaceModel();
     } else if (modelName.equals("sequenceRnn")) {
@@ -120,61 +166,33 @@ public class VectorModelTrainer extends AbstractCli {
     } else if (modelName.equals("Birnn")) {
       vsmInterface = new BirnnVsm(dim);
     }
-    
-    Preconditions.checkState(vsmInterface != null);
-    
+
+    Preconditions.checkState(vsmInterface != null, "Unknown vector model: %s", modelName);
+    return vsmInterface;
+  }
+
+  /**
+   * Trains and evaluates {@code vsmInterface} on the first
+   * {@code foldsToRun} cross validation folds of {@code data}, and
+   * returns its accuracy over all of the folds.
+   */
+  protected EvaluationResult runExperiment(VectorModelData data, VectorSpaceModelInterface vsmInterface,
+      final double variance, final boolean useHingeLoss, final boolean useCompiledVsm,
+      final int batchSize, final int numGradientThreads, int foldsToRun, int numFoldThreads) {
+    Multimap<String, GroundingExample> trainingFoldsOrig = data.getCrossValidationFolds();
+
     // For the geography domain, generate training examples for each entity name.
     List<CvsmExample> allFoldExamples = Lists.newArrayList();
-    if (options.has(lexiconExamples)) {
-      Lexicon<String> lexicon = Lexicon.fromFile(IoUtil.LoadFile(options.valueOf(lexiconExamples)));
-      Multimap<String, List<String>> predicateNames = HashMultimap.create();
-      for (List<String> words : lexicon.getTriggerSequences()) {
-        for (LexicalCategory cat : lexicon.getCategories(words)) {
-          String predName = cat.getSemanticType().getRelation().getName();
-          if (predName.startsWith(Domain.KB_PREFIX) && !predName.startsWith(Domain.KB_IGNORE_PREFIX) &&
-              !predName.startsWith(Domain.KB_IGNORE_EQUAL_PREFIX) && 
-              !predName.startsWith(Domain.KB_EQUAL_PREFIX)) {
-            predicateNames.put(predName, words);
-          }
-        }
-      }
-      
-      ExpressionParser<Expression> parser = ExpressionParser.lambdaCalculus();
-      for (Domain domain : domains) {
-        if (domain.getTrainingExamples().size() > 0) {
-          for (String predName : domain.getKnownRelationNames()) {
-            for (List<String> words : predicateNames.get(predName)) {
-              List<List<String>> inputCandidates = Lists.newArrayList();
-              inputCandidates.add(words);
-              double[] inputScores = new double[] {0};
-              Tensor outputTensor = domain.getGroundingForFixedRelation(predName).getBestAssignments();
-              Expression logicalForm = parser.parseSingleExpression("(lambda $x (" + predName + " $x))");
-
-              SExpression cfgParse = null;
-
-              List<String> wordParts = Lists.newArrayList();
-              for (String word : words) {
-                wordParts.add("(" + word.toLowerCase() + " $x)");
-              }
-              Expression autogeneratedLogicalForm = parser.parseSingleExpression("(lambda $x (and " + Joiner.on(" ").join(wordParts) + "))");
-
-              GroundingExample ex = new GroundingExample(inputCandidates, inputScores, outputTensor,
-                  domain.getName(), 0, logicalForm, cfgParse, autogeneratedLogicalForm);
-              System.out.println(ex.getWords().get(0) + " " + ex.getLogicalForm() + " " + ex.getAutogeneratedLogicalForm());
-              System.out.println(domain.getGroundingForFixedRelation(predName).getTensorAssignmentString(ex.getGrounding()));
-              allFoldExamples.add(convertExample(ex, domains, domainNames, vsmInterface));
-            }
-          }
-        }
-      }
+    for (GroundingExample example : data.getAllFoldExamples()) {
+      allFoldExamples.add(convertExample(example, data, vsmInterface));
     }
 
     // Reformat the training / test data to be suitable for the vector space model. 
-    Multimap<String, CvsmExample> trainingFolds = ArrayListMultimap.create();
+    final Multimap<String, CvsmExample> trainingFolds = ArrayListMultimap.create();
     for (String key : trainingFoldsOrig.keySet()) {
       for (GroundingExample example : trainingFoldsOrig.get(key)) {
         if (!example.hasObservedRelation()) {
-          trainingFolds.put(key, convertExample(example, domains, domainNames, vsmInterface));
+          trainingFolds.put(key, convertExample(example, data, vsmInterface));
         }
       }
       
@@ -188,12 +206,12 @@ public class VectorModelTrainer extends AbstractCli {
     }
 
     List<CvsmExample> allExamples = Lists.newArrayList();
-    Multimap<String, CvsmExample> testFolds = HashMultimap.create();
-    for (Domain domain : domains) {
+    final Multimap<String, CvsmExample> testFolds = HashMultimap.create();
+    for (Domain domain : data.getDomains()) {
       if (domain.getTrainingExamples().size() > 0) {
         for (GroundingExample example : domain.getTrainingExamples()) {
           if (!example.hasObservedRelation()) {
-            CvsmExample cvsmExample = convertExample(example, domains, domainNames, vsmInterface);
+            CvsmExample cvsmExample = convertExample(example, data, vsmInterface);
             allExamples.add(cvsmExample);
             testFolds.put(domain.getName(), cvsmExample);
           }
@@ -205,56 +223,63 @@ public class VectorModelTrainer extends AbstractCli {
     // Construct a parametric family of compositional vector space models
     // given the training data. This method figures out the dimensionality
     // of all declared vector parameters, etc.
-    CvsmFamily family = buildFamily(allExamples, domains, domainNames);
-
-    
-    int foldsToRun = trainingFoldsOrig.keySet().size();
-    if (options.has(numFoldsToRun)) {
-      foldsToRun = options.valueOf(numFoldsToRun);
-    }
+    final ConstantTensorStore constantTensors = data.getConstantTensors();
+    final CvsmFamily family = buildFamily(allExamples, data);
 
     List<String> foldNames = Lists.newArrayList(trainingFoldsOrig.keySet());
-    // Train a model for each fold.
-    Map<String, SufficientStatistics> trainedParameters = Maps.newHashMap();
+    // Train a model for each fold. Folds are independent, so several
+    // can be trained at once; their output is printed in fold order.
+    List<Callable<SufficientStatistics>> foldTasks = Lists.newArrayList();
     for (int i = 0; i < foldsToRun; i++) {
-      String foldName = foldNames.get(i);
-			/*
-			for (CvsmExample c : trainingFolds.get(foldName)) {
-				String t = "";
-				String s = "";
-				String source = c.getLogicalForm() + "";
-				for (int j=0; j<source.length(); ++j) {
-					char ch = source.charAt(j);
-					if (ch == '(') {
-						s += "\n" + t + "(";
-						t += "  ";
-					}
-					else if (ch == ')') {
-						t = t.substring(0, t.length()-2);
-						s += "\n" + t + ")";
-					}
-					else {
-						s += ch;
+      final String foldName = foldNames.get(i);
+      foldTasks.add(new Callable<SufficientStatistics>() {
+        @Override
+        public SufficientStatistics call() {
+				/*
+				for (CvsmExample c : trainingFolds.get(foldName)) {
+					String t = "";
+					String s = "";
+					String source = c.getLogicalForm() + "";
+					for (int j=0; j<source.length(); ++j) {
+						char ch = source.charAt(j);
+						if (ch == '(') {
+							s += "\n" + t + "(";
+							t += "  ";
+						}
+						else if (ch == ')') {
+							t = t.substring(0, t.length()-2);
+							s += "\n" + t + ")";
+						}
+						else {
+							s += ch;
+						}
 					}
+					System.out.println("Fold:\n" + s);
 				}
-				System.out.println("Fold:\n" + s);
-			}
-			*/
-      SufficientStatistics parameters = train(family, trainingFolds.get(foldName),
-          options.valueOf(gaussianVariance), options.has(hingeLoss));
-      // System.out.println(family.getParameterDescription(parameters));
-      
-      trainedParameters.put(foldName, parameters);
-      
-      Cvsm model = family.getModelFromParameters(parameters);
-      System.out.println("TRAINING ERROR");
-      evaluateCvsmModel(model, trainingFolds.get(foldName));
-      EvaluationResult result = evaluateCvsmModel(model, testFolds.get(foldName));
-      int numCorrectTotal = result.numCorrect;
-      int numTotal = result.total;
-			double accuracy = ((double) numCorrectTotal) / numTotal;
-			System.out.println("Correct: " + numCorrectTotal + " / " + numTotal);
-			System.out.println("Accuracy: " + accuracy);
+				*/
+          SufficientStatistics parameters = train(family, constantTensors,
+              trainingFolds.get(foldName), variance, useHingeLoss, useCompiledVsm, batchSize,
+              numGradientThreads);
+          // System.out.println(family.getParameterDescription(parameters));
+
+          Cvsm model = family.getModelFromParameters(parameters);
+          System.out.println("TRAINING ERROR");
+          evaluateCvsmModel(model, trainingFolds.get(foldName));
+          EvaluationResult result = evaluateCvsmModel(model, testFolds.get(foldName));
+          int numCorrectTotal = result.numCorrect;
+          int numTotal = result.total;
+          double accuracy = ((double) numCorrectTotal) / numTotal;
+          System.out.println("Correct: " + numCorrectTotal + " / " + numTotal);
+          System.out.println("Accuracy: " + accuracy);
+          return parameters;
+        }
+      });
+    }
+
+    List<SufficientStatistics> foldParameters = OrderedTaskRunner.run(foldTasks, numFoldThreads);
+    Map<String, SufficientStatistics> trainedParameters = Maps.newHashMap();
+    for (int i = 0; i < foldsToRun; i++) {
+      trainedParameters.put(foldNames.get(i), foldParameters.get(i));
     }
 
     // Evaluate on each fold.
@@ -270,8 +295,53 @@ public class VectorModelTrainer extends AbstractCli {
     double accuracy = ((double) numCorrectTotal) / numTotal;
     System.out.println("Correct: " + numCorrectTotal + " / " + numTotal);
     System.out.println("Accuracy: " + accuracy);
+    return new EvaluationResult(numCorrectTotal, numTotal);
   }
   
+  /**
+   * Trains the vector space model named {@code modelName} on the
+   * examples of every domain (i.e., without holding out a fold), and
+   * returns its trained parameters.
+   */
+  protected VectorModel trainFinalModel(VectorModelData data, String modelName, int dim,
+      double variance, boolean useHingeLoss, boolean useCompiledVsm, int batchSize,
+      int numGradientThreads) {
+    VectorSpaceModelInterface vsmInterface = createVectorSpaceModel(modelName, dim);
+    List<CvsmExample> examples = Lists.newArrayList();
+    for (Domain domain : data.getDomains()) {
+      for (GroundingExample example : domain.getTrainingExamples()) {
+        if (!example.hasObservedRelation()) {
+          examples.add(convertExample(example, data, vsmInterface));
+        }
+      }
+    }
+    for (GroundingExample example : data.getAllFoldExamples()) {
+      examples.add(convertExample(example, data, vsmInterface));
+    }
+
+    ConstantTensorStore constantTensors = data.getConstantTensors();
+    CvsmFamily family = buildFamily(examples, data);
+    SufficientStatistics parameters = train(family, constantTensors, examples, variance,
+        useHingeLoss, useCompiledVsm, batchSize, numGradientThreads);
+    Cvsm model = family.getModelFromParameters(parameters);
+
+    // Save every tensor referenced by the examples, except the constant
+    // tensors, which are rebuilt from the domains at serving time.
+    Set<String> parameterNames = Sets.newLinkedHashSet();
+    for (CvsmExample example : examples) {
+      for (String name : CvsmProgram.getSlotNames(example.getLogicalForm())) {
+        if (!constantTensors.contains(name)) {
+          parameterNames.add(name);
+        }
+      }
+    }
+    List<LowRankTensor> parameterValues = Lists.newArrayList();
+    for (String name : parameterNames) {
+      parameterValues.add(model.getTensor(name));
+    }
+    return new VectorModel(modelName, dim, Lists.newArrayList(parameterNames), parameterValues);
+  }
+
   public static String getCategoryTensorName(String domainName) { 
     return "domain:" + domainName + ":category";
   }
@@ -374,12 +444,12 @@ public class VectorModelTrainer extends AbstractCli {
     }
   }
 
-  private CvsmExample convertExample(GroundingExample example, List<Domain> domains,
-      IndexedList<String> domainNames, VectorSpaceModelInterface vectorSpaceModel) {
+  private CvsmExample convertExample(GroundingExample example, VectorModelData data,
+      VectorSpaceModelInterface vectorSpaceModel) {
     // convert to cvsm example using CCG parse and templates
     Expression cvsmFormula = vectorSpaceModel.getFormula(example);
     
-    Domain domain = domains.get(domainNames.getIndex(example.getDomainName()));
+    Domain domain = data.getDomain(example.getDomainName());
     VariableNumMap vars = domain.getCategoryFamily().getFeatureVectors().getVars();
     VariableNumMap featureVar = vars.getVariablesByName("catFeatures");
     VariableNumMap truthVar = vars.getVariablesByName("truthVal");
@@ -390,85 +460,17 @@ public class VectorModelTrainer extends AbstractCli {
     return new CvsmExample(cvsmFormula, grounding, null);
   }
 
-  private CvsmFamily buildFamily(Collection<CvsmExample> examples, List<Domain> domains, IndexedList<String> domainNames) {
-
-    IndexedList<String> tensorNames = IndexedList.create();
+  private CvsmFamily buildFamily(Collection<CvsmExample> examples, VectorModelData data) {
+    // The constant tensors are shared with every other family built
+    // from data.
+    ConstantTensorStore constantTensors = data.getConstantTensors();
+    IndexedList<String> tensorNames = IndexedList.create(constantTensors.getNames());
     List<LrtFamily> tensorParameters = Lists.newArrayList();
-    
-    DiscreteVariable featureVarType = null;
-    DiscreteVariable relFeatureVarType = null;
-    
-    for (Domain domain : domains) {
-      // Get the object features of each object in the domain.
-      // The features are for the assignment (entity name, T), and we just want features per entity,
-      // so condition on the "T" value.
-      DiscreteFactor categoryFeatures = domain.getCategoryFamily().getFeatureVectors();
-      VariableNumMap truthVar = categoryFeatures.getVars().getVariablesByName("truthVal");
-      categoryFeatures = categoryFeatures.conditional(truthVar.outcomeArrayToAssignment("T"));
-
-      VariableNumMap entityVar = categoryFeatures.getVars().getVariablesByName("grounding0");
-      VariableNumMap featureVar = categoryFeatures.getVars().getVariablesByName("catFeatures");
-
-      if (featureVarType == null) {
-        featureVarType = (DiscreteVariable) featureVar.getOnlyVariable();
-      }
-
-      VariableRelabeling entityRelabeling = VariableRelabeling.createFromVariables(entityVar,
-          entityVar.relabelVariableNums(new int[] {1}));
-      VariableRelabeling featureRelabeling = VariableRelabeling.createFromVariables(featureVar,
-          featureVar.relabelVariableNums(new int[] {0}));
-      categoryFeatures = (DiscreteFactor) categoryFeatures.relabelVariables(
-          entityRelabeling.union(featureRelabeling));
-
-      tensorNames.add(getCategoryTensorName(domain.getName()));
-      tensorParameters.add(new ConstantLrtFamily(categoryFeatures.getVars(),
-          new TensorLowRankTensor(categoryFeatures.getWeights())));
-
-      DiscreteFactor relationFeatures = domain.getRelationFamily().getFeatureVectors();
-      truthVar = relationFeatures.getVars().getVariablesByName("truthVal");
-      relationFeatures = relationFeatures.conditional(truthVar.outcomeArrayToAssignment("T"));
-
-      VariableNumMap entity0Var = relationFeatures.getVars().getVariablesByName("grounding0");
-      VariableNumMap entity1Var = relationFeatures.getVars().getVariablesByName("grounding1");
-      VariableNumMap relFeatureVar = relationFeatures.getVars().getVariablesByName("relFeatures");
-
-      if (relFeatureVarType == null) {
-        relFeatureVarType = (DiscreteVariable) relFeatureVar.getOnlyVariable();
-      }
-
-      VariableRelabeling entity0Relabeling = VariableRelabeling.createFromVariables(entity0Var,
-          entity0Var.relabelVariableNums(new int[] {1}));
-      VariableRelabeling entity1Relabeling = VariableRelabeling.createFromVariables(entity1Var,
-          entity1Var.relabelVariableNums(new int[] {2}));
-      VariableRelabeling relFeatureRelabeling = VariableRelabeling.createFromVariables(relFeatureVar,
-          relFeatureVar.relabelVariableNums(new int[] {0}));
-      relationFeatures = (DiscreteFactor) relationFeatures.relabelVariables(
-          entity0Relabeling.union(relFeatureRelabeling).union(entity1Relabeling));
-
-      tensorNames.add(getRelationTensorName(domain.getName()));
-      tensorParameters.add(new ConstantLrtFamily(relationFeatures.getVars(),
-          new TensorLowRankTensor(relationFeatures.getWeights())));
-      
-      // Generate a tensor for each predicate whose value is known in the domain.
-      for (String relName : domain.getKnownRelationNames()) {
-        DiscreteFactor relGrounding = domain.getGroundingForFixedRelation(relName).getFactor();
-        
-        truthVar = relGrounding.getVars().getVariablesByName("truthVal");
-        Tensor tensor = relGrounding.conditional(truthVar.outcomeArrayToAssignment("T")).getWeights()
-            .elementwiseAddition(relGrounding.conditional(truthVar.outcomeArrayToAssignment("F")).product(-1.0).getWeights());
-        
-        // Make each entry of the tensor 1000 * this number. It's 1000 by default, for whatever reason.
-        tensor = tensor.elementwiseProduct(0.001);
-        
-        tensorNames.add(getPredicateTensorName(domain.getName(), relName));
-        tensorParameters.add(new ConstantLrtFamily(relGrounding.getVars().removeAll(truthVar), 
-            new TensorLowRankTensor(DenseTensor.copyOf(tensor))));
-      }
+    for (String name : tensorNames) {
+      tensorParameters.add(constantTensors.getFamily(name));
     }
 
-    Map<String, DiscreteVariable> generatedVectorDims = Maps.newHashMap();
-    generatedVectorDims.put("catFeatures", featureVarType);
-    generatedVectorDims.put("relFeatures", relFeatureVarType);
+    Map<String, DiscreteVariable> generatedVectorDims = Maps.newHashMap(data.getNamedDimensions());
     for (CvsmExample example : examples) {
       // Initialize tensors for any variables referenced in this formula.
       extractTensorNamesFromExpression(example.getLogicalForm(), tensorNames, tensorParameters, generatedVectorDims);
@@ -479,8 +481,47 @@ public class VectorModelTrainer extends AbstractCli {
     return new CvsmFamily(tensorNames, tensorParameters);
   }
 
-  private SufficientStatistics train(CvsmFamily family, Collection<CvsmExample> examples,
-      double gaussianVariance, boolean useHingeLoss) {
+  private SufficientStatistics train(CvsmFamily family, ConstantTensorStore constantTensors,
+      Collection<CvsmExample> examples, double gaussianVariance, boolean useHingeLoss,
+      boolean useCompiledVsm, int batchSize, int numGradientThreads) {
+    SufficientStatistics initialParameters = family.getNewSufficientStatistics();
+    family.initializeParametersToIdentity(initialParameters);
+    if (gaussianVariance > 0.0) {
+      initialParameters.perturb(gaussianVariance);
+    }
+		//System.err.println("init\n"+family.getParameterDescription(initialParameters)); // TODO 
+
+    if (useCompiledVsm && !useHingeLoss) {
+      // Compiled programs only implement the elementwise log-loss.
+      List<CvsmBatch> batches = null;
+      try {
+        CompiledCvsm shapes = new CompiledCvsm(family.getModelFromParameters(initialParameters),
+            constantTensors);
+        batches = CvsmBatch.fromExamples(examples, shapes, batchSize);
+      } catch (IllegalArgumentException e) {
+        System.out.println("Could not compile vector space model, using interpreter: " + e.getMessage());
+      }
+
+      if (batches != null) {
+        CompiledCvsmOracle oracle = new CompiledCvsmOracle(family, constantTensors,
+            numGradientThreads);
+        try {
+          if (checkParallelGradients && numGradientThreads > 1) {
+            double error = oracle.checkParallelGradient(initialParameters, batches,
+                NUM_PARALLEL_GRADIENT_ROUNDS);
+            System.out.println("Parallel gradient error: " + error);
+            Preconditions.checkState(error <= MAX_PARALLEL_GRADIENT_ERROR,
+                "Gradient with %s threads differs from the serial gradient by %s", numGradientThreads, error);
+          }
+          GradientOptimizer trainer = createGradientOptimizer(batches.size());
+          return trainer.train(oracle, initialParameters, batches);
+        } finally {
+          // Each fold and sweep configuration gets its own oracle.
+          oracle.close();
+        }
+      }
+    }
+
     // An elementwise log-loss for binary elements.
     CvsmLoss loss = null;
     if (useHingeLoss) {
@@ -491,13 +532,6 @@ public class VectorModelTrainer extends AbstractCli {
 
     // TODO: this can also be a max-margin loss
     GradientOracle<Cvsm, CvsmExample> oracle = new CvsmLoglikelihoodOracle(family, loss);
-    
-    SufficientStatistics initialParameters = family.getNewSufficientStatistics();
-    family.initializeParametersToIdentity(initialParameters);
-    if (gaussianVariance > 0.0) {
-      initialParameters.perturb(gaussianVariance);
-    }
-		//System.err.println("init\n"+family.getParameterDescription(initialParameters)); // TODO 
 
     GradientOptimizer trainer = createGradientOptimizer(examples.size());
     SufficientStatistics trainedParameters = trainer.train(oracle, initialParameters, examples);
@@ -535,7 +569,7 @@ public class VectorModelTrainer extends AbstractCli {
   }
 
 
-  private class EvaluationResult {
+  protected static class EvaluationResult {
     public final int numCorrect;
     public final int total;
 
@@ -0,0 +1,91 @@
+package edu.cmu.ml.rtw.vector;
+
+import java.util.Arrays;
+import java.util.List;
+
+import com.google.common.collect.Lists;
+import com.jayantkrish.jklol.ccg.lambda.ApplicationExpression;
+import com.jayantkrish.jklol.ccg.lambda.ConstantExpression;
+import com.jayantkrish.jklol.ccg.lambda.Expression;
+
+/**
+ * Static methods for building the formulas of vector space models
+ * directly as {@code Expression}s, rather than as strings that must
+ * be reparsed.
+ *
+ * @author jayantk
+ */
+public class VsmExpressions {
+
+  private VsmExpressions() {
+    // Prevent instantiation.
+  }
+
+  /**
+   * Gets a reference to a tensor parameter, e.g., {@code t:50:word}.
+   */
+  public static Expression tensor(String name) {
+    return new ConstantExpression(name);
+  }
+
+  /**
+   * Gets a reference to a vector or matrix parameter with the given
+   * dimensions, e.g., {@code parameter("W", 50, 50)} returns
+   * {@code t:50;50:W}.
+   */
+  public static Expression parameter(String name, String... dimensions) {
+    StringBuilder sb = new StringBuilder("t:");
+    for (int i = 0; i < dimensions.length; i++) {
+      if (i > 0) {
+        sb.append(";");
+      }
+      sb.append(dimensions[i]);
+    }
+    sb.append(":").append(name);
+    return tensor(sb.toString());
+  }
+
+  public static Expression parameter(String name, int dimensionality) {
+    return parameter(name, Integer.toString(dimensionality));
+  }
+
+  public static Expression parameter(String name, int rows, int columns) {
+    return parameter(name, Integer.toString(rows), Integer.toString(columns));
+  }
+
+  public static Expression op(String operation, Expression... arguments) {
+    return op(operation, Arrays.asList(arguments));
+  }
+
+  public static Expression op(String operation, List<Expression> arguments) {
+    return new ApplicationExpression(new ConstantExpression(operation), Lists.newArrayList(arguments));
+  }
+
+  public static Expression matvecmul(Expression matrix, Expression vector) {
+    return op("op:matvecmul", matrix, vector);
+  }
+
+  public static Expression add(Expression... arguments) {
+    return op("op:add", arguments);
+  }
+
+  public static Expression add(List<Expression> arguments) {
+    return op("op:add", arguments);
+  }
+
+  public static Expression tanh(Expression argument) {
+    return op("op:tanh", argument);
+  }
+
+  public static Expression logistic(Expression argument) {
+    return op("op:logistic", argument);
+  }
+
+  public static Expression exp(Expression argument) {
+    return op("op:exp", argument);
+  }
+
+  public static Expression log(Expression argument) {
+    return op("op:log", argument);
+  }
+}
@@ -2,6 +2,12 @@
 
 # TODO: sweep sigmoids
 
+# Note: edu.cmu.ml.rtw.vector.VectorModelSweep trains a grid of models
+# and dims in a single JVM, reading the domains only once, e.g.:
+# ./src/scripts/invoke.pl -Xmx10000M edu.cmu.ml.rtw.vector.VectorModelSweep --domainDir data/cobot/set/kinect/ \
+#   --vectorModelNames addition,sequenceRnn,Birnn --dims 100,300 --gaussianVariances 1,0.1,0.01 \
+#   --sweepThreads 8 --resultsFilename $OUT_DIR/sweep.tsv --iterations 10 --batchSize 1 --adagrad
+
 # iterations 10 100
 # l2Regularization 0.001 0.01 0.1 1
 # initialStepSize 0.1
@@ -17,6 +23,8 @@ VECTOR_MODEL_NAME=(addition sequenceRnn Birnn logicalFormNn autogeneratedLogical
 DIMENSIONALITY=(100 300)
 
 OUT_DIR=/home/jayantk/lsp/kinect_output/
+# Number of cross validation folds trained in parallel by each run.
+FOLD_THREADS=4
 
 for ITER in ${ITERATIONS[@]}; do
 for L2 in ${L2_REGULARIZATION[@]}; do
@@ -27,7 +35,7 @@ for DIM in ${DIMENSIONALITY[@]}; do
 
     f=$OUT_DIR/$NAME.iter=$ITER.l2=$L2.step=$STEP.var=$VAR.dim=$DIM
 
-    CMD="./singlenode.pl ./src/scripts/invoke.pl -Xmx10000M edu.cmu.ml.rtw.vector.VectorModelTrainer --domainDir data/cobot/set/kinect/ --trainingFilename training.annotated.txt.merged -iterations $ITER --batchSize 1 --l2Regularization $L2 --initialStepSize $STEP --logInterval 1000 --gaussianVariance $VAR --vectorModelName $NAME --dim $DIM --adagrad > $f"
+    CMD="./singlenode.pl ./src/scripts/invoke.pl -Xmx10000M edu.cmu.ml.rtw.vector.VectorModelTrainer --domainDir data/cobot/set/kinect/ --trainingFilename training.annotated.txt.merged -iterations $ITER --batchSize 1 --l2Regularization $L2 --initialStepSize $STEP --logInterval 1000 --gaussianVariance $VAR --vectorModelName $NAME --dim $DIM --adagrad --foldThreads $FOLD_THREADS > $f"
 
     echo $CMD
     $CMD